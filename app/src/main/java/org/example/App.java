@@ -16,6 +16,7 @@ import org.antlr.v4.runtime.CommonTokenStream;
 
 // UTILS
 import com.google.gson.GsonBuilder;
+import org.example.passes.PassManager;
 import static utils.AnsiColors.*;
 
 class App {
@@ -27,24 +28,41 @@ class App {
     public static void main(String[] args) {
         try {
             // 1. Input Setup
-            SourceInput source = getSourceCode(args);
+            Options options = Options.parse(args);
+            SourceInput source = getSourceCode(options.positional());
             if (source == null) return;
 
-            // 2. Lexical Analysis
-            Lexer lexer = runLexer(source.code);
-            if (lexer == null) return;
-
-            // 3. Syntax Analysis
-            // ST tree = runParser(lexer);
-            ST tree = runGeneratedParser(source.code, lexer);
-            if (tree == null) return;
-
-            // 4. Semantic Analysis
-            Typer typer = runSemanticAnalysis(tree, lexer.lineIndex);
-            if (typer == null) return;
+            IR ir = options.has("--ir-cache") ? loadCachedIR(source) : null;
+            if (ir == null) {
+                // 2. Lexical Analysis
+                Lexer lexer = runLexer(source.code);
+                if (lexer == null) return;
+
+                // 3. Syntax Analysis
+                // ST tree = runParser(lexer);
+                ST tree = runGeneratedParser(source.code, lexer);
+                if (tree == null) return;
+
+                // 4. Semantic Analysis
+                Typer typer = runSemanticAnalysis(
+                    tree, lexer.lineIndex, options.has("--all-errors")
+                );
+                if (typer == null) return;
+                ir = typer.ir;
+                if (options.has("--ir-cache")) {
+                    storeCachedIR(ir, source);
+                }
+            }
+            runOptimisations(ir, options);
+            if (options.has("--dump-cfg")) {
+                runCFGDump(ir);
+            }
 
             // 5. Code Generation
-            runCodeGeneration(typer, source.fileName);
+            Set<String> memoised = options.has("--memoise")
+                ? Memoiser.select(ir)
+                : Set.of();
+            runCodeGeneration(ir, source.fileName, memoised);
 
         } catch (IOException e) {
             System.err.println("Critical I/O Error: " + e.getMessage());
@@ -57,14 +75,45 @@ class App {
 
     private record SourceInput(String code, String fileName) {}
 
-    private static SourceInput getSourceCode(String[] args) throws IOException {
+    // flags start with "-" and can go anywhere, the rest is positional
+    //
+    // -O0, -O1, -O2   optimisation level, -O2 by default, see PassManager
+    // --time-passes   print the time each pass took and what it changed
+    // --verify-passes check the IR after every pass
+    // --all-errors    report every semantic error, not just the first one
+    // --dump-cfg      print the SSA control flow graph of the program
+    // --accumulate    also turn linear recursion like `n * f(n - 1)` into
+    //                 loops, through an accumulator
+    // --memoise       remember the values of effect-free recursive functions
+    //                 in a bounded table, see Memoiser
+    // --ir-cache      keep the typed IR in sample/cache, and start from it
+    //                 while the source doesn't change, see IRSerializer
+    private record Options(ArrayList<String> positional, HashSet<String> flags) {
+        static Options parse(String[] args) {
+            var options = new Options(new ArrayList<>(), new HashSet<>());
+            for (var arg : args) {
+                if (arg.startsWith("-")) {
+                    options.flags().add(arg);
+                } else {
+                    options.positional().add(arg);
+                }
+            }
+            return options;
+        }
+
+        boolean has(String flag) {
+            return this.flags.contains(flag);
+        }
+    }
+
+    private static SourceInput getSourceCode(List<String> args) throws IOException {
         String code;
         String inputFileName = "fromCode";
 
-        if (args.length > 0) {
-            Path path = Paths.get(args[0]);
+        if (!args.isEmpty()) {
+            Path path = Paths.get(args.getFirst());
             if (!Files.exists(path)) {
-                System.err.println("Cannot find file: " + args[0]);
+                System.err.println("Cannot find file: " + args.getFirst());
                 System.err.println("Current dir: " + System.getProperty("user.dir"));
                 return null;
             }
@@ -187,8 +236,11 @@ class App {
     // STAGE 4: SEMANTIC ANALYSIS
     // ==========================================================
 
-    private static Typer runSemanticAnalysis(ST parseTree, ArrayList<Integer> lineIndex) {
+    private static Typer runSemanticAnalysis(
+        ST parseTree, ArrayList<Integer> lineIndex, boolean allErrors
+    ) {
         var typer = new Typer(parseTree, lineIndex);
+        typer.collectErrors = allErrors;
         var printerIR = new PrinterIR(lineIndex);
 
         try {
@@ -209,14 +261,65 @@ class App {
         return typer;
     }
 
+    // ==========================================================
+    // OPTIONAL: IR CACHE
+    // ==========================================================
+
+    private static Path cachePath(SourceInput source) {
+        return Paths.get("sample/cache", source.fileName + ".msir");
+    }
+
+    private static IR loadCachedIR(SourceInput source) throws IOException {
+        var ir = IRSerializer.read(cachePath(source), IRSerializer.key(source.code));
+        if (ir != null) {
+            System.out.println("\nТипізоване IR завантажено з кешу: " + cachePath(source));
+        }
+        return ir;
+    }
+
+    private static void storeCachedIR(IR ir, SourceInput source) {
+        try {
+            IRSerializer.write(ir, IRSerializer.key(source.code), cachePath(source));
+        } catch (IOException e) {
+            System.err.println("\nНе вдалося записати кеш IR: " + e.getMessage());
+        }
+    }
+
+    // ==========================================================
+    // STAGE 4.5: OPTIMISATION
+    // ==========================================================
+
+    private static void runOptimisations(IR ir, Options options) {
+        var level = PassManager.MAX_LEVEL;
+        for (var candidate = 0; candidate <= PassManager.MAX_LEVEL; candidate++) {
+            if (options.has("-O" + candidate)) {
+                level = candidate;
+            }
+        }
+        PassManager.forLevel(level, options.has("--accumulate"))
+            .verifying(options.has("--verify-passes"))
+            .timing(options.has("--time-passes") ? System.out : null)
+            .run(ir);
+    }
+
+    // ==========================================================
+    // OPTIONAL: CFG DUMP
+    // ==========================================================
+
+    private static void runCFGDump(IR ir) {
+        var cfg = new CFGBuilder(ir).build();
+        CFGVerifier.verify(cfg);
+        System.out.println(new PrinterCFG().print(cfg));
+    }
+
     // ==========================================================
     // OPTIONAL: POSTFIX GENERATION
     // ==========================================================
 
-    private static void runPostfixGeneration(Typer typer) {
+    private static void runPostfixGeneration(IR ir, Set<String> memoised) {
         // Assuming your Postfix translator class is named 'Translator'
         // based on the original commented-out code.
-        var translator = new Translator(typer.ir); 
+        var translator = new Translator(ir, memoised); 
         String outputDir = "sample/postfix";
 
         try {
@@ -231,15 +334,17 @@ class App {
     // STAGE 5: CODE GENERATION
     // ==========================================================
 
-    private static void runCodeGeneration(Typer typer, String inputFileName) {
-        var translator = new TranslatorJVM(typer.ir, inputFileName);
+    private static void runCodeGeneration(
+        IR ir, String inputFileName, Set<String> memoised
+    ) {
+        var translator = new TranslatorJVM(ir, inputFileName, memoised);
         String outputDir = "sample/jvm/in";
 
         try {
             translator.generate(outputDir);
-            System.out.println("\nГенерація JVM асемблерного файлу (.j) завершена успішно!");
+            System.out.println("\nГенерація JVM класу (.class) завершена успішно!");
         } catch (IOException e) {
-            System.err.println("\nПомилка під час генерації .j файлу: " + e.getMessage());
+            System.err.println("\nПомилка під час генерації .class файлу: " + e.getMessage());
         }
     }
 
@@ -385,3 +490,5 @@ class App {
 //./gradlew run --args="sample/basic.ms2"
 //./gradlew run
 //./gradlew run --args="sample/test_errors/01_missing_terminal.ms2"
+//./gradlew run --args="sample/test_semantic/03_type_mismatch_assignment.ms2 --all-errors"
+//./gradlew run --args="sample/test_translator/6_for_loop.ms2 --dump-cfg"
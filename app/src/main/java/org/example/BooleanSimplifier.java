@@ -0,0 +1,255 @@
+package org.example;
+
+import java.util.*;
+
+// Boolean simplification over the IR, in place.
+//
+// Both backends compute every comparison into a value with a branch of its
+// own, and `!` with one more instruction, so conditions are rewritten to
+// need fewer of them:
+//   - `!!x` is `x`, `!` of a literal is the other literal
+//   - `!(a < b)` is `a >= b`, and so on for every comparison
+//   - `!(a && b)` is `!a || !b` and `!(a || b)` is `!a && !b`, when both
+//     sides can be negated without a `!`
+//   - `x == true` and `x != false` are `x`, `x == false` and `x != true`
+//     are `!x`
+//   - `true && x`, `false || x` and the like are `x`, `false && x` and
+//     `true || x` are the literal if `x` is pure, `&&` and `||` evaluate
+//     both sides
+//   - an `if !c` with an `else` becomes an `if c` with the branches
+//     swapped
+//
+// Ordering comparisons of FLOATs are not inverted: with a NaN `a < b` and
+// `a >= b` can both be false.
+public final class BooleanSimplifier {
+    private final IR ir;
+    private final Purity purity;
+    private int simplified = 0;
+
+    public BooleanSimplifier(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+    }
+
+    // returns the number of rewrites
+    public int simplify() {
+        this.visit(this.ir.scope());
+        return this.simplified;
+    }
+
+    private void visit(IR.Scope scope) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.simplify(v);
+                    if (value != v) {
+                        entries.set(idx, new IR.NewVar(name, value, slot));
+                        if (scope.varMapping().containsKey(name)) {
+                            scope.varMapping().put(name, value);
+                        }
+                    }
+                }
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<>(expr.vars());
+                    // the target of an assignment isn't a value
+                    var from = expr.op().equals("$assign") ? 1 : 0;
+                    var changed = false;
+                    for (var i = from; i < vars.size(); i++) {
+                        var value = this.simplify(vars.get(i));
+                        changed |= value != vars.get(i);
+                        vars.set(i, value);
+                    }
+                    if (changed) {
+                        entries.set(idx, new IR.Expr(expr.op(), vars));
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    this.visit(scoped.scope());
+                    switch (scoped.kind()) {
+                        case IF_BRANCH, WHILE -> {
+                            var condition = scoped.dependencyValue().get();
+                            var value = this.simplify(new IR.Var(condition, IR.TY.BOOL, null, false)).val();
+                            var hasElse = scoped.kind() == IR.SCOPE_KIND.IF_BRANCH
+                                && idx + 1 < entries.size()
+                                && entries.get(idx + 1) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH;
+                            if (hasElse && value instanceof IR.Expr not && not.op().equals("!")) {
+                                // branch on the operand instead
+                                var elseScoped = (IR.Scoped) entries.get(idx + 1);
+                                this.visit(elseScoped.scope());
+                                entries.set(idx, BooleanSimplifier.withScope(
+                                    scoped, Optional.of(not.vars().getFirst().val()), elseScoped.scope()
+                                ));
+                                entries.set(idx + 1, BooleanSimplifier.withScope(
+                                    elseScoped, elseScoped.dependencyValue(), scoped.scope()
+                                ));
+                                this.simplified++;
+                                idx++;
+                            } else if (value != condition) {
+                                entries.set(idx, BooleanSimplifier.withScope(
+                                    scoped, Optional.of(value), scoped.scope()
+                                ));
+                            }
+                        }
+                        case FOR -> {
+                            var dependency = scoped.dependencyValue().get();
+                            var value = dependency instanceof IR.Expr expr
+                                ? this.simplifyArgs(expr)
+                                : dependency;
+                            if (value != dependency) {
+                                entries.set(idx, BooleanSimplifier.withScope(
+                                    scoped, Optional.of(value), scoped.scope()
+                                ));
+                            }
+                        }
+                        // patterns keep the matched value as is, the backends rely on it
+                        case ELSE_BRANCH, CASE_BRANCH, FUN -> {}
+                    }
+                }
+            }
+        }
+    }
+
+    private static IR.Scoped withScope(
+        IR.Scoped scoped, Optional<IR.Value> dependency, IR.Scope scope
+    ) {
+        return new IR.Scoped(scoped.kind(), scoped.bornVars(), dependency, scope, scoped.bornSlots());
+    }
+
+    /*
+     * Expressions
+     */
+
+    // the same Var if nothing changed
+    private IR.Var simplify(IR.Var v) {
+        if (!(v.val() instanceof IR.Expr expr)) {
+            return v;
+        }
+        var args = this.simplifyArgs(expr);
+        var value = v.type() == IR.TY.BOOL ? this.rewrite(args, v) : args;
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Expr simplifyArgs(IR.Expr expr) {
+        var vars = new ArrayList<IR.Var>();
+        var changed = false;
+        for (var v : expr.vars()) {
+            var value = this.simplify(v);
+            changed |= value != v;
+            vars.add(value);
+        }
+        return changed ? new IR.Expr(expr.op(), vars) : expr;
+    }
+
+    // a BOOL expression, its arguments simplified already
+    private IR.Value rewrite(IR.Expr expr, IR.Var self) {
+        var vars = expr.vars();
+        return switch (expr.op()) {
+            case "!" -> {
+                var negated = this.negate(vars.getFirst());
+                if (negated == null) {
+                    yield expr;
+                }
+                this.simplified++;
+                yield negated;
+            }
+            case "==", "!=" -> {
+                var literal = BooleanSimplifier.boolLiteral(vars.get(1)) != null ? 1
+                    : BooleanSimplifier.boolLiteral(vars.get(0)) != null ? 0
+                    : -1;
+                if (literal < 0 || vars.get(1 - literal).type() != IR.TY.BOOL) {
+                    yield expr;
+                }
+                var other = vars.get(1 - literal);
+                this.simplified++;
+                // `x == true`, `x != false`
+                if (expr.op().equals("==") == BooleanSimplifier.boolLiteral(vars.get(literal))) {
+                    yield other.val();
+                }
+                var negated = this.negate(other);
+                yield negated != null ? negated : BooleanSimplifier.not(other, self);
+            }
+            case "&&", "||" -> {
+                // the literal that decides the result
+                var absorbing = expr.op().equals("||");
+                for (var side = 0; side < 2; side++) {
+                    var literal = BooleanSimplifier.boolLiteral(vars.get(side));
+                    if (literal == null) {
+                        continue;
+                    }
+                    var other = vars.get(1 - side);
+                    if (literal != absorbing) {
+                        this.simplified++;
+                        yield other.val();
+                    }
+                    if (this.purity.isPure(other.val())) {
+                        this.simplified++;
+                        yield vars.get(side).val();
+                    }
+                }
+                yield expr;
+            }
+            default -> expr;
+        };
+    }
+
+    // the value of `!v` without a `!` at the top, null if there is none
+    private IR.Value negate(IR.Var v) {
+        return switch (v.val()) {
+            case IR.Atom atom when atom.type() == IR.TY.BOOL ->
+                new IR.Atom(IR.TY.BOOL, String.valueOf(!Boolean.parseBoolean(atom.val())));
+            case IR.Expr expr -> switch (expr.op()) {
+                case "!" -> expr.vars().getFirst().val();
+                case "==", "!=", "<", "<=", ">", ">=" -> {
+                    var ordering = !expr.op().equals("==") && !expr.op().equals("!=");
+                    var floats = expr.vars().stream().anyMatch(arg -> arg.type() == IR.TY.FLOAT);
+                    if (ordering && floats) {
+                        yield null;
+                    }
+                    yield new IR.Expr(BooleanSimplifier.inverse(expr.op()), expr.vars());
+                }
+                case "&&", "||" -> {
+                    var vars = new ArrayList<IR.Var>();
+                    for (var arg : expr.vars()) {
+                        var negated = this.negate(arg);
+                        if (negated == null) {
+                            yield null;
+                        }
+                        vars.add(new IR.Var(negated, IR.TY.BOOL, arg.span(), false));
+                    }
+                    yield new IR.Expr(expr.op().equals("&&") ? "||" : "&&", vars);
+                }
+                default -> null;
+            };
+            default -> null;
+        };
+    }
+
+    private static String inverse(String op) {
+        return switch (op) {
+            case "==" -> "!=";
+            case "!=" -> "==";
+            case "<" -> ">=";
+            case "<=" -> ">";
+            case ">" -> "<=";
+            case ">=" -> "<";
+            default -> throw new IllegalArgumentException("not a comparison: " + op);
+        };
+    }
+
+    private static IR.Expr not(IR.Var v, IR.Var self) {
+        return new IR.Expr("!", new ArrayList<>(List.of(
+            new IR.Var(v.val(), IR.TY.BOOL, self.span(), false)
+        )));
+    }
+
+    // null unless it's a BOOL literal
+    private static Boolean boolLiteral(IR.Var v) {
+        if (v.val() instanceof IR.Atom atom && atom.type() == IR.TY.BOOL) {
+            return Boolean.parseBoolean(atom.val());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,758 @@
+package org.example;
+
+import java.util.*;
+
+// The code of one JVM method, as a list of instructions.
+//
+// TranslatorJVM adds the instructions one by one, branches jump to named
+// labels. The code prints as a listing in the syntax of the Krakatau
+// assembler, and ClassFileWriter encodes it into a class file:
+//   - the operand stack and the locals are simulated along every path from
+//     the argument types of the method, the types they hold at a branch
+//     target go into the StackMapTable
+//   - code no path reaches, like a `goto` after a `return`, is left out,
+//     the verifier would want a frame for it too
+//   - the same simulation gives the limits of the Code attribute, the
+//     deepest the operand stack gets and the highest local slot used, a
+//     double taking two of each
+//   - loads, stores and constants take their shortest encoding, doubles
+//     are stored with all of their bits
+//
+// Branch offsets are 16 bits, a method with jumps further than that is
+// rejected.
+public final class Bytecode {
+    sealed interface Insn {}
+    // no operands
+    record Op(String op) implements Insn {}
+    record Local(String op, int index) implements Insn {}
+    record Iinc(int index, int delta) implements Insn {}
+    // an Integer, Double or String constant
+    record Push(Object value) implements Insn {}
+    record Jump(String op, String label) implements Insn {}
+    record Label(String name) implements Insn {}
+    // getstatic, putstatic and the invokes
+    record Member(String op, String owner, String name, String descriptor) implements Insn {}
+    // new and anewarray with a class, newarray with a primitive type
+    record TypeOp(String op, String type) implements Insn {}
+    record Comment(String text) implements Insn {}
+
+    private static final Map<String, Integer> OPCODES = Map.ofEntries(
+        Map.entry("nop", 0), Map.entry("iconst_m1", 2), Map.entry("iconst_0", 3),
+        Map.entry("dconst_0", 14), Map.entry("dconst_1", 15),
+        Map.entry("bipush", 16), Map.entry("sipush", 17),
+        Map.entry("ldc", 18), Map.entry("ldc_w", 19), Map.entry("ldc2_w", 20),
+        Map.entry("iload", 21), Map.entry("dload", 24), Map.entry("aload", 25),
+        Map.entry("iaload", 46), Map.entry("daload", 49), Map.entry("aaload", 50), Map.entry("baload", 51),
+        Map.entry("istore", 54), Map.entry("dstore", 57), Map.entry("astore", 58),
+        Map.entry("iastore", 79), Map.entry("dastore", 82), Map.entry("aastore", 83), Map.entry("bastore", 84),
+        Map.entry("pop", 87), Map.entry("pop2", 88), Map.entry("dup", 89), Map.entry("dup2", 92),
+        Map.entry("iadd", 96), Map.entry("dadd", 99), Map.entry("isub", 100), Map.entry("dsub", 103),
+        Map.entry("imul", 104), Map.entry("dmul", 107), Map.entry("ddiv", 111),
+        Map.entry("ineg", 116), Map.entry("dneg", 119), Map.entry("iushr", 124),
+        Map.entry("iand", 126), Map.entry("ior", 128), Map.entry("ixor", 130), Map.entry("iinc", 132),
+        Map.entry("i2d", 135), Map.entry("lcmp", 148), Map.entry("dcmpl", 151), Map.entry("dcmpg", 152),
+        Map.entry("ifeq", 153), Map.entry("ifne", 154), Map.entry("iflt", 155),
+        Map.entry("ifge", 156), Map.entry("ifgt", 157), Map.entry("ifle", 158),
+        Map.entry("if_icmpeq", 159), Map.entry("if_icmpne", 160), Map.entry("if_icmplt", 161),
+        Map.entry("if_icmpge", 162), Map.entry("if_icmpgt", 163), Map.entry("if_icmple", 164),
+        Map.entry("goto", 167),
+        Map.entry("ireturn", 172), Map.entry("dreturn", 175), Map.entry("areturn", 176), Map.entry("return", 177),
+        Map.entry("getstatic", 178), Map.entry("putstatic", 179),
+        Map.entry("invokevirtual", 182), Map.entry("invokespecial", 183), Map.entry("invokestatic", 184),
+        Map.entry("new", 187), Map.entry("newarray", 188), Map.entry("anewarray", 189),
+        Map.entry("athrow", 191), Map.entry("wide", 196)
+    );
+    // the `_0` form of each local instruction, `_1` to `_3` follow it
+    private static final Map<String, Integer> SHORT_LOCALS = Map.of(
+        "iload", 26, "dload", 38, "aload", 42, "istore", 59, "dstore", 71, "astore", 75
+    );
+    private static final Map<String, Integer> ARRAY_TYPES = Map.of(
+        "boolean", 4, "double", 7, "int", 10
+    );
+    private static final Set<String> ENDS = Set.of("ireturn", "dreturn", "areturn", "return", "athrow");
+
+    private final ArrayList<Insn> insns = new ArrayList<>();
+
+    /*
+     * Building
+     */
+
+    public void op(String op) {
+        Bytecode.opcode(op);
+        this.insns.add(new Op(op));
+    }
+
+    // iload, istore and the like
+    public void local(String op, int index) {
+        Bytecode.opcode(op);
+        this.insns.add(new Local(op, index));
+    }
+
+    public void iinc(int index, int delta) {
+        this.insns.add(new Iinc(index, delta));
+    }
+
+    public void push(int value) {
+        this.insns.add(new Push(value));
+    }
+
+    public void push(double value) {
+        this.insns.add(new Push(value));
+    }
+
+    public void push(String value) {
+        this.insns.add(new Push(value));
+    }
+
+    public void jump(String op, String label) {
+        Bytecode.opcode(op);
+        this.insns.add(new Jump(op, label));
+    }
+
+    public void label(String name) {
+        this.insns.add(new Label(name));
+    }
+
+    public void field(String op, String owner, String name, String descriptor) {
+        this.insns.add(new Member(op, owner, name, descriptor));
+    }
+
+    public void invoke(String op, String owner, String name, String descriptor) {
+        this.insns.add(new Member(op, owner, name, descriptor));
+    }
+
+    public void type(String op, String type) {
+        this.insns.add(new TypeOp(op, type));
+    }
+
+    public void comment(String text) {
+        this.insns.add(new Comment(text));
+    }
+
+    private static int opcode(String op) {
+        var opcode = OPCODES.get(op);
+        if (opcode == null) {
+            throw new IllegalArgumentException("unknown instruction: " + op);
+        }
+        return opcode;
+    }
+
+    /*
+     * Listing
+     */
+
+    // the instructions, one per line, labels unindented
+    public String listing() {
+        var out = new StringBuilder();
+        for (var insn : this.insns) {
+            switch (insn) {
+                case Label(var name) -> out.append(name).append(":\n");
+                case Comment(var text) -> out.append("        ; ").append(text).append('\n');
+                default -> out.append("        ").append(Bytecode.text(insn)).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String text(Insn insn) {
+        return switch (insn) {
+            case Op(var op) -> op;
+            case Local(var op, var index) -> op + " " + index;
+            case Iinc(var index, var delta) -> "iinc " + index + " " + delta;
+            case Push(Integer value) -> {
+                var op = Bytecode.pushOp(value);
+                yield op.startsWith("iconst") ? op : op + " " + value;
+            }
+            case Push(Double value) -> {
+                var op = Bytecode.pushOp(value);
+                yield op.startsWith("dconst") ? op : op + " " + Bytecode.doubleLiteral(value);
+            }
+            case Push(var value) -> "ldc " + Bytecode.stringLiteral((String) value);
+            case Jump(var op, var label) -> op + " " + label;
+            case Member(var op, var owner, var name, var descriptor) ->
+                op + (Bytecode.isField(op) ? " Field " : " Method ") + owner + " " + name + " " + descriptor;
+            case TypeOp(var op, var type) -> op + " " + type;
+            case Label _, Comment _ -> throw new IllegalStateException("not an instruction");
+        };
+    }
+
+    private static boolean isField(String op) {
+        return op.equals("getstatic") || op.equals("putstatic");
+    }
+
+    private static String pushOp(Object value) {
+        return switch (value) {
+            case Integer i when i >= -1 && i <= 5 -> i < 0 ? "iconst_m1" : "iconst_" + i;
+            case Integer i when i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE -> "bipush";
+            case Integer i when i >= Short.MIN_VALUE && i <= Short.MAX_VALUE -> "sipush";
+            case Integer _ -> "ldc";
+            case Double d when Double.doubleToRawLongBits(d) == 0L -> "dconst_0";
+            case Double d when d == 1.0 -> "dconst_1";
+            case Double _ -> "ldc2_w";
+            default -> "ldc";
+        };
+    }
+
+    private static String doubleLiteral(double value) {
+        if (Double.isNaN(value)) {
+            return "+NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Infinity" : "-Infinity";
+        }
+        // the shortest digits that read back as the same double
+        return Double.toString(value).replace('E', 'e');
+    }
+
+    private static String stringLiteral(String value) {
+        var out = new StringBuilder("\"");
+        for (var c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\t' -> out.append("\\t");
+                case '\r' -> out.append("\\r");
+                default -> out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    /*
+     * Types
+     */
+
+    // a verification type, as the StackMapTable has it, an uninitialized
+    // object is known by the index of its `new`
+    private record Type(int tag, String name, int insn) {
+        boolean wide() {
+            return this.tag == 3 || this.tag == 4;
+        }
+    }
+
+    private static final Type TOP = new Type(0, null, -1);
+    private static final Type INT = new Type(1, null, -1);
+    private static final Type FLOAT = new Type(2, null, -1);
+    private static final Type DOUBLE = new Type(3, null, -1);
+    private static final Type LONG = new Type(4, null, -1);
+    private static final Type UNINITIALIZED_THIS = new Type(6, null, -1);
+    private static final Type STRING = Bytecode.object("java/lang/String");
+
+    private static Type object(String name) {
+        return new Type(7, name, -1);
+    }
+
+    private static Type ofDescriptor(String descriptor) {
+        return switch (descriptor.charAt(0)) {
+            case 'I', 'Z', 'B', 'C', 'S' -> INT;
+            case 'F' -> FLOAT;
+            case 'D' -> DOUBLE;
+            case 'J' -> LONG;
+            case 'L' -> Bytecode.object(descriptor.substring(1, descriptor.length() - 1));
+            case '[' -> Bytecode.object(descriptor);
+            default -> throw new IllegalArgumentException("not a value type: " + descriptor);
+        };
+    }
+
+    // the argument descriptors of a method descriptor
+    private static List<String> arguments(String descriptor) {
+        var args = new ArrayList<String>();
+        var idx = 1;
+        while (descriptor.charAt(idx) != ')') {
+            var start = idx;
+            while (descriptor.charAt(idx) == '[') {
+                idx++;
+            }
+            idx = descriptor.charAt(idx) == 'L' ? descriptor.indexOf(';', idx) + 1 : idx + 1;
+            args.add(descriptor.substring(start, idx));
+        }
+        return args;
+    }
+
+    private static String returned(String descriptor) {
+        return descriptor.substring(descriptor.indexOf(')') + 1);
+    }
+
+    // the locals and the operand stack between two instructions, the
+    // second slot of a wide local is TOP, a wide value is one stack entry
+    private static final class State {
+        final ArrayList<Type> locals;
+        final ArrayList<Type> stack;
+
+        State(List<Type> locals, List<Type> stack) {
+            this.locals = new ArrayList<>(locals);
+            this.stack = new ArrayList<>(stack);
+        }
+
+        State copy() {
+            return new State(this.locals, this.stack);
+        }
+
+        void push(Type type) {
+            this.stack.add(type);
+        }
+
+        Type pop() {
+            return this.stack.removeLast();
+        }
+
+        // a wide value takes two slots of the operand stack
+        int stackSlots() {
+            var slots = 0;
+            for (var type : this.stack) {
+                slots += type.wide() ? 2 : 1;
+            }
+            return slots;
+        }
+
+        void pop(int count) {
+            for (var i = 0; i < count; i++) {
+                this.pop();
+            }
+        }
+
+        Type local(int index) {
+            return index < this.locals.size() ? this.locals.get(index) : TOP;
+        }
+
+        void store(int index, Type type) {
+            while (this.locals.size() < index + (type.wide() ? 2 : 1)) {
+                this.locals.add(TOP);
+            }
+            // a wide local right below loses its second slot
+            if (index > 0 && this.locals.get(index - 1).wide()) {
+                this.locals.set(index - 1, TOP);
+            }
+            this.locals.set(index, type);
+            if (type.wide()) {
+                this.locals.set(index + 1, TOP);
+            }
+        }
+
+        // the object the constructor was called on is initialized everywhere
+        void initialize(Type uninitialized, Type initialized) {
+            this.locals.replaceAll(type -> type.equals(uninitialized) ? initialized : type);
+            this.stack.replaceAll(type -> type.equals(uninitialized) ? initialized : type);
+        }
+
+        // what both states have, null if the stacks don't agree
+        State merge(State other) {
+            if (!this.stack.equals(other.stack)) {
+                return null;
+            }
+            var locals = new ArrayList<Type>();
+            for (var i = 0; i < Math.max(this.locals.size(), other.locals.size()); i++) {
+                var type = this.local(i);
+                locals.add(type.equals(other.local(i)) ? type : TOP);
+            }
+            // a wide local that lost its second slot is lost too
+            for (var i = 0; i < locals.size(); i++) {
+                if (locals.get(i).wide() && (i + 1 >= locals.size() || locals.get(i + 1) != TOP)) {
+                    locals.set(i, TOP);
+                }
+            }
+            return new State(locals, this.stack);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof State state
+                && this.locals.equals(state.locals)
+                && this.stack.equals(state.stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.locals, this.stack);
+        }
+    }
+
+    /*
+     * Encoding
+     */
+
+    // the code of a method, its StackMapTable entries and the most
+    // operand stack and locals slots any reachable instruction uses
+    record Encoded(byte[] code, int frames, byte[] stackMap, int maxStack, int maxLocals) {}
+
+    Encoded encode(
+        ClassFileWriter.ConstantPool pool, String owner, String name, String descriptor, boolean isStatic
+    ) {
+        var labels = new HashMap<String, Integer>();
+        for (var idx = 0; idx < this.insns.size(); idx++) {
+            if (this.insns.get(idx) instanceof Label(var label) && labels.put(label, idx) != null) {
+                throw new IllegalStateException("label " + label + " placed twice in " + name);
+            }
+        }
+
+        var initial = new State(List.of(), List.of());
+        if (!isStatic) {
+            initial.locals.add(name.equals("<init>") ? UNINITIALIZED_THIS : Bytecode.object(owner));
+        }
+        for (var arg : Bytecode.arguments(descriptor)) {
+            initial.store(initial.locals.size(), Bytecode.ofDescriptor(arg));
+        }
+
+        // the states at the start and at labels, the labels reachable
+        // jumps go to and the instructions anything reaches
+        var states = new HashMap<Integer, State>();
+        var targets = new HashSet<Integer>();
+        var reachable = new boolean[this.insns.size()];
+        states.put(0, initial);
+        var work = new ArrayDeque<Integer>();
+        work.push(0);
+        // the arguments take their slots even if the code never reads them
+        var maxStack = 0;
+        var maxLocals = initial.locals.size();
+        while (!work.isEmpty()) {
+            var start = work.pop();
+            var state = states.get(start).copy();
+            for (var idx = start; ; idx++) {
+                if (idx == this.insns.size()) {
+                    throw new IllegalStateException("code of " + name + " runs off its end");
+                }
+                var insn = this.insns.get(idx);
+                if (idx != start && insn instanceof Label) {
+                    if (Bytecode.merge(states, idx, state, name)) {
+                        work.push(idx);
+                    }
+                    break;
+                }
+                reachable[idx] = true;
+                this.execute(idx, insn, state, owner);
+                // an instruction pops before it pushes, the deepest the stack
+                // gets is right after one
+                maxStack = Math.max(maxStack, state.stackSlots());
+                maxLocals = Math.max(maxLocals, state.locals.size());
+                if (insn instanceof Jump(var op, var label)) {
+                    var target = labels.get(label);
+                    if (target == null) {
+                        throw new IllegalStateException("no label " + label + " in " + name);
+                    }
+                    targets.add(target);
+                    if (Bytecode.merge(states, target, state, name)) {
+                        work.push(target);
+                    }
+                    if (op.equals("goto")) {
+                        break;
+                    }
+                } else if (insn instanceof Op(var op) && ENDS.contains(op)) {
+                    break;
+                }
+            }
+        }
+
+        var code = new ClassFileWriter.Out();
+        var offsets = new int[this.insns.size()];
+        // offset of each jump and where its offset goes
+        var jumps = new ArrayList<int[]>();
+        var frameOffsets = new ArrayList<Integer>();
+        var frameStates = new ArrayList<State>();
+        State frame = null;
+        var needsFrame = false;
+        for (var idx = 0; idx < this.insns.size(); idx++) {
+            var insn = this.insns.get(idx);
+            offsets[idx] = code.size();
+            if (insn instanceof Label) {
+                if (states.containsKey(idx)) {
+                    frame = states.get(idx);
+                    needsFrame |= targets.contains(idx);
+                }
+                continue;
+            }
+            if (!reachable[idx] || insn instanceof Comment) {
+                continue;
+            }
+            if (needsFrame) {
+                frameOffsets.add(code.size());
+                frameStates.add(frame);
+                needsFrame = false;
+            }
+            if (insn instanceof Jump(var op, var label)) {
+                jumps.add(new int[] {code.size(), labels.get(label)});
+                code.u1(Bytecode.opcode(op));
+                code.u2(0);
+            } else {
+                Bytecode.encode(insn, code, pool);
+            }
+        }
+        var bytes = code.toByteArray();
+        for (var jump : jumps) {
+            var delta = offsets[jump[1]] - jump[0];
+            if (delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+                throw new IllegalStateException("jump too far in " + name);
+            }
+            bytes[jump[0] + 1] = (byte) (delta >> 8);
+            bytes[jump[0] + 2] = (byte) delta;
+        }
+
+        var stackMap = new ClassFileWriter.Out();
+        var previousLocals = Bytecode.frameLocals(initial);
+        var previousOffset = -1;
+        for (var i = 0; i < frameOffsets.size(); i++) {
+            var state = frameStates.get(i);
+            var locals = Bytecode.frameLocals(state);
+            var delta = frameOffsets.get(i) - previousOffset - 1;
+            if (locals.equals(previousLocals) && state.stack.isEmpty()) {
+                if (delta < 64) {
+                    stackMap.u1(delta);
+                } else {
+                    stackMap.u1(251);
+                    stackMap.u2(delta);
+                }
+            } else if (locals.equals(previousLocals) && state.stack.size() == 1) {
+                if (delta < 64) {
+                    stackMap.u1(64 + delta);
+                } else {
+                    stackMap.u1(247);
+                    stackMap.u2(delta);
+                }
+                Bytecode.writeType(stackMap, state.stack.getFirst(), pool, offsets);
+            } else {
+                stackMap.u1(255);
+                stackMap.u2(delta);
+                stackMap.u2(locals.size());
+                for (var type : locals) {
+                    Bytecode.writeType(stackMap, type, pool, offsets);
+                }
+                stackMap.u2(state.stack.size());
+                for (var type : state.stack) {
+                    Bytecode.writeType(stackMap, type, pool, offsets);
+                }
+            }
+            previousLocals = locals;
+            previousOffset = frameOffsets.get(i);
+        }
+        return new Encoded(bytes, frameOffsets.size(), stackMap.toByteArray(), maxStack, maxLocals);
+    }
+
+    // returns true if the state at the label changed
+    private static boolean merge(HashMap<Integer, State> states, int label, State state, String name) {
+        var known = states.get(label);
+        if (known == null) {
+            states.put(label, state.copy());
+            return true;
+        }
+        var merged = known.merge(state);
+        if (merged == null) {
+            throw new IllegalStateException("operand stacks disagree at a label in " + name);
+        }
+        if (merged.equals(known)) {
+            return false;
+        }
+        states.put(label, merged);
+        return true;
+    }
+
+    private void execute(int idx, Insn insn, State state, String owner) {
+        switch (insn) {
+            case Label _, Comment _, Iinc _ -> {}
+            case Op(var op) -> Bytecode.execute(op, state);
+            case Local(var op, var index) -> {
+                switch (op) {
+                    case "iload" -> state.push(INT);
+                    case "dload" -> state.push(DOUBLE);
+                    case "aload" -> state.push(state.local(index));
+                    default -> state.store(index, state.pop());
+                }
+            }
+            case Push(var value) -> state.push(
+                value instanceof Integer ? INT : value instanceof Double ? DOUBLE : STRING
+            );
+            case Jump(var op, _) -> state.pop(op.startsWith("if_icmp") ? 2 : op.equals("goto") ? 0 : 1);
+            case Member(var op, var memberOwner, var name, var descriptor) -> {
+                switch (op) {
+                    case "getstatic" -> state.push(Bytecode.ofDescriptor(descriptor));
+                    case "putstatic" -> state.pop();
+                    default -> {
+                        state.pop(Bytecode.arguments(descriptor).size());
+                        if (!op.equals("invokestatic")) {
+                            var receiver = state.pop();
+                            if (name.equals("<init>")) {
+                                state.initialize(receiver, Bytecode.object(
+                                    receiver.equals(UNINITIALIZED_THIS) ? owner : memberOwner
+                                ));
+                            }
+                        }
+                        var returned = Bytecode.returned(descriptor);
+                        if (!returned.equals("V")) {
+                            state.push(Bytecode.ofDescriptor(returned));
+                        }
+                    }
+                }
+            }
+            case TypeOp(var op, var type) -> {
+                switch (op) {
+                    case "new" -> state.push(new Type(8, null, idx));
+                    case "anewarray" -> {
+                        state.pop();
+                        state.push(Bytecode.object("[L" + type + ";"));
+                    }
+                    default -> {
+                        state.pop();
+                        state.push(Bytecode.object(switch (type) {
+                            case "boolean" -> "[Z";
+                            case "double" -> "[D";
+                            default -> "[I";
+                        }));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void execute(String op, State state) {
+        switch (op) {
+            case "nop" -> {}
+            case "iadd", "isub", "imul", "iand", "ior", "ixor", "iushr" -> {
+                state.pop(2);
+                state.push(INT);
+            }
+            case "ineg" -> {}
+            case "dadd", "dsub", "dmul", "ddiv" -> state.pop();
+            case "dneg" -> {}
+            case "i2d" -> {
+                state.pop();
+                state.push(DOUBLE);
+            }
+            case "dcmpl", "dcmpg", "lcmp" -> {
+                state.pop(2);
+                state.push(INT);
+            }
+            case "pop" -> state.pop();
+            case "pop2" -> state.pop(state.stack.getLast().wide() ? 1 : 2);
+            case "dup" -> state.push(state.stack.getLast());
+            case "dup2" -> {
+                if (state.stack.getLast().wide()) {
+                    state.push(state.stack.getLast());
+                } else {
+                    var below = state.stack.get(state.stack.size() - 2);
+                    var top = state.stack.getLast();
+                    state.push(below);
+                    state.push(top);
+                }
+            }
+            case "iaload", "baload" -> {
+                state.pop(2);
+                state.push(INT);
+            }
+            case "daload" -> {
+                state.pop(2);
+                state.push(DOUBLE);
+            }
+            case "aaload" -> {
+                state.pop();
+                var array = state.pop();
+                state.push(Bytecode.ofDescriptor(array.name().substring(1)));
+            }
+            case "iastore", "dastore", "aastore", "bastore" -> state.pop(3);
+            case "ireturn", "dreturn", "areturn", "athrow" -> state.pop();
+            case "return" -> {}
+            default -> throw new IllegalArgumentException("no stack effect for " + op);
+        }
+    }
+
+    private static void encode(Insn insn, ClassFileWriter.Out code, ClassFileWriter.ConstantPool pool) {
+        switch (insn) {
+            case Op(var op) -> code.u1(Bytecode.opcode(op));
+            case Local(var op, var index) -> {
+                if (index <= 3) {
+                    code.u1(SHORT_LOCALS.get(op) + index);
+                } else if (index <= 255) {
+                    code.u1(Bytecode.opcode(op));
+                    code.u1(index);
+                } else {
+                    code.u1(Bytecode.opcode("wide"));
+                    code.u1(Bytecode.opcode(op));
+                    code.u2(index);
+                }
+            }
+            case Iinc(var index, var delta) -> {
+                if (index <= 255 && delta >= Byte.MIN_VALUE && delta <= Byte.MAX_VALUE) {
+                    code.u1(Bytecode.opcode("iinc"));
+                    code.u1(index);
+                    code.u1(delta);
+                } else {
+                    code.u1(Bytecode.opcode("wide"));
+                    code.u1(Bytecode.opcode("iinc"));
+                    code.u2(index);
+                    code.u2(delta);
+                }
+            }
+            case Push(var value) -> {
+                var op = Bytecode.pushOp(value);
+                switch (op) {
+                    case "bipush" -> {
+                        code.u1(Bytecode.opcode(op));
+                        code.u1((Integer) value);
+                    }
+                    case "sipush" -> {
+                        code.u1(Bytecode.opcode(op));
+                        code.u2((Integer) value);
+                    }
+                    case "ldc2_w" -> {
+                        code.u1(Bytecode.opcode(op));
+                        code.u2(pool.doubleValue((Double) value));
+                    }
+                    case "ldc" -> {
+                        var index = value instanceof Integer i ? pool.integer(i) : pool.string((String) value);
+                        if (index <= 255) {
+                            code.u1(Bytecode.opcode("ldc"));
+                            code.u1(index);
+                        } else {
+                            code.u1(Bytecode.opcode("ldc_w"));
+                            code.u2(index);
+                        }
+                    }
+                    default -> code.u1(value instanceof Integer i
+                        ? Bytecode.opcode("iconst_0") + i
+                        : Bytecode.opcode("dconst_0") + (int) (double) (Double) value);
+                }
+            }
+            case Member(var op, var owner, var name, var descriptor) -> {
+                code.u1(Bytecode.opcode(op));
+                code.u2(Bytecode.isField(op)
+                    ? pool.field(owner, name, descriptor)
+                    : pool.method(owner, name, descriptor));
+            }
+            case TypeOp(var op, var type) -> {
+                code.u1(Bytecode.opcode(op));
+                if (op.equals("newarray")) {
+                    code.u1(ARRAY_TYPES.get(type));
+                } else {
+                    code.u2(pool.classRef(type));
+                }
+            }
+            case Jump _, Label _, Comment _ -> throw new IllegalStateException("encoded elsewhere");
+        }
+    }
+
+    // the locals of a frame, a wide one takes one entry, without the TOPs
+    // at the end
+    private static List<Type> frameLocals(State state) {
+        var locals = new ArrayList<Type>();
+        for (var i = 0; i < state.locals.size(); i++) {
+            var type = state.locals.get(i);
+            locals.add(type);
+            if (type.wide()) {
+                i++;
+            }
+        }
+        while (!locals.isEmpty() && locals.getLast() == TOP) {
+            locals.removeLast();
+        }
+        return locals;
+    }
+
+    private static void writeType(
+        ClassFileWriter.Out out, Type type, ClassFileWriter.ConstantPool pool, int[] offsets
+    ) {
+        out.u1(type.tag());
+        switch (type.tag()) {
+            case 7 -> out.u2(pool.classRef(type.name()));
+            case 8 -> out.u2(offsets[type.insn()]);
+            default -> {}
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.example;
+
+import java.util.*;
+
+// Control flow graph of a program, in SSA form.
+//
+// Built from the IR by CFGBuilder. The IR only implies its control flow by
+// the order of entries (an ELSE_BRANCH follows its IF_BRANCH, a Noop closes
+// a switch, nothing runs after a `$return`), here every block ends with a
+// terminator that names where control goes next.
+//
+// Locals are in SSA form: every value is defined exactly once and values
+// that differ between paths are merged by phi nodes. Globals can be changed
+// by any function, so they stay in memory and are accessed with `$load`
+// and `$store`.
+//
+// Besides the operators of the opStore, instructions can be
+//     $load(@global)          -> type of the global
+//     $store(@global, value)  -> VOID
+//     $strLen(s)              -> INT
+//     $charAt(s, i)           -> STRING, one character
+//     print(values...)        -> VOID
+public record CFG(
+    LinkedHashMap<String, IR.Operator> opStore,
+    // global name -> type, in declaration order
+    LinkedHashMap<String, IR.TY> globals,
+    // GLOBALS_INIT first, then in declaration order
+    LinkedHashMap<String, Function> functions
+) {
+    // initialises the globals, runs before main
+    public static final String GLOBALS_INIT = "$globals";
+
+    public record Function(
+        String name,
+        ArrayList<Param> params,
+        IR.TY returnType,
+        // reverse postorder, entry first
+        ArrayList<Block> blocks
+    ) {
+        public Block entry() {
+            return this.blocks.getFirst();
+        }
+
+        // Immediate dominators, the entry maps to itself.
+        //
+        // Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm",
+        // relies on the blocks being in reverse postorder.
+        public HashMap<Block, Block> dominators() {
+            var order = new HashMap<Block, Integer>();
+            for (var idx = 0; idx < this.blocks.size(); idx++) {
+                order.put(this.blocks.get(idx), idx);
+            }
+
+            var idom = new HashMap<Block, Block>();
+            idom.put(this.entry(), this.entry());
+            var changed = true;
+            while (changed) {
+                changed = false;
+                for (var block : this.blocks) {
+                    if (block == this.entry()) {
+                        continue;
+                    }
+                    Block newIdom = null;
+                    for (var pred : block.preds) {
+                        if (!idom.containsKey(pred)) {
+                            continue;
+                        }
+                        newIdom = newIdom == null
+                            ? pred
+                            : Function.intersect(pred, newIdom, idom, order);
+                    }
+                    if (newIdom != null && idom.get(block) != newIdom) {
+                        idom.put(block, newIdom);
+                        changed = true;
+                    }
+                }
+            }
+            return idom;
+        }
+
+        private static Block intersect(
+            Block a,
+            Block b,
+            HashMap<Block, Block> idom,
+            HashMap<Block, Integer> order
+        ) {
+            while (a != b) {
+                while (order.get(a) > order.get(b)) {
+                    a = idom.get(a);
+                }
+                while (order.get(b) > order.get(a)) {
+                    b = idom.get(b);
+                }
+            }
+            return a;
+        }
+
+        // does `a` dominate `b`, given the result of dominators()
+        public static boolean dominates(
+            HashMap<Block, Block> idom, Block a, Block b
+        ) {
+            var block = b;
+            while (true) {
+                if (block == a) {
+                    return true;
+                }
+                var up = idom.get(block);
+                if (up == null || up == block) {
+                    return false;
+                }
+                block = up;
+            }
+        }
+    }
+
+    public static final class Block {
+        public final int id;
+        // order matters, phi operands follow it
+        public final ArrayList<Block> preds = new ArrayList<>();
+        public final ArrayList<Phi> phis = new ArrayList<>();
+        public final ArrayList<Instr> instrs = new ArrayList<>();
+        // null only while the block is being built
+        public Terminator terminator;
+
+        public Block(int id) {
+            this.id = id;
+        }
+
+        public List<Block> succs() {
+            return switch (this.terminator) {
+                case null -> List.of();
+                case Jump(var target) -> List.of(target);
+                case Branch(_, var ifTrue, var ifFalse) -> List.of(ifTrue, ifFalse);
+                case Return _ -> List.of();
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "b" + this.id;
+        }
+    }
+
+    /*
+     * Terminators
+     */
+    public sealed interface Terminator
+        permits Jump, Branch, Return {}
+
+    public record Jump(Block target) implements Terminator {}
+    public record Branch(Value cond, Block ifTrue, Block ifFalse) implements Terminator {}
+    // empty for VOID functions
+    public record Return(Optional<Value> value) implements Terminator {}
+
+    /*
+     * Values
+     */
+    public sealed interface Value
+        permits Const, Undef, Param, Global, Instr, Phi {
+        IR.TY type();
+    }
+
+    // literal, same encoding as IR.Atom
+    public record Const(IR.TY type, String val) implements Value {}
+    // read of a variable that has no definition on some path
+    public record Undef(IR.TY type) implements Value {}
+    // function argument, `name` is the unique name from the IR
+    public record Param(int index, String name, IR.TY type) implements Value {}
+    // a global, only as the first argument of `$load` and `$store`
+    public record Global(String name, IR.TY type) implements Value {}
+
+    public static final class Instr implements Value {
+        // unique within the function, shared with phis
+        public final int id;
+        public final String op;
+        public final IR.TY type;
+        public final ArrayList<Value> args;
+        public Block block;
+
+        public Instr(int id, String op, IR.TY type, ArrayList<Value> args) {
+            this.id = id;
+            this.op = op;
+            this.type = type;
+            this.args = args;
+        }
+
+        @Override
+        public IR.TY type() {
+            return this.type;
+        }
+
+        @Override
+        public String toString() {
+            return "%" + this.id;
+        }
+    }
+
+    public static final class Phi implements Value {
+        public final int id;
+        public final IR.TY type;
+        // unique name of the local it merges
+        public final String variable;
+        // one per predecessor of the block, same order
+        public final ArrayList<Value> operands = new ArrayList<>();
+        public Block block;
+
+        public Phi(int id, IR.TY type, String variable) {
+            this.id = id;
+            this.type = type;
+            this.variable = variable;
+        }
+
+        @Override
+        public IR.TY type() {
+            return this.type;
+        }
+
+        @Override
+        public String toString() {
+            return "%" + this.id;
+        }
+    }
+}
@@ -0,0 +1,681 @@
+package org.example;
+
+import java.util.*;
+
+// Lowers a typechecked IR into a CFG in SSA form.
+//
+// SSA is built on the fly, while blocks are filled, as in Braun et al.,
+// "Simple and Efficient Construction of Static Single Assignment Form":
+// every block keeps the current value of each local, a read in a block
+// without one asks the predecessors. Blocks whose predecessors are not all
+// known yet (loop headers) are not sealed, reads there get an operand-less
+// phi which is filled in once the block is sealed.
+//
+// Phis that turn out to merge a single value are removed at the end of
+// each function, together with the blocks that can't be reached.
+public final class CFGBuilder {
+    private final IR ir;
+    private final OperatorRegistry operators;
+    private final LinkedHashMap<String, IR.TY> globals = new LinkedHashMap<>();
+
+    // state of the function being built
+    private ArrayList<CFG.Block> blocks;
+    // null when the code being lowered can't be reached
+    private CFG.Block current;
+    private int nextBlock;
+    private int nextValue;
+    // local -> block -> its value at the end of that block (so far)
+    private HashMap<String, HashMap<CFG.Block, CFG.Value>> currentDef;
+    private HashMap<String, IR.TY> localTypes;
+    private HashSet<CFG.Block> sealed;
+    private HashMap<CFG.Block, LinkedHashMap<String, CFG.Phi>> incompletePhis;
+
+    public CFGBuilder(IR ir) {
+        this.ir = ir;
+        this.operators = OperatorRegistry.of(ir.opStore());
+    }
+
+    public CFG build() {
+        var functions = new LinkedHashMap<String, CFG.Function>();
+        var funScopes = new ArrayList<IR.Scoped>();
+
+        this.startFunction();
+        for (var entry : this.ir.scope().entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> {
+                    var type = newVar.v().type();
+                    this.globals.put(newVar.name(), type);
+                    var value = this.lowerVar(newVar.v());
+                    this.emit("$store", IR.TY.VOID, new CFG.Global(newVar.name(), type), value);
+                }
+                case IR.Scoped scoped when scoped.kind() == IR.SCOPE_KIND.FUN -> {
+                    funScopes.add(scoped);
+                }
+                default -> throw new IllegalStateException(
+                    "unexpected global entry: " + entry
+                );
+            }
+        }
+        functions.put(CFG.GLOBALS_INIT, this.finishFunction(
+            CFG.GLOBALS_INIT, new ArrayList<>(), IR.TY.VOID
+        ));
+
+        for (var scoped : funScopes) {
+            var function = this.buildFunction(scoped);
+            functions.put(function.name(), function);
+        }
+        return new CFG(this.ir.opStore(), this.globals, functions);
+    }
+
+    private CFG.Function buildFunction(IR.Scoped scoped) {
+        var name = scoped.scope().funcName();
+        var spec = this.ir.opStore().get(name).alternatives().getFirst();
+
+        this.startFunction();
+        var params = new ArrayList<CFG.Param>();
+        for (var idx = 0; idx < scoped.bornVars().size(); idx++) {
+            var param = new CFG.Param(
+                idx, scoped.bornVars().get(idx), spec.argTypes().get(idx)
+            );
+            params.add(param);
+            this.define(param.name(), param.type(), param);
+        }
+        this.lowerScope(scoped.scope());
+        return this.finishFunction(name, params, spec.returnType());
+    }
+
+    private void startFunction() {
+        this.blocks = new ArrayList<>();
+        this.nextBlock = 0;
+        this.nextValue = 0;
+        this.currentDef = new HashMap<>();
+        this.localTypes = new HashMap<>();
+        this.sealed = new HashSet<>();
+        this.incompletePhis = new HashMap<>();
+
+        this.current = this.newBlock();
+        this.seal(this.current);
+    }
+
+    private CFG.Function finishFunction(
+        String name, ArrayList<CFG.Param> params, IR.TY returnType
+    ) {
+        if (this.current != null) {
+            // falling off the end, non-void functions have returned on
+            // every path that matters, Typer made sure of that
+            Optional<CFG.Value> value = returnType == IR.TY.VOID
+                ? Optional.empty()
+                : Optional.of(new CFG.Undef(returnType));
+            this.terminate(new CFG.Return(value));
+        }
+        assert this.incompletePhis.isEmpty() : "unsealed blocks left";
+
+        var function = new CFG.Function(
+            name, params, returnType, this.reversePostorder()
+        );
+        this.removeTrivialPhis(function);
+        return function;
+    }
+
+    /*
+     * Blocks
+     */
+    private CFG.Block newBlock() {
+        var block = new CFG.Block(this.nextBlock++);
+        this.blocks.add(block);
+        return block;
+    }
+
+    // ends the current block, the code that follows is unreachable until
+    // some other block is made current
+    private void terminate(CFG.Terminator terminator) {
+        var block = this.current;
+        block.terminator = terminator;
+        for (var succ : block.succs()) {
+            assert !this.sealed.contains(succ) : "edge into a sealed block";
+            succ.preds.add(block);
+        }
+        this.current = null;
+    }
+
+    private void jumpTo(CFG.Block target) {
+        if (this.current != null) {
+            this.terminate(new CFG.Jump(target));
+        }
+    }
+
+    // continues in `block`, or nowhere if nothing jumps to it
+    private void continueIn(CFG.Block block) {
+        this.current = block.preds.isEmpty() ? null : block;
+    }
+
+    // all predecessors of the block are known
+    private void seal(CFG.Block block) {
+        var phis = this.incompletePhis.remove(block);
+        if (phis != null) {
+            for (var entry : phis.entrySet()) {
+                this.addPhiOperands(entry.getKey(), entry.getValue());
+            }
+        }
+        this.sealed.add(block);
+    }
+
+    /*
+     * Scopes
+     */
+    private void lowerScope(IR.Scope scope) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            if (this.current == null) {
+                // dead code, lowered anyway and dropped at the end
+                this.current = this.newBlock();
+                this.seal(this.current);
+            }
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> this.define(
+                    newVar.name(),
+                    newVar.v().type(),
+                    this.lowerVar(newVar.v())
+                );
+                case IR.Expr expr -> this.lowerAction(expr);
+                case IR.Scoped scoped -> {
+                    switch (scoped.kind()) {
+                        case IF_BRANCH -> {
+                            IR.Scoped elseScoped = null;
+                            if (
+                                idx + 1 < entries.size()
+                                && entries.get(idx + 1) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH
+                            ) {
+                                elseScoped = next;
+                                idx++;
+                            }
+                            this.lowerIf(scoped, elseScoped);
+                        }
+                        case WHILE -> this.lowerWhile(scoped);
+                        case FOR -> this.lowerFor(scoped);
+                        case CASE_BRANCH -> {
+                            // cases run up to the Noop closing the switch
+                            var cases = new ArrayList<IR.Scoped>();
+                            while (
+                                idx < entries.size()
+                                && entries.get(idx) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.CASE_BRANCH
+                            ) {
+                                cases.add(next);
+                                idx++;
+                            }
+                            idx--;
+                            this.lowerSwitch(cases);
+                        }
+                        case ELSE_BRANCH, FUN -> throw new IllegalStateException(
+                            "unexpected " + scoped.kind() + " in " + scope.funcName()
+                        );
+                    }
+                }
+            }
+        }
+    }
+
+    private void lowerAction(IR.Expr expr) {
+        switch (expr.op()) {
+            case "$assign" -> {
+                var ref = (IR.Ref) expr.vars().get(0).val();
+                var value = this.lowerVar(expr.vars().get(1));
+                if (ref.slot().isGlobal()) {
+                    var global = new CFG.Global(ref.ident(), this.globals.get(ref.ident()));
+                    this.emit("$store", IR.TY.VOID, global, value);
+                } else {
+                    this.writeVariable(ref.ident(), this.current, value);
+                }
+            }
+            case "$return" -> {
+                var value = this.lowerVar(expr.vars().getFirst());
+                this.terminate(new CFG.Return(Optional.of(value)));
+            }
+            // a builder holds what its local would, see StringBuilderRewriter
+            case "$sbOpen", "$sbClose" -> {}
+            case "$sbAppend", "$sbPrepend" -> {
+                var ref = (IR.Ref) expr.vars().get(0).val();
+                var acc = this.read(ref.ident());
+                var piece = this.lowerVar(expr.vars().get(1));
+                var value = expr.op().equals("$sbAppend")
+                    ? this.emit("+", IR.TY.STRING, acc, piece)
+                    : this.emit("+", IR.TY.STRING, piece, acc);
+                this.writeVariable(ref.ident(), this.current, value);
+            }
+            case "print" -> this.emit("print", IR.TY.VOID, this.lowerVars(expr.vars()));
+            default -> {
+                var args = this.lowerVars(expr.vars());
+                var types = args.stream().map(CFG.Value::type).toList();
+                var type = this.operators.resolveTypes(expr.op(), types);
+                if (type == null) {
+                    throw new IllegalStateException("unresolved call: " + expr.op());
+                }
+                this.emit(expr.op(), type, args);
+            }
+        }
+    }
+
+    private void lowerIf(IR.Scoped ifScoped, IR.Scoped elseScoped) {
+        var cond = this.lowerValue(ifScoped.dependencyValue().get(), IR.TY.BOOL);
+        var thenBlock = this.newBlock();
+        var elseBlock = elseScoped != null ? this.newBlock() : null;
+        var join = this.newBlock();
+
+        this.terminate(new CFG.Branch(
+            cond, thenBlock, elseBlock != null ? elseBlock : join
+        ));
+
+        this.seal(thenBlock);
+        this.current = thenBlock;
+        this.lowerScope(ifScoped.scope());
+        this.jumpTo(join);
+
+        if (elseBlock != null) {
+            this.seal(elseBlock);
+            this.current = elseBlock;
+            this.lowerScope(elseScoped.scope());
+            this.jumpTo(join);
+        }
+
+        this.seal(join);
+        this.continueIn(join);
+    }
+
+    private void lowerWhile(IR.Scoped scoped) {
+        var header = this.newBlock();
+        this.jumpTo(header);
+
+        // condition is evaluated in the header, on every iteration
+        this.current = header;
+        var cond = this.lowerValue(scoped.dependencyValue().get(), IR.TY.BOOL);
+        var body = this.newBlock();
+        var exit = this.newBlock();
+        this.terminate(new CFG.Branch(cond, body, exit));
+
+        this.seal(body);
+        this.current = body;
+        this.lowerScope(scoped.scope());
+        this.jumpTo(header);
+
+        // back edge is known now
+        this.seal(header);
+        this.seal(exit);
+        this.current = exit;
+    }
+
+    // for i in range(from, to, step) runs while i < to, whatever the step
+    private void lowerFor(IR.Scoped scoped) {
+        var iterable = scoped.dependencyValue().get();
+        var bornVars = scoped.bornVars();
+        var range = iterable instanceof IR.Expr expr && expr.op().equals("$iterRange")
+            ? expr
+            : null;
+
+        var iter = bornVars.get(0);
+        CFG.Value limit = null;
+        CFG.Value step = null;
+        String store = null;
+        String count = null;
+        if (range != null) {
+            this.define(iter, IR.TY.INT, this.lowerVar(range.vars().get(0)));
+            limit = this.lowerVar(range.vars().get(1));
+            step = this.lowerVar(range.vars().get(2));
+        } else {
+            // for ch in string, over a copy of the string
+            store = bornVars.get(1);
+            count = bornVars.get(2);
+            this.define(store, IR.TY.STRING, this.lowerValue(iterable, IR.TY.STRING));
+            this.define(count, IR.TY.INT, new CFG.Const(IR.TY.INT, "0"));
+            this.localTypes.put(iter, IR.TY.STRING);
+        }
+
+        var header = this.newBlock();
+        this.jumpTo(header);
+        this.current = header;
+        CFG.Value cond;
+        if (range != null) {
+            cond = this.emit("<", IR.TY.BOOL, this.read(iter), limit);
+        } else {
+            var length = this.emit("$strLen", IR.TY.INT, this.read(store));
+            cond = this.emit("<", IR.TY.BOOL, this.read(count), length);
+        }
+        var body = this.newBlock();
+        var exit = this.newBlock();
+        this.terminate(new CFG.Branch(cond, body, exit));
+
+        this.seal(body);
+        this.current = body;
+        if (range == null) {
+            var ch = this.emit("$charAt", IR.TY.STRING, this.read(store), this.read(count));
+            this.writeVariable(iter, this.current, ch);
+        }
+        this.lowerScope(scoped.scope());
+        if (this.current != null) {
+            if (range != null) {
+                this.writeVariable(iter, this.current, this.emit(
+                    "+", IR.TY.INT, this.read(iter), step
+                ));
+            } else {
+                this.writeVariable(count, this.current, this.emit(
+                    "+", IR.TY.INT, this.read(count), new CFG.Const(IR.TY.INT, "1")
+                ));
+            }
+            this.jumpTo(header);
+        }
+
+        this.seal(header);
+        this.seal(exit);
+        this.current = exit;
+    }
+
+    // A chain of tests, the first case that matches runs and the switch is
+    // done. The matched value is computed once, before the first test.
+    private void lowerSwitch(ArrayList<IR.Scoped> cases) {
+        var end = this.newBlock();
+        CFG.Value target = null;
+
+        for (var scoped : cases) {
+            if (scoped.dependencyValue().isEmpty()) {
+                // default, always last
+                this.lowerScope(scoped.scope());
+                this.jumpTo(end);
+                break;
+            }
+            var pattern = (IR.Expr) scoped.dependencyValue().get();
+            if (target == null) {
+                target = this.lowerVar(pattern.vars().getFirst());
+            }
+            var test = this.lowerPattern(pattern, target);
+            var caseBlock = this.newBlock();
+            var next = this.newBlock();
+            this.terminate(new CFG.Branch(test, caseBlock, next));
+
+            this.seal(caseBlock);
+            this.current = caseBlock;
+            this.lowerScope(scoped.scope());
+            this.jumpTo(end);
+
+            this.seal(next);
+            this.current = next;
+        }
+        // no case matched
+        this.jumpTo(end);
+
+        this.seal(end);
+        this.continueIn(end);
+    }
+
+    private CFG.Value lowerPattern(IR.Expr pattern, CFG.Value target) {
+        var vars = pattern.vars();
+        return switch (pattern.op()) {
+            case "$caseIs" -> this.emit("==", IR.TY.BOOL, target, this.lowerVar(vars.get(1)));
+            case "$caseOf" -> {
+                CFG.Value test = null;
+                for (var literal : vars.subList(1, vars.size())) {
+                    var eq = this.emit("==", IR.TY.BOOL, target, this.lowerVar(literal));
+                    test = test == null ? eq : this.emit("||", IR.TY.BOOL, test, eq);
+                }
+                yield test != null ? test : new CFG.Const(IR.TY.BOOL, "false");
+            }
+            case "$caseIn" -> {
+                var from = this.emit(">=", IR.TY.BOOL, target, this.lowerVar(vars.get(1)));
+                var to = this.emit("<", IR.TY.BOOL, target, this.lowerVar(vars.get(2)));
+                yield this.emit("&&", IR.TY.BOOL, from, to);
+            }
+            default -> throw new IllegalStateException(
+                "unknown case pattern: " + pattern.op()
+            );
+        };
+    }
+
+    /*
+     * Values
+     */
+    private CFG.Value lowerVar(IR.Var var) {
+        return this.lowerValue(var.val(), var.type());
+    }
+
+    private ArrayList<CFG.Value> lowerVars(List<IR.Var> vars) {
+        var values = new ArrayList<CFG.Value>();
+        for (var var : vars) {
+            values.add(this.lowerVar(var));
+        }
+        return values;
+    }
+
+    // an operator to emit once its arguments are lowered
+    private record Apply(String op, IR.TY type, int arity) {}
+
+    // `type` is the type the IR gave the value
+    //
+    // Generated code nests expressions thousands deep, so operands are
+    // lowered off a stack of values still to lower and operators waiting
+    // for them, in the order recursion would emit them.
+    private CFG.Value lowerValue(IR.Value value, IR.TY type) {
+        var work = new ArrayDeque<Object>();
+        var done = new ArrayDeque<CFG.Value>();
+        work.push(new IR.Var(value, type, null, false));
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case Apply(var op, var opType, var arity) -> {
+                    var args = new ArrayList<CFG.Value>(Collections.nCopies(arity, null));
+                    for (var idx = arity - 1; idx >= 0; idx--) {
+                        args.set(idx, done.pop());
+                    }
+                    done.push(this.emit(op, opType, args));
+                }
+                case IR.Var v -> {
+                    switch (v.val()) {
+                        case IR.Atom atom -> done.push(new CFG.Const(atom.type(), atom.val()));
+                        case IR.Ref ref -> done.push(ref.slot().isGlobal()
+                            ? this.emit("$load", v.type(), new CFG.Global(ref.ident(), v.type()))
+                            : this.read(ref.ident()));
+                        case IR.Expr expr -> {
+                            work.push(new Apply(expr.op(), v.type(), expr.vars().size()));
+                            for (var idx = expr.vars().size() - 1; idx >= 0; idx--) {
+                                work.push(expr.vars().get(idx));
+                            }
+                        }
+                        case IR.Arg arg -> throw new IllegalStateException(
+                            "argument outside of born vars: " + arg
+                        );
+                    }
+                }
+                default -> throw new IllegalStateException("not a value");
+            }
+        }
+        return done.pop();
+    }
+
+    private CFG.Instr emit(String op, IR.TY type, CFG.Value... args) {
+        return this.emit(op, type, new ArrayList<>(List.of(args)));
+    }
+
+    private CFG.Instr emit(String op, IR.TY type, ArrayList<CFG.Value> args) {
+        var instr = new CFG.Instr(this.nextValue++, op, type, args);
+        instr.block = this.current;
+        this.current.instrs.add(instr);
+        return instr;
+    }
+
+    /*
+     * SSA construction
+     */
+    private void define(String name, IR.TY type, CFG.Value value) {
+        this.localTypes.put(name, type);
+        this.writeVariable(name, this.current, value);
+    }
+
+    private CFG.Value read(String name) {
+        return this.readVariable(name, this.current);
+    }
+
+    private void writeVariable(String name, CFG.Block block, CFG.Value value) {
+        this.currentDef
+            .computeIfAbsent(name, k -> new HashMap<>())
+            .put(block, value);
+    }
+
+    private CFG.Value readVariable(String name, CFG.Block block) {
+        var defs = this.currentDef.get(name);
+        if (defs != null && defs.containsKey(block)) {
+            return defs.get(block);
+        }
+        return this.readVariableRecursive(name, block);
+    }
+
+    private CFG.Value readVariableRecursive(String name, CFG.Block block) {
+        var type = this.localTypes.get(name);
+        if (type == null) {
+            throw new IllegalStateException("read of undeclared local " + name);
+        }
+
+        CFG.Value value;
+        if (!this.sealed.contains(block)) {
+            // predecessors aren't all known, operands are added on seal()
+            var phi = this.newPhi(block, name, type);
+            this.incompletePhis
+                .computeIfAbsent(block, k -> new LinkedHashMap<>())
+                .put(name, phi);
+            value = phi;
+        } else if (block.preds.isEmpty()) {
+            value = new CFG.Undef(type);
+        } else if (block.preds.size() == 1) {
+            value = this.readVariable(name, block.preds.getFirst());
+        } else {
+            // written before the operands are read, breaks cycles
+            var phi = this.newPhi(block, name, type);
+            this.writeVariable(name, block, phi);
+            this.addPhiOperands(name, phi);
+            value = phi;
+        }
+        this.writeVariable(name, block, value);
+        return value;
+    }
+
+    private CFG.Phi newPhi(CFG.Block block, String name, IR.TY type) {
+        var phi = new CFG.Phi(this.nextValue++, type, name);
+        phi.block = block;
+        block.phis.add(phi);
+        return phi;
+    }
+
+    private void addPhiOperands(String name, CFG.Phi phi) {
+        for (var pred : phi.block.preds) {
+            phi.operands.add(this.readVariable(name, pred));
+        }
+    }
+
+    /*
+     * Cleanup
+     */
+
+    // Reachable blocks in reverse postorder. Edges from unreachable blocks
+    // are dropped, along with their phi operands.
+    private ArrayList<CFG.Block> reversePostorder() {
+        var entry = this.blocks.getFirst();
+        var visited = new HashSet<CFG.Block>();
+        var postorder = new ArrayList<CFG.Block>();
+
+        // iterative DFS, nested loops make for deep graphs. Successors are
+        // visited last to first, so that the true branch is listed first.
+        var stack = new ArrayDeque<Iterator<CFG.Block>>();
+        visited.add(entry);
+        stack.push(entry.succs().reversed().iterator());
+        var path = new ArrayDeque<CFG.Block>();
+        path.push(entry);
+        while (!stack.isEmpty()) {
+            var succs = stack.peek();
+            if (succs.hasNext()) {
+                var succ = succs.next();
+                if (visited.add(succ)) {
+                    path.push(succ);
+                    stack.push(succ.succs().reversed().iterator());
+                }
+            } else {
+                stack.pop();
+                postorder.add(path.pop());
+            }
+        }
+
+        for (var block : postorder) {
+            for (var idx = block.preds.size() - 1; idx >= 0; idx--) {
+                if (!visited.contains(block.preds.get(idx))) {
+                    block.preds.remove(idx);
+                    for (var phi : block.phis) {
+                        phi.operands.remove(idx);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(postorder.reversed());
+    }
+
+    // A phi is trivial if it merges one value (and maybe itself), it is
+    // then replaced by that value. Removing one can make others trivial,
+    // so this runs until nothing changes.
+    private void removeTrivialPhis(CFG.Function function) {
+        var replaced = new HashMap<CFG.Phi, CFG.Value>();
+        var changed = true;
+        while (changed) {
+            changed = false;
+            for (var block : function.blocks()) {
+                var phis = block.phis.iterator();
+                while (phis.hasNext()) {
+                    var phi = phis.next();
+                    CFG.Value same = null;
+                    var trivial = true;
+                    for (var operand : phi.operands) {
+                        var value = CFGBuilder.resolve(operand, replaced);
+                        if (value == phi || value.equals(same)) {
+                            continue;
+                        }
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = value;
+                    }
+                    if (trivial) {
+                        replaced.put(phi, same != null ? same : new CFG.Undef(phi.type));
+                        phis.remove();
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (replaced.isEmpty()) {
+            return;
+        }
+
+        for (var block : function.blocks()) {
+            for (var phi : block.phis) {
+                phi.operands.replaceAll(v -> CFGBuilder.resolve(v, replaced));
+            }
+            for (var instr : block.instrs) {
+                instr.args.replaceAll(v -> CFGBuilder.resolve(v, replaced));
+            }
+            block.terminator = switch (block.terminator) {
+                case CFG.Branch(var cond, var ifTrue, var ifFalse) -> new CFG.Branch(
+                    CFGBuilder.resolve(cond, replaced), ifTrue, ifFalse
+                );
+                case CFG.Return(var value) -> new CFG.Return(
+                    value.map(v -> CFGBuilder.resolve(v, replaced))
+                );
+                case CFG.Jump jump -> jump;
+            };
+        }
+    }
+
+    private static CFG.Value resolve(
+        CFG.Value value, HashMap<CFG.Phi, CFG.Value> replaced
+    ) {
+        while (value instanceof CFG.Phi phi && replaced.containsKey(phi)) {
+            value = replaced.get(phi);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,277 @@
+package org.example;
+
+import java.util.*;
+
+// Checks the invariants every pass over a CFG may rely on:
+//
+//   - every block ends with a terminator, the entry has no predecessors,
+//     preds lists match the terminators exactly and every block is
+//     reachable
+//   - every value is defined once, and its definition dominates its uses
+//     (for a phi operand, the end of the matching predecessor)
+//   - phis have one operand per predecessor
+//   - instructions are typed like the operators they apply, branch
+//     conditions are BOOL and returns match the function
+//
+// All problems are collected, verify() reports them in one exception.
+public final class CFGVerifier {
+    private final CFG cfg;
+    private final OperatorRegistry operators;
+    private final ArrayList<String> problems = new ArrayList<>();
+
+    // state of the function being checked
+    private CFG.Function function;
+    private HashMap<CFG.Block, CFG.Block> idom;
+    // where each value is defined, position -1 is for phis
+    private HashMap<CFG.Value, CFG.Block> defBlock;
+    private HashMap<CFG.Value, Integer> defIndex;
+
+    public CFGVerifier(CFG cfg) {
+        this.cfg = cfg;
+        this.operators = OperatorRegistry.of(cfg.opStore());
+    }
+
+    public static void verify(CFG cfg) {
+        var problems = new CFGVerifier(cfg).check();
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException(
+                "malformed CFG:\n" + String.join("\n", problems)
+            );
+        }
+    }
+
+    public ArrayList<String> check() {
+        this.problems.clear();
+        for (var function : this.cfg.functions().values()) {
+            this.checkFunction(function);
+        }
+        return this.problems;
+    }
+
+    private void problem(CFG.Block block, String message) {
+        this.problems.add(this.function.name() + " " + block + ": " + message);
+    }
+
+    private void checkFunction(CFG.Function function) {
+        this.function = function;
+        if (function.blocks().isEmpty()) {
+            this.problems.add(function.name() + ": no blocks");
+            return;
+        }
+        if (!this.checkEdges()) {
+            // dominators can't be trusted on a broken graph
+            return;
+        }
+        this.idom = function.dominators();
+        for (var block : function.blocks()) {
+            if (!this.idom.containsKey(block)) {
+                this.problem(block, "unreachable");
+                return;
+            }
+        }
+        this.collectDefinitions();
+
+        for (var block : function.blocks()) {
+            for (var phi : block.phis) {
+                this.checkPhi(block, phi);
+            }
+            for (var idx = 0; idx < block.instrs.size(); idx++) {
+                var instr = block.instrs.get(idx);
+                for (var arg : instr.args) {
+                    this.checkUse(block, idx, arg);
+                }
+                this.checkInstr(block, instr);
+            }
+            this.checkTerminator(block);
+        }
+    }
+
+    // terminators and preds agree, returns false if the graph is unusable
+    private boolean checkEdges() {
+        var blocks = new HashSet<>(this.function.blocks());
+        var expectedPreds = new HashMap<CFG.Block, ArrayList<CFG.Block>>();
+        var ok = true;
+
+        for (var block : this.function.blocks()) {
+            if (block.terminator == null) {
+                this.problem(block, "no terminator");
+                ok = false;
+                continue;
+            }
+            for (var succ : block.succs()) {
+                if (!blocks.contains(succ)) {
+                    this.problem(block, "jumps to " + succ + " of another function");
+                    ok = false;
+                    continue;
+                }
+                expectedPreds.computeIfAbsent(succ, k -> new ArrayList<>()).add(block);
+            }
+        }
+
+        var entry = this.function.entry();
+        for (var block : this.function.blocks()) {
+            var expected = expectedPreds.getOrDefault(block, new ArrayList<>());
+            var actual = new ArrayList<>(block.preds);
+            Comparator<CFG.Block> byId = Comparator.comparingInt(b -> b.id);
+            expected.sort(byId);
+            actual.sort(byId);
+            if (!expected.equals(actual)) {
+                this.problem(block, "preds " + block.preds + " but jumped to from " + expected);
+                ok = false;
+            }
+        }
+        if (!entry.preds.isEmpty()) {
+            this.problem(entry, "entry has predecessors " + entry.preds);
+            ok = false;
+        }
+        return ok;
+    }
+
+    private void collectDefinitions() {
+        this.defBlock = new HashMap<>();
+        this.defIndex = new HashMap<>();
+        for (var block : this.function.blocks()) {
+            for (var phi : block.phis) {
+                this.define(block, phi, -1, phi.block);
+            }
+            for (var idx = 0; idx < block.instrs.size(); idx++) {
+                var instr = block.instrs.get(idx);
+                this.define(block, instr, idx, instr.block);
+            }
+        }
+    }
+
+    private void define(CFG.Block block, CFG.Value value, int idx, CFG.Block owner) {
+        if (this.defBlock.containsKey(value)) {
+            this.problem(block, value + " is defined more than once");
+            return;
+        }
+        if (owner != block) {
+            this.problem(block, value + " claims to be in " + owner);
+        }
+        this.defBlock.put(value, block);
+        this.defIndex.put(value, idx);
+    }
+
+    // `idx` is the position of the user in `block`, instrs.size() for the
+    // terminator
+    private void checkUse(CFG.Block block, int idx, CFG.Value value) {
+        switch (value) {
+            case CFG.Instr _, CFG.Phi _ -> {
+                var def = this.defBlock.get(value);
+                if (def == null) {
+                    this.problem(block, "uses " + value + " which isn't defined here");
+                } else if (def == block) {
+                    if (this.defIndex.get(value) >= idx) {
+                        this.problem(block, "uses " + value + " before its definition");
+                    }
+                } else if (!CFG.Function.dominates(this.idom, def, block)) {
+                    this.problem(block, value + " from " + def + " doesn't dominate its use");
+                }
+            }
+            case CFG.Param param -> {
+                var params = this.function.params();
+                if (param.index() >= params.size() || !params.get(param.index()).equals(param)) {
+                    this.problem(block, "unknown parameter " + param.name());
+                }
+            }
+            case CFG.Const _, CFG.Undef _, CFG.Global _ -> {}
+        }
+    }
+
+    private void checkPhi(CFG.Block block, CFG.Phi phi) {
+        if (phi.operands.size() != block.preds.size()) {
+            this.problem(block, "phi " + phi + " has " + phi.operands.size()
+                + " operands for " + block.preds.size() + " preds");
+            return;
+        }
+        for (var idx = 0; idx < phi.operands.size(); idx++) {
+            var operand = phi.operands.get(idx);
+            var pred = block.preds.get(idx);
+            if (operand.type() != phi.type) {
+                this.problem(block, "phi " + phi + " of " + phi.type
+                    + " merges " + operand + " of " + operand.type());
+            }
+            if (operand instanceof CFG.Global) {
+                this.problem(block, "phi " + phi + " merges a global");
+            }
+            // available at the end of the predecessor
+            this.checkUse(pred, pred.instrs.size() + 1, operand);
+        }
+    }
+
+    private void checkInstr(CFG.Block block, CFG.Instr instr) {
+        var types = instr.args.stream().map(CFG.Value::type).toList();
+        for (var idx = 0; idx < instr.args.size(); idx++) {
+            var global = instr.args.get(idx) instanceof CFG.Global;
+            var allowed = idx == 0
+                && (instr.op.equals("$load") || instr.op.equals("$store"));
+            if (global && !allowed) {
+                this.problem(block, instr + " " + instr.op + " takes a global as an argument");
+            }
+        }
+
+        IR.TY expected = switch (instr.op) {
+            case "$load" -> {
+                if (instr.args.size() != 1 || !this.isGlobal(instr.args.getFirst())) {
+                    yield null;
+                }
+                yield instr.args.getFirst().type();
+            }
+            case "$store" -> {
+                if (
+                    instr.args.size() != 2
+                    || !this.isGlobal(instr.args.get(0))
+                    || types.get(0) != types.get(1)
+                ) {
+                    yield null;
+                }
+                yield IR.TY.VOID;
+            }
+            case "$strLen" -> types.equals(List.of(IR.TY.STRING)) ? IR.TY.INT : null;
+            case "$charAt" -> types.equals(List.of(IR.TY.STRING, IR.TY.INT))
+                ? IR.TY.STRING
+                : null;
+            case "print" -> IR.TY.VOID;
+            default -> this.operators.resolveTypes(instr.op, types);
+        };
+        if (expected == null) {
+            this.problem(block, instr + " can't apply " + instr.op + " to " + types);
+        } else if (expected != instr.type) {
+            this.problem(block, instr + " " + instr.op + " is " + expected
+                + " but typed " + instr.type);
+        }
+    }
+
+    private boolean isGlobal(CFG.Value value) {
+        return value instanceof CFG.Global global
+            && this.cfg.globals().get(global.name()) == global.type();
+    }
+
+    private void checkTerminator(CFG.Block block) {
+        var end = block.instrs.size();
+        switch (block.terminator) {
+            case CFG.Jump _ -> {}
+            case CFG.Branch(var cond, _, _) -> {
+                this.checkUse(block, end, cond);
+                if (cond.type() != IR.TY.BOOL) {
+                    this.problem(block, "branches on " + cond.type());
+                }
+            }
+            case CFG.Return(var value) -> {
+                var returnType = this.function.returnType();
+                if (value.isEmpty()) {
+                    if (returnType != IR.TY.VOID) {
+                        this.problem(block, "returns nothing from " + returnType + " function");
+                    }
+                    return;
+                }
+                this.checkUse(block, end, value.get());
+                if (value.get().type() != returnType) {
+                    this.problem(block, "returns " + value.get().type()
+                        + " from " + returnType + " function");
+                }
+            }
+        }
+    }
+}
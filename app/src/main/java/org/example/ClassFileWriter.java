@@ -0,0 +1,241 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.function.Consumer;
+
+// A class file, written without an assembler.
+//
+// TranslatorJVM adds the fields and the methods, each method with its
+// Bytecode, and bytes() lays the class out the way chapter 4 of the JVM
+// specification has it:
+//
+//   header     magic, version 52.0 (Java 8)
+//   constants  the constant pool, every entry once
+//   class      access flags, this class, its superclass, no interfaces
+//   fields     access flags, name, descriptor, no attributes
+//   methods    access flags, name, descriptor and a Code attribute with the
+//              exact stack and locals limits, and a StackMapTable if any
+//              instruction is a branch target
+//
+// From version 51 on the verifier checks the frames of the StackMapTable
+// instead of inferring them, so they have to be right.
+public final class ClassFileWriter {
+    static final int MAGIC = 0xCAFEBABE;
+    static final int MAJOR_VERSION = 52;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    static final int ACC_SUPER = 0x0020;
+
+    // big-endian bytes
+    static final class Out extends ByteArrayOutputStream {
+        void u1(int value) {
+            this.write(value);
+        }
+
+        void u2(int value) {
+            this.write(value >> 8);
+            this.write(value);
+        }
+
+        void u4(int value) {
+            this.u2(value >> 16);
+            this.u2(value);
+        }
+
+        void bytes(byte[] bytes) {
+            this.write(bytes, 0, bytes.length);
+        }
+    }
+
+    static final class ConstantPool {
+        private final Out entries = new Out();
+        private final HashMap<String, Integer> indices = new HashMap<>();
+        // the next index, the first one is unused
+        private int count = 1;
+
+        int utf8(String value) {
+            var known = this.indices.get("U" + value);
+            if (known != null) {
+                return known;
+            }
+            var bytes = ConstantPool.modifiedUtf8(value);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("constant too long for a class file");
+            }
+            return this.add("U" + value, 1, 1, out -> {
+                out.u2(bytes.length);
+                out.bytes(bytes);
+            });
+        }
+
+        int integer(int value) {
+            return this.add("I" + value, 3, 1, out -> out.u4(value));
+        }
+
+        // takes two indices, as the specification has it
+        int doubleValue(double value) {
+            var bits = Double.doubleToRawLongBits(value);
+            return this.add("D" + bits, 6, 2, out -> {
+                out.u4((int) (bits >>> 32));
+                out.u4((int) bits);
+            });
+        }
+
+        int classRef(String name) {
+            var utf8 = this.utf8(name);
+            return this.add("C" + name, 7, 1, out -> out.u2(utf8));
+        }
+
+        int string(String value) {
+            var utf8 = this.utf8(value);
+            return this.add("S" + value, 8, 1, out -> out.u2(utf8));
+        }
+
+        int field(String owner, String name, String descriptor) {
+            return this.member(9, owner, name, descriptor);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            return this.member(10, owner, name, descriptor);
+        }
+
+        private int member(int tag, String owner, String name, String descriptor) {
+            var classRef = this.classRef(owner);
+            var nameAndType = this.nameAndType(name, descriptor);
+            return this.add(tag + owner + "\0" + name + "\0" + descriptor, tag, 1, out -> {
+                out.u2(classRef);
+                out.u2(nameAndType);
+            });
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            var nameIndex = this.utf8(name);
+            var descriptorIndex = this.utf8(descriptor);
+            return this.add("N" + name + "\0" + descriptor, 12, 1, out -> {
+                out.u2(nameIndex);
+                out.u2(descriptorIndex);
+            });
+        }
+
+        private int add(String key, int tag, int size, Consumer<Out> body) {
+            var known = this.indices.get(key);
+            if (known != null) {
+                return known;
+            }
+            if (this.count + size > 0xFFFF) {
+                throw new IllegalStateException("too many constants for a class file");
+            }
+            var index = this.count;
+            this.entries.u1(tag);
+            body.accept(this.entries);
+            this.indices.put(key, index);
+            this.count += size;
+            return index;
+        }
+
+        // UTF-8, but NUL takes two bytes and characters outside the BMP are
+        // written as their surrogates
+        private static byte[] modifiedUtf8(String value) {
+            var out = new Out();
+            for (var c : value.toCharArray()) {
+                if (c != 0 && c < 0x80) {
+                    out.u1(c);
+                } else if (c < 0x800) {
+                    out.u1(0xC0 | c >> 6);
+                    out.u1(0x80 | c & 0x3F);
+                } else {
+                    out.u1(0xE0 | c >> 12);
+                    out.u1(0x80 | c >> 6 & 0x3F);
+                    out.u1(0x80 | c & 0x3F);
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private final String className;
+    private final String superName;
+    private final ConstantPool pool = new ConstantPool();
+    private final Out fields = new Out();
+    private int fieldCount = 0;
+    private final Out methods = new Out();
+    private int methodCount = 0;
+
+    // names with slashes, `java/lang/Object`
+    public ClassFileWriter(String className, String superName) {
+        this.className = className;
+        this.superName = superName;
+    }
+
+    public void field(int access, String name, String descriptor) {
+        this.fields.u2(access);
+        this.fields.u2(this.pool.utf8(name));
+        this.fields.u2(this.pool.utf8(descriptor));
+        this.fields.u2(0);
+        this.fieldCount++;
+    }
+
+    // returns the encoded code, with the limits it computed
+    Bytecode.Encoded method(int access, String name, String descriptor, Bytecode code) {
+        var encoded = code.encode(
+            this.pool, this.className, name, descriptor, (access & ACC_STATIC) != 0
+        );
+        if (encoded.code().length > 0xFFFF) {
+            throw new IllegalStateException("method " + name + " is too large for a class file");
+        }
+        if (encoded.maxStack() > 0xFFFF || encoded.maxLocals() > 0xFFFF) {
+            throw new IllegalStateException("method " + name + " needs too many slots for a class file");
+        }
+
+        var attribute = new Out();
+        attribute.u2(encoded.maxStack());
+        attribute.u2(encoded.maxLocals());
+        attribute.u4(encoded.code().length);
+        attribute.bytes(encoded.code());
+        // no exception handlers
+        attribute.u2(0);
+        if (encoded.frames() > 0) {
+            attribute.u2(1);
+            attribute.u2(this.pool.utf8("StackMapTable"));
+            attribute.u4(2 + encoded.stackMap().length);
+            attribute.u2(encoded.frames());
+            attribute.bytes(encoded.stackMap());
+        } else {
+            attribute.u2(0);
+        }
+
+        this.methods.u2(access);
+        this.methods.u2(this.pool.utf8(name));
+        this.methods.u2(this.pool.utf8(descriptor));
+        this.methods.u2(1);
+        this.methods.u2(this.pool.utf8("Code"));
+        this.methods.u4(attribute.size());
+        this.methods.bytes(attribute.toByteArray());
+        this.methodCount++;
+        return encoded;
+    }
+
+    public byte[] bytes() {
+        var thisClass = this.pool.classRef(this.className);
+        var superClass = this.pool.classRef(this.superName);
+
+        var out = new Out();
+        out.u4(MAGIC);
+        out.u2(0);
+        out.u2(MAJOR_VERSION);
+        out.u2(this.pool.count);
+        out.bytes(this.pool.entries.toByteArray());
+        out.u2(ACC_PUBLIC | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0);
+        out.u2(this.fieldCount);
+        out.bytes(this.fields.toByteArray());
+        out.u2(this.methodCount);
+        out.bytes(this.methods.toByteArray());
+        out.u2(0);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,400 @@
+package org.example;
+
+import java.util.*;
+
+// Common subexpression elimination by value numbering, over function
+// bodies, in place.
+//
+// Every expression that may be evaluated again gets a value number, the
+// same operator applied to the same value numbers gets the same one back.
+// A number stays available through the rest of its scope and the scopes
+// nested in it, until a variable it reads is assigned. Loop bodies start
+// without whatever the loop assigns, their next iteration would see it.
+//
+// An expression that is computed again is read from a compiler temporary
+// instead, declared right before the entry where it was first computed.
+// When that entry is a `let`, the binding itself serves as the temporary.
+// Expressions first computed in a `while` condition get a mutable
+// temporary, computed before the loop and again at the end of its body,
+// so the condition and the body both read it.
+//
+// Only pure expressions are moved in front of what their entry evaluates
+// before them. `/` and `**` may stop the program, so those are only
+// numbered when nothing with an effect comes before them.
+//
+// The walk runs twice: the first counts how often each number is reused,
+// the second declares temporaries for the reused ones and rewrites.
+public final class CommonSubexpressionEliminator {
+    private final IR ir;
+    private final Purity purity;
+
+    // operator applied to value numbers: Atoms, idents and site ids
+    private record Key(String op, List<Object> args, IR.TY type) {}
+
+    // the first computation of a value number
+    private static final class Site {
+        // idents the expression reads, assigning any of them kills it
+        final HashSet<String> reads = new HashSet<>();
+        int reuses = 0;
+        // set in the second walk, if reused
+        IR.Ref temp;
+    }
+
+    // what is evaluated around a single entry
+    private static final class Context {
+        // temporaries to declare before the entry
+        final ArrayList<IR.NewVar> temps = new ArrayList<>();
+        // reused sites, so that reusing a whole expression can take back
+        // the reuses of its parts
+        final ArrayList<Integer> hits = new ArrayList<>();
+        // something impure was evaluated already
+        boolean effects = false;
+        // of the scope the temporaries are declared in
+        final int scopeId;
+        final int depth;
+        final boolean mutableTemps;
+
+        Context(IR.Scope scope, int depth, boolean mutableTemps) {
+            this.scopeId = scope.scopeId();
+            this.depth = depth;
+            this.mutableTemps = mutableTemps;
+        }
+    }
+
+    private final ArrayList<Site> sites = new ArrayList<>();
+    private int nextSite;
+    private boolean rewriting;
+    // next free slot index of the function being rewritten
+    private int nextIndex;
+    private int temps = 0;
+    private int replaced = 0;
+
+    public CommonSubexpressionEliminator(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+    }
+
+    // returns the number of computations replaced by a temporary
+    public int eliminate() {
+        for (var entry : this.ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                var body = scoped.scope();
+
+                this.rewriting = false;
+                this.nextSite = this.sites.size();
+                var first = this.nextSite;
+                this.walk(body, new HashMap<>(), 1);
+
+                this.rewriting = true;
+                this.nextSite = first;
+                this.nextIndex = CommonSubexpressionEliminator.frameSize(scoped);
+                this.walk(body, new HashMap<>(), 1);
+            }
+        }
+        return this.replaced;
+    }
+
+    /*
+     * Scopes
+     */
+    private void walk(IR.Scope scope, HashMap<Key, Integer> available, int depth) {
+        var entries = scope.entries();
+        var out = new ArrayList<IR.Entry>();
+
+        for (var entry : entries) {
+            var context = new Context(scope, depth, false);
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var binding = v.mutable() ? null : new IR.Ref(name, slot);
+                    var value = this.number(v, available, context, binding).var();
+                    if (scope.varMapping().containsKey(name)) {
+                        scope.varMapping().put(name, value);
+                    }
+                    this.declare(scope, context, out);
+                    out.add(new IR.NewVar(name, value, slot));
+                }
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<>(expr.vars());
+                    var target = expr.op().equals("$assign") ? (IR.Ref) vars.get(0).val() : null;
+                    for (var idx = target == null ? 0 : 1; idx < vars.size(); idx++) {
+                        vars.set(idx, this.number(vars.get(idx), available, context, null).var());
+                    }
+                    this.declare(scope, context, out);
+                    out.add(new IR.Expr(expr.op(), vars));
+                    if (target != null) {
+                        this.kill(available, Set.of(target.ident()));
+                    }
+                }
+                case IR.Scoped scoped -> out.add(this.walkScoped(scope, scoped, available, depth, out));
+            }
+        }
+
+        if (this.rewriting) {
+            entries.clear();
+            entries.addAll(out);
+        }
+    }
+
+    private IR.Scoped walkScoped(
+        IR.Scope scope,
+        IR.Scoped scoped,
+        HashMap<Key, Integer> available,
+        int depth,
+        ArrayList<IR.Entry> out
+    ) {
+        var body = scoped.scope();
+        var assigned = CommonSubexpressionEliminator.assigned(body);
+        var dependency = scoped.dependencyValue();
+
+        switch (scoped.kind()) {
+            case IF_BRANCH, FOR -> {
+                var context = new Context(scope, depth, false);
+                dependency = dependency.map(v -> this.numberDependency(v, available, context));
+                this.declare(scope, context, out);
+
+                var inner = new HashMap<>(available);
+                this.kill(inner, assigned);
+                this.walk(body, inner, depth + 1);
+            }
+            case WHILE -> {
+                // the condition is evaluated in the loop as well
+                var inner = new HashMap<>(available);
+                this.kill(inner, assigned);
+
+                var context = new Context(scope, depth, true);
+                dependency = dependency.map(v -> this.numberDependency(v, inner, context));
+                this.declare(scope, context, out);
+
+                this.walk(body, inner, depth + 1);
+                var last = body.entries().isEmpty() ? null : body.entries().getLast();
+                var returns = last instanceof IR.Expr expr && expr.op().equals("$return");
+                if (this.rewriting && !returns) {
+                    for (var temp : context.temps) {
+                        var target = new IR.Var(
+                            new IR.Ref(temp.name(), temp.slot()),
+                            temp.v().type(),
+                            temp.v().span(),
+                            true
+                        );
+                        var value = new IR.Var(temp.v().val(), temp.v().type(), temp.v().span(), false);
+                        body.entries().add(new IR.Expr("$assign", new ArrayList<>(List.of(target, value))));
+                    }
+                }
+            }
+            // patterns keep the matched value as is, the backends rely on it
+            case ELSE_BRANCH, CASE_BRANCH -> this.walk(body, new HashMap<>(available), depth + 1);
+            case FUN -> throw new IllegalStateException(
+                "nested function in " + scope.funcName()
+            );
+        }
+
+        this.kill(available, assigned);
+        return new IR.Scoped(scoped.kind(), scoped.bornVars(), dependency, body, scoped.bornSlots());
+    }
+
+    // a dependency is not a value of its own, only its arguments are
+    // numbered
+    private IR.Value numberDependency(
+        IR.Value value, HashMap<Key, Integer> available, Context context
+    ) {
+        if (!(value instanceof IR.Expr expr)) {
+            return value;
+        }
+        var vars = new ArrayList<IR.Var>();
+        for (var v : expr.vars()) {
+            vars.add(this.number(v, available, context, null).var());
+        }
+        return new IR.Expr(expr.op(), vars);
+    }
+
+    private void declare(IR.Scope scope, Context context, ArrayList<IR.Entry> out) {
+        for (var temp : context.temps) {
+            scope.varMapping().put(temp.name(), temp.v());
+        }
+        out.addAll(context.temps);
+    }
+
+    private void kill(HashMap<Key, Integer> available, Set<String> assigned) {
+        if (!assigned.isEmpty()) {
+            available.values().removeIf(
+                site -> !Collections.disjoint(this.sites.get(site).reads, assigned)
+            );
+        }
+    }
+
+    /*
+     * Expressions
+     */
+
+    // the expression, and its value number, null if it has none
+    private record Numbered(IR.Var var, Object number) {}
+
+    private Numbered number(
+        IR.Var v,
+        HashMap<Key, Integer> available,
+        Context context,
+        IR.Ref binding
+    ) {
+        switch (v.val()) {
+            case IR.Atom atom -> {
+                return new Numbered(v, atom);
+            }
+            case IR.Ref ref -> {
+                return new Numbered(v, ref.ident());
+            }
+            case IR.Arg _ -> {
+                return new Numbered(v, null);
+            }
+            case IR.Expr expr -> {
+                var effectsBefore = context.effects;
+                var hitsBefore = context.hits.size();
+
+                var vars = new ArrayList<IR.Var>();
+                var args = new ArrayList<Object>();
+                for (var arg : expr.vars()) {
+                    var numbered = this.number(arg, available, context, null);
+                    vars.add(numbered.var());
+                    args.add(numbered.number());
+                }
+                var rewritten = new IR.Expr(expr.op(), vars);
+                var self = vars.equals(expr.vars()) ? v : new IR.Var(rewritten, v.type(), v.span(), v.mutable());
+
+                // judged as written, both walks have to agree
+                var pure = this.purity.isPure(expr);
+                context.effects |= !pure;
+                // nothing to keep of a VOID call
+                var numbered = v.type() != IR.TY.VOID
+                    && !args.contains(null)
+                    && (pure || !effectsBefore && this.purity.isRepeatable(expr));
+                if (!numbered) {
+                    return new Numbered(self, null);
+                }
+
+                var key = new Key(
+                    expr.op(),
+                    CommonSubexpressionEliminator.canonical(expr.op(), args),
+                    v.type()
+                );
+                var known = available.get(key);
+                if (known != null) {
+                    return this.reuse(known, self, context, hitsBefore);
+                }
+
+                var id = this.nextSite++;
+                if (!this.rewriting) {
+                    this.sites.add(new Site());
+                }
+                var site = this.sites.get(id);
+                for (var arg : args) {
+                    if (arg instanceof String ident) {
+                        site.reads.add(ident);
+                    }
+                }
+                available.put(key, id);
+
+                if (!this.rewriting || site.reuses == 0) {
+                    return new Numbered(self, id);
+                }
+                if (binding != null) {
+                    site.temp = binding;
+                    return new Numbered(self, id);
+                }
+                site.temp = this.temporary(self, context);
+                return new Numbered(CommonSubexpressionEliminator.read(site.temp, self), id);
+            }
+        }
+    }
+
+    private Numbered reuse(int id, IR.Var self, Context context, int hitsBefore) {
+        var site = this.sites.get(id);
+        // the parts are not computed anymore
+        var parts = context.hits.subList(hitsBefore, context.hits.size());
+        if (!this.rewriting) {
+            for (var part : parts) {
+                this.sites.get(part).reuses--;
+            }
+            site.reuses++;
+        }
+        parts.clear();
+        context.hits.add(id);
+
+        if (!this.rewriting || site.temp == null) {
+            // or the whole expression is reused further up
+            return new Numbered(self, id);
+        }
+        this.replaced++;
+        return new Numbered(CommonSubexpressionEliminator.read(site.temp, self), id);
+    }
+
+    private IR.Ref temporary(IR.Var value, Context context) {
+        var slot = new IR.Slot(context.depth, this.nextIndex++);
+        var name = IR.mangle("_cse" + this.temps++, context.scopeId);
+        var temp = new IR.Var(value.val(), value.type(), value.span(), context.mutableTemps);
+        context.temps.add(new IR.NewVar(name, temp, slot));
+        return new IR.Ref(name, slot);
+    }
+
+    private static IR.Var read(IR.Ref temp, IR.Var value) {
+        return new IR.Var(temp, value.type(), value.span(), false);
+    }
+
+    // operands of commutative operators in a fixed order
+    private static List<Object> canonical(String op, List<Object> args) {
+        var commutative = switch (op) {
+            case "*", "==", "!=", "&&", "||" -> true;
+            // `+` concatenates strings too
+            case "+" -> args.stream().noneMatch(
+                arg -> arg instanceof IR.Atom atom && atom.type() == IR.TY.STRING
+            );
+            default -> false;
+        };
+        if (!commutative || args.size() != 2) {
+            return args;
+        }
+        return args.stream().sorted(Comparator.comparing(Object::toString)).toList();
+    }
+
+    /*
+     * Helpers
+     */
+
+    // idents assigned anywhere in the scope
+    private static Set<String> assigned(IR.Scope scope) {
+        var assigned = new HashSet<String>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr when expr.op().equals("$assign") ->
+                    assigned.add(((IR.Ref) expr.vars().get(0).val()).ident());
+                case IR.Scoped scoped -> assigned.addAll(
+                    CommonSubexpressionEliminator.assigned(scoped.scope())
+                );
+                default -> {}
+            }
+        }
+        return assigned;
+    }
+
+    // first slot index no binding of the function uses
+    private static int frameSize(IR.Scoped function) {
+        var size = 0;
+        for (var slot : function.bornSlots()) {
+            size = Math.max(size, slot.index() + 1);
+        }
+        return Math.max(size, CommonSubexpressionEliminator.frameSize(function.scope()));
+    }
+
+    private static int frameSize(IR.Scope scope) {
+        var size = 0;
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> size = Math.max(size, newVar.slot().index() + 1);
+                case IR.Scoped scoped -> size = Math.max(
+                    size, CommonSubexpressionEliminator.frameSize(scoped)
+                );
+                default -> {}
+            }
+        }
+        return size;
+    }
+}
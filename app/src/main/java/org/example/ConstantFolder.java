@@ -0,0 +1,274 @@
+package org.example;
+
+import java.util.*;
+
+// Constant folding and propagation over the IR, in place.
+//
+// Built-in operators applied to literals are evaluated at compile time,
+// with the semantics the backends give them: `/` and `**` are always
+// FLOAT, an INT meeting a FLOAT is widened, strings compare like
+// String.compareTo. Whatever would behave differently at runtime is left
+// alone: INT overflow, division by zero, non-finite results.
+//
+// Immutable bindings (`let`) whose value folds to a literal are
+// propagated, every reference to them is replaced by the literal. Unique
+// names are unique across the whole program, so one map serves all
+// scopes. Their NewVar stays, removing it is up to dead code elimination.
+//
+// Calls to user functions with literal arguments are evaluated too, by
+// running the function (see Evaluator). Calls it gives up on stay calls.
+public final class ConstantFolder {
+    private final IR ir;
+    private final Evaluator evaluator;
+    // unique name -> literal it is bound to
+    private final HashMap<String, IR.Atom> constants = new HashMap<>();
+    // number of operator applications folded, for diagnostics
+    private int folded = 0;
+
+    public ConstantFolder(IR ir) {
+        this.ir = ir;
+        this.evaluator = new Evaluator(ir);
+    }
+
+    public int fold() {
+        // functions only see globals declared before them, as in Typer
+        this.foldScope(this.ir.scope());
+        return this.folded;
+    }
+
+    private void foldScope(IR.Scope scope) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.foldVar(v);
+                    if (!value.mutable() && value.val() instanceof IR.Atom atom) {
+                        this.constants.put(name, atom);
+                    }
+                    if (scope.varMapping().containsKey(name)) {
+                        scope.varMapping().put(name, value);
+                    }
+                    entries.set(idx, new IR.NewVar(name, value, slot));
+                }
+                case IR.Expr expr -> entries.set(idx, this.foldAction(expr));
+                case IR.Scoped scoped -> {
+                    var dependency = scoped.dependencyValue().map(
+                        v -> this.foldDependency(scoped.kind(), v)
+                    );
+                    this.foldScope(scoped.scope());
+                    entries.set(idx, new IR.Scoped(
+                        scoped.kind(),
+                        scoped.bornVars(),
+                        dependency,
+                        scoped.scope(),
+                        scoped.bornSlots()
+                    ));
+                }
+            }
+        }
+    }
+
+    private IR.Expr foldAction(IR.Expr expr) {
+        if (expr.op().equals("$assign")) {
+            // the target is a reference, not a value
+            var target = expr.vars().get(0);
+            var value = this.foldVar(expr.vars().get(1));
+            return new IR.Expr("$assign", new ArrayList<>(List.of(target, value)));
+        }
+        return new IR.Expr(expr.op(), this.foldVars(expr.vars()));
+    }
+
+    // dependency values carry no type of their own
+    private IR.Value foldDependency(IR.SCOPE_KIND kind, IR.Value value) {
+        var type = switch (kind) {
+            case IF_BRANCH, WHILE -> IR.TY.BOOL;
+            case FOR -> IR.TY.STRING;
+            // `$case*` and `$iterRange`, their arguments are typed
+            default -> IR.TY.VOID;
+        };
+        return this.foldValue(value, type);
+    }
+
+    private ArrayList<IR.Var> foldVars(List<IR.Var> vars) {
+        var folded = new ArrayList<IR.Var>();
+        for (var v : vars) {
+            folded.add(this.foldVar(v));
+        }
+        return folded;
+    }
+
+    private IR.Var foldVar(IR.Var v) {
+        var value = this.foldValue(v.val(), v.type());
+        if (value == v.val()) {
+            return v;
+        }
+        return new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value foldValue(IR.Value value, IR.TY type) {
+        return switch (value) {
+            case IR.Atom _, IR.Arg _ -> value;
+            case IR.Ref ref -> {
+                var constant = this.constants.get(ref.ident());
+                yield constant != null ? constant : ref;
+            }
+            case IR.Expr expr -> {
+                var args = this.foldVars(expr.vars());
+                var atoms = new ArrayList<IR.Atom>();
+                for (var arg : args) {
+                    if (arg.val() instanceof IR.Atom atom) {
+                        atoms.add(atom);
+                    }
+                }
+                if (atoms.size() == args.size() && !expr.op().startsWith("$")) {
+                    var result = OperatorRegistry.BUILTINS.contains(expr.op())
+                        ? ConstantFolder.evaluate(expr.op(), atoms)
+                        : this.evaluator.call(expr.op(), atoms);
+                    if (result != null && result.type() == type) {
+                        this.folded++;
+                        yield result;
+                    }
+                }
+                yield new IR.Expr(expr.op(), args);
+            }
+        };
+    }
+
+    /*
+     * Evaluation
+     */
+
+    // null if the operator can't be applied at compile time
+    static IR.Atom evaluate(String op, List<IR.Atom> args) {
+        try {
+            return switch (args.size()) {
+                case 1 -> ConstantFolder.unary(op, args.get(0));
+                case 2 -> ConstantFolder.binary(op, args.get(0), args.get(1));
+                default -> null;
+            };
+        } catch (ArithmeticException e) {
+            // overflows at runtime, where the backends disagree
+            return null;
+        }
+    }
+
+    private static IR.Atom unary(String op, IR.Atom a) {
+        return switch (a.type()) {
+            case INT -> switch (op) {
+                case "u+" -> a;
+                case "u-" -> integer(Math.negateExact(Integer.parseInt(a.val())));
+                default -> null;
+            };
+            case FLOAT -> switch (op) {
+                case "u+" -> a;
+                case "u-" -> real(-Double.parseDouble(a.val()));
+                default -> null;
+            };
+            case BOOL -> op.equals("!") ? bool(!Boolean.parseBoolean(a.val())) : null;
+            default -> null;
+        };
+    }
+
+    private static IR.Atom binary(String op, IR.Atom a, IR.Atom b) {
+        var ta = a.type();
+        var tb = b.type();
+        if (ta == IR.TY.STRING && tb == IR.TY.STRING) {
+            if (op.equals("+")) {
+                return new IR.Atom(IR.TY.STRING, a.val() + b.val());
+            }
+            if (!bmp(a.val()) || !bmp(b.val())) {
+                // compareTo counts UTF-16 units, the postfix machine doesn't
+                return null;
+            }
+            return relation(op, Integer.signum(a.val().compareTo(b.val())));
+        }
+        if (ta == IR.TY.BOOL && tb == IR.TY.BOOL) {
+            var x = Boolean.parseBoolean(a.val());
+            var y = Boolean.parseBoolean(b.val());
+            return switch (op) {
+                case "&&" -> bool(x && y);
+                case "||" -> bool(x || y);
+                case "==" -> bool(x == y);
+                case "!=" -> bool(x != y);
+                default -> null;
+            };
+        }
+        if (!numeric(ta) || !numeric(tb)) {
+            return null;
+        }
+
+        if (ta == IR.TY.INT && tb == IR.TY.INT) {
+            var x = Integer.parseInt(a.val());
+            var y = Integer.parseInt(b.val());
+            switch (op) {
+                case "+" -> { return integer(Math.addExact(x, y)); }
+                case "-" -> { return integer(Math.subtractExact(x, y)); }
+                case "*" -> { return integer(Math.multiplyExact(x, y)); }
+                case "<", "<=", ">", ">=", "==", "!=" -> {
+                    return relation(op, Integer.compare(x, y));
+                }
+                // `/` and `**` are FLOAT
+                default -> {}
+            }
+        }
+
+        // widened, like i2d does
+        var x = Double.parseDouble(a.val());
+        var y = Double.parseDouble(b.val());
+        return switch (op) {
+            case "+" -> real(x + y);
+            case "-" -> real(x - y);
+            case "*" -> real(x * y);
+            // the postfix machine stops on division by zero
+            case "/" -> y == 0 ? null : real(x / y);
+            case "**" -> real(Math.pow(x, y));
+            // not Double.compare(), 0.0 and -0.0 are equal here
+            case "<" -> bool(x < y);
+            case "<=" -> bool(x <= y);
+            case ">" -> bool(x > y);
+            case ">=" -> bool(x >= y);
+            case "==" -> bool(x == y);
+            case "!=" -> bool(x != y);
+            default -> null;
+        };
+    }
+
+    private static boolean numeric(IR.TY type) {
+        return type == IR.TY.INT || type == IR.TY.FLOAT;
+    }
+
+    static boolean bmp(String s) {
+        return s.codePointCount(0, s.length()) == s.length();
+    }
+
+    // `cmp` is the sign of comparing the operands
+    private static IR.Atom relation(String op, int cmp) {
+        return switch (op) {
+            case "<" -> bool(cmp < 0);
+            case "<=" -> bool(cmp <= 0);
+            case ">" -> bool(cmp > 0);
+            case ">=" -> bool(cmp >= 0);
+            case "==" -> bool(cmp == 0);
+            case "!=" -> bool(cmp != 0);
+            default -> null;
+        };
+    }
+
+    private static IR.Atom integer(int value) {
+        return new IR.Atom(IR.TY.INT, Integer.toString(value));
+    }
+
+    private static IR.Atom bool(boolean value) {
+        return new IR.Atom(IR.TY.BOOL, Boolean.toString(value));
+    }
+
+    // null for infinities and NaN, there are no literals for them;
+    // Double.toString keeps every bit and both backends read it back
+    private static IR.Atom real(double value) {
+        if (!Double.isFinite(value)) {
+            return null;
+        }
+        return new IR.Atom(IR.TY.FLOAT, Double.toString(value));
+    }
+}
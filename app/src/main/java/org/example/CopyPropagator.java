@@ -0,0 +1,323 @@
+package org.example;
+
+import java.util.*;
+
+// Copy propagation and dead store elimination over function bodies, in
+// place.
+//
+// A copy is a binding or an assignment whose value is another local or a
+// literal: `let x = y;`, `var x = 0;`, `x = y;`. Until either side is
+// assigned again, reads of `x` can read `y` instead. Copies flow forward
+// through the rest of their scope and into the scopes nested in it. A
+// binding assigned in a nested scope loses its copies after it, loop
+// bodies and conditions start without whatever the loop assigns or
+// iterates with. Patterns keep the matched value as is, the backends rely
+// on it. Globals are not propagated, loop-invariant code motion moves
+// global loads into locals on purpose.
+//
+// Then the stores nobody reads are dropped, if their value is pure:
+//   - `x = x`
+//   - assignments overwritten, or followed by a `$return`, before the
+//     next read in the same scope
+//   - assignments to locals that aren't read anywhere in the function,
+//     and their NewVar once nothing assigns it anymore
+// until nothing changes, as dropping a store may leave another unread.
+public final class CopyPropagator {
+    private final IR ir;
+    private final Purity purity;
+    private int propagated = 0;
+    private int removed = 0;
+
+    public CopyPropagator(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+    }
+
+    // returns the number of reads replaced and stores removed
+    public int propagate() {
+        for (var entry : this.ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                this.walk(scoped.scope(), new HashMap<>());
+
+                var changed = true;
+                while (changed) {
+                    var reads = new HashMap<String, Integer>();
+                    var assigned = new HashSet<String>();
+                    CopyPropagator.countReads(scoped.scope(), reads);
+                    CopyPropagator.collectAssigned(scoped.scope(), assigned);
+                    changed = this.sweep(scoped.scope(), reads, assigned);
+                }
+            }
+        }
+        return this.propagated + this.removed;
+    }
+
+    /*
+     * Propagation
+     */
+
+    // copies: local -> the local or literal it holds
+    private void walk(IR.Scope scope, HashMap<String, IR.Value> copies) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.rewrite(v, copies);
+                    if (value != v) {
+                        entries.set(idx, new IR.NewVar(name, value, slot));
+                        if (scope.varMapping().containsKey(name)) {
+                            scope.varMapping().put(name, value);
+                        }
+                    }
+                    CopyPropagator.kill(copies, Set.of(name));
+                    CopyPropagator.record(copies, name, v.type(), value);
+                }
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<>(expr.vars());
+                    var target = expr.op().equals("$assign") ? (IR.Ref) vars.get(0).val() : null;
+                    var changed = false;
+                    // the target of an assignment isn't read
+                    for (var i = target == null ? 0 : 1; i < vars.size(); i++) {
+                        var value = this.rewrite(vars.get(i), copies);
+                        changed |= value != vars.get(i);
+                        vars.set(i, value);
+                    }
+                    if (changed) {
+                        entries.set(idx, new IR.Expr(expr.op(), vars));
+                    }
+                    if (target != null) {
+                        CopyPropagator.kill(copies, Set.of(target.ident()));
+                        if (!target.slot().isGlobal()) {
+                            CopyPropagator.record(copies, target.ident(), vars.get(0).type(), vars.get(1));
+                        }
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    var rewritten = this.walkScoped(scope, scoped, copies);
+                    if (rewritten != scoped) {
+                        entries.set(idx, rewritten);
+                    }
+                }
+            }
+        }
+    }
+
+    private IR.Scoped walkScoped(
+        IR.Scope scope, IR.Scoped scoped, HashMap<String, IR.Value> copies
+    ) {
+        var body = scoped.scope();
+        var assigned = new HashSet<String>();
+        CopyPropagator.collectAssigned(body, assigned);
+        var dependency = scoped.dependencyValue();
+
+        switch (scoped.kind()) {
+            case IF_BRANCH -> {
+                dependency = dependency.map(v -> this.rewrite(v, copies));
+                this.walk(body, new HashMap<>(copies));
+            }
+            case WHILE, FOR -> {
+                // the condition and the body run again after the body
+                assigned.addAll(scoped.bornVars());
+                var inner = new HashMap<>(copies);
+                CopyPropagator.kill(inner, assigned);
+                dependency = dependency.map(v -> this.rewrite(v, inner));
+                this.walk(body, inner);
+            }
+            // patterns keep the matched value as is, the backends rely on it
+            case ELSE_BRANCH, CASE_BRANCH -> this.walk(body, new HashMap<>(copies));
+            case FUN -> throw new IllegalStateException(
+                "nested function in " + scope.funcName()
+            );
+        }
+
+        CopyPropagator.kill(copies, assigned);
+        if (dependency.equals(scoped.dependencyValue())) {
+            return scoped;
+        }
+        return new IR.Scoped(scoped.kind(), scoped.bornVars(), dependency, body, scoped.bornSlots());
+    }
+
+    // the same Var if nothing it reads is a copy
+    private IR.Var rewrite(IR.Var v, HashMap<String, IR.Value> copies) {
+        var value = this.rewrite(v.val(), copies);
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value rewrite(IR.Value value, HashMap<String, IR.Value> copies) {
+        return switch (value) {
+            case IR.Atom _, IR.Arg _ -> value;
+            case IR.Ref ref -> {
+                var source = copies.get(ref.ident());
+                if (source == null) {
+                    yield ref;
+                }
+                this.propagated++;
+                yield source;
+            }
+            case IR.Expr expr -> {
+                var vars = new ArrayList<IR.Var>();
+                var changed = false;
+                for (var v : expr.vars()) {
+                    var rewritten = this.rewrite(v, copies);
+                    changed |= rewritten != v;
+                    vars.add(rewritten);
+                }
+                yield changed ? new IR.Expr(expr.op(), vars) : expr;
+            }
+        };
+    }
+
+    private static void record(
+        HashMap<String, IR.Value> copies, String name, IR.TY type, IR.Var value
+    ) {
+        var copy = switch (value.val()) {
+            case IR.Atom _ -> true;
+            case IR.Ref ref -> !ref.slot().isGlobal() && !ref.ident().equals(name);
+            case IR.Arg _, IR.Expr _ -> false;
+        };
+        if (copy && value.type() == type) {
+            copies.put(name, value.val());
+        }
+    }
+
+    // forgets the copies into and out of the assigned bindings
+    private static void kill(HashMap<String, IR.Value> copies, Set<String> assigned) {
+        if (assigned.isEmpty()) {
+            return;
+        }
+        copies.keySet().removeAll(assigned);
+        copies.values().removeIf(
+            source -> source instanceof IR.Ref ref && assigned.contains(ref.ident())
+        );
+    }
+
+    /*
+     * Dead stores
+     */
+
+    // returns true if anything was removed
+    private boolean sweep(
+        IR.Scope scope, HashMap<String, Integer> reads, Set<String> assigned
+    ) {
+        var entries = scope.entries();
+        var out = new ArrayList<IR.Entry>();
+        // locals read after the entry, null if any may be
+        HashSet<String> live = null;
+
+        for (var idx = entries.size() - 1; idx >= 0; idx--) {
+            var entry = entries.get(idx);
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> {
+                    var name = newVar.name();
+                    if (live != null) {
+                        live.remove(name);
+                    }
+                    var unused = !reads.containsKey(name)
+                        && !assigned.contains(name)
+                        && this.purity.isPure(newVar.v().val());
+                    if (unused) {
+                        scope.varMapping().remove(name);
+                        continue;
+                    }
+                    if (live != null) {
+                        CopyPropagator.collectReads(newVar.v().val(), live);
+                    }
+                }
+                case IR.Expr expr when expr.op().equals("$assign") -> {
+                    var target = (IR.Ref) expr.vars().get(0).val();
+                    var value = expr.vars().get(1).val();
+                    var dead = !target.slot().isGlobal()
+                        && this.purity.isPure(value)
+                        && (
+                            value instanceof IR.Ref ref && ref.ident().equals(target.ident())
+                            || !reads.containsKey(target.ident())
+                            || live != null && !live.contains(target.ident())
+                        );
+                    if (dead) {
+                        continue;
+                    }
+                    if (live != null) {
+                        live.remove(target.ident());
+                        CopyPropagator.collectReads(value, live);
+                    }
+                }
+                case IR.Expr expr -> {
+                    if (expr.op().equals("$return")) {
+                        // nothing local is read after it
+                        live = new HashSet<>();
+                    }
+                    if (live != null) {
+                        CopyPropagator.collectReads(expr, live);
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    this.sweep(scoped.scope(), reads, assigned);
+                    live = null;
+                }
+            }
+            out.add(entry);
+        }
+
+        Collections.reverse(out);
+        var changed = out.size() != entries.size();
+        this.removed += entries.size() - out.size();
+        entries.clear();
+        entries.addAll(out);
+        return changed;
+    }
+
+    /*
+     * Helpers
+     */
+
+    // idents assigned anywhere in the scope
+    private static void collectAssigned(IR.Scope scope, Set<String> assigned) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr when expr.op().equals("$assign") ->
+                    assigned.add(((IR.Ref) expr.vars().get(0).val()).ident());
+                case IR.Scoped scoped -> CopyPropagator.collectAssigned(scoped.scope(), assigned);
+                default -> {}
+            }
+        }
+    }
+
+    // unique name -> number of reads, assignment targets aren't reads but
+    // `for` counters are, the loop reads them to go on
+    private static void countReads(IR.Scope scope, HashMap<String, Integer> reads) {
+        var idents = new ArrayList<String>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> CopyPropagator.collectReads(newVar.v().val(), idents);
+                case IR.Expr expr when expr.op().equals("$assign") ->
+                    CopyPropagator.collectReads(expr.vars().get(1).val(), idents);
+                case IR.Expr expr -> CopyPropagator.collectReads(expr, idents);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> CopyPropagator.collectReads(v, idents));
+                    if (scoped.kind() == IR.SCOPE_KIND.FOR) {
+                        idents.addAll(scoped.bornVars());
+                    }
+                    CopyPropagator.countReads(scoped.scope(), reads);
+                }
+            }
+        }
+        for (var ident : idents) {
+            reads.merge(ident, 1, Integer::sum);
+        }
+    }
+
+    private static void collectReads(IR.Value value, Collection<String> idents) {
+        switch (value) {
+            case IR.Ref ref -> idents.add(ref.ident());
+            case IR.Expr expr -> {
+                for (var v : expr.vars()) {
+                    CopyPropagator.collectReads(v.val(), idents);
+                }
+            }
+            case IR.Atom _, IR.Arg _ -> {}
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.example;
+
+import java.util.*;
+
+// Dead and unreachable code elimination over the IR, in place.
+//
+// First the structure is simplified, scope by scope:
+//   - entries after a `$return`, or after a construct that returns on
+//     every path, are dropped
+//   - branches on a literal condition (usually left by ConstantFolder)
+//     are replaced by the entries of the branch taken, a switch on a
+//     literal by the case that matches
+//   - `while false`, empty ranges and loops over "" are dropped
+//
+// Then whatever has no effect is swept, until nothing changes:
+//   - NewVars that are never read nor assigned, if their value is pure
+//   - statements that are pure, like calls of pure functions
+//   - ifs, switches and finite loops left without a body
+//
+// Entries spliced into the enclosing scope keep their slots, slot indexes
+// are unique within a function frame.
+public final class DeadCodeEliminator {
+    private final IR ir;
+    private Purity purity;
+    // unique name -> number of reads
+    private final HashMap<String, Integer> reads = new HashMap<>();
+    private final HashSet<String> assigned = new HashSet<>();
+    private int removed = 0;
+
+    public DeadCodeEliminator(IR ir) {
+        this.ir = ir;
+    }
+
+    // returns the number of entries removed
+    public int eliminate() {
+        this.simplify(this.ir.scope());
+
+        // after simplify(), unreachable code doesn't spoil purity anymore
+        this.purity = new Purity(this.ir);
+        var changed = true;
+        while (changed) {
+            this.reads.clear();
+            this.assigned.clear();
+            this.countUses(this.ir.scope());
+            changed = this.sweep(this.ir.scope());
+        }
+        return this.removed;
+    }
+
+    /*
+     * Structure
+     */
+
+    // returns true if the scope returns on every path
+    private boolean simplify(IR.Scope scope) {
+        var entries = scope.entries();
+        var out = new ArrayList<IR.Entry>();
+        var returns = false;
+
+        var idx = 0;
+        while (idx < entries.size() && !returns) {
+            var entry = entries.get(idx++);
+            switch (entry) {
+                case IR.Noop _, IR.NewVar _ -> out.add(entry);
+                case IR.Expr expr -> {
+                    out.add(expr);
+                    returns = expr.op().equals("$return");
+                }
+                case IR.Scoped scoped -> {
+                    switch (scoped.kind()) {
+                        case FUN -> {
+                            this.simplify(scoped.scope());
+                            out.add(scoped);
+                        }
+                        case IF_BRANCH -> {
+                            IR.Scoped elseScoped = null;
+                            if (
+                                idx < entries.size()
+                                && entries.get(idx) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH
+                            ) {
+                                elseScoped = next;
+                                idx++;
+                            }
+                            returns = this.simplifyIf(scope, scoped, elseScoped, out);
+                        }
+                        case WHILE, FOR -> {
+                            if (DeadCodeEliminator.neverRuns(scoped)) {
+                                this.removed++;
+                            } else {
+                                this.simplify(scoped.scope());
+                                out.add(scoped);
+                            }
+                        }
+                        case CASE_BRANCH -> {
+                            var cases = new ArrayList<IR.Scoped>();
+                            idx--;
+                            while (
+                                idx < entries.size()
+                                && entries.get(idx) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.CASE_BRANCH
+                            ) {
+                                cases.add(next);
+                                idx++;
+                            }
+                            // the Noop closing the switch
+                            idx++;
+                            returns = this.simplifySwitch(scope, cases, out);
+                        }
+                        case ELSE_BRANCH -> throw new IllegalStateException(
+                            "else without if in " + scope.funcName()
+                        );
+                    }
+                }
+            }
+        }
+        this.removed += entries.size() - idx;
+
+        entries.clear();
+        entries.addAll(out);
+        return returns;
+    }
+
+    private boolean simplifyIf(
+        IR.Scope scope,
+        IR.Scoped ifScoped,
+        IR.Scoped elseScoped,
+        ArrayList<IR.Entry> out
+    ) {
+        var thenReturns = this.simplify(ifScoped.scope());
+        var elseReturns = elseScoped != null && this.simplify(elseScoped.scope());
+
+        if (ifScoped.dependencyValue().get() instanceof IR.Atom cond) {
+            this.removed++;
+            if (Boolean.parseBoolean(cond.val())) {
+                DeadCodeEliminator.splice(scope, ifScoped.scope(), out);
+                return thenReturns;
+            }
+            if (elseScoped != null) {
+                DeadCodeEliminator.splice(scope, elseScoped.scope(), out);
+            }
+            return elseReturns;
+        }
+
+        out.add(ifScoped);
+        if (elseScoped != null) {
+            out.add(elseScoped);
+        }
+        return thenReturns && elseReturns;
+    }
+
+    private boolean simplifySwitch(
+        IR.Scope scope,
+        ArrayList<IR.Scoped> cases,
+        ArrayList<IR.Entry> out
+    ) {
+        var returns = new ArrayList<Boolean>();
+        var hasDefault = false;
+        for (var scoped : cases) {
+            returns.add(this.simplify(scoped.scope()));
+            hasDefault |= scoped.dependencyValue().isEmpty();
+        }
+
+        var taken = DeadCodeEliminator.takenCase(cases);
+        if (taken.isEmpty()) {
+            out.addAll(cases);
+            out.add(new IR.Noop());
+            return hasDefault && !returns.contains(false);
+        }
+
+        // the cases and the Noop closing them
+        this.removed += cases.size() + 1;
+        if (taken.get() < cases.size()) {
+            var scoped = cases.get(taken.get());
+            DeadCodeEliminator.splice(scope, scoped.scope(), out);
+            return returns.get(taken.get());
+        }
+        return false;
+    }
+
+    // the case a switch on a literal takes, cases.size() if none, empty if
+    // it isn't known at compile time
+    private static Optional<Integer> takenCase(ArrayList<IR.Scoped> cases) {
+        for (var idx = 0; idx < cases.size(); idx++) {
+            var pattern = cases.get(idx).dependencyValue();
+            if (pattern.isEmpty()) {
+                return Optional.of(idx);
+            }
+            var matches = DeadCodeEliminator.matches((IR.Expr) pattern.get());
+            if (matches == null) {
+                return Optional.empty();
+            }
+            if (matches) {
+                return Optional.of(idx);
+            }
+        }
+        return Optional.of(cases.size());
+    }
+
+    // null unless the target and the pattern are literals
+    private static Boolean matches(IR.Expr pattern) {
+        var atoms = new ArrayList<IR.Atom>();
+        for (var v : pattern.vars()) {
+            if (!(v.val() instanceof IR.Atom atom)) {
+                return null;
+            }
+            atoms.add(atom);
+        }
+        var target = atoms.getFirst();
+        return switch (pattern.op()) {
+            case "$caseIs" -> DeadCodeEliminator.test("==", target, atoms.get(1));
+            case "$caseOf" -> {
+                Boolean any = false;
+                for (var literal : atoms.subList(1, atoms.size())) {
+                    var eq = DeadCodeEliminator.test("==", target, literal);
+                    if (eq == null) {
+                        yield null;
+                    }
+                    any |= eq;
+                }
+                yield any;
+            }
+            case "$caseIn" -> {
+                var from = DeadCodeEliminator.test(">=", target, atoms.get(1));
+                var to = DeadCodeEliminator.test("<", target, atoms.get(2));
+                yield from == null || to == null ? null : from && to;
+            }
+            default -> null;
+        };
+    }
+
+    private static Boolean test(String op, IR.Atom a, IR.Atom b) {
+        var result = ConstantFolder.evaluate(op, List.of(a, b));
+        return result == null ? null : Boolean.parseBoolean(result.val());
+    }
+
+    private static boolean neverRuns(IR.Scoped loop) {
+        var dependency = loop.dependencyValue().get();
+        if (loop.kind() == IR.SCOPE_KIND.WHILE) {
+            return dependency instanceof IR.Atom cond && cond.val().equals("false");
+        }
+        if (
+            dependency instanceof IR.Expr range
+            && range.op().equals("$iterRange")
+            && range.vars().get(0).val() instanceof IR.Atom from
+            && range.vars().get(1).val() instanceof IR.Atom to
+        ) {
+            return Integer.parseInt(from.val()) >= Integer.parseInt(to.val());
+        }
+        return dependency instanceof IR.Atom string && string.val().isEmpty();
+    }
+
+    // moves the entries of a branch that always runs into its parent
+    private static void splice(
+        IR.Scope parent, IR.Scope branch, ArrayList<IR.Entry> out
+    ) {
+        out.addAll(branch.entries());
+        parent.varMapping().putAll(branch.varMapping());
+    }
+
+    /*
+     * Sweeping
+     */
+    private void countUses(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> this.countReads(newVar.v().val());
+                case IR.Expr expr -> {
+                    if (expr.op().equals("$assign")) {
+                        var target = (IR.Ref) expr.vars().get(0).val();
+                        this.assigned.add(target.ident());
+                        this.countReads(expr.vars().get(1).val());
+                    } else {
+                        this.countReads(expr);
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(this::countReads);
+                    this.countUses(scoped.scope());
+                }
+            }
+        }
+    }
+
+    private void countReads(IR.Value value) {
+        switch (value) {
+            case IR.Ref ref -> this.reads.merge(ref.ident(), 1, Integer::sum);
+            case IR.Expr expr -> {
+                for (var v : expr.vars()) {
+                    this.countReads(v.val());
+                }
+            }
+            case IR.Atom _, IR.Arg _ -> {}
+        }
+    }
+
+    // returns true if anything was removed
+    private boolean sweep(IR.Scope scope) {
+        var entries = scope.entries();
+        var out = new ArrayList<IR.Entry>();
+
+        var idx = 0;
+        while (idx < entries.size()) {
+            var entry = entries.get(idx++);
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar newVar -> {
+                    var name = newVar.name();
+                    var dead = !this.reads.containsKey(name)
+                        && !this.assigned.contains(name)
+                        && this.purity.isPure(newVar.v().val());
+                    if (dead) {
+                        scope.varMapping().remove(name);
+                    } else {
+                        out.add(newVar);
+                    }
+                }
+                case IR.Expr expr -> {
+                    if (!this.purity.isPure(expr)) {
+                        out.add(expr);
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    switch (scoped.kind()) {
+                        case FUN, WHILE -> {
+                            this.sweep(scoped.scope());
+                            out.add(scoped);
+                        }
+                        case FOR -> {
+                            this.sweep(scoped.scope());
+                            var finite = this.purity.isPure(scoped.dependencyValue().get())
+                                && DeadCodeEliminator.finite(scoped);
+                            if (!finite || !scoped.scope().entries().isEmpty()) {
+                                out.add(scoped);
+                            }
+                        }
+                        case IF_BRANCH -> {
+                            var group = new ArrayList<>(List.of(scoped));
+                            if (
+                                idx < entries.size()
+                                && entries.get(idx) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH
+                            ) {
+                                group.add(next);
+                                idx++;
+                            }
+                            this.sweepGroup(group, out, false);
+                        }
+                        case CASE_BRANCH -> {
+                            var group = new ArrayList<IR.Scoped>();
+                            idx--;
+                            while (
+                                idx < entries.size()
+                                && entries.get(idx) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.CASE_BRANCH
+                            ) {
+                                group.add(next);
+                                idx++;
+                            }
+                            // the Noop closing the switch
+                            idx++;
+                            this.sweepGroup(group, out, true);
+                        }
+                        case ELSE_BRANCH -> throw new IllegalStateException(
+                            "else without if in " + scope.funcName()
+                        );
+                    }
+                }
+            }
+        }
+
+        var changed = out.size() != entries.size();
+        this.removed += entries.size() - out.size();
+        entries.clear();
+        entries.addAll(out);
+        return changed;
+    }
+
+    // an if with its else, or the cases of a switch, are dropped together
+    // once all of them are empty
+    private void sweepGroup(
+        ArrayList<IR.Scoped> group, ArrayList<IR.Entry> out, boolean isSwitch
+    ) {
+        var empty = true;
+        for (var scoped : group) {
+            this.sweep(scoped.scope());
+            empty &= scoped.scope().entries().isEmpty()
+                && scoped.dependencyValue().map(this.purity::isPure).orElse(true);
+        }
+        if (empty) {
+            return;
+        }
+        out.addAll(group);
+        if (isSwitch) {
+            out.add(new IR.Noop());
+        }
+    }
+
+    private static boolean finite(IR.Scoped loop) {
+        if (
+            loop.dependencyValue().get() instanceof IR.Expr range
+            && range.op().equals("$iterRange")
+        ) {
+            return range.vars().get(2).val() instanceof IR.Atom step
+                && Integer.parseInt(step.val()) > 0;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,290 @@
+package org.example;
+
+import java.util.*;
+
+// Evaluates calls to user functions at compile time, by running their IR
+// on literal arguments.
+//
+// Only effect-free functions (see Purity) are run, and anything that would
+// behave differently at runtime, or that the backends disagree on, stops
+// the evaluation: print, input and throw, what ConstantFolder refuses to
+// fold (overflow, division by zero, non-finite results), VOID values,
+// globals that aren't literals. So does running out of fuel, one unit per
+// statement, value and loop iteration, which is how loops and recursion
+// that go on for too long are cut short. A stopped call stays a call.
+public final class Evaluator {
+    // steps a call may take, the calls it makes included
+    static final int FUEL = 100_000;
+    // nested calls, the evaluator recurses with them
+    private static final int MAX_DEPTH = 200;
+    // longer strings stop the evaluation, they'd bloat the program
+    private static final int MAX_STRING = 4096;
+
+    private final Purity purity;
+    private final HashMap<String, IR.Scoped> functions = new HashMap<>();
+    // function and arguments -> value, null if it couldn't be evaluated
+    private final HashMap<String, IR.Atom> known = new HashMap<>();
+
+    private int fuel;
+    private int depth;
+
+    public Evaluator(IR ir) {
+        this.purity = new Purity(ir);
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                this.functions.put(scoped.scope().funcName(), scoped);
+            }
+        }
+    }
+
+    // the value of the call, or null if it can't be known at compile time
+    public IR.Atom call(String function, List<IR.Atom> args) {
+        if (!this.functions.containsKey(function) || !this.purity.isEffectFree(function)) {
+            return null;
+        }
+        var key = new StringBuilder(function);
+        for (var arg : args) {
+            key.append(" ").append(arg.type()).append(" ")
+                .append(arg.val().length()).append(":").append(arg.val());
+        }
+        if (this.known.containsKey(key.toString())) {
+            return this.known.get(key.toString());
+        }
+
+        this.fuel = FUEL;
+        this.depth = 0;
+        IR.Atom value;
+        try {
+            value = this.invoke(function, args);
+        } catch (Stuck e) {
+            value = null;
+        }
+        this.known.put(key.toString(), value);
+        return value;
+    }
+
+    /*
+     * Execution
+     */
+
+    // thrown when the evaluation can't go on
+    private static final class Stuck extends RuntimeException {
+        static final Stuck INSTANCE = new Stuck();
+
+        private Stuck() {
+            super(null, null, false, false);
+        }
+    }
+
+    private IR.Atom invoke(String function, List<IR.Atom> args) {
+        var scoped = this.functions.get(function);
+        if (scoped == null || ++this.depth > MAX_DEPTH) {
+            throw Stuck.INSTANCE;
+        }
+        // unique names are unique across the program, one map per frame
+        var frame = new HashMap<String, IR.Atom>();
+        for (var idx = 0; idx < args.size(); idx++) {
+            frame.put(scoped.bornVars().get(idx), args.get(idx));
+        }
+        var value = this.run(scoped.scope(), frame);
+        if (value == null) {
+            // fell off the end, only VOID functions do
+            throw Stuck.INSTANCE;
+        }
+        this.depth--;
+        return value;
+    }
+
+    // the returned value, null if the scope ends without returning
+    private IR.Atom run(IR.Scope scope, HashMap<String, IR.Atom> frame) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            this.step();
+            IR.Atom value = null;
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> frame.put(newVar.name(), this.eval(newVar.v(), frame));
+                case IR.Expr expr -> {
+                    switch (expr.op()) {
+                        case "$return" -> {
+                            return this.eval(expr.vars().getFirst(), frame);
+                        }
+                        case "$assign" -> {
+                            var target = (IR.Ref) expr.vars().get(0).val();
+                            if (target.slot().isGlobal()) {
+                                throw Stuck.INSTANCE;
+                            }
+                            frame.put(target.ident(), this.eval(expr.vars().get(1), frame));
+                        }
+                        default -> this.eval(expr, frame);
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    switch (scoped.kind()) {
+                        case IF_BRANCH -> {
+                            var hasElse = idx + 1 < entries.size()
+                                && entries.get(idx + 1) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH;
+                            if (this.truth(scoped.dependencyValue().get(), frame)) {
+                                value = this.run(scoped.scope(), frame);
+                            } else if (hasElse) {
+                                value = this.run(((IR.Scoped) entries.get(idx + 1)).scope(), frame);
+                            }
+                            if (hasElse) {
+                                idx++;
+                            }
+                        }
+                        case WHILE -> {
+                            while (value == null && this.truth(scoped.dependencyValue().get(), frame)) {
+                                this.step();
+                                value = this.run(scoped.scope(), frame);
+                            }
+                        }
+                        case FOR -> value = this.runFor(scoped, frame);
+                        case CASE_BRANCH -> {
+                            // the first branch that matches runs, the rest are skipped
+                            var end = idx;
+                            while (
+                                end + 1 < entries.size()
+                                && entries.get(end + 1) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.CASE_BRANCH
+                            ) {
+                                end++;
+                            }
+                            for (var branch = idx; branch <= end; branch++) {
+                                var caseScoped = (IR.Scoped) entries.get(branch);
+                                var pattern = caseScoped.dependencyValue();
+                                if (pattern.isEmpty() || this.matches((IR.Expr) pattern.get(), frame)) {
+                                    value = this.run(caseScoped.scope(), frame);
+                                    break;
+                                }
+                            }
+                            idx = end;
+                        }
+                        // nested functions and stray else branches
+                        default -> throw Stuck.INSTANCE;
+                    }
+                }
+            }
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private IR.Atom runFor(IR.Scoped scoped, HashMap<String, IR.Atom> frame) {
+        var counter = scoped.bornVars().getFirst();
+        var dependency = scoped.dependencyValue().get();
+        if (dependency instanceof IR.Expr range && range.op().equals("$iterRange")) {
+            var end = Integer.parseInt(this.eval(range.vars().get(1), frame).val());
+            var step = Integer.parseInt(this.eval(range.vars().get(2), frame).val());
+            frame.put(counter, this.eval(range.vars().get(0), frame));
+            // as the backends do it: the counter is a variable the body may change
+            while (Integer.parseInt(frame.get(counter).val()) < end) {
+                this.step();
+                var value = this.run(scoped.scope(), frame);
+                if (value != null) {
+                    return value;
+                }
+                var next = Math.addExact(Integer.parseInt(frame.get(counter).val()), step);
+                frame.put(counter, new IR.Atom(IR.TY.INT, Integer.toString(next)));
+            }
+            return null;
+        }
+
+        var string = this.eval(new IR.Var(dependency, IR.TY.STRING, null, false), frame).val();
+        if (!ConstantFolder.bmp(string)) {
+            // the JVM iterates UTF-16 units, the postfix machine code points
+            throw Stuck.INSTANCE;
+        }
+        for (var idx = 0; idx < string.length(); idx++) {
+            this.step();
+            frame.put(counter, new IR.Atom(IR.TY.STRING, String.valueOf(string.charAt(idx))));
+            var value = this.run(scoped.scope(), frame);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(IR.Expr pattern, HashMap<String, IR.Atom> frame) {
+        var vars = pattern.vars();
+        var matched = this.eval(vars.get(0), frame);
+        return switch (pattern.op()) {
+            case "$caseIs" -> this.compare("==", matched, this.eval(vars.get(1), frame));
+            case "$caseOf" -> {
+                for (var v : vars.subList(1, vars.size())) {
+                    if (this.compare("==", matched, this.eval(v, frame))) {
+                        yield true;
+                    }
+                }
+                yield false;
+            }
+            case "$caseIn" -> this.compare(">=", matched, this.eval(vars.get(1), frame))
+                && this.compare("<", matched, this.eval(vars.get(2), frame));
+            default -> throw Stuck.INSTANCE;
+        };
+    }
+
+    private boolean compare(String op, IR.Atom a, IR.Atom b) {
+        var result = ConstantFolder.evaluate(op, List.of(a, b));
+        if (result == null) {
+            throw Stuck.INSTANCE;
+        }
+        return Boolean.parseBoolean(result.val());
+    }
+
+    private boolean truth(IR.Value condition, HashMap<String, IR.Atom> frame) {
+        return Boolean.parseBoolean(
+            this.eval(new IR.Var(condition, IR.TY.BOOL, null, false), frame).val()
+        );
+    }
+
+    private IR.Atom eval(IR.Var v, HashMap<String, IR.Atom> frame) {
+        this.step();
+        if (v.type() == IR.TY.VOID || v.type() == IR.TY.ERROR) {
+            throw Stuck.INSTANCE;
+        }
+        var value = switch (v.val()) {
+            case IR.Atom atom -> atom;
+            case IR.Ref ref -> frame.get(ref.ident());
+            case IR.Arg _ -> null;
+            case IR.Expr expr -> this.eval(expr, frame);
+        };
+        if (
+            value == null
+            || value.type() != v.type()
+            || value.type() == IR.TY.STRING && value.val().length() > MAX_STRING
+        ) {
+            throw Stuck.INSTANCE;
+        }
+        return value;
+    }
+
+    private IR.Atom eval(IR.Expr expr, HashMap<String, IR.Atom> frame) {
+        var args = new ArrayList<IR.Atom>();
+        for (var v : expr.vars()) {
+            args.add(this.eval(v, frame));
+        }
+        if (expr.op().startsWith("$")) {
+            throw Stuck.INSTANCE;
+        }
+        if (!OperatorRegistry.BUILTINS.contains(expr.op())) {
+            return this.invoke(expr.op(), args);
+        }
+        // null for print, input and throw too
+        var value = ConstantFolder.evaluate(expr.op(), args);
+        if (value == null) {
+            throw Stuck.INSTANCE;
+        }
+        return value;
+    }
+
+    private void step() {
+        if (--this.fuel < 0) {
+            throw Stuck.INSTANCE;
+        }
+    }
+}
@@ -24,6 +24,11 @@ public record IR(
         BOOL,
         STRING,
         VOID,
+        // poisoned, result of an expression that failed to typecheck
+        //
+        // Only seen when errors are collected, such IR never gets to the
+        // backends.
+        ERROR,
     }
 
     /*
@@ -34,7 +39,11 @@ public record IR(
 
     // Dummy Entry to stand as a separator, for example for switch statements
     public record Noop() implements Entry {}
-    public record NewVar(String name, Var v) implements Entry {}
+    public record NewVar(String name, Var v, Slot slot) implements Entry {
+        public NewVar(String name, Var v) {
+            this(name, v, Slot.UNRESOLVED);
+        }
+    }
 
     /*
      * Scopes
@@ -54,8 +63,19 @@ public record IR(
         ArrayList<String> bornVars,
         // if, switch, while expression
         Optional<Value> dependencyValue,
-        Scope scope
-    ) implements Entry {}
+        Scope scope,
+        // resolved slots of bornVars, same order
+        ArrayList<Slot> bornSlots
+    ) implements Entry {
+        public Scoped(
+            SCOPE_KIND kind,
+            ArrayList<String> bornVars,
+            Optional<Value> dependencyValue,
+            Scope scope
+        ) {
+            this(kind, bornVars, dependencyValue, scope, new ArrayList<>());
+        }
+    }
 
     /*
      * Variables
@@ -65,13 +85,28 @@ public record IR(
 
     // Arg
     public record Arg(TY type) implements Value {}
-    // ident
-    public record Ref(String ident) implements Value {}
+    // ident, with the coordinate of the binding it refers to
+    public record Ref(String ident, Slot slot) implements Value {
+        public Ref(String ident) {
+            this(ident, Slot.UNRESOLVED);
+        }
+    }
     // literal
     public record Atom(TY type, String val) implements Value {}
     // expr
     public record Expr(String op, ArrayList<Var> vars) implements Value, Entry {}
 
+    // Where a binding lives: depth 0 is the global scope, 1 is a function
+    // body, nested blocks go deeper. Index is unique within the function
+    // frame (or among globals), so locals can be kept in arrays.
+    public record Slot(int depth, int index) {
+        public static final Slot UNRESOLVED = new Slot(-1, -1);
+
+        public boolean isGlobal() {
+            return this.depth == 0;
+        }
+    }
+
     public record Var(
         Value val,
         TY type,
@@ -123,12 +158,24 @@ public record IR(
         };
     }
 
+    // built once, every compilation gets its own shallow copy
+    private static final LinkedHashMap<String, Operator> DEFAULT_OPERATORS =
+        IR.buildDefaultOperatorMap();
+
+    /**
+     * Returns a fresh, mutable operator store pre-filled with the built-ins.
+     * The Operator values are shared between copies and must not be mutated.
+     */
+    public static LinkedHashMap<String, Operator> defaultOperatorMap() {
+        return new LinkedHashMap<>(DEFAULT_OPERATORS);
+    }
+
     /**
      * Defines the default signatures for all built-in operators and functions.
      * Note: Unary operators are given a 'u' prefix (e.g., "u+", "u-")
      * to distinguish them from their binary counterparts.
      */
-    public static LinkedHashMap<String, Operator> defaultOperatorMap() {
+    private static LinkedHashMap<String, Operator> buildDefaultOperatorMap() {
         // Create an empty LinkedHashMap to preserve insertion order
         LinkedHashMap<String, Operator> map = new LinkedHashMap<>();
 
@@ -271,163 +318,8 @@ public record IR(
         };
     }
 
-    private static String mangle(String name, Integer id) {
-        return String.format("%s_%d", name, id);
-    }
-
-    // copy of Typer.lookupRef, but for mangling
-    private static String mangleRef(String ident, Scope scope) {
-        var rootScope = scope;
-
-        var currentScope = scope;
-        while (true) {
-            var mangled = IR.mangle(ident, currentScope.scopeId());
-            var find = currentScope.varMapping.get(mangled);
-
-            if (find != null) {
-                return mangled;
-            }
-
-            if (currentScope.parentScope() == null) {
-                var id = rootScope.scopeId();
-                throw new RuntimeException(
-                    "ref <" + ident + ">@" + id + "can't be found"
-                );
-            }
-
-            currentScope = currentScope.parentScope();
-        }
-    }
-
-    private static Value mangleValue(Value val, Scope scope) {
-        return switch (val) {
-            case Arg arg -> arg;
-            case Atom atom -> atom;
-            case Ref(String ident) -> new Ref(IR.mangleRef(ident, scope));
-            case Expr(var op, var vars) -> {
-                var newVars = new ArrayList<Var>();
-                for (var v: vars) {
-                    newVars.add(IR.mangleVar(v, scope));
-                }
-                yield new Expr(op, newVars);
-            }
-        };
-    }
-
-    private static Var mangleVar(Var v, Scope scope) {
-        return new Var(
-            IR.mangleValue(v.val(), scope),
-            v.type(),
-            v.span(),
-            v.mutable()
-        );
-    }
-
-    // make it so every variable that should be unique is, in fact, unique
-    //
-    // mutates passed Scope *in-place* and returns mutated version
-    public static Scope discriminateScopeVars(Scope scope) {
-        var mangleMap = new LinkedHashMap<String, String>();
-
-        for (var plainName: scope.varMapping().keySet()) {
-            var mangled = IR.mangle(plainName, scope.scopeId());
-            mangleMap.put(plainName, mangled);
-        }
-
-        for (var mangler: mangleMap.entrySet()) {
-            var plainName = mangler.getKey();
-            var mangled = mangler.getValue();
-
-            // add new key with the value from previous key
-            scope.varMapping.put(
-                mangled, scope.varMapping().get(plainName)
-            );
-            // remove old key, mapping[plain]
-            scope.varMapping.remove(plainName);
-        }
-
-        for (int entryIdx = 0; entryIdx < scope.entries.size(); entryIdx++) {
-            switch (scope.entries().get(entryIdx)) {
-                case NewVar(var name, var v) -> {
-                    var mangledName = IR.mangle(name, scope.scopeId());
-                    var mangledVar = IR.mangleVar(v, scope);
-                    scope.entries().set(entryIdx, new NewVar(
-                        mangledName, IR.mangleVar(v, scope)
-                    ));
-                }
-                case Expr(var op, var vars) -> {
-                    var newVars = new ArrayList<Var>();
-                    for (var v: vars) {
-                        newVars.add(IR.mangleVar(v, scope));
-                    }
-                    scope.entries().set(entryIdx, new Expr(op, newVars));
-                }
-                case Scoped scoped -> {
-                    var newBornVars = new ArrayList<String>();
-                    for (var varName: scoped.bornVars()) {
-                        newBornVars.add(
-                            IR.mangle(varName, scoped.scope().scopeId())
-                        );
-                    }
-
-                    scope.entries().set(entryIdx, new Scoped(
-                        scoped.kind(),
-                        newBornVars,
-                        scoped.dependencyValue().map(
-                            v -> IR.mangleValue(v, scoped.scope())
-                        ),
-                        IR.discriminateScopeVars(scoped.scope())
-                    ));
-                }
-                case Noop noop -> {}
-            }
-        }
-        return scope;
-    }
-
-    public static Scope nullifyParentScopes(Scope originalScope) {
-        // Base case: if the scope is null, there's nothing to do.
-        if (originalScope == null) {
-            return null;
-        }
-
-        // Create a new list to hold the processed entries.
-        ArrayList<Entry> newEntries = new ArrayList<>();
-
-        // Iterate through the entries of the original scope.
-        for (Entry entry : originalScope.entries()) {
-            // Check if the entry is a container for a nested scope.
-            if (entry instanceof Scoped scopedEntry) {
-                // If it is, recursively call this function on the nested scope.
-                Scope nullifiedInnerScope =
-                    nullifyParentScopes(scopedEntry.scope());
-
-                // Create a new Scoped entry with the modified (nullified) inner
-                // scope.
-                Scoped newScopedEntry = new Scoped(
-                    scopedEntry.kind(),
-                    scopedEntry.bornVars(),
-                    scopedEntry.dependencyValue(),
-                    nullifiedInnerScope
-                );
-                newEntries.add(newScopedEntry);
-            } else {
-                // For other entry types (NewVar, Action), a shallow copy is
-                // sufficient as they are immutable and don't contain nested
-                // scopes.
-                newEntries.add(entry);
-            }
-        }
-
-        // Create and return the new scope with its own parent set to null.
-        // The other fields are from the original scope, and the entries list
-        // is the new one we just built.
-        return new IR.Scope(
-            null, // The core purpose of the function.
-            originalScope.scopeId(),
-            originalScope.funcName(),
-            originalScope.varMapping(),
-            newEntries
-        );
+    // unique name of a binding, given the scope it is declared in
+    public static String mangle(String name, Integer id) {
+        return name + "_" + id;
     }
 }
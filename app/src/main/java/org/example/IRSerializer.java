@@ -0,0 +1,514 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Binary form of a typed IR, for the compile cache (`--ir-cache`).
+//
+// Integers are LEB128 varints, the signed ones zigzag encoded first:
+//
+//   header     magic "MSIR", version, key (length and UTF-8 bytes)
+//   strings    count, then the length and UTF-8 bytes of each
+//   operators  count, then name and alternatives, each its argument types
+//              and return type
+//   scope      the global scope, with the scopes nested in it
+//
+// Names, literals and operators are written as their index in the string
+// table. A span is its start and its length. A scope is its id, function
+// name, variable mapping and entries, its parent is the scope it's written
+// in. Entries and values start with a tag byte, a Var with a byte holding
+// its type, whether it has a span and whether it's mutable.
+//
+// The key says what the IR was built from, App uses a hash of the source.
+// A file with another key or version is a miss, and so is a file that
+// doesn't read back, the caller then builds the IR again.
+public final class IRSerializer {
+    static final int MAGIC = 0x4D534952;
+    // bump on any change to the layout
+    static final int VERSION = 1;
+
+    // tags, an Expr is both an entry and a value
+    private static final int NOOP = 0;
+    private static final int NEW_VAR = 1;
+    private static final int EXPR = 2;
+    private static final int SCOPED = 3;
+    private static final int ARG = 4;
+    private static final int REF = 5;
+    private static final int ATOM = 6;
+
+    private static final IR.TY[] TYPES = IR.TY.values();
+    private static final IR.SCOPE_KIND[] KINDS = IR.SCOPE_KIND.values();
+
+    private IRSerializer() {}
+
+    // key of an IR built from the source
+    public static String key(String code) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256")
+                .digest(code.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void write(IR ir, String key, Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Files.write(path, IRSerializer.toBytes(ir, key));
+    }
+
+    public static byte[] toBytes(IR ir, String key) {
+        var writer = new Writer();
+        writer.writeOperators(ir.opStore());
+        writer.writeScope(ir.scope());
+
+        var out = new Output();
+        out.int32(MAGIC);
+        out.varint(VERSION);
+        out.string(key);
+        out.varint(writer.strings.size());
+        for (var string : writer.strings.keySet()) {
+            out.string(string);
+        }
+        out.writeBytes(writer.body.toByteArray());
+        return out.toByteArray();
+    }
+
+    // the IR in the file, null if it's missing or a miss
+    public static IR read(Path path, String key) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return IRSerializer.read(buffer, key);
+        }
+    }
+
+    // the IR in the buffer, null if it's a miss
+    public static IR read(ByteBuffer buffer, String key) {
+        try {
+            return new Reader(buffer).read(key);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Writing
+     */
+
+    private static final class Output extends ByteArrayOutputStream {
+        void int32(int value) {
+            this.write(value >>> 24);
+            this.write(value >>> 16);
+            this.write(value >>> 8);
+            this.write(value);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                this.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.write(value);
+        }
+
+        void signed(int value) {
+            this.varint((value << 1) ^ (value >> 31));
+        }
+
+        void string(String value) {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.varint(bytes.length);
+            this.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Writer {
+        final LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+        final Output body = new Output();
+
+        void writeOperators(LinkedHashMap<String, IR.Operator> opStore) {
+            this.body.varint(opStore.size());
+            for (var entry : opStore.entrySet()) {
+                this.writeString(entry.getKey());
+                var alternatives = entry.getValue().alternatives();
+                this.body.varint(alternatives.size());
+                for (var spec : alternatives) {
+                    this.body.varint(spec.argTypes().size());
+                    for (var type : spec.argTypes()) {
+                        this.body.varint(type.ordinal());
+                    }
+                    this.body.varint(spec.returnType().ordinal());
+                }
+            }
+        }
+
+        void writeScope(IR.Scope scope) {
+            // 0 for none, the id + 1 otherwise
+            this.body.varint(scope.scopeId() == null ? 0 : scope.scopeId() + 1);
+            this.writeNullableString(scope.funcName());
+            this.body.varint(scope.varMapping().size());
+            for (var entry : scope.varMapping().entrySet()) {
+                this.writeString(entry.getKey());
+                this.writeVar(entry.getValue());
+            }
+            this.body.varint(scope.entries().size());
+            for (var entry : scope.entries()) {
+                this.writeEntry(entry);
+            }
+        }
+
+        void writeEntry(IR.Entry entry) {
+            switch (entry) {
+                case IR.Noop _ -> this.body.write(NOOP);
+                case IR.NewVar newVar -> {
+                    this.body.write(NEW_VAR);
+                    this.writeString(newVar.name());
+                    this.writeVar(newVar.v());
+                    this.writeSlot(newVar.slot());
+                }
+                case IR.Expr expr -> {
+                    this.body.write(EXPR);
+                    this.writeExpr(expr);
+                }
+                case IR.Scoped scoped -> {
+                    this.body.write(SCOPED);
+                    this.body.varint(scoped.kind().ordinal());
+                    this.body.varint(scoped.bornVars().size());
+                    for (var name : scoped.bornVars()) {
+                        this.writeString(name);
+                    }
+                    this.body.varint(scoped.bornSlots().size());
+                    for (var slot : scoped.bornSlots()) {
+                        this.writeSlot(slot);
+                    }
+                    this.body.write(scoped.dependencyValue().isPresent() ? 1 : 0);
+                    scoped.dependencyValue().ifPresent(this::writeValue);
+                    this.writeScope(scoped.scope());
+                }
+            }
+        }
+
+        void writeVar(IR.Var v) {
+            this.writeTree(v);
+        }
+
+        void writeValue(IR.Value value) {
+            this.writeTree(value);
+        }
+
+        void writeExpr(IR.Expr expr) {
+            this.writeString(expr.op());
+            this.body.varint(expr.vars().size());
+            for (var v : expr.vars()) {
+                this.writeVar(v);
+            }
+        }
+
+        // A Var or a value and everything nested in it, in pre-order.
+        // Generated code nests expressions thousands deep, so what is left
+        // to write waits on a stack instead of the Java one.
+        private void writeTree(Object root) {
+            var work = new ArrayDeque<Object>();
+            work.push(root);
+            while (!work.isEmpty()) {
+                switch (work.pop()) {
+                    case IR.Var v -> {
+                        var span = v.span();
+                        this.body.varint(
+                            v.type().ordinal() << 2 | (span != null ? 2 : 0) | (v.mutable() ? 1 : 0)
+                        );
+                        if (span != null) {
+                            this.body.signed(span.first());
+                            this.body.signed(span.second() - span.first());
+                        }
+                        work.push(v.val());
+                    }
+                    case IR.Arg arg -> {
+                        this.body.write(ARG);
+                        this.body.varint(arg.type().ordinal());
+                    }
+                    case IR.Ref ref -> {
+                        this.body.write(REF);
+                        this.writeString(ref.ident());
+                        this.writeSlot(ref.slot());
+                    }
+                    case IR.Atom atom -> {
+                        this.body.write(ATOM);
+                        this.body.varint(atom.type().ordinal());
+                        this.writeString(atom.val());
+                    }
+                    case IR.Expr expr -> {
+                        this.body.write(EXPR);
+                        this.writeString(expr.op());
+                        this.body.varint(expr.vars().size());
+                        for (var idx = expr.vars().size() - 1; idx >= 0; idx--) {
+                            work.push(expr.vars().get(idx));
+                        }
+                    }
+                    default -> throw new IllegalStateException("not a value");
+                }
+            }
+        }
+
+        void writeSlot(IR.Slot slot) {
+            this.body.signed(slot.depth());
+            this.body.signed(slot.index());
+        }
+
+        void writeString(String string) {
+            this.body.varint(this.strings.computeIfAbsent(string, _ -> this.strings.size()));
+        }
+
+        // 0 for null, the index + 1 otherwise
+        void writeNullableString(String string) {
+            if (string == null) {
+                this.body.varint(0);
+            } else {
+                this.body.varint(this.strings.computeIfAbsent(string, _ -> this.strings.size()) + 1);
+            }
+        }
+    }
+
+    /*
+     * Reading
+     */
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private String[] strings;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        IR read(String key) {
+            if (this.buffer.getInt() != MAGIC || this.varint() != VERSION) {
+                return null;
+            }
+            if (!this.string().equals(key)) {
+                return null;
+            }
+            this.strings = new String[this.count()];
+            for (var idx = 0; idx < this.strings.length; idx++) {
+                this.strings[idx] = this.string();
+            }
+            var opStore = this.readOperators();
+            var scope = this.readScope(null);
+            if (this.buffer.hasRemaining()) {
+                throw new IllegalArgumentException("trailing bytes");
+            }
+            return new IR(opStore, scope);
+        }
+
+        LinkedHashMap<String, IR.Operator> readOperators() {
+            var count = this.count();
+            var opStore = new LinkedHashMap<String, IR.Operator>();
+            for (var op = 0; op < count; op++) {
+                var name = this.stringRef();
+                var alternatives = new ArrayList<IR.OpSpec>();
+                for (var alt = this.count(); alt > 0; alt--) {
+                    var argTypes = new ArrayList<IR.TY>();
+                    for (var arg = this.count(); arg > 0; arg--) {
+                        argTypes.add(this.type());
+                    }
+                    alternatives.add(new IR.OpSpec(argTypes, this.type()));
+                }
+                opStore.put(name, new IR.Operator(alternatives));
+            }
+            return opStore;
+        }
+
+        IR.Scope readScope(IR.Scope parent) {
+            var id = this.varint();
+            var funcName = this.nullableStringRef();
+            var varMapping = new LinkedHashMap<String, IR.Var>();
+            for (var count = this.count(); count > 0; count--) {
+                var name = this.stringRef();
+                varMapping.put(name, this.readVar());
+            }
+            var entries = new ArrayList<IR.Entry>();
+            var scope = new IR.Scope(parent, id == 0 ? null : id - 1, funcName, varMapping, entries);
+            for (var count = this.count(); count > 0; count--) {
+                entries.add(this.readEntry(scope));
+            }
+            return scope;
+        }
+
+        IR.Entry readEntry(IR.Scope scope) {
+            return switch (this.buffer.get()) {
+                case NOOP -> new IR.Noop();
+                case NEW_VAR -> new IR.NewVar(this.stringRef(), this.readVar(), this.readSlot());
+                case EXPR -> this.readExpr();
+                case SCOPED -> {
+                    var kind = this.index(KINDS, this.varint());
+                    var bornVars = new ArrayList<String>();
+                    for (var count = this.count(); count > 0; count--) {
+                        bornVars.add(this.stringRef());
+                    }
+                    var bornSlots = new ArrayList<IR.Slot>();
+                    for (var count = this.count(); count > 0; count--) {
+                        bornSlots.add(this.readSlot());
+                    }
+                    Optional<IR.Value> dependency = this.buffer.get() != 0
+                        ? Optional.of(this.readValue())
+                        : Optional.empty();
+                    yield new IR.Scoped(kind, bornVars, dependency, this.readScope(scope), bornSlots);
+                }
+                default -> throw new IllegalArgumentException("bad entry tag");
+            };
+        }
+
+        IR.Var readVar() {
+            return (IR.Var) this.readTree(true);
+        }
+
+        IR.Value readValue() {
+            return (IR.Value) this.readTree(false);
+        }
+
+        IR.Expr readExpr() {
+            var op = this.stringRef();
+            var vars = new ArrayList<IR.Var>();
+            for (var count = this.count(); count > 0; count--) {
+                vars.add(this.readVar());
+            }
+            return new IR.Expr(op, vars);
+        }
+
+        // the flags and span of a Var, its value follows
+        private record Header(IR.TY type, Pair<Integer, Integer> span, boolean mutable) {
+            Object wrap(IR.Value value) {
+                return new IR.Var(value, this.type, this.span, this.mutable);
+            }
+        }
+
+        // an Expr read up to its arguments, null header if it's a bare value
+        private record Open(String op, int count, ArrayList<IR.Var> vars, Header header) {
+            Object close() {
+                var expr = new IR.Expr(this.op, this.vars);
+                return this.header == null ? expr : this.header.wrap(expr);
+            }
+        }
+
+        // A Var, or a bare value, written by writeTree. Expressions still
+        // missing arguments wait on a stack, whatever is read next fills
+        // the innermost one.
+        private Object readTree(boolean var) {
+            var open = new ArrayDeque<Open>();
+            while (true) {
+                var header = var || !open.isEmpty() ? this.readHeader() : null;
+                Object done = switch (this.buffer.get()) {
+                    case ARG -> new IR.Arg(this.type());
+                    case REF -> new IR.Ref(this.stringRef(), this.readSlot());
+                    case ATOM -> new IR.Atom(this.type(), this.stringRef());
+                    case EXPR -> new Open(this.stringRef(), this.count(), new ArrayList<>(), header);
+                    default -> throw new IllegalArgumentException("bad value tag");
+                };
+                if (done instanceof Open expr) {
+                    if (expr.count() > 0) {
+                        open.push(expr);
+                        continue;
+                    }
+                    done = expr.close();
+                } else if (header != null) {
+                    done = header.wrap((IR.Value) done);
+                }
+                while (!open.isEmpty()) {
+                    var parent = open.peek();
+                    parent.vars().add((IR.Var) done);
+                    if (parent.vars().size() < parent.count()) {
+                        break;
+                    }
+                    done = open.pop().close();
+                }
+                if (open.isEmpty()) {
+                    return done;
+                }
+            }
+        }
+
+        private Header readHeader() {
+            var flags = this.varint();
+            var type = this.index(TYPES, flags >>> 2);
+            Pair<Integer, Integer> span = null;
+            if ((flags & 2) != 0) {
+                var start = this.signed();
+                span = new Pair<>(start, start + this.signed());
+            }
+            return new Header(type, span, (flags & 1) != 0);
+        }
+
+        IR.Slot readSlot() {
+            var depth = this.signed();
+            var index = this.signed();
+            return depth == -1 && index == -1 ? IR.Slot.UNRESOLVED : new IR.Slot(depth, index);
+        }
+
+        IR.TY type() {
+            return this.index(TYPES, this.varint());
+        }
+
+        String stringRef() {
+            return this.index(this.strings, this.varint());
+        }
+
+        String nullableStringRef() {
+            var idx = this.varint();
+            return idx == 0 ? null : this.index(this.strings, idx - 1);
+        }
+
+        String string() {
+            var bytes = new byte[this.count()];
+            this.buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // a length, no bigger than what is left to read
+        int count() {
+            var count = this.varint();
+            if (count > this.buffer.remaining()) {
+                throw new IllegalArgumentException("bad count");
+            }
+            return count;
+        }
+
+        int varint() {
+            var value = 0;
+            for (var shift = 0; shift < 35; shift += 7) {
+                var b = this.buffer.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("bad varint");
+        }
+
+        int signed() {
+            var value = this.varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private <T> T index(T[] values, int idx) {
+            if (idx < 0 || idx >= values.length) {
+                throw new IllegalArgumentException("bad index");
+            }
+            return values[idx];
+        }
+    }
+}
@@ -0,0 +1,704 @@
+package org.example;
+
+import java.util.*;
+
+// Inlining of small user functions, over the IR, in place.
+//
+// Functions are visited callees first, in the order Tarjan's algorithm
+// finds the strongly connected components of the call graph, so a body
+// is copied with its own calls already inlined. Functions of a recursive
+// component are never inlined, nor is anything bigger than MAX_SIZE.
+//
+// A call is replaced by
+//   - a `let` for every parameter, bound to the argument
+//   - a copy of the body, declared bindings renamed with IR.mangle and a
+//     fresh scope id, slots moved past the ones of the caller
+//   - the returned value
+// The IR has no jumps, so the body has to return only at its end: every
+// `$return` is the last entry of the body, or of the branches of an
+// if/else or switch that ends the body. An `if` without `else` that always
+// returns is closed by moving the rest of the body into a new `else`.
+// With a single `$return`, its value takes the place of the call.
+// Otherwise every `$return` becomes an assignment to a result variable.
+//
+// The copy is evaluated before the entry the call was in, so a call with
+// effects is only inlined when the entry evaluates nothing impure before
+// it, nor prints anything yet. Calls in
+// `while` conditions and switch patterns stay, as they are evaluated more
+// than once.
+//
+// Only functions declared before the caller are inlined, their globals
+// and callees are then visible from the caller in both backends.
+public final class Inliner {
+    // IR nodes, entries and operator applications
+    static final int MAX_SIZE = 24;
+
+    private final IR ir;
+    private final Purity purity;
+    // user function -> its declaration, in declaration order
+    private final LinkedHashMap<String, IR.Scoped> functions = new LinkedHashMap<>();
+    private final HashMap<String, Integer> declared = new HashMap<>();
+    private final HashMap<String, Set<String>> calls = new HashMap<>();
+    private final HashSet<String> inlinable = new HashSet<>();
+
+    private int nextScopeId;
+    private int inlined = 0;
+
+    // the function being inlined into
+    private String caller;
+    private int nextIndex;
+
+    public Inliner(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                var name = scoped.scope().funcName();
+                this.declared.put(name, this.functions.size());
+                this.functions.put(name, scoped);
+            }
+        }
+        this.nextScopeId = Inliner.maxScopeId(ir.scope()) + 1;
+    }
+
+    // returns the number of calls inlined
+    public int inline() {
+        for (var name : this.functions.keySet()) {
+            var callees = new HashSet<String>();
+            this.collectCalls(this.functions.get(name).scope(), callees);
+            this.calls.put(name, callees);
+        }
+
+        for (var component : this.components()) {
+            for (var name : component) {
+                this.inlineInto(this.functions.get(name));
+            }
+            var recursive = component.size() > 1
+                || this.calls.get(component.getFirst()).contains(component.getFirst());
+            if (!recursive && this.canBeInlined(component.getFirst())) {
+                this.inlinable.add(component.getFirst());
+            }
+        }
+        return this.inlined;
+    }
+
+    /*
+     * Call graph
+     */
+    private void collectCalls(IR.Scope scope, Set<String> callees) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> this.collectCalls(newVar.v().val(), callees);
+                case IR.Expr expr -> this.collectCalls(expr, callees);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> this.collectCalls(v, callees));
+                    this.collectCalls(scoped.scope(), callees);
+                }
+            }
+        }
+    }
+
+    private void collectCalls(IR.Value value, Set<String> callees) {
+        if (value instanceof IR.Expr expr) {
+            if (this.functions.containsKey(expr.op())) {
+                callees.add(expr.op());
+            }
+            for (var v : expr.vars()) {
+                this.collectCalls(v.val(), callees);
+            }
+        }
+    }
+
+    // Tarjan's algorithm, components come out callees first
+    private ArrayList<ArrayList<String>> components() {
+        var state = new Object() {
+            int counter = 0;
+            final HashMap<String, Integer> index = new HashMap<>();
+            final HashMap<String, Integer> low = new HashMap<>();
+            final ArrayDeque<String> stack = new ArrayDeque<>();
+            final HashSet<String> onStack = new HashSet<>();
+            final ArrayList<ArrayList<String>> components = new ArrayList<>();
+
+            void visit(String name, Map<String, Set<String>> calls) {
+                this.index.put(name, this.counter);
+                this.low.put(name, this.counter);
+                this.counter++;
+                this.stack.push(name);
+                this.onStack.add(name);
+
+                for (var callee : calls.get(name)) {
+                    if (!this.index.containsKey(callee)) {
+                        this.visit(callee, calls);
+                        this.low.put(name, Math.min(this.low.get(name), this.low.get(callee)));
+                    } else if (this.onStack.contains(callee)) {
+                        this.low.put(name, Math.min(this.low.get(name), this.index.get(callee)));
+                    }
+                }
+
+                if (this.low.get(name).equals(this.index.get(name))) {
+                    var component = new ArrayList<String>();
+                    String member;
+                    do {
+                        member = this.stack.pop();
+                        this.onStack.remove(member);
+                        component.add(member);
+                    } while (!member.equals(name));
+                    this.components.add(component);
+                }
+            }
+        };
+        for (var name : this.functions.keySet()) {
+            if (!state.index.containsKey(name)) {
+                state.visit(name, this.calls);
+            }
+        }
+        return state.components;
+    }
+
+    /*
+     * Candidates
+     */
+    private boolean canBeInlined(String name) {
+        if (name.equals("main")) {
+            return false;
+        }
+        var spec = this.ir.opStore().get(name).alternatives().getFirst();
+        if (spec.argTypes().contains(IR.TY.VOID)) {
+            return false;
+        }
+        var body = this.functions.get(name).scope();
+        return Inliner.size(body) <= MAX_SIZE
+            && Inliner.returnsAtEnd(body.entries(), 0, spec.returnType() != IR.TY.VOID);
+    }
+
+    private boolean canInline(IR.Expr call, boolean asValue) {
+        var name = call.op();
+        if (!this.inlinable.contains(name) || name.equals(this.caller)) {
+            return false;
+        }
+        if (this.declared.get(name) > this.declared.get(this.caller)) {
+            return false;
+        }
+        var spec = this.ir.opStore().get(name).alternatives().getFirst();
+        if (asValue && spec.returnType() == IR.TY.VOID) {
+            return false;
+        }
+        // no conversions on the way in
+        for (var idx = 0; idx < call.vars().size(); idx++) {
+            if (call.vars().get(idx).type() != spec.argTypes().get(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the entries, from `from` on, only return at their end. With
+    // `mustReturn`, every path has to.
+    static boolean returnsAtEnd(List<IR.Entry> entries, int from, boolean mustReturn) {
+        for (var idx = from; idx < entries.size(); idx++) {
+            var entry = entries.get(idx);
+            if (entry instanceof IR.Expr expr && expr.op().equals("$return")) {
+                return idx == entries.size() - 1;
+            }
+            if (!(entry instanceof IR.Scoped scoped) || !Inliner.returns(scoped.scope())) {
+                continue;
+            }
+            switch (scoped.kind()) {
+                case IF_BRANCH -> {
+                    var hasElse = idx + 1 < entries.size()
+                        && entries.get(idx + 1) instanceof IR.Scoped next
+                        && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH;
+                    if (!hasElse) {
+                        // the rest goes to a new else
+                        return Inliner.returnsAtEnd(scoped.scope().entries(), 0, true)
+                            && Inliner.returnsAtEnd(entries, idx + 1, mustReturn);
+                    }
+                    var elseScoped = (IR.Scoped) entries.get(idx + 1);
+                    return idx + 2 == entries.size()
+                        && Inliner.returnsAtEnd(scoped.scope().entries(), 0, mustReturn)
+                        && Inliner.returnsAtEnd(elseScoped.scope().entries(), 0, mustReturn);
+                }
+                case CASE_BRANCH -> {
+                    var hasDefault = false;
+                    while (
+                        idx < entries.size()
+                        && entries.get(idx) instanceof IR.Scoped next
+                        && next.kind() == IR.SCOPE_KIND.CASE_BRANCH
+                    ) {
+                        if (!Inliner.returnsAtEnd(next.scope().entries(), 0, mustReturn)) {
+                            return false;
+                        }
+                        hasDefault |= next.dependencyValue().isEmpty();
+                        idx++;
+                    }
+                    // the Noop closing the switch ends the body
+                    return idx + 1 == entries.size() && (hasDefault || !mustReturn);
+                }
+                // returning from a loop or an else that isn't at the end
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return !mustReturn;
+    }
+
+    static boolean returns(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            var returns = switch (entry) {
+                case IR.Expr expr -> expr.op().equals("$return");
+                case IR.Scoped scoped -> Inliner.returns(scoped.scope());
+                default -> false;
+            };
+            if (returns) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Call sites
+     */
+    private void inlineInto(IR.Scoped function) {
+        this.caller = function.scope().funcName();
+        this.nextIndex = Inliner.frameSize(function);
+        this.inlineScope(function.scope(), 1);
+    }
+
+    // what is left to evaluate of an entry, once its calls are inlined
+    private static final class Site {
+        // copies of the bodies, to put before the entry
+        final ArrayList<IR.Entry> before = new ArrayList<>();
+        // something impure is still evaluated in the entry
+        boolean effects = false;
+    }
+
+    private void inlineScope(IR.Scope scope, int depth) {
+        var entries = scope.entries();
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : entries) {
+            var site = new Site();
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.visit(v, site, scope, depth);
+                    if (scope.varMapping().containsKey(name)) {
+                        scope.varMapping().put(name, value);
+                    }
+                    out.addAll(site.before);
+                    out.add(new IR.NewVar(name, value, slot));
+                }
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<>(expr.vars());
+                    var from = expr.op().equals("$assign") ? 1 : 0;
+                    for (var idx = from; idx < vars.size(); idx++) {
+                        vars.set(idx, this.visit(vars.get(idx), site, scope, depth));
+                        // TranslatorJVM prints each argument as soon as it
+                        // is evaluated
+                        site.effects |= expr.op().equals("print");
+                    }
+                    var call = new IR.Expr(expr.op(), vars);
+                    out.addAll(site.before);
+                    if (this.canInline(call, false)) {
+                        // the value isn't used
+                        out.addAll(this.copy(call, null, scope, depth).before);
+                    } else {
+                        out.add(call);
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    var dependency = scoped.dependencyValue();
+                    switch (scoped.kind()) {
+                        case IF_BRANCH -> dependency = dependency.map(
+                            v -> this.visitValue(v, IR.TY.BOOL, site, scope, depth)
+                        );
+                        case FOR -> dependency = dependency.map(
+                            v -> this.visitValue(v, IR.TY.STRING, site, scope, depth)
+                        );
+                        // evaluated more than once
+                        default -> {}
+                    }
+                    this.inlineScope(scoped.scope(), depth + 1);
+                    out.addAll(site.before);
+                    out.add(new IR.Scoped(
+                        scoped.kind(),
+                        scoped.bornVars(),
+                        dependency,
+                        scoped.scope(),
+                        scoped.bornSlots()
+                    ));
+                }
+            }
+        }
+        entries.clear();
+        entries.addAll(out);
+    }
+
+    private IR.Var visit(IR.Var v, Site site, IR.Scope scope, int depth) {
+        var value = this.visitValue(v.val(), v.type(), site, scope, depth);
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value visitValue(
+        IR.Value value, IR.TY type, Site site, IR.Scope scope, int depth
+    ) {
+        if (!(value instanceof IR.Expr expr)) {
+            return value;
+        }
+        // arguments are moved along with the call
+        var effectsBefore = site.effects;
+        var vars = new ArrayList<IR.Var>();
+        for (var v : expr.vars()) {
+            vars.add(this.visit(v, site, scope, depth));
+        }
+        var call = new IR.Expr(expr.op(), vars);
+
+        IR.Value result = call;
+        var movable = !effectsBefore || this.purity.isPure(call);
+        if (movable && type != IR.TY.VOID && this.canInline(call, true)) {
+            var copy = this.copy(call, type, scope, depth);
+            site.before.addAll(copy.before);
+            result = copy.value;
+        }
+        site.effects = effectsBefore || !this.purity.isPure(result);
+        return result;
+    }
+
+    /*
+     * Copying
+     */
+
+    // what the call turns into
+    private record Copy(ArrayList<IR.Entry> before, IR.Value value) {}
+
+    // what a `$return` in the copy turns into
+    private record Exit(IR.Ref result, IR.TY type) {}
+
+    // `type` is null if the value is not used
+    private Copy copy(IR.Expr call, IR.TY type, IR.Scope scope, int depth) {
+        var function = this.functions.get(call.op());
+        var body = function.scope();
+        var offset = this.nextIndex;
+        // one more for the result
+        var reserved = offset + Inliner.frameSize(function);
+        this.nextIndex = reserved + 1;
+
+        // the body ends up in the scope of the call, before its entry
+        var before = new ArrayList<IR.Entry>();
+        var copier = new Copier(offset, reserved, depth);
+
+        for (var idx = 0; idx < call.vars().size(); idx++) {
+            var param = function.bornVars().get(idx);
+            var arg = call.vars().get(idx);
+            var slot = copier.slot(function.bornSlots().get(idx));
+            var name = copier.rename(param, slot);
+            var v = new IR.Var(arg.val(), arg.type(), arg.span(), false);
+            scope.varMapping().put(name, v);
+            before.add(new IR.NewVar(name, v, slot));
+        }
+
+        var entries = body.entries();
+        var last = entries.isEmpty() ? null : entries.getLast();
+        var single = last instanceof IR.Expr expr
+            && expr.op().equals("$return")
+            && Inliner.countReturns(body) == 1;
+
+        IR.Value value = null;
+        if (single) {
+            copier.copy(entries.subList(0, entries.size() - 1), body, scope, before, null, depth);
+            var returned = copier.rename(((IR.Expr) last).vars().getFirst());
+            if (type != null) {
+                value = returned.val();
+            } else {
+                copier.discard(returned, scope, before, depth);
+            }
+        } else if (type == null) {
+            copier.copy(entries, body, scope, before, new Exit(null, null), depth);
+        } else {
+            var slot = new IR.Slot(depth, reserved);
+            var name = IR.mangle("_result", this.nextScopeId++);
+            var result = new IR.Var(Inliner.zero(type), type, Inliner.returnSpan(body), true);
+            scope.varMapping().put(name, result);
+            before.add(new IR.NewVar(name, result, slot));
+            var ref = new IR.Ref(name, slot);
+            copier.copy(entries, body, scope, before, new Exit(ref, type), depth);
+            value = ref;
+        }
+
+        this.inlined++;
+        return new Copy(before, value);
+    }
+
+    // the copy of one body
+    private final class Copier {
+        // binding in the body -> its copy
+        private final HashMap<String, IR.Ref> renames = new HashMap<>();
+        private final int offset;
+        // slot index of a result, or of a returned value nobody reads
+        private final int reserved;
+        private final int depth;
+
+        Copier(int offset, int reserved, int depth) {
+            this.offset = offset;
+            this.reserved = reserved;
+            this.depth = depth;
+        }
+
+        IR.Slot slot(IR.Slot slot) {
+            return new IR.Slot(slot.depth() + this.depth - 1, slot.index() + this.offset);
+        }
+
+        // the scope id a name was mangled with, or a copied scope had ->
+        // a fresh one
+        private final HashMap<Integer, Integer> ids = new HashMap<>();
+
+        int id(int old) {
+            return this.ids.computeIfAbsent(old, _ -> Inliner.this.nextScopeId++);
+        }
+
+        // Names are unique, a body that already holds copies can declare
+        // the same name with different ids. Each old id gets its own new
+        // one, so copies stay unique.
+        String rename(String name, IR.Slot slot) {
+            var split = name.lastIndexOf('_');
+            var old = Integer.parseInt(name.substring(split + 1));
+            var unique = IR.mangle(name.substring(0, split), this.id(old));
+            this.renames.put(name, new IR.Ref(unique, slot));
+            return unique;
+        }
+
+        IR.Var rename(IR.Var v) {
+            var value = this.rename(v.val());
+            return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+        }
+
+        IR.Value rename(IR.Value value) {
+            return switch (value) {
+                case IR.Atom _, IR.Arg _ -> value;
+                // globals keep their name
+                case IR.Ref ref -> this.renames.getOrDefault(ref.ident(), ref);
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<IR.Var>();
+                    for (var v : expr.vars()) {
+                        vars.add(this.rename(v));
+                    }
+                    yield new IR.Expr(expr.op(), vars);
+                }
+            };
+        }
+
+        // evaluates a returned value nobody reads, if it has to be
+        void discard(
+            IR.Var returned,
+            IR.Scope target,
+            ArrayList<IR.Entry> out,
+            int depth
+        ) {
+            if (Inliner.this.purity.isPure(returned.val())) {
+                return;
+            }
+            if (
+                returned.val() instanceof IR.Expr expr
+                && Inliner.this.functions.containsKey(expr.op())
+            ) {
+                out.add(expr);
+                return;
+            }
+            var slot = new IR.Slot(depth, this.reserved);
+            var name = IR.mangle("_unused", Inliner.this.nextScopeId++);
+            var v = new IR.Var(returned.val(), returned.type(), returned.span(), false);
+            target.varMapping().put(name, v);
+            out.add(new IR.NewVar(name, v, slot));
+        }
+
+        // copies `entries` of `source` to `out`, the entries of `target`
+        void copy(
+            List<IR.Entry> entries,
+            IR.Scope source,
+            IR.Scope target,
+            ArrayList<IR.Entry> out,
+            Exit exit,
+            int depth
+        ) {
+            for (var idx = 0; idx < entries.size(); idx++) {
+                switch (entries.get(idx)) {
+                    case IR.Noop noop -> out.add(noop);
+                    case IR.NewVar(var name, var v, var slot) -> {
+                        var value = this.rename(v);
+                        var newSlot = this.slot(slot);
+                        var unique = this.rename(name, newSlot);
+                        if (source.varMapping().containsKey(name)) {
+                            target.varMapping().put(unique, value);
+                        }
+                        out.add(new IR.NewVar(unique, value, newSlot));
+                    }
+                    case IR.Expr expr when expr.op().equals("$return") -> {
+                        var returned = this.rename(expr.vars().getFirst());
+                        if (exit.result() == null) {
+                            this.discard(returned, target, out, depth);
+                        } else {
+                            var ref = new IR.Var(exit.result(), exit.type(), returned.span(), true);
+                            out.add(new IR.Expr(
+                                "$assign", new ArrayList<>(List.of(ref, returned))
+                            ));
+                        }
+                    }
+                    case IR.Expr expr -> out.add((IR.Expr) this.rename(expr));
+                    case IR.Scoped scoped -> {
+                        out.add(this.copy(scoped, target, exit, depth));
+                        var closes = scoped.kind() == IR.SCOPE_KIND.IF_BRANCH
+                            && Inliner.returns(scoped.scope())
+                            && !(
+                                idx + 1 < entries.size()
+                                && entries.get(idx + 1) instanceof IR.Scoped next
+                                && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH
+                            );
+                        if (closes) {
+                            // the then branch always returns, the rest of
+                            // the body is what happens otherwise
+                            var elseScope = this.scope(target, Inliner.this.nextScopeId++);
+                            this.copy(
+                                entries.subList(idx + 1, entries.size()),
+                                source,
+                                elseScope,
+                                elseScope.entries(),
+                                exit,
+                                depth + 1
+                            );
+                            out.add(new IR.Scoped(
+                                IR.SCOPE_KIND.ELSE_BRANCH,
+                                new ArrayList<>(),
+                                Optional.empty(),
+                                elseScope
+                            ));
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private IR.Scoped copy(IR.Scoped scoped, IR.Scope parent, Exit exit, int depth) {
+            var source = scoped.scope();
+            var scope = this.scope(parent, this.id(source.scopeId()));
+
+            var bornVars = new ArrayList<String>();
+            var bornSlots = new ArrayList<IR.Slot>();
+            for (var idx = 0; idx < scoped.bornVars().size(); idx++) {
+                var name = scoped.bornVars().get(idx);
+                var slot = this.slot(scoped.bornSlots().get(idx));
+                var unique = this.rename(name, slot);
+                scope.varMapping().put(unique, this.rename(source.varMapping().get(name)));
+                bornVars.add(unique);
+                bornSlots.add(slot);
+            }
+            var dependency = scoped.dependencyValue().map(this::rename);
+
+            this.copy(source.entries(), source, scope, scope.entries(), exit, depth + 1);
+            return new IR.Scoped(scoped.kind(), bornVars, dependency, scope, bornSlots);
+        }
+
+        private IR.Scope scope(IR.Scope parent, int scopeId) {
+            return new IR.Scope(
+                parent,
+                scopeId,
+                parent.funcName(),
+                new LinkedHashMap<>(),
+                new ArrayList<>()
+            );
+        }
+    }
+
+    /*
+     * Helpers
+     */
+    static IR.Atom zero(IR.TY type) {
+        return switch (type) {
+            case INT -> new IR.Atom(type, "0");
+            case FLOAT -> new IR.Atom(type, "0.0");
+            case BOOL -> new IR.Atom(type, "false");
+            case STRING -> new IR.Atom(type, "");
+            default -> throw new IllegalStateException("no value of type " + type);
+        };
+    }
+
+    static Pair<Integer, Integer> returnSpan(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            var span = switch (entry) {
+                case IR.Expr expr when expr.op().equals("$return") ->
+                    expr.vars().getFirst().span();
+                case IR.Scoped scoped -> Inliner.returnSpan(scoped.scope());
+                default -> null;
+            };
+            if (span != null) {
+                return span;
+            }
+        }
+        return null;
+    }
+
+    private static int countReturns(IR.Scope scope) {
+        var count = 0;
+        for (var entry : scope.entries()) {
+            count += switch (entry) {
+                case IR.Expr expr when expr.op().equals("$return") -> 1;
+                case IR.Scoped scoped -> Inliner.countReturns(scoped.scope());
+                default -> 0;
+            };
+        }
+        return count;
+    }
+
+    private static int size(IR.Scope scope) {
+        var size = 0;
+        for (var entry : scope.entries()) {
+            size += 1 + switch (entry) {
+                case IR.Noop _ -> 0;
+                case IR.NewVar newVar -> Inliner.size(newVar.v().val());
+                case IR.Expr expr -> Inliner.size(expr) - 1;
+                case IR.Scoped scoped -> Inliner.size(scoped.scope())
+                    + scoped.dependencyValue().map(Inliner::size).orElse(0);
+            };
+        }
+        return size;
+    }
+
+    private static int size(IR.Value value) {
+        if (!(value instanceof IR.Expr expr)) {
+            return 0;
+        }
+        var size = 1;
+        for (var v : expr.vars()) {
+            size += Inliner.size(v.val());
+        }
+        return size;
+    }
+
+    static int maxScopeId(IR.Scope scope) {
+        var max = scope.scopeId();
+        for (var entry : scope.entries()) {
+            if (entry instanceof IR.Scoped scoped) {
+                max = Math.max(max, Inliner.maxScopeId(scoped.scope()));
+            }
+        }
+        return max;
+    }
+
+    // first slot index no binding of the function uses
+    static int frameSize(IR.Scoped function) {
+        var size = 0;
+        for (var slot : function.bornSlots()) {
+            size = Math.max(size, slot.index() + 1);
+        }
+        for (var entry : function.scope().entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> size = Math.max(size, newVar.slot().index() + 1);
+                case IR.Scoped scoped -> size = Math.max(size, Inliner.frameSize(scoped));
+                default -> {}
+            }
+        }
+        return size;
+    }
+}
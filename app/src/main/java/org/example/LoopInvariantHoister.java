@@ -0,0 +1,252 @@
+package org.example;
+
+import java.util.*;
+
+// Loop-invariant code motion over the IR, in place.
+//
+// A value is invariant in a `while` or `for` loop if no binding it reads
+// changes while the loop runs: nothing in the body `$assign`s it, it isn't
+// declared in the body, and it isn't what the `for` iterates with. Globals
+// are `let`s, so they never change.
+//
+// Pure invariant expressions, and global loads, are evaluated once before
+// the loop into a `let`, and the loop reads that instead. A `let` in the
+// body bound to a pure invariant value is moved before the loop as a
+// whole. Being pure, they can be evaluated even if the loop doesn't run or
+// the branch they were in isn't taken.
+//
+// Loops are visited inner first, so what leaves an inner loop can keep
+// going out of the enclosing ones.
+public final class LoopInvariantHoister {
+    private final IR ir;
+    private final Purity purity;
+
+    private int nextScopeId;
+    private int nextIndex;
+    private int hoisted = 0;
+
+    public LoopInvariantHoister(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+        this.nextScopeId = Inliner.maxScopeId(ir.scope()) + 1;
+    }
+
+    // returns the number of values evaluated before their loop instead
+    public int hoist() {
+        for (var entry : this.ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                this.nextIndex = Inliner.frameSize(scoped);
+                this.visitScope(scoped.scope(), 1);
+            }
+        }
+        return this.hoisted;
+    }
+
+    private void visitScope(IR.Scope scope, int depth) {
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : scope.entries()) {
+            if (!(entry instanceof IR.Scoped scoped)) {
+                out.add(entry);
+                continue;
+            }
+            this.visitScope(scoped.scope(), depth + 1);
+            if (scoped.kind() == IR.SCOPE_KIND.WHILE || scoped.kind() == IR.SCOPE_KIND.FOR) {
+                var loop = new Loop(scoped, scope, depth);
+                out.addAll(loop.before);
+                out.add(loop.scoped);
+            } else {
+                out.add(scoped);
+            }
+        }
+        scope.entries().clear();
+        scope.entries().addAll(out);
+    }
+
+    // one loop, and what is evaluated before it
+    private final class Loop {
+        final ArrayList<IR.Entry> before = new ArrayList<>();
+        final IR.Scoped scoped;
+        // bindings that can change from one iteration to the next
+        private final HashSet<String> variant = new HashSet<>();
+        // invariant value -> the `let` it is evaluated to
+        private final HashMap<String, IR.Ref> temps = new HashMap<>();
+        // the scope the loop is in
+        private final IR.Scope outer;
+        private final int depth;
+
+        Loop(IR.Scoped loop, IR.Scope outer, int depth) {
+            this.outer = outer;
+            this.depth = depth;
+            this.variant.addAll(loop.bornVars());
+            LoopInvariantHoister.collectChanged(loop.scope(), this.variant);
+
+            var dependency = loop.dependencyValue();
+            if (loop.kind() == IR.SCOPE_KIND.WHILE) {
+                // the condition is evaluated every iteration
+                dependency = dependency.map(v -> this.hoistValue(v, IR.TY.BOOL, null));
+            }
+            this.visit(loop.scope());
+            this.scoped = new IR.Scoped(
+                loop.kind(),
+                loop.bornVars(),
+                dependency,
+                loop.scope(),
+                loop.bornSlots()
+            );
+        }
+
+        private void visit(IR.Scope scope) {
+            var out = new ArrayList<IR.Entry>();
+            for (var entry : scope.entries()) {
+                switch (entry) {
+                    case IR.Noop _ -> out.add(entry);
+                    case IR.NewVar(var name, var v, var slot) -> {
+                        if (!v.mutable() && v.type() != IR.TY.VOID && this.isInvariant(v.val())) {
+                            // the whole binding leaves the loop
+                            var mapped = scope.varMapping().remove(name);
+                            if (mapped != null) {
+                                this.outer.varMapping().put(name, mapped);
+                            }
+                            this.before.add(entry);
+                            this.variant.remove(name);
+                            LoopInvariantHoister.this.hoisted++;
+                            continue;
+                        }
+                        var value = this.hoist(v);
+                        if (scope.varMapping().containsKey(name)) {
+                            scope.varMapping().put(name, value);
+                        }
+                        out.add(new IR.NewVar(name, value, slot));
+                    }
+                    case IR.Expr expr -> {
+                        var vars = new ArrayList<>(expr.vars());
+                        // the target of an assignment isn't read
+                        var from = expr.op().equals("$assign") ? 1 : 0;
+                        for (var idx = from; idx < vars.size(); idx++) {
+                            vars.set(idx, this.hoist(vars.get(idx)));
+                        }
+                        out.add(new IR.Expr(expr.op(), vars));
+                    }
+                    case IR.Scoped scoped -> {
+                        var dependency = scoped.dependencyValue();
+                        switch (scoped.kind()) {
+                            case IF_BRANCH, WHILE -> dependency = dependency.map(
+                                v -> this.hoistValue(v, IR.TY.BOOL, null)
+                            );
+                            case FOR -> dependency = dependency.map(
+                                v -> v instanceof IR.Expr range && range.op().equals("$iterRange")
+                                    ? v
+                                    : this.hoistValue(v, IR.TY.STRING, null)
+                            );
+                            // patterns are matched against the value in place
+                            default -> {}
+                        }
+                        this.visit(scoped.scope());
+                        out.add(new IR.Scoped(
+                            scoped.kind(),
+                            scoped.bornVars(),
+                            dependency,
+                            scoped.scope(),
+                            scoped.bornSlots()
+                        ));
+                    }
+                }
+            }
+            scope.entries().clear();
+            scope.entries().addAll(out);
+        }
+
+        private IR.Var hoist(IR.Var v) {
+            var value = this.hoistValue(v.val(), v.type(), v.span());
+            return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+        }
+
+        // dependency values carry no type or span of their own
+        private IR.Value hoistValue(
+            IR.Value value, IR.TY type, Pair<Integer, Integer> span
+        ) {
+            return switch (value) {
+                case IR.Atom _, IR.Arg _ -> value;
+                case IR.Ref ref -> ref.slot().isGlobal() ? this.temp(ref, type, span) : ref;
+                case IR.Expr expr -> {
+                    if (type != IR.TY.VOID && this.isInvariant(expr)) {
+                        yield this.temp(expr, type, span);
+                    }
+                    var vars = new ArrayList<IR.Var>();
+                    for (var v : expr.vars()) {
+                        vars.add(this.hoist(v));
+                    }
+                    yield new IR.Expr(expr.op(), vars);
+                }
+            };
+        }
+
+        private IR.Ref temp(IR.Value value, IR.TY type, Pair<Integer, Integer> span) {
+            var key = LoopInvariantHoister.key(value);
+            var temp = this.temps.get(key);
+            if (temp != null) {
+                return temp;
+            }
+            var slot = new IR.Slot(this.depth, LoopInvariantHoister.this.nextIndex++);
+            var name = IR.mangle("_inv", LoopInvariantHoister.this.nextScopeId++);
+            var v = new IR.Var(value, type, span, false);
+            this.outer.varMapping().put(name, v);
+            this.before.add(new IR.NewVar(name, v, slot));
+            temp = new IR.Ref(name, slot);
+            this.temps.put(key, temp);
+            LoopInvariantHoister.this.hoisted++;
+            return temp;
+        }
+
+        private boolean isInvariant(IR.Value value) {
+            return switch (value) {
+                case IR.Atom _, IR.Arg _ -> true;
+                case IR.Ref ref -> !this.variant.contains(ref.ident());
+                case IR.Expr expr -> {
+                    for (var v : expr.vars()) {
+                        if (!this.isInvariant(v.val())) {
+                            yield false;
+                        }
+                    }
+                    yield LoopInvariantHoister.this.purity.isPure(expr);
+                }
+            };
+        }
+    }
+
+    /*
+     * Helpers
+     */
+
+    // bindings assigned or declared in the scope
+    private static void collectChanged(IR.Scope scope, Set<String> changed) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> changed.add(newVar.name());
+                case IR.Expr expr when expr.op().equals("$assign") ->
+                    changed.add(((IR.Ref) expr.vars().get(0).val()).ident());
+                case IR.Scoped scoped -> {
+                    changed.addAll(scoped.bornVars());
+                    LoopInvariantHoister.collectChanged(scoped.scope(), changed);
+                }
+                default -> {}
+            }
+        }
+    }
+
+    // equal for values that are evaluated the same way
+    private static String key(IR.Value value) {
+        return switch (value) {
+            case IR.Atom atom -> "atom " + atom.type() + " " + atom.val().length() + ":" + atom.val();
+            case IR.Ref ref -> "ref " + ref.ident();
+            case IR.Arg arg -> "arg " + arg.type();
+            case IR.Expr expr -> {
+                var key = new StringBuilder(expr.op()).append("(");
+                for (var v : expr.vars()) {
+                    key.append(LoopInvariantHoister.key(v.val())).append(", ");
+                }
+                yield key.append(")").toString();
+            }
+        };
+    }
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import java.util.*;
+
+// Which functions the backends wrap in a memo table, with `--memoise`.
+//
+// A recursive function that is effect-free (see Purity) gives the same
+// value for the same arguments, so the value of a call can be remembered
+// and handed out again instead of running the body. Naive recursion like
+// `fib(n - 1) + fib(n - 2)` goes from exponential to linear in calls.
+//
+// The table is an open-addressing map per function, with a slot for each
+// argument and one for the value. A key is looked for in PROBES slots in a
+// row, starting from its hash. The first free one on the way takes the
+// value of a miss, and if none is free the first slot is evicted, so the
+// table never grows past its capacity. The body calls the wrapper, not
+// itself, so the recursive calls are looked up too.
+//
+// Only functions taking ints, floats, bools and strings are wrapped, and
+// they have to return something.
+public final class Memoiser {
+    // slots looked at for a key before evicting
+    public static final int PROBES = 4;
+
+    private Memoiser() {}
+
+    // the functions to wrap, in declaration order
+    public static LinkedHashSet<String> select(IR ir) {
+        var purity = new Purity(ir);
+        var selected = new LinkedHashSet<String>();
+        for (var entry : ir.scope().entries()) {
+            if (!(entry instanceof IR.Scoped scoped) || scoped.kind() != IR.SCOPE_KIND.FUN) {
+                continue;
+            }
+            var name = scoped.scope().funcName();
+            var operator = ir.opStore().get(name);
+            if (name.equals("main") || operator == null) {
+                continue;
+            }
+            var spec = operator.alternatives().getFirst();
+            if (
+                !spec.argTypes().isEmpty()
+                && spec.argTypes().stream().allMatch(Memoiser::isKey)
+                && spec.returnType() != IR.TY.VOID
+                && spec.returnType() != IR.TY.ERROR
+                && purity.isRecursive(name)
+                && purity.isEffectFree(name)
+            ) {
+                selected.add(name);
+            }
+        }
+        return selected;
+    }
+
+    private static boolean isKey(IR.TY type) {
+        return switch (type) {
+            case INT, FLOAT, BOOL, STRING -> true;
+            case VOID, ERROR -> false;
+        };
+    }
+}
@@ -0,0 +1,283 @@
+package org.example;
+
+import java.util.*;
+
+// Overload dispatch tables for IR operators.
+//
+// Every signature is packed into a single int: low 4 bits hold the arity,
+// then 3 bits per argument type (TY.ordinal() + 1, so an unused slot never
+// looks like INT). Resolving an application is then one hash probe by name
+// and one probe in a small open-addressing table, no lists are built.
+//
+// Built-ins live in the shared, frozen BUILTINS registry. Each compilation
+// gets its own overlay() for user functions, so the defaults are never
+// rebuilt or mutated.
+//
+// Signatures with more arguments than fit into a key are kept aside and
+// matched the old way, by comparing argument lists.
+//
+// A view() freezes what is registered so far. Names registered later stay
+// invisible to it, just as a function declared further down the file is
+// not yet known at the point the view was taken.
+public final class OperatorRegistry {
+    static final int ARITY_BITS = 4;
+    static final int TY_BITS = 3;
+    static final int MAX_PACKED_ARITY = (Integer.SIZE - 1 - ARITY_BITS) / TY_BITS;
+    public static final int UNPACKABLE = -1;
+
+    private static final IR.TY[] TYPES = IR.TY.values();
+
+    public static final OperatorRegistry BUILTINS = OperatorRegistry.frozen(
+        IR.defaultOperatorMap()
+    );
+
+    private final OperatorRegistry parent;
+    private final HashMap<String, Table> tables;
+    // only names registered before this point are visible
+    private final int horizon;
+    private int registered = 0;
+    private boolean frozen = false;
+
+    private OperatorRegistry(OperatorRegistry parent) {
+        this(parent, new HashMap<>(), Integer.MAX_VALUE);
+    }
+
+    private OperatorRegistry(
+        OperatorRegistry parent,
+        HashMap<String, Table> tables,
+        int horizon
+    ) {
+        this.parent = parent;
+        this.tables = tables;
+        this.horizon = horizon;
+    }
+
+    private static OperatorRegistry frozen(Map<String, IR.Operator> ops) {
+        var registry = new OperatorRegistry(null);
+        for (var entry : ops.entrySet()) {
+            registry.register(entry.getKey(), entry.getValue());
+        }
+        registry.frozen = true;
+        return registry;
+    }
+
+    // per-compilation registry, sees every built-in
+    public static OperatorRegistry overlay() {
+        return new OperatorRegistry(BUILTINS);
+    }
+
+    // frozen registry of a finished IR, knows every function of its opStore
+    public static OperatorRegistry of(Map<String, IR.Operator> opStore) {
+        var registry = OperatorRegistry.overlay();
+        for (var entry : opStore.entrySet()) {
+            if (!BUILTINS.contains(entry.getKey())) {
+                registry.register(entry.getKey(), entry.getValue());
+            }
+        }
+        registry.frozen = true;
+        return registry;
+    }
+
+    // frozen snapshot of everything registered so far
+    //
+    // Shares the tables, so it is only safe to read from other threads
+    // once nothing is registered here anymore.
+    public OperatorRegistry view() {
+        var view = new OperatorRegistry(
+            this.parent, this.tables, this.registered
+        );
+        view.frozen = true;
+        return view;
+    }
+
+    /*
+     * Keys
+     */
+    public static int signatureKey(List<IR.TY> argTypes) {
+        if (argTypes.size() > MAX_PACKED_ARITY) {
+            return UNPACKABLE;
+        }
+        int key = argTypes.size();
+        int shift = ARITY_BITS;
+        for (var ty : argTypes) {
+            key |= (ty.ordinal() + 1) << shift;
+            shift += TY_BITS;
+        }
+        return key;
+    }
+
+    public static int argumentKey(List<IR.Var> args) {
+        if (args.size() > MAX_PACKED_ARITY) {
+            return UNPACKABLE;
+        }
+        int key = args.size();
+        int shift = ARITY_BITS;
+        for (var v : args) {
+            key |= (v.type().ordinal() + 1) << shift;
+            shift += TY_BITS;
+        }
+        return key;
+    }
+
+    /*
+     * Registration
+     */
+    public void register(String name, IR.Operator op) {
+        if (this.frozen) {
+            throw new IllegalStateException(
+                "can't register <" + name + ">, registry is frozen"
+            );
+        }
+        var table = this.tables.get(name);
+        if (table == null) {
+            table = new Table(this.registered++);
+            this.tables.put(name, table);
+        }
+        for (var spec : op.alternatives()) {
+            table.put(spec);
+        }
+    }
+
+    /*
+     * Lookup
+     */
+    public boolean contains(String name) {
+        return this.table(name) != null;
+    }
+
+    // returns null if no alternative matches the arguments
+    public IR.TY resolve(String name, List<IR.Var> args) {
+        var table = this.table(name);
+        if (table == null) {
+            return null;
+        }
+        var key = OperatorRegistry.argumentKey(args);
+        if (key == UNPACKABLE) {
+            return table.resolveWide(args.stream().map(IR.Var::type).toList());
+        }
+        return table.get(key);
+    }
+
+    // same as resolve(), for when only the argument types are known
+    public IR.TY resolveTypes(String name, List<IR.TY> argTypes) {
+        var table = this.table(name);
+        if (table == null) {
+            return null;
+        }
+        var key = OperatorRegistry.signatureKey(argTypes);
+        if (key == UNPACKABLE) {
+            return table.resolveWide(argTypes);
+        }
+        return table.get(key);
+    }
+
+    private Table table(String name) {
+        var registry = this;
+        while (registry != null) {
+            var table = registry.tables.get(name);
+            if (table != null && table.order < registry.horizon) {
+                return table;
+            }
+            registry = registry.parent;
+        }
+        return null;
+    }
+
+    // open addressing, linear probing, keys are never negative
+    private static final class Table {
+        private static final int EMPTY = -1;
+
+        // registration order of the name
+        final int order;
+        private int[] keys = Table.emptyKeys(8);
+        private byte[] results = new byte[8];
+        private int size = 0;
+        private final ArrayList<IR.OpSpec> wide = new ArrayList<>();
+
+        Table(int order) {
+            this.order = order;
+        }
+
+        private static int[] emptyKeys(int capacity) {
+            var keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+
+        private static int slot(int key, int mask) {
+            // spread the type bits, arity alone clusters badly
+            return (key ^ (key >>> 7) ^ (key >>> 16)) & mask;
+        }
+
+        void put(IR.OpSpec spec) {
+            var key = OperatorRegistry.signatureKey(spec.argTypes());
+            if (key == UNPACKABLE) {
+                this.wide.add(spec);
+                return;
+            }
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.grow();
+            }
+            this.insert(key, (byte) spec.returnType().ordinal());
+        }
+
+        private void insert(int key, byte result) {
+            var mask = this.keys.length - 1;
+            var idx = Table.slot(key, mask);
+            while (this.keys[idx] != EMPTY) {
+                if (this.keys[idx] == key) {
+                    // first alternative wins, same as the linear scan did
+                    return;
+                }
+                idx = (idx + 1) & mask;
+            }
+            this.keys[idx] = key;
+            this.results[idx] = result;
+            this.size++;
+        }
+
+        private void grow() {
+            var oldKeys = this.keys;
+            var oldResults = this.results;
+            this.keys = Table.emptyKeys(oldKeys.length * 2);
+            this.results = new byte[oldKeys.length * 2];
+            this.size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    this.insert(oldKeys[i], oldResults[i]);
+                }
+            }
+        }
+
+        IR.TY get(int key) {
+            var mask = this.keys.length - 1;
+            var idx = Table.slot(key, mask);
+            while (true) {
+                var found = this.keys[idx];
+                if (found == key) {
+                    return TYPES[this.results[idx]];
+                }
+                if (found == EMPTY) {
+                    return null;
+                }
+                idx = (idx + 1) & mask;
+            }
+        }
+
+        IR.TY resolveWide(List<IR.TY> argTypes) {
+            outer:
+            for (var spec : this.wide) {
+                if (spec.argTypes().size() != argTypes.size()) {
+                    continue;
+                }
+                for (int i = 0; i < argTypes.size(); i++) {
+                    if (spec.argTypes().get(i) != argTypes.get(i)) {
+                        continue outer;
+                    }
+                }
+                return spec.returnType();
+            }
+            return null;
+        }
+    }
+}
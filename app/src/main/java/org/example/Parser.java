@@ -849,13 +849,14 @@ public class Parser {
         var checkpoint = new Checkpoint(this.numToken, Optional.empty(), 0, 0);
         this.checkpoints.add(checkpoint);
 
-        log.debug("checkpoints to " + checkpoint);
+        log.debug("checkpoints to {}", checkpoint);
     }
 
     <T> T commit(T object) {
         this.checkpoints.remove(this.checkpointDepth());
 
-        log.debug("[success] " + object);
+        // formatted only when enabled, printing a deep expression recurses
+        log.debug("[success] {}", object);
 
         return object;
     }
@@ -0,0 +1,114 @@
+package org.example;
+
+import java.util.stream.Collectors;
+
+/**
+ * A pretty printer for the CFG.
+ * Values are printed as %id, parameters as %name and globals as @name.
+ */
+public class PrinterCFG {
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * Main entry point.
+     * @param cfg The CFG to print.
+     * @return One listing per function, blocks in reverse postorder.
+     */
+    public String print(CFG cfg) {
+        sb.setLength(0); // Clear buffer for a new print job
+
+        for (var global : cfg.globals().entrySet()) {
+            sb.append("global @").append(global.getKey())
+              .append(": ").append(global.getValue()).append("\n");
+        }
+        for (var function : cfg.functions().values()) {
+            sb.append("\n");
+            printFunction(function);
+        }
+        return sb.toString();
+    }
+
+    private void printFunction(CFG.Function function) {
+        String params = function.params().stream()
+                .map(p -> valueToString(p) + ": " + p.type())
+                .collect(Collectors.joining(", "));
+        sb.append(String.format("fun %s(%s) -> %s {\n",
+            function.name(), params, function.returnType()));
+
+        for (var block : function.blocks()) {
+            printBlock(block);
+        }
+        sb.append("}\n");
+    }
+
+    private void printBlock(CFG.Block block) {
+        sb.append(block);
+        if (!block.preds.isEmpty()) {
+            String preds = block.preds.stream()
+                    .map(CFG.Block::toString)
+                    .collect(Collectors.joining(", "));
+            sb.append(":  ; preds ").append(preds);
+        } else {
+            sb.append(":");
+        }
+        sb.append("\n");
+
+        for (var phi : block.phis) {
+            StringBuilder operands = new StringBuilder();
+            for (int i = 0; i < phi.operands.size(); i++) {
+                if (i > 0) operands.append(", ");
+                operands.append("[").append(block.preds.get(i)).append(": ")
+                        .append(valueToString(phi.operands.get(i))).append("]");
+            }
+            sb.append(indent(1)).append(String.format("%s: %s = phi %s  ; %s\n",
+                phi, phi.type, operands, phi.variable));
+        }
+
+        for (var instr : block.instrs) {
+            String args = instr.args.stream()
+                    .map(this::valueToString)
+                    .collect(Collectors.joining(", "));
+            sb.append(indent(1));
+            if (instr.type != IR.TY.VOID) {
+                sb.append(instr).append(": ").append(instr.type).append(" = ");
+            }
+            sb.append(instr.op).append("(").append(args).append(")\n");
+        }
+
+        sb.append(indent(1)).append(terminatorToString(block.terminator)).append("\n");
+    }
+
+    private String terminatorToString(CFG.Terminator terminator) {
+        return switch (terminator) {
+            case null -> "<unterminated>";
+            case CFG.Jump(var target) -> "jump " + target;
+            case CFG.Branch(var cond, var ifTrue, var ifFalse) ->
+                String.format("branch %s, %s, %s", valueToString(cond), ifTrue, ifFalse);
+            case CFG.Return(var value) ->
+                value.map(v -> "return " + valueToString(v)).orElse("return");
+        };
+    }
+
+    /**
+     * Creates a compact, single-line string representation of a Value.
+     */
+    private String valueToString(CFG.Value value) {
+        return switch (value) {
+            case CFG.Const c when c.type() == IR.TY.STRING -> "\"" + c.val() + "\"";
+            case CFG.Const c -> c.val();
+            case CFG.Undef u -> "undef " + u.type();
+            case CFG.Param p -> "%" + p.name();
+            case CFG.Global g -> "@" + g.name();
+            case CFG.Instr instr -> instr.toString();
+            case CFG.Phi phi -> phi.toString();
+        };
+    }
+
+    /**
+     * Helper for indentation.
+     */
+    private String indent(int level) {
+        return "  ".repeat(level);
+    }
+}
@@ -1,5 +1,6 @@
 package org.example;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -194,21 +195,36 @@ public class PrinterIR {
 
     /**
      * Creates a compact, single-line string representation of a Value.
+     * Generated code can nest expressions thousands deep, so instead of
+     * recursing the parts still to print wait on a stack: values, and text
+     * to copy as is.
      */
     private String valueToString(IR.Value value) {
         if (value == null) return "null";
 
-        return switch (value) {
-            case IR.Arg arg -> String.format("Arg(%s)", arg.type());
-            case IR.Ref ref -> String.format("Ref(%s)", ref.ident());
-            case IR.Atom atom -> String.format("Atom(%s, \"%s\")", atom.type(), atom.val());
-            case IR.Expr expr -> {
-                String args = expr.vars().stream()
-                    .map(var -> valueToString(var.val()))
-                    .collect(Collectors.joining(", "));
-                yield String.format("Expr(op: '%s', args: [%s])", expr.op(), args);
+        var out = new StringBuilder();
+        var work = new ArrayDeque<Object>();
+        work.push(value);
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case String text -> out.append(text);
+                case IR.Arg arg -> out.append(String.format("Arg(%s)", arg.type()));
+                case IR.Ref ref -> out.append(String.format("Ref(%s)", ref.ident()));
+                case IR.Atom atom -> out.append(String.format("Atom(%s, \"%s\")", atom.type(), atom.val()));
+                case IR.Expr expr -> {
+                    out.append(String.format("Expr(op: '%s', args: [", expr.op()));
+                    work.push("])");
+                    for (int i = expr.vars().size() - 1; i >= 0; i--) {
+                        work.push(expr.vars().get(i).val());
+                        if (i > 0) {
+                            work.push(", ");
+                        }
+                    }
+                }
+                default -> throw new IllegalStateException("not a value");
             }
-        };
+        }
+        return out.toString();
     }
 
     /**
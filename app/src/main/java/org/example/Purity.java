@@ -0,0 +1,258 @@
+package org.example;
+
+import java.util.*;
+
+// Which IR expressions can be dropped, duplicated or reordered without
+// anyone noticing.
+//
+// An expression is pure if evaluating it has no effect besides producing
+// its value: no output, no input, no exception, and it terminates. Built-in
+// operators are pure, except for
+//   - print, input and throw
+//   - `/` unless the divisor is a non-zero literal, the postfix machine
+//     stops on division by zero
+//   - `**` unless it can't divide by zero or leave the reals, which is
+//     when the base is a positive literal or the exponent a non-negative
+//     whole literal
+//
+// A user function is pure if its body only uses pure operators, assigns
+// no globals and surely terminates: no `while` loops, no ranges with a
+// step that isn't positive, no recursion.
+//
+// Effects alone are a weaker question, asked of whole functions: a user
+// function is effect-free if neither it nor anything it calls prints,
+// reads input, throws or assigns a global. It may loop or recurse, but two
+// calls with the same arguments that both return give the same value.
+public final class Purity {
+    private final HashMap<String, IR.Scope> bodies = new HashMap<>();
+    // user function -> is it pure, filled on demand
+    private final HashMap<String, Boolean> functions = new HashMap<>();
+    // functions whose purity is being worked out, a call to one of these
+    // is recursion
+    private final HashSet<String> visiting = new HashSet<>();
+    // user function -> the user functions its body calls
+    private final HashMap<String, Set<String>> callees = new HashMap<>();
+
+    public Purity(IR ir) {
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                this.bodies.put(scoped.scope().funcName(), scoped.scope());
+            }
+        }
+    }
+
+    public boolean isPure(IR.Value value) {
+        return switch (value) {
+            case IR.Atom _, IR.Ref _, IR.Arg _ -> true;
+            case IR.Expr expr -> this.isPure(expr);
+        };
+    }
+
+    public boolean isPure(IR.Expr expr) {
+        for (var arg : expr.vars()) {
+            if (!this.isPure(arg.val())) {
+                return false;
+            }
+        }
+        return this.isPureOp(expr.op(), expr.vars());
+    }
+
+    // Pure, or only `/` and `**` keep it from being pure. Evaluating it
+    // again gives the same value, and it can only fail where the first
+    // evaluation would have.
+    public boolean isRepeatable(IR.Expr expr) {
+        for (var arg : expr.vars()) {
+            if (arg.val() instanceof IR.Expr e && !this.isRepeatable(e)) {
+                return false;
+            }
+        }
+        return switch (expr.op()) {
+            case "/", "**" -> true;
+            default -> this.isPureOp(expr.op(), expr.vars());
+        };
+    }
+
+    public boolean isPureFunction(String name) {
+        var known = this.functions.get(name);
+        if (known != null) {
+            return known;
+        }
+        if (this.visiting.contains(name)) {
+            // recursion, might not terminate
+            return false;
+        }
+        var body = this.bodies.get(name);
+        if (body == null) {
+            return false;
+        }
+
+        this.visiting.add(name);
+        var pure = this.isPureScope(body);
+        this.visiting.remove(name);
+        this.functions.put(name, pure);
+        return pure;
+    }
+
+    public boolean isEffectFree(String name) {
+        var reached = this.reachable(name);
+        reached.add(name);
+        for (var function : reached) {
+            var body = this.bodies.get(function);
+            if (body == null || Purity.hasEffects(body)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // can a call to the function lead back to it
+    public boolean isRecursive(String name) {
+        return this.reachable(name).contains(name);
+    }
+
+    // user functions a call to the function can lead to
+    private HashSet<String> reachable(String name) {
+        var reached = new HashSet<String>();
+        var pending = new ArrayDeque<String>();
+        pending.add(name);
+        while (!pending.isEmpty()) {
+            for (var callee : this.callees(pending.poll())) {
+                if (reached.add(callee)) {
+                    pending.add(callee);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private Set<String> callees(String name) {
+        var known = this.callees.get(name);
+        if (known != null) {
+            return known;
+        }
+        var found = new HashSet<String>();
+        var body = this.bodies.get(name);
+        if (body != null) {
+            for (var expr : Purity.exprs(body)) {
+                if (
+                    !expr.op().startsWith("$")
+                    && !OperatorRegistry.BUILTINS.contains(expr.op())
+                ) {
+                    found.add(expr.op());
+                }
+            }
+        }
+        this.callees.put(name, found);
+        return found;
+    }
+
+    private static boolean hasEffects(IR.Scope body) {
+        for (var expr : Purity.exprs(body)) {
+            var effect = switch (expr.op()) {
+                case "print", "input", "throw" -> true;
+                case "$assign" -> ((IR.Ref) expr.vars().get(0).val()).slot().isGlobal();
+                default -> false;
+            };
+            if (effect) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // every expression evaluated in the scope, nested ones included
+    private static ArrayList<IR.Expr> exprs(IR.Scope scope) {
+        var exprs = new ArrayList<IR.Expr>();
+        Purity.collectExprs(scope, exprs);
+        return exprs;
+    }
+
+    private static void collectExprs(IR.Scope scope, List<IR.Expr> exprs) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> Purity.collectExprs(newVar.v().val(), exprs);
+                case IR.Expr expr -> Purity.collectExprs(expr, exprs);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> Purity.collectExprs(v, exprs));
+                    Purity.collectExprs(scoped.scope(), exprs);
+                }
+            }
+        }
+    }
+
+    private static void collectExprs(IR.Value value, List<IR.Expr> exprs) {
+        if (value instanceof IR.Expr expr) {
+            exprs.add(expr);
+            for (var v : expr.vars()) {
+                Purity.collectExprs(v.val(), exprs);
+            }
+        }
+    }
+
+    private boolean isPureOp(String op, List<IR.Var> args) {
+        return switch (op) {
+            case "print", "input", "throw", "$assign", "$return" -> false;
+            case "/" -> args.get(1).val() instanceof IR.Atom divisor
+                && Double.parseDouble(divisor.val()) != 0;
+            case "**" -> {
+                var base = args.get(0).val() instanceof IR.Atom atom
+                    && Double.parseDouble(atom.val()) > 0;
+                var exponent = args.get(1).val() instanceof IR.Atom atom
+                    && Double.parseDouble(atom.val()) >= 0
+                    && Double.parseDouble(atom.val()) % 1 == 0;
+                yield base || exponent;
+            }
+            case "$caseIs", "$caseOf", "$caseIn", "$iterRange" -> true;
+            default -> OperatorRegistry.BUILTINS.contains(op)
+                || this.isPureFunction(op);
+        };
+    }
+
+    private boolean isPureScope(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            var pure = switch (entry) {
+                case IR.Noop _ -> true;
+                case IR.NewVar newVar -> this.isPure(newVar.v().val());
+                case IR.Expr expr -> switch (expr.op()) {
+                    // effects on locals don't escape the call
+                    case "$return" -> this.isPure(expr.vars().getFirst().val());
+                    case "$assign" -> {
+                        var target = (IR.Ref) expr.vars().get(0).val();
+                        yield !target.slot().isGlobal()
+                            && this.isPure(expr.vars().get(1).val());
+                    }
+                    // the builder of a local, see StringBuilderRewriter
+                    case "$sbOpen", "$sbClose" -> true;
+                    case "$sbAppend", "$sbPrepend" -> this.isPure(expr.vars().get(1).val());
+                    default -> this.isPure(expr);
+                };
+                case IR.Scoped scoped -> this.terminates(scoped)
+                    && scoped.dependencyValue().map(this::isPure).orElse(true)
+                    && this.isPureScope(scoped.scope());
+            };
+            if (!pure) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean terminates(IR.Scoped scoped) {
+        return switch (scoped.kind()) {
+            case WHILE -> false;
+            case FOR -> {
+                if (
+                    scoped.dependencyValue().get() instanceof IR.Expr range
+                    && range.op().equals("$iterRange")
+                ) {
+                    yield range.vars().get(2).val() instanceof IR.Atom step
+                        && Integer.parseInt(step.val()) > 0;
+                }
+                // strings are finite
+                yield true;
+            }
+            default -> true;
+        };
+    }
+}
@@ -0,0 +1,205 @@
+package org.example;
+
+import java.util.*;
+
+// Balances long chains of INT `+` and `*`, in place.
+//
+// `a + b + c + ... + z` parses into a tree as deep as the chain is long,
+// generated code easily makes it thousands deep. The passes after this
+// one recurse once per level, and the backends need an operand stack as
+// deep as the tree for chains leaning right. INT addition and
+// multiplication are associative, the JVM wraps around and the postfix
+// machine doesn't overflow, so a chain of more than LONG_CHAIN operands is
+// rebuilt as a balanced tree over the same operands, depth and stack
+// use drop to the logarithm of its length. The operands stay in their
+// order and are still evaluated left to right, calls among them keep
+// theirs.
+//
+// Shorter chains are left alone, they don't get deep enough to matter.
+// The walk itself keeps its own stack, it runs before anything has made
+// the tree shallower.
+public final class Reassociator {
+    // operands a chain needs to be balanced
+    static final int LONG_CHAIN = 16;
+
+    private final IR ir;
+    private int balanced = 0;
+
+    public Reassociator(IR ir) {
+        this.ir = ir;
+    }
+
+    // returns the number of chains balanced
+    public int reassociate() {
+        this.visit(this.ir.scope());
+        return this.balanced;
+    }
+
+    private void visit(IR.Scope scope) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            switch (entries.get(idx)) {
+                case IR.Noop _ -> {}
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.rebuild(v);
+                    if (value != v) {
+                        entries.set(idx, new IR.NewVar(name, value, slot));
+                        if (scope.varMapping().containsKey(name)) {
+                            scope.varMapping().put(name, value);
+                        }
+                    }
+                }
+                case IR.Expr expr -> {
+                    var vars = new ArrayList<IR.Var>();
+                    var changed = false;
+                    for (var v : expr.vars()) {
+                        var value = this.rebuild(v);
+                        changed |= value != v;
+                        vars.add(value);
+                    }
+                    if (changed) {
+                        entries.set(idx, new IR.Expr(expr.op(), vars));
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    this.visit(scoped.scope());
+                    var dependency = scoped.dependencyValue();
+                    // patterns keep the matched value as is, the backends rely on it
+                    var condition = scoped.kind() == IR.SCOPE_KIND.IF_BRANCH
+                        || scoped.kind() == IR.SCOPE_KIND.WHILE
+                        || scoped.kind() == IR.SCOPE_KIND.FOR;
+                    if (condition && dependency.isPresent() && dependency.get() instanceof IR.Expr expr) {
+                        // the type doesn't matter, only INT operators are balanced
+                        var v = new IR.Var(expr, IR.TY.VOID, null, false);
+                        var value = this.rebuild(v);
+                        if (value != v) {
+                            entries.set(idx, new IR.Scoped(
+                                scoped.kind(), scoped.bornVars(), Optional.of(value.val()),
+                                scoped.scope(), scoped.bornSlots()
+                            ));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Rebuilding
+     */
+
+    // a value being rebuilt, from its operands
+    private static final class Frame {
+        final IR.Var v;
+        // the Expr's arguments, or the operands of a long chain
+        final List<IR.Var> operands;
+        final boolean chain;
+        final ArrayList<IR.Var> rebuilt = new ArrayList<>();
+
+        Frame(IR.Var v, List<IR.Var> operands, boolean chain) {
+            this.v = v;
+            this.operands = operands;
+            this.chain = chain;
+        }
+    }
+
+    // the same Var if nothing in it changed
+    private IR.Var rebuild(IR.Var root) {
+        if (!(root.val() instanceof IR.Expr)) {
+            return root;
+        }
+        var frames = new ArrayDeque<Frame>();
+        frames.push(this.frame(root));
+        while (true) {
+            var top = frames.peek();
+            if (top.rebuilt.size() < top.operands.size()) {
+                var next = top.operands.get(top.rebuilt.size());
+                if (next.val() instanceof IR.Expr) {
+                    frames.push(this.frame(next));
+                } else {
+                    top.rebuilt.add(next);
+                }
+                continue;
+            }
+            frames.pop();
+            var value = this.finish(top);
+            if (frames.isEmpty()) {
+                return value;
+            }
+            frames.peek().rebuilt.add(value);
+        }
+    }
+
+    private Frame frame(IR.Var v) {
+        var expr = (IR.Expr) v.val();
+        if (Reassociator.isChainLink(v, expr.op())) {
+            var operands = Reassociator.operands(v);
+            if (operands.size() > LONG_CHAIN) {
+                return new Frame(v, operands, true);
+            }
+        }
+        return new Frame(v, expr.vars(), false);
+    }
+
+    private IR.Var finish(Frame frame) {
+        var expr = (IR.Expr) frame.v.val();
+        if (frame.chain) {
+            this.balanced++;
+            return Reassociator.balance(expr.op(), frame.rebuilt, 0, frame.rebuilt.size(), frame.v);
+        }
+        for (var idx = 0; idx < frame.operands.size(); idx++) {
+            if (frame.rebuilt.get(idx) != frame.operands.get(idx)) {
+                return new IR.Var(
+                    new IR.Expr(expr.op(), frame.rebuilt), frame.v.type(), frame.v.span(), frame.v.mutable()
+                );
+            }
+        }
+        return frame.v;
+    }
+
+    // the operands in [from, to) as a tree of `op`, halves on each side
+    private static IR.Var balance(String op, List<IR.Var> operands, int from, int to, IR.Var chain) {
+        if (to - from == 1) {
+            return operands.get(from);
+        }
+        var mid = (from + to) >>> 1;
+        var vars = new ArrayList<IR.Var>(List.of(
+            Reassociator.balance(op, operands, from, mid, chain),
+            Reassociator.balance(op, operands, mid, to, chain)
+        ));
+        return new IR.Var(new IR.Expr(op, vars), IR.TY.INT, chain.span(), false);
+    }
+
+    /*
+     * Chains
+     */
+
+    // an INT `+` or `*` of two INTs, part of a chain of `op`
+    private static boolean isChainLink(IR.Var v, String op) {
+        return v.type() == IR.TY.INT
+            && v.val() instanceof IR.Expr expr
+            && expr.op().equals(op)
+            && (op.equals("+") || op.equals("*"))
+            && expr.vars().size() == 2
+            && expr.vars().stream().allMatch(arg -> arg.type() == IR.TY.INT);
+    }
+
+    // the operands of the chain, left to right
+    private static ArrayList<IR.Var> operands(IR.Var chain) {
+        var op = ((IR.Expr) chain.val()).op();
+        var operands = new ArrayList<IR.Var>();
+        var pending = new ArrayDeque<IR.Var>();
+        pending.push(chain);
+        while (!pending.isEmpty()) {
+            var v = pending.pop();
+            if (Reassociator.isChainLink(v, op)) {
+                var vars = ((IR.Expr) v.val()).vars();
+                pending.push(vars.get(1));
+                pending.push(vars.get(0));
+            } else {
+                operands.add(v);
+            }
+        }
+        return operands;
+    }
+}
@@ -0,0 +1,469 @@
+package org.example;
+
+import java.util.*;
+
+// Strength reduction over the IR, in place.
+//
+// Powers with a literal exponent become multiplications, still FLOAT:
+//   - `x ** 0` is 1.0, when `x` is pure
+//   - `x ** 1` is `x * 1.0`
+//   - `x ** 2` is `x * 1.0 * x`, when `x` is pure, CommonSubexpression
+//     Eliminator evaluates it once
+// Longer chains round more than once and could stop agreeing with pow()
+// in the last bit, so they are left alone. `x ** 0.5` is for the backend,
+// TranslatorJVM calls Math.sqrt for it.
+//
+// In a loop, `i * k` with a literal `k` is replaced by a variable that
+// keeps up with `i`, when `i` is an induction variable:
+//   - a `for` over a range, the variable starts at `from * k - step * k`
+//     and the body first adds `step * k`
+//   - a variable declared before a `while`, which the loop only changes
+//     by `i = i + c` or `i = i - c` with a literal `c`, the variable
+//     starts at `i * k` and `c * k` is added after every such assignment
+// INT arithmetic wraps around, so this holds even when it overflows.
+// Only literals that fit an INT are used.
+public final class StrengthReducer {
+    private final IR ir;
+    private final Purity purity;
+
+    private int nextScopeId;
+    private int nextIndex;
+    private int reduced = 0;
+
+    public StrengthReducer(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+        this.nextScopeId = Inliner.maxScopeId(ir.scope()) + 1;
+    }
+
+    // returns the number of operations replaced by cheaper ones
+    public int reduce() {
+        for (var entry : this.ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                this.nextIndex = Inliner.frameSize(scoped);
+                this.visitScope(scoped.scope(), 1);
+            }
+        }
+        return this.reduced;
+    }
+
+    private void visitScope(IR.Scope scope, int depth) {
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.powers(v);
+                    if (scope.varMapping().containsKey(name)) {
+                        scope.varMapping().put(name, value);
+                    }
+                    out.add(new IR.NewVar(name, value, slot));
+                }
+                case IR.Expr expr -> out.add(this.powers(expr));
+                case IR.Scoped scoped -> {
+                    var dependency = scoped.dependencyValue().map(this::powers);
+                    this.visitScope(scoped.scope(), depth + 1);
+                    var reduced = new IR.Scoped(
+                        scoped.kind(),
+                        scoped.bornVars(),
+                        dependency,
+                        scoped.scope(),
+                        scoped.bornSlots()
+                    );
+                    switch (scoped.kind()) {
+                        case WHILE, FOR -> reduced = this.inductions(reduced, scope, depth, out);
+                        default -> {}
+                    }
+                    out.add(reduced);
+                }
+            }
+        }
+        scope.entries().clear();
+        scope.entries().addAll(out);
+    }
+
+    /*
+     * Powers
+     */
+    private IR.Expr powers(IR.Expr expr) {
+        return (IR.Expr) this.powers((IR.Value) expr);
+    }
+
+    private IR.Var powers(IR.Var v) {
+        var value = this.powers(v.val());
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value powers(IR.Value value) {
+        if (!(value instanceof IR.Expr expr)) {
+            return value;
+        }
+        var vars = new ArrayList<IR.Var>();
+        for (var v : expr.vars()) {
+            vars.add(this.powers(v));
+        }
+        if (!expr.op().equals("**") || !(vars.get(1).val() instanceof IR.Atom exponent)) {
+            return new IR.Expr(expr.op(), vars);
+        }
+
+        var base = vars.get(0);
+        var one = new IR.Var(new IR.Atom(IR.TY.FLOAT, "1.0"), IR.TY.FLOAT, base.span(), false);
+        var pure = this.purity.isPure(base.val());
+        var power = Double.parseDouble(exponent.val());
+        if (power == 0 && pure) {
+            this.reduced++;
+            return one.val();
+        }
+        if (power == 1 || power == 2 && pure) {
+            this.reduced++;
+            var widened = new IR.Var(
+                new IR.Expr("*", new ArrayList<>(List.of(base, one))),
+                IR.TY.FLOAT,
+                base.span(),
+                false
+            );
+            if (power == 1) {
+                return widened.val();
+            }
+            return new IR.Expr("*", new ArrayList<>(List.of(widened, base)));
+        }
+        return new IR.Expr(expr.op(), vars);
+    }
+
+    /*
+     * Induction variables
+     */
+
+    // `i * k`, `i` going up by `step` every iteration
+    private record Product(String variable, int factor) {}
+
+    private IR.Scoped inductions(
+        IR.Scoped loop, IR.Scope scope, int depth, ArrayList<IR.Entry> before
+    ) {
+        var steps = new HashMap<String, Integer>();
+        // where the variable of a `for` starts
+        var from = 0;
+        if (loop.kind() == IR.SCOPE_KIND.FOR) {
+            if (
+                !(loop.dependencyValue().get() instanceof IR.Expr range)
+                || !range.op().equals("$iterRange")
+            ) {
+                return loop;
+            }
+            from = Integer.parseInt(((IR.Atom) range.vars().get(0).val()).val());
+            var step = Integer.parseInt(((IR.Atom) range.vars().get(2).val()).val());
+            steps.put(loop.bornVars().getFirst(), step);
+        } else {
+            StrengthReducer.collectSteps(loop.scope(), steps);
+            var declared = new HashSet<String>();
+            StrengthReducer.collectDeclared(loop.scope(), declared);
+            steps.keySet().removeAll(declared);
+        }
+        // whatever else changes them, the variable of a `for` is only
+        // changed by the loop
+        var changed = new HashSet<String>();
+        StrengthReducer.collectAssigned(loop.scope(), changed, loop.kind() == IR.SCOPE_KIND.FOR);
+        steps.keySet().removeAll(changed);
+        if (steps.isEmpty()) {
+            return loop;
+        }
+
+        var products = new LinkedHashMap<Product, IR.Ref>();
+        var slots = new HashMap<String, IR.Slot>();
+        StrengthReducer.collectProducts(loop.scope(), steps.keySet(), products, slots);
+        loop.dependencyValue().ifPresent(
+            v -> StrengthReducer.collectProducts(v, steps.keySet(), products, slots)
+        );
+
+        var updates = new ArrayList<IR.Entry>();
+        for (var product : new ArrayList<>(products.keySet())) {
+            var step = steps.get(product.variable());
+            IR.Value start;
+            int delta;
+            try {
+                delta = Math.multiplyExact(step, product.factor());
+                if (loop.kind() == IR.SCOPE_KIND.FOR) {
+                    var value = Math.subtractExact(Math.multiplyExact(from, product.factor()), delta);
+                    start = new IR.Atom(IR.TY.INT, Integer.toString(value));
+                } else {
+                    start = StrengthReducer.product(
+                        new IR.Ref(product.variable(), slots.get(product.variable())),
+                        product.factor()
+                    );
+                }
+            } catch (ArithmeticException e) {
+                products.remove(product);
+                continue;
+            }
+
+            var slot = new IR.Slot(depth, this.nextIndex++);
+            var name = IR.mangle("_iv", this.nextScopeId++);
+            var v = new IR.Var(start, IR.TY.INT, null, true);
+            scope.varMapping().put(name, v);
+            before.add(new IR.NewVar(name, v, slot));
+            var ref = new IR.Ref(name, slot);
+            products.put(product, ref);
+            if (loop.kind() == IR.SCOPE_KIND.FOR) {
+                updates.add(StrengthReducer.add(ref, delta));
+            }
+        }
+        if (products.isEmpty()) {
+            return loop;
+        }
+
+        this.replaceProducts(loop.scope(), products, steps);
+        loop.scope().entries().addAll(0, updates);
+        return new IR.Scoped(
+            loop.kind(),
+            loop.bornVars(),
+            loop.dependencyValue().map(v -> this.replaceProducts(v, products)),
+            loop.scope(),
+            loop.bornSlots()
+        );
+    }
+
+    // puts the updates of the variables after the assignments they follow
+    private void replaceProducts(
+        IR.Scope scope, Map<Product, IR.Ref> products, Map<String, Integer> steps
+    ) {
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar(var name, var v, var slot) -> {
+                    var value = this.replaceProducts(v, products);
+                    if (scope.varMapping().containsKey(name)) {
+                        scope.varMapping().put(name, value);
+                    }
+                    out.add(new IR.NewVar(name, value, slot));
+                }
+                case IR.Expr expr -> {
+                    out.add((IR.Expr) this.replaceProducts(expr, products));
+                    var step = StrengthReducer.step(expr);
+                    if (step == null || !steps.containsKey(step.variable())) {
+                        continue;
+                    }
+                    for (var product : products.entrySet()) {
+                        if (product.getKey().variable().equals(step.variable())) {
+                            // checked when the variable was made
+                            var delta = step.factor() * product.getKey().factor();
+                            out.add(StrengthReducer.add(product.getValue(), delta));
+                        }
+                    }
+                }
+                case IR.Scoped scoped -> {
+                    this.replaceProducts(scoped.scope(), products, steps);
+                    out.add(new IR.Scoped(
+                        scoped.kind(),
+                        scoped.bornVars(),
+                        scoped.dependencyValue().map(v -> this.replaceProducts(v, products)),
+                        scoped.scope(),
+                        scoped.bornSlots()
+                    ));
+                }
+            }
+        }
+        scope.entries().clear();
+        scope.entries().addAll(out);
+    }
+
+    private IR.Var replaceProducts(IR.Var v, Map<Product, IR.Ref> products) {
+        var value = this.replaceProducts(v.val(), products);
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value replaceProducts(IR.Value value, Map<Product, IR.Ref> products) {
+        if (!(value instanceof IR.Expr expr)) {
+            return value;
+        }
+        var product = StrengthReducer.product(expr);
+        if (product != null && products.containsKey(product)) {
+            this.reduced++;
+            return products.get(product);
+        }
+        var vars = new ArrayList<IR.Var>();
+        for (var v : expr.vars()) {
+            vars.add(this.replaceProducts(v, products));
+        }
+        return new IR.Expr(expr.op(), vars);
+    }
+
+    /*
+     * Helpers
+     */
+
+    // `i * k` or `k * i`, INT, with a literal `k`
+    private static Product product(IR.Expr expr) {
+        if (!expr.op().equals("*") || expr.vars().size() != 2) {
+            return null;
+        }
+        var left = expr.vars().get(0);
+        var right = expr.vars().get(1);
+        if (left.type() != IR.TY.INT || right.type() != IR.TY.INT) {
+            return null;
+        }
+        if (left.val() instanceof IR.Ref ref && right.val() instanceof IR.Atom atom) {
+            return new Product(ref.ident(), Integer.parseInt(atom.val()));
+        }
+        if (left.val() instanceof IR.Atom atom && right.val() instanceof IR.Ref ref) {
+            return new Product(ref.ident(), Integer.parseInt(atom.val()));
+        }
+        return null;
+    }
+
+    private static IR.Expr product(IR.Ref ref, int factor) {
+        return new IR.Expr("*", new ArrayList<>(List.of(
+            new IR.Var(ref, IR.TY.INT, null, true),
+            new IR.Var(new IR.Atom(IR.TY.INT, Integer.toString(factor)), IR.TY.INT, null, false)
+        )));
+    }
+
+    // `i = i + c`, `i = c + i` or `i = i - c` as the variable and the
+    // signed step, null for anything else
+    private static Product step(IR.Expr expr) {
+        if (!expr.op().equals("$assign")) {
+            return null;
+        }
+        var target = ((IR.Ref) expr.vars().get(0).val()).ident();
+        if (
+            expr.vars().get(0).type() != IR.TY.INT
+            || !(expr.vars().get(1).val() instanceof IR.Expr value)
+            || value.vars().size() != 2
+        ) {
+            return null;
+        }
+        var left = value.vars().get(0).val();
+        var right = value.vars().get(1).val();
+        var sign = switch (value.op()) {
+            case "+" -> 1;
+            case "-" -> -1;
+            default -> 0;
+        };
+        if (left instanceof IR.Ref ref && ref.ident().equals(target) && right instanceof IR.Atom atom) {
+            try {
+                var step = Math.multiplyExact(sign, Integer.parseInt(atom.val()));
+                return sign == 0 ? null : new Product(target, step);
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+        if (right instanceof IR.Ref ref && ref.ident().equals(target) && left instanceof IR.Atom atom) {
+            return sign == 1 ? new Product(target, Integer.parseInt(atom.val())) : null;
+        }
+        return null;
+    }
+
+    private static IR.Expr add(IR.Ref ref, int delta) {
+        var v = new IR.Var(ref, IR.TY.INT, null, true);
+        var sum = new IR.Expr("+", new ArrayList<>(List.of(
+            v,
+            new IR.Var(new IR.Atom(IR.TY.INT, Integer.toString(delta)), IR.TY.INT, null, false)
+        )));
+        return new IR.Expr("$assign", new ArrayList<>(List.of(
+            v, new IR.Var(sum, IR.TY.INT, null, false)
+        )));
+    }
+
+    // variable -> the step all its induction assignments agree on
+    private static void collectSteps(IR.Scope scope, Map<String, Integer> steps) {
+        var conflicting = new HashSet<String>();
+        StrengthReducer.collectSteps(scope, steps, conflicting);
+        steps.keySet().removeAll(conflicting);
+    }
+
+    private static void collectSteps(
+        IR.Scope scope, Map<String, Integer> steps, Set<String> conflicting
+    ) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr -> {
+                    var step = StrengthReducer.step(expr);
+                    if (step == null) {
+                        continue;
+                    }
+                    var known = steps.putIfAbsent(step.variable(), step.factor());
+                    if (known != null && known != step.factor()) {
+                        conflicting.add(step.variable());
+                    }
+                }
+                case IR.Scoped scoped -> StrengthReducer.collectSteps(scoped.scope(), steps, conflicting);
+                default -> {}
+            }
+        }
+    }
+
+    // with `steps`, induction assignments count too
+    private static void collectAssigned(IR.Scope scope, Set<String> changed, boolean steps) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr when expr.op().equals("$assign") -> {
+                    if (steps || StrengthReducer.step(expr) == null) {
+                        changed.add(((IR.Ref) expr.vars().get(0).val()).ident());
+                    }
+                }
+                case IR.Scoped scoped -> StrengthReducer.collectAssigned(scoped.scope(), changed, steps);
+                default -> {}
+            }
+        }
+    }
+
+    private static void collectDeclared(IR.Scope scope, Set<String> declared) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> declared.add(newVar.name());
+                case IR.Scoped scoped -> {
+                    declared.addAll(scoped.bornVars());
+                    StrengthReducer.collectDeclared(scoped.scope(), declared);
+                }
+                default -> {}
+            }
+        }
+    }
+
+    private static void collectProducts(
+        IR.Scope scope,
+        Set<String> variables,
+        Map<Product, IR.Ref> products,
+        Map<String, IR.Slot> slots
+    ) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.NewVar newVar -> StrengthReducer.collectProducts(
+                    newVar.v().val(), variables, products, slots
+                );
+                case IR.Expr expr -> StrengthReducer.collectProducts(expr, variables, products, slots);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(
+                        v -> StrengthReducer.collectProducts(v, variables, products, slots)
+                    );
+                    StrengthReducer.collectProducts(scoped.scope(), variables, products, slots);
+                }
+                case IR.Noop _ -> {}
+            }
+        }
+    }
+
+    private static void collectProducts(
+        IR.Value value,
+        Set<String> variables,
+        Map<Product, IR.Ref> products,
+        Map<String, IR.Slot> slots
+    ) {
+        if (!(value instanceof IR.Expr expr)) {
+            return;
+        }
+        var product = StrengthReducer.product(expr);
+        if (product != null && variables.contains(product.variable())) {
+            products.put(product, null);
+            for (var v : expr.vars()) {
+                if (v.val() instanceof IR.Ref ref) {
+                    slots.put(ref.ident(), ref.slot());
+                }
+            }
+            return;
+        }
+        for (var v : expr.vars()) {
+            StrengthReducer.collectProducts(v.val(), variables, products, slots);
+        }
+    }
+}
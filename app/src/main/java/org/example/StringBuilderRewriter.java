@@ -0,0 +1,266 @@
+package org.example;
+
+import java.util.*;
+
+// Rewrites strings built up in loops to go through a builder, in place.
+//
+// `acc = acc + piece` in a loop copies all of `acc` every time around, so
+// building a string of n pieces takes time quadratic in its length. A STRING
+// local a `while` or `for` loop only ever accumulates into, appending with
+// `acc = acc + piece` (or `acc + a + b`, concatenation is associative) or
+// prepending with `acc = piece + acc`, and doesn't read otherwise, gets a
+// hidden builder for the length of the loop:
+//   - `$sbOpen(acc, prepends)` before the loop starts the builder with
+//     the value of `acc`
+//   - `$sbAppend(acc, piece)` or `$sbPrepend(acc, piece)` stand for the
+//     accumulations in the loop
+//   - `$sbClose(acc, prepends)` after the loop puts the built string back
+//     into `acc`
+// The loop condition and the iterated value don't read `acc` either, and
+// `acc` is declared outside of the loop. A loop left with `$return` skips
+// the close, but nothing reads `acc` after it.
+//
+// Only the backends and the CFG builder know these operators, so this
+// goes after every pass that rewrites function bodies.
+public final class StringBuilderRewriter {
+    private final IR ir;
+    private int rewritten = 0;
+
+    public StringBuilderRewriter(IR ir) {
+        this.ir = ir;
+    }
+
+    // returns the number of accumulators moved to a builder
+    public int rewrite() {
+        for (var entry : this.ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.kind() == IR.SCOPE_KIND.FUN) {
+                var locals = new HashSet<String>();
+                StringBuilderRewriter.collectStrings(scoped.scope(), locals);
+                this.walk(scoped.scope(), locals);
+            }
+        }
+        return this.rewritten;
+    }
+
+    // how a loop uses one of the locals
+    private static final class Use {
+        // the accumulations, null once it's used some other way
+        ArrayList<IR.Expr> accumulations = new ArrayList<>();
+        boolean prepends;
+    }
+
+    private void walk(IR.Scope scope, Set<String> locals) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            if (!(entries.get(idx) instanceof IR.Scoped scoped)) {
+                continue;
+            }
+            var loop = scoped.kind() == IR.SCOPE_KIND.WHILE || scoped.kind() == IR.SCOPE_KIND.FOR;
+            if (loop) {
+                var accumulators = this.accumulators(scoped, locals);
+                for (var acc : accumulators.entrySet()) {
+                    var use = acc.getValue();
+                    var target = use.accumulations.getFirst().vars().get(0);
+                    entries.add(idx++, StringBuilderRewriter.builderOp("$sbOpen", target, use.prepends));
+                    entries.add(idx + 1, StringBuilderRewriter.builderOp("$sbClose", target, use.prepends));
+                    StringBuilderRewriter.replace(scoped.scope(), use);
+                    this.rewritten++;
+                }
+                // the closes go after the loop
+                this.walk(scoped.scope(), locals);
+                idx += accumulators.size();
+            } else {
+                this.walk(scoped.scope(), locals);
+            }
+        }
+    }
+
+    // the locals the loop only accumulates into, in the order they're met
+    private LinkedHashMap<String, Use> accumulators(IR.Scoped loop, Set<String> locals) {
+        var uses = new LinkedHashMap<String, Use>();
+        var declared = new HashSet<String>();
+        StringBuilderRewriter.collectStrings(loop.scope(), declared);
+        for (var name : declared) {
+            StringBuilderRewriter.useOtherwise(uses, name);
+        }
+        loop.dependencyValue().ifPresent(v -> StringBuilderRewriter.readOtherwise(uses, v));
+        StringBuilderRewriter.scan(loop.scope(), locals, uses);
+
+        uses.values().removeIf(use -> use.accumulations == null);
+        return uses;
+    }
+
+    private static void scan(IR.Scope scope, Set<String> locals, HashMap<String, Use> uses) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> StringBuilderRewriter.readOtherwise(uses, newVar.v().val());
+                case IR.Expr expr when expr.op().equals("$assign") -> {
+                    var target = (IR.Ref) expr.vars().get(0).val();
+                    var value = expr.vars().get(1);
+                    var piece = StringBuilderRewriter.piece(target, value);
+                    if (piece == null || !locals.contains(target.ident())) {
+                        StringBuilderRewriter.useOtherwise(uses, target.ident());
+                        StringBuilderRewriter.readOtherwise(uses, value.val());
+                        continue;
+                    }
+                    StringBuilderRewriter.readOtherwise(uses, piece.val());
+                    var use = uses.computeIfAbsent(target.ident(), _ -> new Use());
+                    if (use.accumulations == null) {
+                        continue;
+                    }
+                    var prepends = StringBuilderRewriter.isRef(((IR.Expr) value.val()).vars().get(1).val(), target);
+                    if (!use.accumulations.isEmpty() && use.prepends != prepends) {
+                        // both ends, a builder grows one
+                        use.accumulations = null;
+                        continue;
+                    }
+                    use.prepends = prepends;
+                    use.accumulations.add(expr);
+                }
+                case IR.Expr expr -> StringBuilderRewriter.readOtherwise(uses, expr);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> StringBuilderRewriter.readOtherwise(uses, v));
+                    StringBuilderRewriter.scan(scoped.scope(), locals, uses);
+                }
+            }
+        }
+    }
+
+    // the piece `acc = acc + piece` or `acc = piece + acc` adds, null if
+    // the value is anything else or the piece reads `acc` too
+    private static IR.Var piece(IR.Ref target, IR.Var value) {
+        if (
+            value.type() != IR.TY.STRING
+            || !(value.val() instanceof IR.Expr plus)
+            || !plus.op().equals("+")
+            || plus.vars().size() != 2
+        ) {
+            return null;
+        }
+        var left = plus.vars().get(0);
+        var right = plus.vars().get(1);
+        if (left.type() != IR.TY.STRING || right.type() != IR.TY.STRING) {
+            return null;
+        }
+        IR.Var piece;
+        if (StringBuilderRewriter.isRef(right.val(), target)) {
+            piece = left;
+        } else {
+            // `acc + a + b` is `(acc + a) + b`, the piece is `a + b`
+            var rest = StringBuilderRewriter.afterTarget(left, target);
+            if (rest == null) {
+                return null;
+            }
+            piece = rest.isEmpty()
+                ? right
+                : new IR.Var(
+                    new IR.Expr("+", new ArrayList<>(List.of(rest.get(), right))),
+                    IR.TY.STRING, value.span(), false
+                );
+        }
+        var reads = new HashSet<String>();
+        StringBuilderRewriter.collectReads(piece.val(), reads);
+        return reads.contains(target.ident()) ? null : piece;
+    }
+
+    // what a chain of concatenations adds after `acc` at its left end,
+    // empty if it's `acc` alone, null if it doesn't start with `acc`
+    private static Optional<IR.Var> afterTarget(IR.Var v, IR.Ref target) {
+        if (StringBuilderRewriter.isRef(v.val(), target)) {
+            return Optional.empty();
+        }
+        if (
+            !(v.val() instanceof IR.Expr plus)
+            || !plus.op().equals("+")
+            || plus.vars().size() != 2
+            || plus.vars().stream().anyMatch(arg -> arg.type() != IR.TY.STRING)
+        ) {
+            return null;
+        }
+        var rest = StringBuilderRewriter.afterTarget(plus.vars().get(0), target);
+        if (rest == null) {
+            return null;
+        }
+        var right = plus.vars().get(1);
+        return Optional.of(rest.isEmpty()
+            ? right
+            : new IR.Var(
+                new IR.Expr("+", new ArrayList<>(List.of(rest.get(), right))),
+                IR.TY.STRING, v.span(), false
+            ));
+    }
+
+    private static boolean isRef(IR.Value value, IR.Ref target) {
+        return value instanceof IR.Ref ref && ref.ident().equals(target.ident());
+    }
+
+    private static void readOtherwise(HashMap<String, Use> uses, IR.Value value) {
+        var reads = new HashSet<String>();
+        StringBuilderRewriter.collectReads(value, reads);
+        for (var name : reads) {
+            StringBuilderRewriter.useOtherwise(uses, name);
+        }
+    }
+
+    private static void useOtherwise(HashMap<String, Use> uses, String name) {
+        uses.computeIfAbsent(name, _ -> new Use()).accumulations = null;
+    }
+
+    /*
+     * Rewriting
+     */
+
+    private static void replace(IR.Scope scope, Use use) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            switch (entries.get(idx)) {
+                case IR.Expr expr when use.accumulations.contains(expr) -> {
+                    var target = expr.vars().get(0);
+                    var piece = StringBuilderRewriter.piece((IR.Ref) target.val(), expr.vars().get(1));
+                    entries.set(idx, new IR.Expr(
+                        use.prepends ? "$sbPrepend" : "$sbAppend",
+                        new ArrayList<>(List.of(target, piece))
+                    ));
+                }
+                case IR.Scoped scoped -> StringBuilderRewriter.replace(scoped.scope(), use);
+                default -> {}
+            }
+        }
+    }
+
+    private static IR.Expr builderOp(String op, IR.Var target, boolean prepends) {
+        return new IR.Expr(op, new ArrayList<>(List.of(
+            target,
+            new IR.Var(new IR.Atom(IR.TY.BOOL, String.valueOf(prepends)), IR.TY.BOOL, null, false)
+        )));
+    }
+
+    /*
+     * Helpers
+     */
+
+    // mutable STRING locals declared anywhere in the scope
+    private static void collectStrings(IR.Scope scope, Set<String> names) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.NewVar newVar when newVar.v().type() == IR.TY.STRING && newVar.v().mutable() ->
+                    names.add(newVar.name());
+                case IR.Scoped scoped -> StringBuilderRewriter.collectStrings(scoped.scope(), names);
+                default -> {}
+            }
+        }
+    }
+
+    private static void collectReads(IR.Value value, Set<String> idents) {
+        switch (value) {
+            case IR.Ref ref -> idents.add(ref.ident());
+            case IR.Expr expr -> {
+                for (var v : expr.vars()) {
+                    StringBuilderRewriter.collectReads(v.val(), idents);
+                }
+            }
+            case IR.Atom _, IR.Arg _ -> {}
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import java.util.*;
+
+// Scoped symbol table used while type checking.
+//
+// Instead of probing every enclosing Scope's varMapping on each lookup,
+// visible bindings live in one flat map. Declaring a name in an inner
+// scope shadows the outer binding, leaving the scope restores it. A lookup
+// is a single hash probe no matter how deep the reference is nested.
+//
+// Every binding gets its (depth, index) coordinate once, on declaration:
+// depth 0 is the global scope, 1 is a function body and so on. Indexes are
+// unique per function frame (or among globals), so backends can keep
+// locals in plain arrays.
+final class SymbolTable {
+    record Binding(
+        String name,
+        // name the binding has in the IR, unique across the program
+        String unique,
+        IR.Var v,
+        IR.Slot slot,
+        // outer binding with the same name, restored on exitScope()
+        Binding shadowed
+    ) {}
+
+    private final HashMap<String, Binding> visible = new HashMap<>();
+    // names declared by each open scope, innermost last
+    private final ArrayList<ArrayList<String>> open = new ArrayList<>();
+
+    private int nextGlobal = 0;
+    private int nextLocal = 0;
+
+    SymbolTable() {
+        // global scope is always open
+        this.enterScope();
+    }
+
+    // copy of the globals declared so far, so a function body can be
+    // checked on its own while this table keeps going
+    SymbolTable fork() {
+        assert this.depth() == 0 : "fork() inside of a scope";
+        var copy = new SymbolTable();
+        copy.visible.putAll(this.visible);
+        copy.open.getFirst().addAll(this.open.getFirst());
+        copy.nextGlobal = this.nextGlobal;
+        return copy;
+    }
+
+    int depth() {
+        return this.open.size() - 1;
+    }
+
+    void enterScope() {
+        this.open.add(new ArrayList<>());
+    }
+
+    // function frames start from slot 0
+    void enterFunction() {
+        this.nextLocal = 0;
+        this.enterScope();
+    }
+
+    void exitScope() {
+        var names = this.open.removeLast();
+        for (var name : names.reversed()) {
+            var shadowed = this.visible.get(name).shadowed();
+            if (shadowed == null) {
+                this.visible.remove(name);
+            } else {
+                this.visible.put(name, shadowed);
+            }
+        }
+    }
+
+    Binding declare(String name, String unique, IR.Var v) {
+        var depth = this.depth();
+        var slot = depth == 0
+            ? new IR.Slot(0, this.nextGlobal++)
+            : new IR.Slot(depth, this.nextLocal++);
+
+        var binding = new Binding(
+            name, unique, v, slot, this.visible.get(name)
+        );
+        this.visible.put(name, binding);
+        this.open.getLast().add(name);
+        return binding;
+    }
+
+    // null if nothing with this name is visible
+    Binding lookup(String name) {
+        return this.visible.get(name);
+    }
+}
@@ -0,0 +1,450 @@
+package org.example;
+
+import java.util.*;
+
+// Self tail calls turned into loops, over the IR, in place.
+//
+// A function that returns a call to itself is rewritten to
+//   var n_w = n;              a mutable copy of every parameter
+//   var _loop_w = true;
+//   var _result_w = zero;
+//   while _loop_w {
+//       _loop_w = false;
+//       the body, reading the copies instead of the parameters
+//   }
+//   return _result_w;
+// where `return f(x, y)` assigns the arguments to the copies, all of them
+// evaluated before any is assigned, and sets `_loop_w` again. Any other
+// `return e` becomes `_result_w = e`. The IR has no jumps, so the body has
+// to return only at its end, as the Inliner wants it, and an `if` without
+// `else` that always returns is closed the same way.
+//
+// With accumulators, linear recursion like `return n * f(n - 1)` becomes a
+// tail call too, for INT `+` and `*`, which stay associative and
+// commutative when they overflow. The operand is folded into `_acc_w`,
+// which starts at the identity of the operator, before going around again,
+// and every other `return e` becomes `_result_w = _acc_w op e`. An operand
+// after the call is evaluated before it, so it has to be pure.
+public final class TailCallEliminator {
+    private final IR ir;
+    private final Purity purity;
+    private final boolean accumulate;
+
+    private int nextScopeId;
+    private int eliminated = 0;
+
+    // the function being rewritten
+    private String name;
+    private IR.OpSpec spec;
+    private int nextIndex;
+    // operator folded into the accumulator, null without one
+    private String op;
+    // parameter -> its copy
+    private final HashMap<String, IR.Ref> copies = new HashMap<>();
+    private final ArrayList<IR.Ref> params = new ArrayList<>();
+    private IR.Ref loop;
+    private IR.Ref result;
+    private IR.Ref acc;
+
+    public TailCallEliminator(IR ir, boolean accumulate) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+        this.accumulate = accumulate;
+        this.nextScopeId = Inliner.maxScopeId(ir.scope()) + 1;
+    }
+
+    // returns the number of functions turned into loops
+    public int eliminate() {
+        for (var entry : this.ir.scope().entries()) {
+            if (
+                entry instanceof IR.Scoped scoped
+                && scoped.kind() == IR.SCOPE_KIND.FUN
+                && !scoped.scope().funcName().equals("main")
+                && this.eliminate(scoped)
+            ) {
+                this.eliminated++;
+            }
+        }
+        return this.eliminated;
+    }
+
+    /*
+     * Candidates
+     */
+    private boolean eliminate(IR.Scoped function) {
+        var body = function.scope();
+        this.name = body.funcName();
+        this.spec = this.ir.opStore().get(this.name).alternatives().getFirst();
+        if (this.spec.argTypes().contains(IR.TY.VOID)) {
+            return false;
+        }
+        var mustReturn = this.spec.returnType() != IR.TY.VOID;
+        if (!Inliner.returnsAtEnd(body.entries(), 0, mustReturn)) {
+            return false;
+        }
+
+        var returns = new ArrayList<IR.Expr>();
+        TailCallEliminator.collectReturns(body, returns);
+        // the first linear recursion picks the operator
+        this.op = null;
+        for (var ret : returns) {
+            if (this.tail(ret.vars().getFirst(), true) != null) {
+                var value = (IR.Expr) ret.vars().getFirst().val();
+                if (!value.op().equals(this.name)) {
+                    this.op = value.op();
+                    break;
+                }
+            }
+        }
+        var tails = false;
+        for (var ret : returns) {
+            tails |= this.tail(ret.vars().getFirst(), false) != null;
+        }
+        if (!tails) {
+            return false;
+        }
+
+        this.rewrite(function);
+        return true;
+    }
+
+    // a return that goes around the loop again: the call, and the operand
+    // folded into the accumulator, if any
+    private record Tail(IR.Expr call, IR.Var operand, boolean operandFirst) {}
+
+    // null if `returned` leaves the function, `any` accepts any operator
+    // for the accumulator
+    private Tail tail(IR.Var returned, boolean any) {
+        if (!(returned.val() instanceof IR.Expr expr)) {
+            return null;
+        }
+        if (this.isSelfCall(expr)) {
+            return new Tail(expr, null, false);
+        }
+        var op = any ? expr.op() : this.op;
+        var folds = this.accumulate
+            && (expr.op().equals("+") || expr.op().equals("*"))
+            && expr.op().equals(op)
+            && this.spec.returnType() == IR.TY.INT
+            && returned.type() == IR.TY.INT
+            && expr.vars().get(0).type() == IR.TY.INT
+            && expr.vars().get(1).type() == IR.TY.INT;
+        if (!folds) {
+            return null;
+        }
+        var left = expr.vars().get(0);
+        var right = expr.vars().get(1);
+        if (right.val() instanceof IR.Expr call && this.isSelfCall(call)) {
+            return new Tail(call, left, true);
+        }
+        if (
+            left.val() instanceof IR.Expr call
+            && this.isSelfCall(call)
+            && this.purity.isPure(right.val())
+        ) {
+            return new Tail(call, right, false);
+        }
+        return null;
+    }
+
+    private boolean isSelfCall(IR.Expr expr) {
+        if (!expr.op().equals(this.name)) {
+            return false;
+        }
+        // no conversions on the way in
+        for (var idx = 0; idx < expr.vars().size(); idx++) {
+            if (expr.vars().get(idx).type() != this.spec.argTypes().get(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void collectReturns(IR.Scope scope, List<IR.Expr> returns) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr when expr.op().equals("$return") -> returns.add(expr);
+                case IR.Scoped scoped -> TailCallEliminator.collectReturns(scoped.scope(), returns);
+                default -> {}
+            }
+        }
+    }
+
+    /*
+     * Rewriting
+     */
+    private void rewrite(IR.Scoped function) {
+        var body = function.scope();
+        this.close(body);
+        this.nextIndex = Inliner.frameSize(function);
+
+        var loopScope = new IR.Scope(
+            body,
+            this.nextScopeId++,
+            this.name,
+            new LinkedHashMap<>(),
+            new ArrayList<>()
+        );
+        var id = loopScope.scopeId();
+        var span = Inliner.returnSpan(body);
+        var before = new ArrayList<IR.Entry>();
+
+        this.copies.clear();
+        this.params.clear();
+        for (var idx = 0; idx < function.bornVars().size(); idx++) {
+            var param = function.bornVars().get(idx);
+            var type = this.spec.argTypes().get(idx);
+            var value = new IR.Ref(param, function.bornSlots().get(idx));
+            var copy = this.declare(
+                body, before, TailCallEliminator.base(param), id, type, value, span
+            );
+            this.copies.put(param, copy);
+            this.params.add(copy);
+        }
+        this.loop = this.declare(
+            body, before, "_loop", id, IR.TY.BOOL, new IR.Atom(IR.TY.BOOL, "true"), span
+        );
+        var returnType = this.spec.returnType();
+        this.result = returnType == IR.TY.VOID ? null : this.declare(
+            body, before, "_result", id, returnType, Inliner.zero(returnType), span
+        );
+        this.acc = this.op == null ? null : this.declare(
+            body,
+            before,
+            "_acc",
+            id,
+            IR.TY.INT,
+            new IR.Atom(IR.TY.INT, this.op.equals("*") ? "1" : "0"),
+            span
+        );
+
+        this.rewrite(body, 1);
+
+        // the body becomes the loop, its bindings with it
+        loopScope.entries().add(this.assign(this.loop, IR.TY.BOOL, new IR.Atom(IR.TY.BOOL, "false"), span));
+        for (var entry : body.entries()) {
+            if (entry instanceof IR.NewVar newVar && body.varMapping().containsKey(newVar.name())) {
+                loopScope.varMapping().put(newVar.name(), body.varMapping().remove(newVar.name()));
+            }
+            loopScope.entries().add(entry);
+        }
+        body.entries().clear();
+        body.entries().addAll(before);
+        body.entries().add(new IR.Scoped(
+            IR.SCOPE_KIND.WHILE,
+            new ArrayList<>(),
+            Optional.of(this.loop),
+            loopScope
+        ));
+        if (this.result != null) {
+            body.entries().add(new IR.Expr(
+                "$return",
+                new ArrayList<>(List.of(new IR.Var(this.result, returnType, span, true)))
+            ));
+        }
+    }
+
+    // An `if` without `else` that always returns is closed by moving the
+    // rest of the entries into a new `else`
+    private void close(IR.Scope scope) {
+        var entries = scope.entries();
+        for (var idx = 0; idx < entries.size(); idx++) {
+            if (!(entries.get(idx) instanceof IR.Scoped scoped)) {
+                continue;
+            }
+            this.close(scoped.scope());
+            var closes = scoped.kind() == IR.SCOPE_KIND.IF_BRANCH
+                && Inliner.returns(scoped.scope())
+                && !(
+                    idx + 1 < entries.size()
+                    && entries.get(idx + 1) instanceof IR.Scoped next
+                    && next.kind() == IR.SCOPE_KIND.ELSE_BRANCH
+                );
+            if (closes) {
+                var elseScope = new IR.Scope(
+                    scope,
+                    this.nextScopeId++,
+                    scope.funcName(),
+                    new LinkedHashMap<>(),
+                    new ArrayList<>()
+                );
+                var rest = entries.subList(idx + 1, entries.size());
+                for (var entry : rest) {
+                    if (entry instanceof IR.NewVar newVar && scope.varMapping().containsKey(newVar.name())) {
+                        elseScope.varMapping().put(newVar.name(), scope.varMapping().remove(newVar.name()));
+                    }
+                    elseScope.entries().add(entry);
+                }
+                rest.clear();
+                entries.add(new IR.Scoped(
+                    IR.SCOPE_KIND.ELSE_BRANCH,
+                    new ArrayList<>(),
+                    Optional.empty(),
+                    elseScope
+                ));
+                this.close(elseScope);
+                return;
+            }
+        }
+    }
+
+    private void rewrite(IR.Scope scope, int depth) {
+        scope.varMapping().replaceAll((_, v) -> this.rename(v));
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> out.add(entry);
+                case IR.NewVar(var name, var v, var slot) ->
+                    out.add(new IR.NewVar(name, this.rename(v), slot));
+                case IR.Expr expr when expr.op().equals("$return") ->
+                    this.exit(this.rename(expr.vars().getFirst()), scope, out, depth);
+                case IR.Expr expr -> out.add((IR.Expr) this.rename(expr));
+                case IR.Scoped scoped -> {
+                    this.rewrite(scoped.scope(), depth + 1);
+                    out.add(new IR.Scoped(
+                        scoped.kind(),
+                        scoped.bornVars(),
+                        scoped.dependencyValue().map(this::rename),
+                        scoped.scope(),
+                        scoped.bornSlots()
+                    ));
+                }
+            }
+        }
+        scope.entries().clear();
+        scope.entries().addAll(out);
+    }
+
+    // what a `$return` turns into
+    private void exit(IR.Var returned, IR.Scope scope, ArrayList<IR.Entry> out, int depth) {
+        var span = returned.span();
+        var tail = this.tail(returned, false);
+        if (tail == null) {
+            if (this.result == null) {
+                // a Void value, only evaluated for its effects
+                if (returned.val() instanceof IR.Expr expr) {
+                    out.add(expr);
+                }
+                return;
+            }
+            var value = returned;
+            if (this.acc != null) {
+                value = this.fold(value);
+            }
+            out.add(this.assign(this.result, value.type(), value.val(), span));
+            return;
+        }
+
+        if (tail.operand() != null && tail.operandFirst()) {
+            out.add(this.assign(this.acc, IR.TY.INT, this.fold(tail.operand()).val(), span));
+        }
+        // an argument is evaluated to a temporary if something evaluated
+        // after it reads the copy it is assigned to
+        var args = tail.call().vars();
+        var later = new ArrayList<IR.Ref>();
+        for (var idx = 0; idx < args.size(); idx++) {
+            var param = this.params.get(idx);
+            var arg = args.get(idx);
+            if (arg.val() instanceof IR.Ref ref && ref.ident().equals(param.ident())) {
+                continue;
+            }
+            var read = tail.operand() != null
+                && !tail.operandFirst()
+                && TailCallEliminator.reads(tail.operand().val(), param);
+            for (var next = idx + 1; next < args.size() && !read; next++) {
+                read = TailCallEliminator.reads(args.get(next).val(), param);
+            }
+            if (!read) {
+                out.add(this.assign(param, arg.type(), arg.val(), span));
+                continue;
+            }
+            var slot = new IR.Slot(depth, this.nextIndex++);
+            var name = IR.mangle("_arg", this.nextScopeId++);
+            var v = new IR.Var(arg.val(), arg.type(), arg.span(), false);
+            scope.varMapping().put(name, v);
+            out.add(new IR.NewVar(name, v, slot));
+            later.add(param);
+            later.add(new IR.Ref(name, slot));
+        }
+        if (tail.operand() != null && !tail.operandFirst()) {
+            out.add(this.assign(this.acc, IR.TY.INT, this.fold(tail.operand()).val(), span));
+        }
+        for (var idx = 0; idx < later.size(); idx += 2) {
+            var param = later.get(idx);
+            var type = this.spec.argTypes().get(this.params.indexOf(param));
+            out.add(this.assign(param, type, later.get(idx + 1), span));
+        }
+        out.add(this.assign(this.loop, IR.TY.BOOL, new IR.Atom(IR.TY.BOOL, "true"), span));
+    }
+
+    // `_acc op value`
+    private IR.Var fold(IR.Var value) {
+        var accumulated = new IR.Var(this.acc, IR.TY.INT, value.span(), true);
+        return new IR.Var(
+            new IR.Expr(this.op, new ArrayList<>(List.of(accumulated, value))),
+            IR.TY.INT,
+            value.span(),
+            false
+        );
+    }
+
+    private IR.Ref declare(
+        IR.Scope scope,
+        ArrayList<IR.Entry> out,
+        String base,
+        int id,
+        IR.TY type,
+        IR.Value value,
+        Pair<Integer, Integer> span
+    ) {
+        var slot = new IR.Slot(1, this.nextIndex++);
+        var name = IR.mangle(base, id);
+        var v = new IR.Var(value, type, span, true);
+        scope.varMapping().put(name, v);
+        out.add(new IR.NewVar(name, v, slot));
+        return new IR.Ref(name, slot);
+    }
+
+    private IR.Expr assign(IR.Ref target, IR.TY type, IR.Value value, Pair<Integer, Integer> span) {
+        return new IR.Expr("$assign", new ArrayList<>(List.of(
+            new IR.Var(target, type, span, true),
+            new IR.Var(value, type, span, false)
+        )));
+    }
+
+    /*
+     * Helpers
+     */
+    private IR.Var rename(IR.Var v) {
+        var value = this.rename(v.val());
+        return value == v.val() ? v : new IR.Var(value, v.type(), v.span(), v.mutable());
+    }
+
+    private IR.Value rename(IR.Value value) {
+        return switch (value) {
+            case IR.Atom _, IR.Arg _ -> value;
+            case IR.Ref ref -> this.copies.getOrDefault(ref.ident(), ref);
+            case IR.Expr expr -> {
+                var vars = new ArrayList<IR.Var>();
+                for (var v : expr.vars()) {
+                    vars.add(this.rename(v));
+                }
+                yield new IR.Expr(expr.op(), vars);
+            }
+        };
+    }
+
+    private static boolean reads(IR.Value value, IR.Ref ref) {
+        return switch (value) {
+            case IR.Atom _, IR.Arg _ -> false;
+            case IR.Ref r -> r.ident().equals(ref.ident());
+            case IR.Expr expr -> expr.vars().stream()
+                .anyMatch(v -> TailCallEliminator.reads(v.val(), ref));
+        };
+    }
+
+    // the name a unique name was mangled from
+    private static String base(String unique) {
+        return unique.substring(0, unique.lastIndexOf('_'));
+    }
+}
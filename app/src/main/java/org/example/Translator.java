@@ -1,6 +1,7 @@
 package org.example;
 
 import java.util.*;
+import java.util.function.IntConsumer;
 import java.io.File;
 import java.io.IOException;
 
@@ -16,8 +17,19 @@ public class Translator {
     private final IR ir;
     private final Map<String, PostfixModule> modules = new HashMap<>();
 
+    // functions wrapped in a memo table (see Memoiser)
+    private final Set<String> memoised;
+    // size of the table; the machine has no arrays, so every slot is a set
+    // of globals of its own and a tree of comparisons picks the slot
+    private static final int MEMO_CAPACITY = 64;
+
     public Translator(IR ir) {
+        this(ir, Set.of());
+    }
+
+    public Translator(IR ir, Set<String> memoised) {
         this.ir = ir;
+        this.memoised = memoised;
     }
 
     private PostfixModule getModule(String funcName) {
@@ -50,6 +62,11 @@ public class Translator {
             ) {
                 String funcName = scoped.scope().funcName();
                 String moduleName = "main$" + funcName;
+                if (memoised.contains(funcName)) {
+                    // the body becomes a function of its own, the wrapper takes its name
+                    allModules.put(moduleName, memoWrapper(funcName));
+                    moduleName += "$body";
+                }
                 PostfixModule module = new PostfixModule(moduleName);
                 allModules.put(moduleName, module);
 
@@ -77,6 +94,8 @@ public class Translator {
         PostfixModule globalModule = new PostfixModule("main");
         allModules.put("main", globalModule);
         collectAllFuncs(globalModule, availableGlobalFunctions);
+        // initialising the globals may already call memoised functions
+        memoInit(globalModule);
         translateScope(globalScope, globalModule);
         globalModule.addCode("main", "CALL");
 
@@ -95,6 +114,220 @@ public class Translator {
         }
     }
 
+    // globals of a table slot: the used flag, the arguments, the value
+    private LinkedHashMap<String, IR.TY> memoSlot(String funcName, int slot) {
+        IR.OpSpec spec = ir.opStore().get(funcName).alternatives().getFirst();
+        LinkedHashMap<String, IR.TY> vars = new LinkedHashMap<>();
+        vars.put("memo$" + funcName + "$used$" + slot, IR.TY.BOOL);
+        for (int i = 0; i < spec.argTypes().size(); i++) {
+            vars.put("memo$" + funcName + "$key" + i + "$" + slot, spec.argTypes().get(i));
+        }
+        vars.put("memo$" + funcName + "$value$" + slot, spec.returnType());
+        return vars;
+    }
+
+    // the tables live in the main module, all slots start out free
+    private void memoInit(PostfixModule module) {
+        for (String funcName : memoised) {
+            for (int slot = 0; slot < MEMO_CAPACITY; slot++) {
+                for (var var : memoSlot(funcName, slot).entrySet()) {
+                    module.variables.put(var.getKey(), Translator.machineType(var.getValue()));
+                }
+                module.addCode("memo$" + funcName + "$used$" + slot, "l-val");
+                module.addCode("false", "bool");
+                module.addCode(":=", "assign_op");
+            }
+        }
+    }
+
+    /**
+     * Wrapper of a memoised function: looks the arguments up in an open addressing table,
+     * and if they aren't there, calls the body (funcName$body) and remembers the result.
+     */
+    private PostfixModule memoWrapper(String funcName) {
+        IR.OpSpec spec = ir.opStore().get(funcName).alternatives().getFirst();
+        List<IR.TY> argTypes = spec.argTypes();
+        PostfixModule module = new PostfixModule("main$" + funcName);
+
+        // parameters have to come first
+        for (int i = 0; i < argTypes.size(); i++) {
+            module.variables.put("memo$arg" + i, Translator.machineType(argTypes.get(i)));
+        }
+        for (String local : List.of("memo$hash", "memo$probe", "memo$index", "memo$slot")) {
+            module.variables.put(local, "int");
+        }
+        for (int slot = 0; slot < MEMO_CAPACITY; slot++) {
+            module.globalVars.addAll(memoSlot(funcName, slot).keySet());
+        }
+        module.funcDeclarations.add(new FuncDeclaration(
+            funcName + "$body",
+            Translator.machineType(spec.returnType()),
+            argTypes.size()
+        ));
+
+        String labelProbe = module.createLabel("memoProbe");
+        String labelMiss = module.createLabel("memoMiss");
+        String labelDone = module.createLabel("memoDone");
+
+        // hash of the arguments, within the table
+        module.addCode("memo$hash", "l-val");
+        module.addCode("0", "int");
+        module.addCode(":=", "assign_op");
+        for (int i = 0; i < argTypes.size(); i++) {
+            module.addCode("memo$hash", "l-val");
+            module.addCode("memo$hash", "r-val");
+            module.addCode("31", "int");
+            module.addCode("*", "math_op");
+            memoHash(module, "memo$arg" + i, argTypes.get(i));
+            module.addCode("+", "math_op");
+            module.addCode(String.valueOf(MEMO_CAPACITY), "int");
+            module.addCode("%", "math_op");
+            module.addCode(":=", "assign_op");
+        }
+
+        // with no free slot, the first one is evicted
+        module.addCode("memo$slot", "l-val");
+        module.addCode("memo$hash", "r-val");
+        module.addCode(":=", "assign_op");
+        module.addCode("memo$probe", "l-val");
+        module.addCode("0", "int");
+        module.addCode(":=", "assign_op");
+
+        module.setLabel(labelProbe);
+        module.addCode("memo$probe", "r-val");
+        module.addCode(String.valueOf(Memoiser.PROBES), "int");
+        module.addCode("<", "rel_op");
+        module.addCode(labelMiss, "label");
+        module.addCode("JF", "jf");
+        module.addCode("memo$index", "l-val");
+        module.addCode("memo$hash", "r-val");
+        module.addCode("memo$probe", "r-val");
+        module.addCode("+", "math_op");
+        module.addCode(String.valueOf(MEMO_CAPACITY), "int");
+        module.addCode("%", "math_op");
+        module.addCode(":=", "assign_op");
+        module.addCode("memo$probe", "l-val");
+        module.addCode("memo$probe", "r-val");
+        module.addCode("1", "int");
+        module.addCode("+", "math_op");
+        module.addCode(":=", "assign_op");
+        memoDispatch(module, "memo$index", 0, MEMO_CAPACITY, slot -> {
+            var vars = new ArrayList<>(memoSlot(funcName, slot).keySet());
+            String labelFree = module.createLabel("memoFree");
+            module.addCode(vars.getFirst(), "r-val");
+            module.addCode(labelFree, "label");
+            module.addCode("JF", "jf");
+            // slot taken: are these the same arguments
+            for (int i = 0; i < argTypes.size(); i++) {
+                memoKey(module, vars.get(i + 1), argTypes.get(i));
+                memoKey(module, "memo$arg" + i, argTypes.get(i));
+                module.addCode("==", "rel_op");
+                module.addCode(labelProbe, "label");
+                module.addCode("JF", "jf");
+            }
+            module.addCode(vars.getLast(), "r-val");
+            module.addCode("RET", "RET");
+            module.setLabel(labelFree);
+            module.addCode("memo$slot", "l-val");
+            module.addCode(String.valueOf(slot), "int");
+            module.addCode(":=", "assign_op");
+            module.addCode(labelMiss, "label");
+            module.addCode("JMP", "jump");
+        });
+
+        // miss: compute and remember, the result stays on the stack
+        module.setLabel(labelMiss);
+        for (int i = 0; i < argTypes.size(); i++) {
+            module.addCode("memo$arg" + i, "r-val");
+        }
+        module.addCode(funcName + "$body", "CALL");
+        memoDispatch(module, "memo$slot", 0, MEMO_CAPACITY, slot -> {
+            var vars = new ArrayList<>(memoSlot(funcName, slot).keySet());
+            module.addCode(vars.getFirst(), "l-val");
+            module.addCode("true", "bool");
+            module.addCode(":=", "assign_op");
+            for (int i = 0; i < argTypes.size(); i++) {
+                module.addCode(vars.get(i + 1), "l-val");
+                module.addCode("memo$arg" + i, "r-val");
+                module.addCode(":=", "assign_op");
+            }
+            module.addCode("DUP", "stack_op");
+            module.addCode(vars.getLast(), "l-val");
+            module.addCode("SWAP", "stack_op");
+            module.addCode(":=", "assign_op");
+            module.addCode(labelDone, "label");
+            module.addCode("JMP", "jump");
+        });
+        module.setLabel(labelDone);
+        module.addCode("RET", "RET");
+        return module;
+    }
+
+    // hash of the variable's value, a non-negative int
+    private static void memoHash(PostfixModule module, String var, IR.TY type) {
+        switch (type) {
+            case BOOL -> {
+                module.addCode(var, "r-val");
+                module.addCode("b2i", "conv");
+            }
+            case STRING -> {
+                module.addCode(var, "r-val");
+                module.addCode("LEN", "seq_op");
+            }
+            case FLOAT -> {
+                // infinities and NaN don't convert to an int
+                String labelInfinite = module.createLabel("memoInfinite");
+                String labelHashed = module.createLabel("memoHashed");
+                module.addCode(var, "r-val");
+                module.addCode(var, "r-val");
+                module.addCode("-", "math_op");
+                module.addCode("0.0", "float");
+                module.addCode("==", "rel_op");
+                module.addCode(labelInfinite, "label");
+                module.addCode("JF", "jf");
+                module.addCode(var, "r-val");
+                module.addCode(MEMO_CAPACITY + ".0", "float");
+                module.addCode("%", "math_op");
+                module.addCode("f2i", "conv");
+                module.addCode(labelHashed, "label");
+                module.addCode("JMP", "jump");
+                module.setLabel(labelInfinite);
+                module.addCode("0", "int");
+                module.setLabel(labelHashed);
+            }
+            default -> module.addCode(var, "r-val");
+        }
+    }
+
+    // double keys compare as strings, so -0.0 and 0.0 differ and NaN equals itself
+    private static void memoKey(PostfixModule module, String var, IR.TY type) {
+        module.addCode(var, "r-val");
+        if (type == IR.TY.FLOAT) {
+            module.addCode("f2s", "conv");
+        }
+    }
+
+    // jumps to the code of the slot numbered by the variable index, by binary
+    // search; the slot's code has to jump somewhere itself at its end
+    private static void memoDispatch(
+        PostfixModule module, String index, int from, int to, IntConsumer slot
+    ) {
+        if (to - from == 1) {
+            slot.accept(from);
+            return;
+        }
+        int middle = (from + to) / 2;
+        String labelUpper = module.createLabel("memoUpper");
+        module.addCode(index, "r-val");
+        module.addCode(String.valueOf(middle), "int");
+        module.addCode("<", "rel_op");
+        module.addCode(labelUpper, "label");
+        module.addCode("JF", "jf");
+        memoDispatch(module, index, from, middle, slot);
+        module.setLabel(labelUpper);
+        memoDispatch(module, index, middle, to, slot);
+    }
+
     private void translateScope(
         IR.Scope scope, PostfixModule module
     ) {
@@ -212,6 +445,30 @@ public class Translator {
                 translateValue(expr.vars().getFirst().val(), module, scope);
                 module.addCode("RET", "RET");
             }
+            // a string accumulated in a loop, see StringBuilderRewriter;
+            // on the machine the builder is a list of pieces in a hidden variable
+            case "$sbOpen" -> {
+                String acc = ((IR.Ref) expr.vars().get(0).val()).ident();
+                module.variables.putIfAbsent(acc + "$sb", "builder");
+                module.addCode(acc + "$sb", "l-val");
+                module.addCode(acc, "r-val");
+                module.addCode("NEW", "sb_op");
+            }
+            case "$sbAppend", "$sbPrepend" -> {
+                String acc = ((IR.Ref) expr.vars().get(0).val()).ident();
+                module.addCode(acc + "$sb", "l-val");
+                translateValue(expr.vars().get(1).val(), module, scope);
+                module.addCode("ADD", "sb_op");
+            }
+            case "$sbClose" -> {
+                String acc = ((IR.Ref) expr.vars().get(0).val()).ident();
+                boolean prepends = Boolean.parseBoolean(((IR.Atom) expr.vars().get(1).val()).val());
+                module.addCode(acc, "l-val");
+                module.addCode(acc + "$sb", "r-val");
+                // pieces added at the front are joined in reverse order
+                module.addCode(prepends ? "RJOIN" : "JOIN", "sb_op");
+                module.addCode(":=", "assign_op");
+            }
             case "print" -> {
                 module.addCode("", "string");
                 for (IR.Var variable : expr.vars()) {
@@ -309,49 +566,58 @@ public class Translator {
     }
 
     /**
-     * Translates a value (atom, variable reference, or expression)
+     * Translates a value (atom, variable reference, or expression).
+     * Generated code can nest expressions thousands deep, so instead of
+     * recursing the values still to translate and the instructions that
+     * follow them wait on a stack
      */
     private void translateValue(
         IR.Value value,
         PostfixModule module,
         IR.Scope scope
     ) {
-        if (value instanceof IR.Atom atom) {
-            module.addCode(atom.val(), atom.type().toString().toLowerCase());
-            return;
-        }
-
-        if (value instanceof IR.Ref ref) {
-            module.addCode(ref.ident(), "r-val");
-            return;
-        }
-
-        if (value instanceof IR.Expr expr) {
-            String op = expr.op();
+        Deque<Object> work = new ArrayDeque<>();
+        work.push(value);
+        while (!work.isEmpty()) {
+            Object next = work.pop();
+
+            if (next instanceof OpInfo code) {
+                module.addCode(code.op(), code.token());
+                continue;
+            }
 
-            if (op.startsWith("$case")) {
-                translateCaseExpr(expr, module, scope);
-                return;
+            if (next instanceof IR.Atom atom) {
+                module.addCode(atom.val(), atom.type().toString().toLowerCase());
+                continue;
             }
 
-            translateExprArgs(expr, module, scope);
-            OpInfo opInfo = getOpToken(expr);
-            op = opInfo.op();
-            String token = opInfo.token();
+            if (next instanceof IR.Ref ref) {
+                module.addCode(ref.ident(), "r-val");
+                continue;
+            }
 
-            if (op.equals("u+")) return;
-            if (op.equals("input")) op = "INP";
+            if (next instanceof IR.Expr expr) {
+                if (expr.op().startsWith("$case")) {
+                    translateCaseExpr(expr, module, scope);
+                    continue;
+                }
 
-            module.addCode(op, token);
+                OpInfo opInfo = getOpToken(expr);
+                String op = opInfo.op();
+                if (op.equals("input")) op = "INP";
+                if (!op.equals("u+")) {
+                    work.push(new OpInfo(op, opInfo.token()));
+                }
+                expandExprArgs(expr, work);
+            }
         }
     }
 
     /**
-     * Automatically casts arguments to FLOAT if needed
+     * Puts the arguments on the work stack, last one first, and
+     * automatically casts them to FLOAT if needed
      */
-    private void translateExprArgs(
-        IR.Expr expr, PostfixModule module, IR.Scope scope
-    ) {
+    private void expandExprArgs(IR.Expr expr, Deque<Object> work) {
         String op = expr.op();
         boolean toFloat = "**".equals(op) ||
                 (
@@ -364,13 +630,13 @@ public class Translator {
                     && expr.vars().stream().anyMatch(v -> v.type() == IR.TY.FLOAT)
                 );
 
-        if (toFloat) {
-            translateWithCast(expr.vars(), module, scope, IR.TY.FLOAT);
-        } else {
-            // for unary operators 1 argument
-            for (IR.Var v : expr.vars()) {
-                translateValue(v.val(), module, scope);
+        // for unary operators 1 argument
+        for (int i = expr.vars().size() - 1; i >= 0; i--) {
+            IR.Var arg = expr.vars().get(i);
+            if (toFloat && arg.type() == IR.TY.INT) {
+                work.push(new OpInfo("i2f", "conv"));
             }
+            work.push(arg.val());
         }
     }
 
@@ -417,25 +683,6 @@ public class Translator {
     }
 
 
-    /**
-     * Translates operands and inserts an implicit type conversion instruction (i2f conv)
-     */
-    private void translateWithCast(
-        List<IR.Var> vars,
-        PostfixModule module,
-        IR.Scope scope,
-        IR.TY targetType
-    ) {
-        for (IR.Var arg : vars) {
-            translateValue(arg.val(), module, scope);
-
-            if (arg.type() == IR.TY.INT && targetType == IR.TY.FLOAT) {
-                module.addCode("i2f", "conv");
-            }
-        }
-    }
-
-
     //  IfStmt
     private void translateIfStmt(
         IR.Scoped thenScoped,
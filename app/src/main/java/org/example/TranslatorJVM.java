@@ -1,8 +1,8 @@
 package org.example;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -11,16 +11,36 @@ public class TranslatorJVM {
     private final String className;
     private int labelCounter = 0;
 
+    // the class being generated and its listing
+    private ClassFileWriter classFile;
+    private StringBuilder listing;
+
     // Інформація про локальні змінні: index + type
     record VarInfo(int index, IR.TY type) {}
 
     // Стан транслятора (збільшується/скидається для кожного методу)
-    private Map<String, VarInfo> localVarMap = new HashMap<>();
+    // locals by IR.Slot index
+    private final ArrayList<VarInfo> locals = new ArrayList<>();
     private int localVarIndexCounter = 0;
+    // hidden builder of a string accumulator by its unique name
+    // (see StringBuilderRewriter)
+    private final HashMap<String, VarInfo> builders = new HashMap<>();
+    // types of the globals by IR.Slot index
+    private final ArrayList<IR.TY> globalTypes = new ArrayList<>();
+
+    // functions wrapped in a memo table (see Memoiser)
+    private final Set<String> memoised;
+    // size of the table, a power of two
+    private static final int MEMO_CAPACITY = 1024;
 
     public TranslatorJVM(IR ir, String className) {
+        this(ir, className, Set.of());
+    }
+
+    public TranslatorJVM(IR ir, String className, Set<String> memoised) {
         this.ir = ir;
         this.className = className;
+        this.memoised = memoised;
     }
 
     private void cleanDirectory(String dirPath) throws IOException {
@@ -40,50 +60,84 @@ public class TranslatorJVM {
     // --------------------------
     // Public entry
     // --------------------------
+    // The class file goes straight into out/, no assembler involved; a .j
+    // listing in Krakatau syntax stays in baseDir for reading
     public void generate(String baseDir) throws IOException {
         cleanDirectory(baseDir);
         String parentDir = new File(baseDir).getParent();
-        cleanDirectory(parentDir + "/out");
+        String outDir = parentDir + "/out";
+        cleanDirectory(outDir);
 
         IR.Scope globalScope = this.ir.scope();
+        registerGlobals(globalScope);
 
-        new File(baseDir).mkdirs();
-        File outputFile = new File(baseDir, className + ".j");
+        classFile = new ClassFileWriter(className, "java/lang/Object");
+        listing = new StringBuilder();
+        writeClassHeader();
+        generateStaticFields(globalScope);
+        generateCtor();
+        generateGlobalMethods(globalScope);
 
-        try (FileWriter writer = new FileWriter(outputFile)) {
-            writeClassHeader(writer);
-            generateStaticFields(writer, globalScope);
-            generateCtor(writer);
-            generateGlobalMethods(writer, globalScope);
-        }
+        new File(baseDir).mkdirs();
+        Files.writeString(new File(baseDir, className + ".j").toPath(), listing);
+        File outputFile = new File(outDir, className + ".class");
+        Files.write(outputFile.toPath(), classFile.bytes());
 
-        System.out.println("Generated JVM bytecode: " + outputFile.getAbsolutePath());
+        System.out.println("Generated JVM class: " + outputFile.getAbsolutePath());
     }
 
     // --------------------------
     // High-level writing helpers
     // --------------------------
-    private void writeClassHeader(FileWriter writer) throws IOException {
-        writer.write(".class public " + className + "\n");
-        writer.write(".super java/lang/Object\n\n");
+    private void writeClassHeader() {
+        listing.append(".class public ").append(className).append("\n");
+        listing.append(".super java/lang/Object\n\n");
+    }
+
+    private void generateCtor() {
+        Bytecode code = new Bytecode();
+        code.local("aload", 0);
+        code.invoke("invokespecial", "java/lang/Object", "<init>", "()V");
+        code.op("return");
+        writeMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", code);
     }
 
-    private void generateCtor(FileWriter writer) throws IOException {
-        writer.write(".method public <init> : ()V\n");
-        writer.write("    .code stack 10 locals 10\n");
-        writer.write("        aload_0\n");
-        writer.write("        invokespecial Method java/lang/Object <init> ()V\n");
-        writer.write("        return\n");
-        writer.write("    .end code\n");
-        writer.write(".end method\n\n");
+    // the method goes into both the class file and the listing
+    private void writeMethod(int access, String name, String descriptor, Bytecode code) {
+        // Bytecode computes the exact stack and locals limits itself
+        var encoded = classFile.method(access, name, descriptor, code);
+        listing.append(".method public ")
+            .append((access & ClassFileWriter.ACC_STATIC) != 0 ? "static " : "")
+            .append(name).append(" : ").append(descriptor).append("\n");
+        listing.append("    .code stack ").append(encoded.maxStack())
+            .append(" locals ").append(encoded.maxLocals()).append("\n");
+        listing.append(code.listing());
+        listing.append("    .end code\n");
+        listing.append(".end method\n\n");
     }
 
-    private void generateGlobalMethods(FileWriter writer, IR.Scope globalScope) throws IOException {
+    private void generateGlobalMethods(IR.Scope globalScope) {
         for (IR.Entry entry : globalScope.entries()) {
             if (entry instanceof IR.Scoped scoped
                 && scoped.kind() == IR.SCOPE_KIND.FUN
             ) {
-                generateMethod(writer, scoped, globalScope);
+                String funcName = scoped.scope().funcName();
+                if (memoised.contains(funcName)) {
+                    generateMethod(scoped, globalScope, funcName + "$body");
+                    generateMemoWrapper(funcName);
+                } else {
+                    generateMethod(scoped, globalScope, funcName);
+                }
+            }
+        }
+    }
+
+    private void registerGlobals(IR.Scope globalScope) {
+        globalTypes.clear();
+        for (IR.Entry entry : globalScope.entries()) {
+            if (entry instanceof IR.NewVar(String name, IR.Var v, IR.Slot slot)) {
+                while (globalTypes.size() <= slot.index()) globalTypes.add(null);
+                globalTypes.set(slot.index(), v.type());
             }
         }
     }
@@ -91,31 +145,36 @@ public class TranslatorJVM {
     // --------------------------
     // Static fields generation
     // --------------------------
-    private void generateStaticFields(FileWriter writer, IR.Scope globalScope) throws IOException {
+    private void generateStaticFields(IR.Scope globalScope) {
         for (
             Map.Entry<String, IR.Var> entry
             :
             globalScope.varMapping().entrySet()
         ) {
             IR.Var var = entry.getValue();
-            writer
-                .write(
-                    ".field public static "
-                    + entry.getKey() + " " + jvmType(var.type())
-                    + "\n"
-                );
+            writeField(entry.getKey(), jvmType(var.type()));
+        }
+        for (String funcName : memoised) {
+            for (var field : memoFields(funcName).entrySet()) {
+                writeField(field.getKey(), "[" + jvmType(field.getValue()));
+            }
         }
-        writer.write("\n");
+        listing.append("\n");
+    }
+
+    private void writeField(String name, String descriptor) {
+        classFile.field(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, name, descriptor);
+        listing.append(".field public static ").append(name).append(" ").append(descriptor).append("\n");
     }
 
     // --------------------------
     // Method generation
     // --------------------------
     private void generateMethod(
-        FileWriter writer,
         IR.Scoped methodScoped,
-        IR.Scope globalScope
-    ) throws IOException {
+        IR.Scope globalScope,
+        String methodName
+    ) {
         IR.Scope methodScope = methodScoped.scope();
         String funcName = methodScope.funcName();
 
@@ -123,7 +182,8 @@ public class TranslatorJVM {
         IR.OpSpec spec = operator.alternatives().getFirst();
 
         // Reset local var allocation for this method
-        localVarMap.clear();
+        locals.clear();
+        builders.clear();
         localVarIndexCounter = 0;
 
         // Build descriptors
@@ -137,90 +197,275 @@ public class TranslatorJVM {
             returnDescriptor = "V";
         }
 
-        writer.write(".method public static " + funcName + " : (" + argsDescriptor + ")" + returnDescriptor + "\n");
-        writer.write("    .code stack 100 locals 100\n");
+        Bytecode code = new Bytecode();
 
         // Register parameters as local variables
         registerMethodArgs(methodScoped, spec, funcName);
 
         // If main -> init globals
         if (funcName.equals("main")) {
-            generateGlobalInit(writer, globalScope);
+            // initialising the globals may already call memoised functions
+            generateMemoInit(code);
+            generateGlobalInit(code, globalScope);
         }
 
         // Translate method body
-        translateScope(writer, methodScope);
+        translateScope(code, methodScope);
 
         // Ensure method returns correctly based on spec
-        writeMethodReturn(writer, spec, funcName);
+        writeMethodReturn(code, spec, funcName);
 
-        writer.write("    .end code\n");
-        writer.write(".end method\n\n");
+        writeMethod(
+            ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, methodName,
+            "(" + argsDescriptor + ")" + returnDescriptor, code
+        );
     }
 
     private void registerMethodArgs(IR.Scoped methodScoped, IR.OpSpec spec, String funcName) {
         if (funcName.equals("main")) {
-            localVarMap.put("args", new VarInfo(localVarIndexCounter++, IR.TY.STRING));
+            // String[] args
+            allocLocal(IR.TY.STRING);
         } else {
-            for (int i = 0; i < methodScoped.bornVars().size(); i++) {
-                String argName = methodScoped.bornVars().get(i);
+            for (int i = 0; i < methodScoped.bornSlots().size(); i++) {
+                IR.Slot argSlot = methodScoped.bornSlots().get(i);
                 IR.TY argType = spec.argTypes().get(i);
 
-                localVarMap.put(argName, new VarInfo(localVarIndexCounter++, argType));
-                if (argType == IR.TY.FLOAT) localVarIndexCounter++; // wide slot
+                local(argSlot, argType);
             }
         }
     }
 
-    private void writeMethodReturn(FileWriter writer, IR.OpSpec spec, String funcName) throws IOException {
+    private void writeMethodReturn(Bytecode code, IR.OpSpec spec, String funcName) {
         IR.TY ret = spec.returnType();
         if (funcName.equals("main")) {
-            writer.write("        return\n");
+            code.op("return");
         } else if (ret == IR.TY.VOID) {
-            writer.write("        ldc 0\n");
-            writer.write("        ireturn\n");
+            code.push(0);
+            code.op("ireturn");
         } else if (ret == IR.TY.INT || ret == IR.TY.BOOL) {
-            writer.write("        ireturn\n");
+            code.op("ireturn");
         } else if (ret == IR.TY.FLOAT) {
-            writer.write("        dreturn\n");
+            code.op("dreturn");
         } else if (ret == IR.TY.STRING) {
-            writer.write("        areturn\n");
+            code.op("areturn");
         }
     }
 
-    private void generateGlobalInit(FileWriter writer, IR.Scope globalScope) throws IOException {
-        writer.write("        ; --- Global Init ---\n");
+    private void generateGlobalInit(Bytecode code, IR.Scope globalScope) {
+        code.comment("--- Global Init ---");
         for (IR.Entry entry : globalScope.entries()) {
-            if (entry instanceof IR.NewVar(String name, IR.Var v)) {
-                translateValue(writer, v.val());
-                writer.write("        putstatic Field " + className + " " + name + " " + jvmType(v.type()) + "\n");
+            if (entry instanceof IR.NewVar(String name, IR.Var v, IR.Slot slot)) {
+                translateValue(code, v.val());
+                code.field("putstatic", className, name, jvmType(v.type()));
             }
         }
-        writer.write("        ; --- End Global Init ---\n");
+        code.comment("--- End Global Init ---");
     }
 
     // --------------------------
-    // Scope translation
+    // Memoisation
     // --------------------------
-    private void translateScope(FileWriter writer, IR.Scope scope) throws IOException {
-        // Register any variables declared in this scope as locals (lazy registration)
-        for (Map.Entry<String, IR.Var> entry : scope.varMapping().entrySet()) {
-            if (!localVarMap.containsKey(entry.getKey())) {
-                IR.TY type = entry.getValue().type();
-                localVarMap.put(entry.getKey(), new VarInfo(localVarIndexCounter++, type));
-                if (type == IR.TY.FLOAT) localVarIndexCounter++;
+
+    // fields of a function's table: the used flags, the arguments, the values
+    private LinkedHashMap<String, IR.TY> memoFields(String funcName) {
+        IR.OpSpec spec = ir.opStore().get(funcName).alternatives().getFirst();
+        LinkedHashMap<String, IR.TY> fields = new LinkedHashMap<>();
+        fields.put("memo$" + funcName + "$used", IR.TY.BOOL);
+        for (int i = 0; i < spec.argTypes().size(); i++) {
+            fields.put("memo$" + funcName + "$key" + i, spec.argTypes().get(i));
+        }
+        fields.put("memo$" + funcName + "$value", spec.returnType());
+        return fields;
+    }
+
+    private void generateMemoInit(Bytecode code) {
+        for (String funcName : memoised) {
+            for (var field : memoFields(funcName).entrySet()) {
+                code.push(MEMO_CAPACITY);
+                switch (field.getValue()) {
+                    case INT -> code.type("newarray", "int");
+                    case FLOAT -> code.type("newarray", "double");
+                    case BOOL -> code.type("newarray", "boolean");
+                    default -> code.type("anewarray", "java/lang/String");
+                }
+                writeMemoField(code, "putstatic", field.getKey(), field.getValue());
             }
         }
+    }
+
+    /**
+     * Wrapper of a memoised function: looks the arguments up in an open addressing table,
+     * and if they aren't there, calls the body (funcName$body) and remembers the result.
+     */
+    private void generateMemoWrapper(String funcName) {
+        IR.OpSpec spec = ir.opStore().get(funcName).alternatives().getFirst();
+        List<IR.TY> argTypes = spec.argTypes();
+        String desc = jvmMethodDescriptor(spec.returnType(), argTypes);
+        List<String> fields = new ArrayList<>(memoFields(funcName).keySet());
+        String usedField = fields.getFirst();
+        String valueField = fields.getLast();
+        int mask = MEMO_CAPACITY - 1;
+
+        locals.clear();
+        builders.clear();
+        localVarIndexCounter = 0;
+        List<VarInfo> args = new ArrayList<>();
+        for (IR.TY type : argTypes) {
+            args.add(allocLocal(type));
+        }
+        VarInfo hash = allocLocal(IR.TY.INT);
+        VarInfo probe = allocLocal(IR.TY.INT);
+        VarInfo index = allocLocal(IR.TY.INT);
+        VarInfo slot = allocLocal(IR.TY.INT);
+        VarInfo result = allocLocal(spec.returnType());
+
+        String labelProbe = createLabel("memo_probe");
+        String labelUsed = createLabel("memo_used");
+        String labelMiss = createLabel("memo_miss");
+
+        Bytecode code = new Bytecode();
+
+        // hash of the arguments
+        code.push(0);
+        storeVar(code, hash);
+        for (VarInfo arg : args) {
+            loadVar(code, hash);
+            code.push(31);
+            code.op("imul");
+            loadVar(code, arg);
+            switch (arg.type()) {
+                case FLOAT -> code.invoke("invokestatic", "java/lang/Double", "hashCode", "(D)I");
+                case STRING -> code.invoke("invokevirtual", "java/lang/String", "hashCode", "()I");
+                default -> {}
+            }
+            code.op("iadd");
+            storeVar(code, hash);
+        }
+        // the high bits count towards the slot too
+        loadVar(code, hash);
+        loadVar(code, hash);
+        code.push(16);
+        code.op("iushr");
+        code.op("ixor");
+        code.push(mask);
+        code.op("iand");
+        storeVar(code, hash);
+
+        // with no free slot, the first one is evicted
+        loadVar(code, hash);
+        storeVar(code, slot);
+        code.push(0);
+        storeVar(code, probe);
+
+        code.label(labelProbe);
+        loadVar(code, probe);
+        code.push(Memoiser.PROBES);
+        code.jump("if_icmpge", labelMiss);
+        loadVar(code, hash);
+        loadVar(code, probe);
+        code.op("iadd");
+        code.push(mask);
+        code.op("iand");
+        storeVar(code, index);
+        code.iinc(probe.index(), 1);
+        writeMemoField(code, "getstatic", usedField, IR.TY.BOOL);
+        loadVar(code, index);
+        code.op("baload");
+        code.jump("ifne", labelUsed);
+        loadVar(code, index);
+        storeVar(code, slot);
+        code.jump("goto", labelMiss);
+
+        // slot taken: are these the same arguments
+        code.label(labelUsed);
+        for (int i = 0; i < args.size(); i++) {
+            IR.TY type = argTypes.get(i);
+            writeMemoField(code, "getstatic", fields.get(i + 1), type);
+            loadVar(code, index);
+            code.op(arrayPrefix(type) + "aload");
+            memoKeyBits(code, type);
+            loadVar(code, args.get(i));
+            memoKeyBits(code, type);
+            switch (type) {
+                case FLOAT -> {
+                    code.op("lcmp");
+                    code.jump("ifne", labelProbe);
+                }
+                case STRING -> {
+                    code.invoke("invokevirtual", "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+                    code.jump("ifeq", labelProbe);
+                }
+                default -> code.jump("if_icmpne", labelProbe);
+            }
+        }
+        writeMemoField(code, "getstatic", valueField, spec.returnType());
+        loadVar(code, index);
+        code.op(arrayPrefix(spec.returnType()) + "aload");
+        writeMethodReturn(code, spec, funcName);
+
+        // miss: compute and remember
+        code.label(labelMiss);
+        for (VarInfo arg : args) {
+            loadVar(code, arg);
+        }
+        code.invoke("invokestatic", className, funcName + "$body", desc);
+        storeVar(code, result);
+        writeMemoField(code, "getstatic", usedField, IR.TY.BOOL);
+        loadVar(code, slot);
+        code.push(1);
+        code.op("bastore");
+        for (int i = 0; i < args.size(); i++) {
+            IR.TY type = argTypes.get(i);
+            writeMemoField(code, "getstatic", fields.get(i + 1), type);
+            loadVar(code, slot);
+            loadVar(code, args.get(i));
+            code.op(arrayPrefix(type) + "astore");
+        }
+        writeMemoField(code, "getstatic", valueField, spec.returnType());
+        loadVar(code, slot);
+        loadVar(code, result);
+        code.op(arrayPrefix(spec.returnType()) + "astore");
+        loadVar(code, result);
+        writeMethodReturn(code, spec, funcName);
+
+        writeMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, funcName, desc, code);
+    }
+
+    private void writeMemoField(Bytecode code, String insn, String field, IR.TY type) {
+        code.field(insn, className, field, "[" + jvmType(type));
+    }
+
+    // double keys compare by their bits, so -0.0 and 0.0 differ and NaN equals itself
+    private void memoKeyBits(Bytecode code, IR.TY type) {
+        if (type == IR.TY.FLOAT) {
+            code.invoke("invokestatic", "java/lang/Double", "doubleToRawLongBits", "(D)J");
+        }
+    }
+
+    private static String arrayPrefix(IR.TY type) {
+        return switch (type) {
+            case FLOAT -> "d";
+            case BOOL -> "b";
+            case STRING -> "a";
+            default -> "i";
+        };
+    }
+
+    // --------------------------
+    // Scope translation
+    // --------------------------
+    private void translateScope(Bytecode code, IR.Scope scope) {
+        // Locals are registered lazily, on the first store to their slot
 
         // Iterate entries
         for (int i = 0; i < scope.entries().size(); i++) {
             IR.Entry entry = scope.entries().get(i);
 
-            if (entry instanceof IR.NewVar(String name, IR.Var v)) {
-                translateValue(writer, v.val());
-                storeVar(writer, name, v.type());
+            if (entry instanceof IR.NewVar(String name, IR.Var v, IR.Slot slot)) {
+                translateValue(code, v.val());
+                storeVar(code, local(slot, v.type()));
             } else if (entry instanceof IR.Expr expr) {
-                translateExprStmt(writer, expr);
+                translateExprStmt(code, expr);
             } else if (entry instanceof IR.Scoped scoped) {
                 // Handle if + optional else (else may be next entry)
                 if (scoped.kind() == IR.SCOPE_KIND.IF_BRANCH) {
@@ -232,17 +477,17 @@ public class TranslatorJVM {
                             i++;
                         }
                     }
-                    translateIf(writer, scoped, elseScoped);
+                    translateIf(code, scoped, elseScoped);
                 }
                 // If it's an ELSE branch alone, translate its body
                 else if (scoped.kind() == IR.SCOPE_KIND.ELSE_BRANCH) {
-                    translateScope(writer, scoped.scope());
+                    translateScope(code, scoped.scope());
                 }
                 // Switch / case branches
                 else if (scoped.kind() == IR.SCOPE_KIND.CASE_BRANCH) {
                     // If dependency missing or not an expression -> just inline scope
                     if (scoped.dependencyValue().isEmpty() || !(scoped.dependencyValue().get() instanceof IR.Expr conditionExpr)) {
-                        translateScope(writer, scoped.scope());
+                        translateScope(code, scoped.scope());
                         continue;
                     }
 
@@ -263,11 +508,11 @@ public class TranslatorJVM {
                     }
                     i = j - 1;
 
-                    translateSwitch(writer, targetExpr, switchCases);
+                    translateSwitch(code, targetExpr, switchCases);
                 }
                 // Other scoped constructs (while/for/...)
                 else {
-                    translateScoped(writer, scoped);
+                    translateScoped(code, scoped);
                 }
             }
         }
@@ -276,31 +521,32 @@ public class TranslatorJVM {
     // --------------------------
     // Statement-level translation
     // --------------------------
-    private void translateExprStmt(FileWriter writer, IR.Expr expr) throws IOException {
+    private void translateExprStmt(Bytecode code, IR.Expr expr) {
         switch (expr.op()) {
-            case "print" -> translatePrint(writer, expr);
-            case "$assign" -> translateAssign(writer, expr);
-            case "$return" -> translateReturn(writer, expr);
-            case "throw" -> generateThrow(writer, expr);
+            case "print" -> translatePrint(code, expr);
+            case "$assign" -> translateAssign(code, expr);
+            case "$return" -> translateReturn(code, expr);
+            case "$sbOpen", "$sbAppend", "$sbPrepend", "$sbClose" -> translateBuilder(code, expr);
+            case "throw" -> generateThrow(code, expr);
             default -> {
                 // this must be a function call
-                translateExpression(writer, expr);
+                translateExpression(code, expr);
 
                 String op = expr.op();
                 IR.OpSpec spec = ir.opStore().get(op).alternatives().getFirst();
 
                 // cleanup, double take two slots
                 if (spec.returnType() == IR.TY.FLOAT) {
-                     writer.write("        pop2\n");
+                     code.op("pop2");
                 } else {
                      // yes, void functions need cleanup too, cause voids are real
-                     writer.write("        pop\n");
+                     code.op("pop");
                 }
             }
         }
     }
 
-    private void translatePrint(FileWriter writer, IR.Expr expr) throws IOException {
+    private void translatePrint(Bytecode code, IR.Expr expr) {
         for (int i = 0; i < expr.vars().size(); i++) {
             IR.Var arg = expr.vars().get(i);
 
@@ -308,114 +554,168 @@ public class TranslatorJVM {
             String method = last ? "println" : "print";
 
             // load PrintStream and duplicate it for padding
-            writer.write("        getstatic Field java/lang/System out Ljava/io/PrintStream;\n");
+            code.field("getstatic", "java/lang/System", "out", "Ljava/io/PrintStream;");
 
             if (!last) {
-                this.dup(writer);
+                this.dup(code);
             }
 
             if (arg.type() == IR.TY.STRING) {
-                translateValue(writer, arg.val());
-                writer.write("        invokevirtual Method java/io/PrintStream " + method + " (Ljava/lang/String;)V\n");
+                translateValue(code, arg.val());
+                code.invoke("invokevirtual", "java/io/PrintStream", method, "(Ljava/lang/String;)V");
             } else if (arg.type() == IR.TY.VOID) {
                 // eval it anyway, then drop the result
-                translateValue(writer, arg.val());
-                writer.write("        pop\n");
+                translateValue(code, arg.val());
+                code.op("pop");
 
                 // if VOID, print empty string
-                writer.write("        ldc \"\"\n");
-                writer.write(
-                    "        invokevirtual Method java/io/PrintStream "
-                    + method
-                    + " (Ljava/lang/String;)V\n");
+                code.push("");
+                code.invoke("invokevirtual", "java/io/PrintStream", method, "(Ljava/lang/String;)V");
             } else {
-                translateValue(writer, arg.val());
+                translateValue(code, arg.val());
                 String typeDesc = jvmType(arg.type());
-                writer.write("        invokevirtual Method java/io/PrintStream " + method + " (" + typeDesc + ")V\n");
+                code.invoke("invokevirtual", "java/io/PrintStream", method, "(" + typeDesc + ")V");
             }
 
             // add "padding"
             if (!last) {
-                writer.write("        ldc \" \"\n");
-                writer.write("        invokevirtual Method java/io/PrintStream print (Ljava/lang/String;)V\n");
+                code.push(" ");
+                code.invoke("invokevirtual", "java/io/PrintStream", "print", "(Ljava/lang/String;)V");
             }
         }
     }
 
-    private void translateAssign(FileWriter writer, IR.Expr expr) throws IOException {
+    private void translateAssign(Bytecode code, IR.Expr expr) {
         IR.Var target = expr.vars().get(0);
         IR.Var value = expr.vars().get(1);
 
-        String varName = ((IR.Ref) target.val()).ident();
-        translateValue(writer, value.val());
+        IR.Ref ref = (IR.Ref) target.val();
+        String varName = ref.ident();
+        translateValue(code, value.val());
 
-        if (localVarMap.containsKey(varName)) {
-            storeVar(writer, varName, target.type());
+        if (ref.slot().isGlobal()) {
+            code.field("putstatic", className, varName, jvmType(target.type()));
         } else {
-            writer.write("        putstatic Field " + className + " " + varName + " " + jvmType(target.type()) + "\n");
+            storeVar(code, local(ref.slot(), target.type()));
+        }
+    }
+
+    // Appends go into a StringBuilder. Prepends go into an ArrayList of
+    // pieces joined in reverse order: the StringBuilder can't be reversed,
+    // reverse() keeps surrogate pairs together and the pieces may split one
+    private void translateBuilder(Bytecode code, IR.Expr expr) {
+        IR.Var target = expr.vars().get(0);
+        IR.Ref ref = (IR.Ref) target.val();
+        VarInfo acc = local(ref.slot(), target.type());
+        VarInfo builder = builders.computeIfAbsent(ref.ident(), name -> allocLocal(IR.TY.STRING));
+
+        switch (expr.op()) {
+            case "$sbOpen" -> {
+                if (Boolean.parseBoolean(((IR.Atom) expr.vars().get(1).val()).val())) {
+                    code.type("new", "java/util/ArrayList");
+                    this.dup(code);
+                    code.invoke("invokespecial", "java/util/ArrayList", "<init>", "()V");
+                    this.dup(code);
+                    loadVar(code, acc);
+                    code.invoke("invokevirtual", "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+                    code.op("pop");
+                } else {
+                    code.type("new", "java/lang/StringBuilder");
+                    this.dup(code);
+                    loadVar(code, acc);
+                    code.invoke("invokespecial", "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V");
+                }
+                storeVar(code, builder);
+            }
+            case "$sbAppend" -> {
+                loadVar(code, builder);
+                translateValue(code, expr.vars().get(1).val());
+                code.invoke("invokevirtual", "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+                code.op("pop");
+            }
+            case "$sbPrepend" -> {
+                loadVar(code, builder);
+                translateValue(code, expr.vars().get(1).val());
+                code.invoke("invokevirtual", "java/util/ArrayList", "add", "(Ljava/lang/Object;)Z");
+                code.op("pop");
+            }
+            case "$sbClose" -> {
+                if (Boolean.parseBoolean(((IR.Atom) expr.vars().get(1).val()).val())) {
+                    loadVar(code, builder);
+                    code.invoke("invokestatic", "java/util/Collections", "reverse", "(Ljava/util/List;)V");
+                    code.push("");
+                    loadVar(code, builder);
+                    code.invoke("invokestatic", "java/lang/String", "join", "(Ljava/lang/CharSequence;Ljava/lang/Iterable;)Ljava/lang/String;");
+                } else {
+                    loadVar(code, builder);
+                    code.invoke("invokevirtual", "java/lang/StringBuilder", "toString", "()Ljava/lang/String;");
+                }
+                storeVar(code, acc);
+            }
+            default -> throw new IllegalStateException("not a builder operation: " + expr.op());
         }
     }
 
-    private void translateReturn(FileWriter writer, IR.Expr expr) throws IOException {
-        translateValue(writer, expr.vars().getFirst().val());
+    private void translateReturn(Bytecode code, IR.Expr expr) {
+        translateValue(code, expr.vars().getFirst().val());
         IR.TY type = expr.vars().getFirst().type();
         if (type == IR.TY.INT || type == IR.TY.BOOL || type == IR.TY.VOID) {
-            writer.write("        ireturn\n");
+            code.op("ireturn");
         } else if (type == IR.TY.FLOAT) {
-            writer.write("        dreturn\n");
+            code.op("dreturn");
         } else if (type == IR.TY.STRING) {
-            writer.write("        areturn\n");
+            code.op("areturn");
         }
     }
 
     // --------------------------
     // Scoped constructs
     // --------------------------
-    private void translateScoped(FileWriter writer, IR.Scoped scoped) throws IOException {
+    private void translateScoped(Bytecode code, IR.Scoped scoped) {
         switch (scoped.kind()) {
-            case WHILE -> translateWhile(writer, scoped);
-            case FOR -> translateFor(writer, scoped);
-            default -> translateScope(writer, scoped.scope());
+            case WHILE -> translateWhile(code, scoped);
+            case FOR -> translateFor(code, scoped);
+            default -> translateScope(code, scoped.scope());
         }
     }
-    private void translateIf(FileWriter writer, IR.Scoped ifScoped, IR.Scoped elseScoped) throws IOException {
+    private void translateIf(Bytecode code, IR.Scoped ifScoped, IR.Scoped elseScoped) {
         String labelElse = createLabel("else");
         String labelEnd = createLabel("end_if");
 
-        translateValue(writer, ifScoped.dependencyValue().get());
-        writer.write("        ifeq " + labelElse + "\n");
+        translateValue(code, ifScoped.dependencyValue().get());
+        code.jump("ifeq", labelElse);
 
-        translateScope(writer, ifScoped.scope());
-        writer.write("        goto " + labelEnd + "\n");
+        translateScope(code, ifScoped.scope());
+        code.jump("goto", labelEnd);
 
-        writer.write(labelElse + ":\n");
+        code.label(labelElse);
         if (elseScoped != null) {
-            translateScope(writer, elseScoped.scope());
+            translateScope(code, elseScoped.scope());
         }
-        writer.write(labelEnd + ":\n");
+        code.label(labelEnd);
     }
 
-    private void translateWhile(FileWriter writer, IR.Scoped scoped) throws IOException {
+    private void translateWhile(Bytecode code, IR.Scoped scoped) {
         String labelStart = createLabel("while_start");
         String labelEnd = createLabel("while_end");
 
-        writer.write(labelStart + ":\n");
-        translateValue(writer, scoped.dependencyValue().get());
-        writer.write("        ifeq " + labelEnd + "\n");
+        code.label(labelStart);
+        translateValue(code, scoped.dependencyValue().get());
+        code.jump("ifeq", labelEnd);
 
-        translateScope(writer, scoped.scope());
-        writer.write("        goto " + labelStart + "\n");
-        writer.write(labelEnd + ":\n");
+        translateScope(code, scoped.scope());
+        code.jump("goto", labelStart);
+        code.label(labelEnd);
     }
 
-    private void translateFor(FileWriter writer, IR.Scoped scoped) throws IOException {
+    private void translateFor(Bytecode code, IR.Scoped scoped) {
 
         // ------ for i in range(A,B,step)
         if (scoped.dependencyValue().isPresent()
                 && scoped.dependencyValue().get() instanceof IR.Expr(String op, ArrayList<IR.Var> vars)
                 && op.equals("$iterRange")) {
 
-            String iterVar = scoped.bornVars().getFirst();
+            VarInfo iterVar = local(scoped.bornSlots().getFirst(), IR.TY.INT);
             IR.Value start = vars.get(0).val();
             IR.Value end = vars.get(1).val();
             IR.Value step = vars.get(2).val();
@@ -424,35 +724,35 @@ public class TranslatorJVM {
             String labelEnd = createLabel("for_end");
 
             // iterVar = start
-            translateValue(writer, start);
-            storeVar(writer, iterVar, IR.TY.INT);
+            translateValue(code, start);
+            storeVar(code, iterVar);
 
-            writer.write(labelStart + ":\n");
+            code.label(labelStart);
 
             // if iterVar >= end -> break
-            loadVar(writer, iterVar);
-            translateValue(writer, end);
-            writer.write("        if_icmpge " + labelEnd + "\n");
+            loadVar(code, iterVar);
+            translateValue(code, end);
+            code.jump("if_icmpge", labelEnd);
 
             // body
-            translateScope(writer, scoped.scope());
+            translateScope(code, scoped.scope());
 
             // iterVar += step
-            loadVar(writer, iterVar);
-            translateValue(writer, step);
-            writer.write("        iadd\n");
-            storeVar(writer, iterVar, IR.TY.INT);
+            loadVar(code, iterVar);
+            translateValue(code, step);
+            code.op("iadd");
+            storeVar(code, iterVar);
 
-            writer.write("        goto " + labelStart + "\n");
-            writer.write(labelEnd + ":\n");
+            code.jump("goto", labelStart);
+            code.label(labelEnd);
             return;
         }
 
         // ------ for ch in string
         // bornVars
-        String iterVar = scoped.bornVars().get(0);
-        String storeVar = scoped.bornVars().get(1);
-        String countVar = scoped.bornVars().get(2);
+        VarInfo iterVar = local(scoped.bornSlots().get(0), IR.TY.STRING);
+        VarInfo storeVar = local(scoped.bornSlots().get(1), IR.TY.STRING);
+        VarInfo countVar = local(scoped.bornSlots().get(2), IR.TY.INT);
 
         IR.Value iterable = scoped.dependencyValue().get();
 
@@ -461,61 +761,53 @@ public class TranslatorJVM {
         String labelEnd = createLabel("for_str_end");
 
         // storeVar = iterable
-        translateValue(writer, iterable);
-        storeVar(writer, storeVar, IR.TY.STRING);
+        translateValue(code, iterable);
+        storeVar(code, storeVar);
 
         // countVar = 0
-        writer.write("        iconst_0\n");
-        storeVar(writer, countVar, IR.TY.INT);
+        code.push(0);
+        storeVar(code, countVar);
 
-        writer.write(labelStart + ":\n");
+        code.label(labelStart);
 
         // if (countVar < storeVar.length()) goto body else end
-        loadVar(writer, countVar);
-        loadVar(writer, storeVar);
-        writer.write("        invokevirtual Method java/lang/String length ()I\n");
-        writer.write("        if_icmplt " + labelBody + "\n");
-        writer.write("        goto " + labelEnd + "\n");
+        loadVar(code, countVar);
+        loadVar(code, storeVar);
+        code.invoke("invokevirtual", "java/lang/String", "length", "()I");
+        code.jump("if_icmplt", labelBody);
+        code.jump("goto", labelEnd);
 
-        writer.write(labelBody + ":\n");
+        code.label(labelBody);
 
         // iterVar = String.valueOf(storeVar.charAt(countVar))
-        loadVar(writer, storeVar);
-        loadVar(writer, countVar);
-        writer.write("        invokevirtual Method java/lang/String charAt (I)C\n");
-        writer.write("        invokestatic Method java/lang/String valueOf (C)Ljava/lang/String;\n");
-        storeVar(writer, iterVar, IR.TY.STRING);
+        loadVar(code, storeVar);
+        loadVar(code, countVar);
+        code.invoke("invokevirtual", "java/lang/String", "charAt", "(I)C");
+        code.invoke("invokestatic", "java/lang/String", "valueOf", "(C)Ljava/lang/String;");
+        storeVar(code, iterVar);
 
         // body
-        translateScope(writer, scoped.scope());
+        translateScope(code, scoped.scope());
 
         // countVar += 1
-        loadVar(writer, countVar);
-        writer.write("        iconst_1\n");
-        writer.write("        iadd\n");
-        storeVar(writer, countVar, IR.TY.INT);
+        loadVar(code, countVar);
+        code.push(1);
+        code.op("iadd");
+        storeVar(code, countVar);
 
-        writer.write("        goto " + labelStart + "\n");
-        writer.write(labelEnd + ":\n");
+        code.jump("goto", labelStart);
+        code.label(labelEnd);
     }
 
-    private void translateSwitch(FileWriter writer, IR.Expr targetExpr, List<IR.Scoped> cases) throws IOException {
-        // save target
+    private void translateSwitch(Bytecode code, IR.Expr targetExpr, List<IR.Scoped> cases) {
+        // save target into a fresh local, it has no IR slot
         IR.Var targetVarOriginal = targetExpr.vars().getFirst();
         IR.TY targetType = targetVarOriginal.type();
 
-        String targetVarName = createLabel("switch_target_var");
-        if (!localVarMap.containsKey(targetVarName)) {
-            localVarMap.put(targetVarName, new VarInfo(localVarIndexCounter++, targetType));
-            if (targetType == IR.TY.FLOAT) localVarIndexCounter++;
-        }
+        VarInfo target = allocLocal(targetType);
 
-        translateValue(writer, targetExpr);
-        storeVar(writer, targetVarName, targetType);
-
-        // Prepare targetRef var to rewrite condition expressions
-        IR.Value targetRef = new IR.Ref(targetVarName);
-        IR.Var targetRefVar = new IR.Var(targetRef, targetType, null, false);
+        translateValue(code, targetVarOriginal.val());
+        storeVar(code, target);
 
         String labelEnd = createLabel("switch_end");
 
@@ -537,171 +829,175 @@ public class TranslatorJVM {
             if (i > 0) {
                 String jumpTarget = conditionLabels.get(i - 1);
                 if (!jumpTarget.equals(labelEnd)) {
-                    writer.write(jumpTarget + ":\n");
+                    code.label(jumpTarget);
                 }
             }
 
             // If the case has a condition -> evaluate it
             if (caseScoped.dependencyValue().isPresent()) {
                 IR.Value dependencyVal = caseScoped.dependencyValue().get();
-                if (dependencyVal instanceof IR.Expr(String op, ArrayList<IR.Var> vars)) {
-
-                    // Replace first var of condition expression with targetRefVar
-                    ArrayList<IR.Var> newVarsList = new ArrayList<>(vars);
-                    newVarsList.set(0, targetRefVar);
-                    IR.Expr fixedConditionExpr = new IR.Expr(op, newVarsList);
+                if (dependencyVal instanceof IR.Expr conditionExpr) {
 
-                    // Evaluate condition -> leaves int (0/1) on stack
-                    translateExpression(writer, fixedConditionExpr);
+                    // Evaluate condition against the saved target
+                    // -> leaves int (0/1) on stack
+                    translateSwitchExpr(code, conditionExpr, target);
 
                     // ifeq labelNextCond
-                    writer.write("        ifeq " + labelNextCond + "\n");
+                    code.jump("ifeq", labelNextCond);
                     // if true -> goto body
-                    writer.write("        goto " + labelCaseBody + "\n");
+                    code.jump("goto", labelCaseBody);
                 } else {
                     throw new IllegalStateException("Case dependency is not an Expression.");
                 }
             } else {
                 // default case
-                writer.write(labelCaseBody + ":\n");
-                translateScope(writer, caseScoped.scope());
-                writer.write("        goto " + labelEnd + "\n");
+                code.label(labelCaseBody);
+                translateScope(code, caseScoped.scope());
+                code.jump("goto", labelEnd);
                 continue;
             }
 
             // body
-            writer.write(labelCaseBody + ":\n");
-            translateScope(writer, caseScoped.scope());
-            writer.write("        goto " + labelEnd + "\n");
+            code.label(labelCaseBody);
+            translateScope(code, caseScoped.scope());
+            code.jump("goto", labelEnd);
         }
 
         // end
-        writer.write(labelEnd + ":\n");
+        code.label(labelEnd);
     }
 
     // --------------------------
     // Value & Expression translation
     // --------------------------
-    private void translateValue(FileWriter writer, IR.Value value) throws IOException {
-        if (value instanceof IR.Atom(IR.TY type, String val)) {
-            switch (type) {
-                case INT -> writer.write("        ldc " + val + "\n");
-                case FLOAT -> {
-                    try {
-                        double d = Double.parseDouble(val);
-                        if (Math.abs(d) < 0.001 || Math.abs(d) > 1000000) {
-                            val = String.format(Locale.US, "%.10f", d);
-                        } else {
-                            val = String.valueOf(d);
-                        }
-                        val = val.replace('E', 'e');
-                    } catch (NumberFormatException ignored) {}
-                    writer.write("        ldc2_w " + val + "\n");
-                }
-                case BOOL -> writer.write("        ldc " + (val.equals("true") ? 1 : 0) + "\n");
-                case STRING -> writer.write("        ldc \"" + val + "\"\n");
-                case VOID -> {}
-            }
-        } else if (value instanceof IR.Ref(String ident)) {
-            // boolean isVoidLocal = localVarMap.containsKey(ident) && localVarMap.get(ident).type() == IR.TY.VOID;
-            // boolean isVoidGlobal = !isVoidLocal && ir.scope().varMapping().containsKey(ident) && ir.scope().varMapping().get(ident).type() == IR.TY.VOID;
-            //
-            // if (isVoidLocal || isVoidGlobal) {
-            //     writer.write("        iconst_0\n"); // placeholder for void argument
-            //     return;
-            // }
-
-            if (localVarMap.containsKey(ident)) {
-                loadVar(writer, ident);
-            } else if (
-                ir.scope().varMapping().containsKey(ident)
-                    && ir.scope().varMapping().get(ident).type() != IR.TY.VOID
-            ) {
-                IR.Var globalVar = ir.scope().varMapping().get(ident);
-                if (globalVar != null) {
-                    writer.write("        getstatic Field " + className + " " + ident + " " + jvmType(globalVar.type()) + "\n");
-                }
+    // a translation step, emits its code once the operands before it are on the stack
+    private interface Step {
+        void emit();
+    }
+
+    // Generated code can nest expressions thousands of levels deep, so instead
+    // of recursing, the values still to translate and the steps that combine
+    // them wait on an explicit stack
+    private void translateValue(Bytecode code, IR.Value value) {
+        ArrayDeque<Object> work = new ArrayDeque<>();
+        work.push(value);
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case Step step -> step.emit();
+                case IR.Atom atom -> translateAtom(code, atom);
+                case IR.Ref ref -> translateRef(code, ref);
+                case IR.Expr expr -> expandExpression(code, expr, work);
+                case IR.Arg arg -> {}
+                default -> throw new IllegalStateException("not a value");
             }
-        } else if (value instanceof IR.Expr expr) {
-            translateExpression(writer, expr);
         }
     }
 
-    private void translateInput(FileWriter writer) throws IOException {
-        writer.write("        getstatic Field java/lang/System out Ljava/io/PrintStream;\n");
-        writer.write("        ldc \"> \"\n");
-        writer.write(
-            "        invokevirtual Method java/io/PrintStream "
-            + "print"
-            + " (Ljava/lang/String;)V\n");
+    private void translateAtom(Bytecode code, IR.Atom atom) {
+        String val = atom.val();
+        switch (atom.type()) {
+            case INT -> code.push(Integer.parseInt(val));
+            // every bit of the literal, no rounding to a number of decimals
+            case FLOAT -> code.push(Double.parseDouble(val));
+            case BOOL -> code.push(val.equals("true") ? 1 : 0);
+            case STRING -> code.push(val);
+            default -> {}
+        }
+    }
 
-        writer.write("        new java/util/Scanner\n");
-        this.dup(writer);
-        writer.write("        getstatic Field java/lang/System in Ljava/io/InputStream;\n");
-        writer.write("        invokespecial Method java/util/Scanner <init> (Ljava/io/InputStream;)V\n");
-        writer.write("        invokevirtual Method java/util/Scanner nextLine ()Ljava/lang/String;\n");
+    private void translateRef(Bytecode code, IR.Ref ref) {
+        IR.Slot slot = ref.slot();
+        if (!slot.isGlobal()) {
+            loadVar(code, local(slot, IR.TY.INT));
+        } else if (
+            slot.index() < globalTypes.size()
+                && globalTypes.get(slot.index()) != IR.TY.VOID
+        ) {
+            IR.TY globalType = globalTypes.get(slot.index());
+            code.field("getstatic", className, ref.ident(), jvmType(globalType));
+        }
+    }
+
+    private void translateInput(Bytecode code) {
+        code.field("getstatic", "java/lang/System", "out", "Ljava/io/PrintStream;");
+        code.push("> ");
+        code.invoke("invokevirtual", "java/io/PrintStream", "print", "(Ljava/lang/String;)V");
+
+        code.type("new", "java/util/Scanner");
+        this.dup(code);
+        code.field("getstatic", "java/lang/System", "in", "Ljava/io/InputStream;");
+        code.invoke("invokespecial", "java/util/Scanner", "<init>", "(Ljava/io/InputStream;)V");
+        code.invoke("invokevirtual", "java/util/Scanner", "nextLine", "()Ljava/lang/String;");
         return;
     }
 
-    private void translateFuncCall(
-        FileWriter writer, String op, IR.Expr expr
-    ) throws IOException {
-        for (IR.Var v : expr.vars()) {
-            translateValue(writer, v.val());
-        }
+    private void translateFuncCall(Bytecode code, String op) {
         IR.OpSpec spec = ir.opStore().get(op).alternatives().getFirst();
         String desc = jvmMethodDescriptor(spec.returnType(), spec.argTypes());
-        writer.write(
-            "        invokestatic Method "
-            + className
-            + " "
-            + op
-            + " "
-            + desc
-            + "\n"
-        );
-        // if (spec.returnType() == IR.TY.VOID) {
-        //     // placeholder if used inline
-        //     writer.write("        iconst_0\n");
-        // }
+        code.invoke("invokestatic", className, op, desc);
+    }
+
+    private void translateExpression(Bytecode code, IR.Expr expr) {
+        translateValue(code, expr);
     }
 
-    private void translateExpression(FileWriter writer, IR.Expr expr) throws IOException {
+    // Pushes the operands of the expression and the steps after them onto the
+    // work stack in reverse order: what is pushed last runs first
+    private void expandExpression(
+        Bytecode code, IR.Expr expr, ArrayDeque<Object> work
+    ) {
         String op = expr.op();
 
         if (op.equals("input")) {
-            translateInput(writer);
+            translateInput(code);
             return;
         }
 
         // user defined function call
         if (ir.opStore().containsKey(op) && !isBuiltin(op)) {
-            translateFuncCall(writer, op, expr);
+            work.push((Step) () -> translateFuncCall(code, op));
+            for (int i = expr.vars().size() - 1; i >= 0; i--) {
+                work.push(expr.vars().get(i).val());
+            }
             return;
         }
 
         if (op.startsWith("$case")) {
-            translateSwitchExpr(writer, expr, op);
-            return;
+            throw new IllegalStateException(
+                "Internal Translator Error: " + op + " outside of switch."
+            );
         }
 
+        Step i2d = () -> code.op("i2d");
 
         // unary ops
         if (expr.vars().size() == 1) {
-            translateValue(writer, expr.vars().getFirst().val());
             IR.TY type = expr.vars().getFirst().type();
-            switch (op) {
-                case "u-" -> {
-                    if (type == IR.TY.FLOAT) writer.write("        dneg\n");
-                    else if (type == IR.TY.INT) writer.write("        ineg\n");
-                }
-                case "u+" -> {}
-                case "!" -> {
-                    writer.write("        iconst_1\n");
-                    writer.write("        ixor\n");
+            work.push((Step) () -> {
+                switch (op) {
+                    case "u-" -> {
+                        if (type == IR.TY.FLOAT) code.op("dneg");
+                        else if (type == IR.TY.INT) code.op("ineg");
+                    }
+                    case "u+" -> {}
+                    case "!" -> {
+                        code.push(1);
+                        code.op("ixor");
+                    }
+                    default -> {}
                 }
-                default -> {}
+            });
+            work.push(expr.vars().getFirst().val());
+            return;
+        }
+
+        if (isSquareRoot(expr)) {
+            IR.Var base = expr.vars().getFirst();
+            work.push((Step) () -> translateSquareRoot(code));
+            if (base.type() == IR.TY.INT) {
+                work.push(i2d);
             }
+            work.push(base.val());
             return;
         }
 
@@ -712,96 +1008,99 @@ public class TranslatorJVM {
             IR.TY type1 = var1.type();
             IR.TY type2 = var2.type();
 
-            boolean isStringOp = (type1 == IR.TY.STRING && type2 == IR.TY.STRING);
-
             boolean isMixedNumeric = (type1 == IR.TY.INT && type2 == IR.TY.FLOAT) || (type1 == IR.TY.FLOAT && type2 == IR.TY.INT);
             boolean isDivision = op.equals("/");
             boolean isPowOp = op.equals("**");
             boolean isFloatOp = isMixedNumeric || type1 == IR.TY.FLOAT || isDivision || isPowOp;
             IR.TY effectiveType = isFloatOp ? IR.TY.FLOAT : type1;
 
-            // left operand
-            translateValue(writer, var1.val());
-            if (type1 == IR.TY.INT && effectiveType == IR.TY.FLOAT) {
-                writer.write("        i2d\n");
-            }
+            work.push((Step) () -> translateBinaryOp(code, op, type1, type2, effectiveType));
 
             // right operand
-            translateValue(writer, var2.val());
             if (type2 == IR.TY.INT && effectiveType == IR.TY.FLOAT) {
-                writer.write("        i2d\n");
+                work.push(i2d);
             }
+            work.push(var2.val());
 
-            switch (op) {
-                case "+" -> {
-                    if (type1 == IR.TY.STRING) writer.write("        invokevirtual Method java/lang/String concat (Ljava/lang/String;)Ljava/lang/String;\n");
-                    else if (effectiveType == IR.TY.FLOAT) writer.write("        dadd\n");
-                    else writer.write("        iadd\n");
-                }
-                case "-" -> writer.write(effectiveType == IR.TY.FLOAT ? "        dsub\n" : "        isub\n");
-                case "*" -> writer.write(effectiveType == IR.TY.FLOAT ? "        dmul\n" : "        imul\n");
-                case "/" -> writer.write("        ddiv\n");
-                case "**" -> writer.write("        invokestatic Method java/lang/Math pow (DD)D\n");
-                case ">", "<", ">=", "<=", "==", "!=" -> {
-                    if (isStringOp) {
-                        // [Ref_Str1, Ref_Str2] -> [Int (0, >0, <0)]
-                        writer.write("        invokevirtual Method java/lang/String compareTo (Ljava/lang/String;)I\n");
-
-                        // Comparison operators expect result (Int) vs zero (0)
-                        String compareOp = switch(op) {
-                            case "==" -> "if_icmpeq";  // Result == 0
-                            case "!=" -> "if_icmpne";  // Result != 0
-                            case ">" -> "if_icmpgt";   // Result > 0
-                            case "<" -> "if_icmplt";   // Result < 0
-                            case ">=" -> "if_icmpge";  // Result >= 0
-                            case "<=" -> "if_icmple";  // Result <= 0
-                            default -> throw new IllegalStateException("Unexpected operator: " + op);
-                        };
-
-                        // Push 0 onto stack for comparison
-                        writer.write("        ldc 0\n");
-
-                        // Generate comparison logic (consumes 0 and Int result)
-                        generateCmp(writer, IR.TY.INT, compareOp, compareOp); // Compare Int result vs 0
-
-                    } else {
-                        String intOp = switch(op) {
-                            case ">" -> "if_icmpgt"; case "<" -> "if_icmplt"; case "==" -> "if_icmpeq";
-                            case "!=" -> "if_icmpne"; case ">=" -> "if_icmpge"; case "<=" -> "if_icmple";
-                            default -> throw new IllegalStateException("Unexpected operator: " + op);
-                        };
-                        String floatOp = switch(op) {
-                            case "==" -> "ifeq"; case "!=" -> "ifne"; case ">" -> "ifgt";
-                            case "<" -> "iflt"; case ">=" -> "ifge"; case "<=" -> "ifle";
-                            default -> throw new IllegalStateException("Unexpected float operator: " + op);
-                        };
-                        generateCmp(writer, effectiveType, intOp, floatOp);
-                    }
-                }
-                case "&&" -> writer.write("        iand\n");
-                case "||" -> writer.write("        ior\n");
-                default -> {}
+            // left operand
+            if (type1 == IR.TY.INT && effectiveType == IR.TY.FLOAT) {
+                work.push(i2d);
             }
+            work.push(var1.val());
         }
     }
 
-    private void translateSwitchExpr(FileWriter writer, IR.Expr expr, String op) throws IOException {
-        IR.Var target = expr.vars().getFirst();
-        IR.TY targetType = target.type();
+    // both operands are on the stack already
+    private void translateBinaryOp(
+        Bytecode code, String op, IR.TY type1, IR.TY type2, IR.TY effectiveType
+    ) {
+        boolean isStringOp = (type1 == IR.TY.STRING && type2 == IR.TY.STRING);
+
+        switch (op) {
+            case "+" -> {
+                if (type1 == IR.TY.STRING) code.invoke("invokevirtual", "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;");
+                else if (effectiveType == IR.TY.FLOAT) code.op("dadd");
+                else code.op("iadd");
+            }
+            case "-" -> code.op(effectiveType == IR.TY.FLOAT ? "dsub" : "isub");
+            case "*" -> code.op(effectiveType == IR.TY.FLOAT ? "dmul" : "imul");
+            case "/" -> code.op("ddiv");
+            case "**" -> code.invoke("invokestatic", "java/lang/Math", "pow", "(DD)D");
+            case ">", "<", ">=", "<=", "==", "!=" -> {
+                if (isStringOp) {
+                    // [Ref_Str1, Ref_Str2] -> [Int (0, >0, <0)]
+                    code.invoke("invokevirtual", "java/lang/String", "compareTo", "(Ljava/lang/String;)I");
+
+                    // Comparison operators expect result (Int) vs zero (0)
+                    String compareOp = switch(op) {
+                        case "==" -> "if_icmpeq";  // Result == 0
+                        case "!=" -> "if_icmpne";  // Result != 0
+                        case ">" -> "if_icmpgt";   // Result > 0
+                        case "<" -> "if_icmplt";   // Result < 0
+                        case ">=" -> "if_icmpge";  // Result >= 0
+                        case "<=" -> "if_icmple";  // Result <= 0
+                        default -> throw new IllegalStateException("Unexpected operator: " + op);
+                    };
+
+                    // Push 0 onto stack for comparison
+                    code.push(0);
+
+                    // Generate comparison logic (consumes 0 and Int result)
+                    generateCmp(code, IR.TY.INT, compareOp, compareOp); // Compare Int result vs 0
 
-        if (!(target.val() instanceof IR.Ref(String ident))) {
-            throw new IllegalArgumentException("Internal Translator Error: Switch target must be an IR.Ref after processing.");
+                } else {
+                    String intOp = switch(op) {
+                        case ">" -> "if_icmpgt"; case "<" -> "if_icmplt"; case "==" -> "if_icmpeq";
+                        case "!=" -> "if_icmpne"; case ">=" -> "if_icmpge"; case "<=" -> "if_icmple";
+                        default -> throw new IllegalStateException("Unexpected operator: " + op);
+                    };
+                    String floatOp = switch(op) {
+                        case "==" -> "ifeq"; case "!=" -> "ifne"; case ">" -> "ifgt";
+                        case "<" -> "iflt"; case ">=" -> "ifge"; case "<=" -> "ifle";
+                        default -> throw new IllegalStateException("Unexpected float operator: " + op);
+                    };
+                    generateCmp(code, effectiveType, intOp, floatOp);
+                }
+            }
+            case "&&" -> code.op("iand");
+            case "||" -> code.op("ior");
+            default -> {}
         }
+    }
+
+    private void translateSwitchExpr(Bytecode code, IR.Expr expr, VarInfo ident) {
+        String op = expr.op();
+        IR.TY targetType = ident.type();
 
         switch (op) {
             case "$caseIs" -> {
-                loadVar(writer, ident);
-                translateValue(writer, expr.vars().get(1).val());
+                loadVar(code, ident);
+                translateValue(code, expr.vars().get(1).val());
 
                 if (targetType == IR.TY.STRING) {
-                    writer.write("        invokevirtual Method java/lang/String equals (Ljava/lang/Object;)Z\n");
+                    code.invoke("invokevirtual", "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
                 } else {
-                    generateCmp(writer, targetType, "if_icmpeq", "ifeq");
+                    generateCmp(code, targetType, "if_icmpeq", "ifeq");
                 }
                 return;
             }
@@ -810,46 +1109,46 @@ public class TranslatorJVM {
                 IR.Var max = expr.vars().get(2);
 
                 // target >= min
-                loadVar(writer, ident);
-                translateValue(writer, min.val());
-                generateCmp(writer, targetType, "if_icmpge", "ifge");
+                loadVar(code, ident);
+                translateValue(code, min.val());
+                generateCmp(code, targetType, "if_icmpge", "ifge");
 
                 // target < max
-                loadVar(writer, ident);
-                translateValue(writer, max.val());
-                generateCmp(writer, targetType, "if_icmplt", "iflt");
+                loadVar(code, ident);
+                translateValue(code, max.val());
+                generateCmp(code, targetType, "if_icmplt", "iflt");
 
-                writer.write("        iand\n");
+                code.op("iand");
                 return;
             }
             case "$caseOf" -> {
                 List<IR.Var> consts = expr.vars().subList(1, expr.vars().size());
                 if (consts.isEmpty()) {
-                    writer.write("        iconst_0\n");
+                    code.push(0);
                     return;
                 }
 
-                loadVar(writer, ident);
-                translateValue(writer, consts.getFirst().val());
+                loadVar(code, ident);
+                translateValue(code, consts.getFirst().val());
 
                 if (targetType == IR.TY.STRING) {
-                    writer.write("        invokevirtual Method java/lang/String equals (Ljava/lang/Object;)Z\n");
+                    code.invoke("invokevirtual", "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
                 } else {
-                    generateCmp(writer, targetType, "if_icmpeq", "ifeq");
+                    generateCmp(code, targetType, "if_icmpeq", "ifeq");
                 }
 
                 for (int i = 1; i < consts.size(); i++) {
 
-                    loadVar(writer, ident);
-                    translateValue(writer, consts.get(i).val());
+                    loadVar(code, ident);
+                    translateValue(code, consts.get(i).val());
 
                     if (targetType == IR.TY.STRING) {
-                        writer.write("        invokevirtual Method java/lang/String equals (Ljava/lang/Object;)Z\n");
+                        code.invoke("invokevirtual", "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
                     } else {
-                        generateCmp(writer, targetType, "if_icmpeq", "ifeq");
+                        generateCmp(code, targetType, "if_icmpeq", "ifeq");
                     }
 
-                    writer.write("        ior\n");
+                    code.op("ior");
                 }
             }
         }
@@ -860,56 +1159,84 @@ public class TranslatorJVM {
     // --------------------------
     // Helpers
     // --------------------------
-    private void generateCmp(FileWriter writer, IR.TY type, String intOp, String doubleOp) throws IOException {
+    // `x ** 0.5`
+    private static boolean isSquareRoot(IR.Expr expr) {
+        return expr.op().equals("**")
+            && expr.vars().get(1).val() instanceof IR.Atom exponent
+            && Double.parseDouble(exponent.val()) == 0.5;
+    }
+
+    // Math.sqrt() instead of Math.pow(), with the answers pow() gives for
+    // -0.0 and -Infinity
+    // the base is on the stack already, as a double
+    private void translateSquareRoot(Bytecode code) {
+        String sqrtLabel = createLabel("sqrt");
+        // -0.0 + 0.0 is 0.0
+        code.push(0.0);
+        code.op("dadd");
+        code.op("dup2");
+        code.field("getstatic", "java/lang/Double", "NEGATIVE_INFINITY", "D");
+        code.op("dcmpl");
+        code.jump("ifne", sqrtLabel);
+        code.op("dneg");
+        code.label(sqrtLabel);
+        code.invoke("invokestatic", "java/lang/Math", "sqrt", "(D)D");
+    }
+
+    private void generateCmp(Bytecode code, IR.TY type, String intOp, String doubleOp) {
         String trueLabel = createLabel("true");
         String endLabel = createLabel("cmp_end");
         if (type == IR.TY.FLOAT) {
-            writer.write("        dcmpl\n");
-            writer.write("        " + doubleOp + " " + trueLabel + "\n");
+            code.op("dcmpl");
+            code.jump(doubleOp, trueLabel);
         } else {
-            writer.write("        " + intOp + " " + trueLabel + "\n");
+            code.jump(intOp, trueLabel);
         }
-        writer.write("        iconst_0\n");
-        writer.write("        goto " + endLabel + "\n");
-        writer.write(trueLabel + ":\n");
-        writer.write("        iconst_1\n");
-        writer.write(endLabel + ":\n");
+        code.push(0);
+        code.jump("goto", endLabel);
+        code.label(trueLabel);
+        code.push(1);
+        code.label(endLabel);
     }
 
-    private void storeVar(FileWriter writer, String name, IR.TY type) throws IOException {
-        if (!localVarMap.containsKey(name)) {
-            localVarMap.put(name, new VarInfo(localVarIndexCounter++, type));
-            if (type == IR.TY.FLOAT) localVarIndexCounter++;
+    // local for the IR slot, allocated on first use
+    private VarInfo local(IR.Slot slot, IR.TY type) {
+        while (locals.size() <= slot.index()) {
+            locals.add(null);
         }
 
-        VarInfo info = localVarMap.get(name);
-        int idx = info.index;
-        switch (type) {
-            case INT, BOOL, VOID -> writer.write("        istore " + idx + "\n");
-            case FLOAT -> writer.write("        dstore " + idx + "\n");
-            case STRING -> writer.write("        astore " + idx + "\n");
-            default -> {}
+        VarInfo info = locals.get(slot.index());
+        if (info == null) {
+            info = allocLocal(type);
+            locals.set(slot.index(), info);
         }
+        return info;
+    }
+
+    private VarInfo allocLocal(IR.TY type) {
+        VarInfo info = new VarInfo(localVarIndexCounter++, type);
+        if (type == IR.TY.FLOAT) localVarIndexCounter++; // wide slot
+        return info;
     }
 
-    private void loadVar(FileWriter writer, String name) throws IOException {
-        if (!localVarMap.containsKey(name)) {
-            // fallback registration as INT
-            localVarMap.put(name, new VarInfo(localVarIndexCounter++, IR.TY.INT));
+    private void storeVar(Bytecode code, VarInfo info) {
+        int idx = info.index;
+        switch (info.type) {
+            case INT, BOOL, VOID -> code.local("istore", idx);
+            case FLOAT -> code.local("dstore", idx);
+            case STRING -> code.local("astore", idx);
+            default -> {}
         }
+    }
 
-        VarInfo info = localVarMap.get(name);
+    private void loadVar(Bytecode code, VarInfo info) {
         int idx = info.index;
 
-        // if (info.type == IR.TY.VOID) {
-        //     writer.write("        iconst_0\n");
-        //     return;
-        // }
         switch (info.type) {
-            case INT, BOOL, VOID -> writer.write("        iload " + idx + "\n");
-            case FLOAT -> writer.write("        dload " + idx + "\n");
-            case STRING -> writer.write("        aload " + idx + "\n");
-            default -> writer.write("        aload " + idx + "\n");
+            case INT, BOOL, VOID -> code.local("iload", idx);
+            case FLOAT -> code.local("dload", idx);
+            case STRING -> code.local("aload", idx);
+            default -> code.local("aload", idx);
         }
     }
 
@@ -927,6 +1254,9 @@ public class TranslatorJVM {
             case FLOAT -> "D";
             case BOOL -> "Z";
             case STRING -> "Ljava/lang/String;";
+            case ERROR -> throw new IllegalStateException(
+                "poisoned type reached code generation"
+            );
         };
     }
 
@@ -936,17 +1266,17 @@ public class TranslatorJVM {
         return "(" + args + ")" + returnDesc;
     }
 
-    private void generateThrow(FileWriter writer, IR.Expr expr) throws IOException {
+    private void generateThrow(Bytecode code, IR.Expr expr) {
         IR.Var message = expr.vars().getFirst();
 
-        writer.write("        new java/lang/RuntimeException\n");
-        this.dup(writer);
-        translateValue(writer, message.val()); // помістити рядок на стек
-        writer.write("        invokespecial Method java/lang/RuntimeException <init> (Ljava/lang/String;)V\n");
-        writer.write("        athrow\n");
+        code.type("new", "java/lang/RuntimeException");
+        this.dup(code);
+        translateValue(code, message.val()); // push the message string
+        code.invoke("invokespecial", "java/lang/RuntimeException", "<init>", "(Ljava/lang/String;)V");
+        code.op("athrow");
     }
 
-    private void dup(FileWriter writer) throws IOException {
-        writer.write("        dup\n");
+    private void dup(Bytecode code) {
+        code.op("dup");
     }
 }
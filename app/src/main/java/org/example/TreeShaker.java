@@ -0,0 +1,134 @@
+package org.example;
+
+import java.util.*;
+
+// Whole-program removal of unused functions and globals, in place.
+//
+// What `main` can reach is kept: the functions it calls and the globals it
+// reads, then what those call and read, and so on. A global whose value
+// isn't pure is kept as well, its initialisation runs before `main` even
+// if nothing reads it, and whatever it reaches with it. Everything else
+// leaves the global scope, and functions leave the operator store too, so
+// the backends don't emit them.
+//
+// An IR without `main` is left alone, there is nothing to start from.
+public final class TreeShaker {
+    private final IR ir;
+    private final Purity purity;
+
+    private final HashMap<String, IR.Scoped> functions = new HashMap<>();
+    private final HashMap<String, IR.NewVar> globals = new HashMap<>();
+    private final HashSet<String> reachedFunctions = new HashSet<>();
+    private final HashSet<String> reachedGlobals = new HashSet<>();
+    // function bodies and global values reached, but not looked into yet
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    public TreeShaker(IR ir) {
+        this.ir = ir;
+        this.purity = new Purity(ir);
+        for (var entry : ir.scope().entries()) {
+            switch (entry) {
+                case IR.Scoped scoped when scoped.kind() == IR.SCOPE_KIND.FUN ->
+                    this.functions.put(scoped.scope().funcName(), scoped);
+                case IR.NewVar newVar -> this.globals.put(newVar.name(), newVar);
+                default -> {}
+            }
+        }
+    }
+
+    // returns the number of functions and globals removed
+    public int shake() {
+        if (!this.functions.containsKey("main")) {
+            return 0;
+        }
+        this.reachFunction("main");
+        for (var global : this.globals.values()) {
+            if (!this.purity.isPure(global.v().val())) {
+                this.reachGlobal(global.name());
+            }
+        }
+        while (!this.pending.isEmpty()) {
+            switch (this.pending.pop()) {
+                case IR.Scope body -> this.visit(body);
+                case IR.Value value -> this.visit(value);
+                default -> throw new IllegalStateException("nothing to visit");
+            }
+        }
+
+        var scope = this.ir.scope();
+        var out = new ArrayList<IR.Entry>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Scoped scoped when scoped.kind() == IR.SCOPE_KIND.FUN -> {
+                    var name = scoped.scope().funcName();
+                    if (this.reachedFunctions.contains(name)) {
+                        out.add(entry);
+                    } else {
+                        this.ir.opStore().remove(name);
+                    }
+                }
+                case IR.NewVar newVar -> {
+                    if (this.reachedGlobals.contains(newVar.name())) {
+                        out.add(entry);
+                    } else {
+                        scope.varMapping().remove(newVar.name());
+                    }
+                }
+                default -> out.add(entry);
+            }
+        }
+        var removed = scope.entries().size() - out.size();
+        scope.entries().clear();
+        scope.entries().addAll(out);
+        return removed;
+    }
+
+    private void reachFunction(String name) {
+        if (this.reachedFunctions.add(name)) {
+            this.pending.push(this.functions.get(name).scope());
+        }
+    }
+
+    private void reachGlobal(String name) {
+        if (this.reachedGlobals.add(name)) {
+            this.pending.push(this.globals.get(name).v().val());
+        }
+    }
+
+    /*
+     * Uses
+     */
+
+    private void visit(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Noop _ -> {}
+                case IR.NewVar newVar -> this.visit(newVar.v().val());
+                case IR.Expr expr -> this.visit(expr);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(this::visit);
+                    this.visit(scoped.scope());
+                }
+            }
+        }
+    }
+
+    private void visit(IR.Value value) {
+        switch (value) {
+            case IR.Ref ref -> {
+                if (ref.slot().isGlobal() && this.globals.containsKey(ref.ident())) {
+                    this.reachGlobal(ref.ident());
+                }
+            }
+            case IR.Expr expr -> {
+                if (this.functions.containsKey(expr.op())) {
+                    this.reachFunction(expr.op());
+                }
+                for (var v : expr.vars()) {
+                    this.visit(v.val());
+                }
+            }
+            case IR.Atom _, IR.Arg _ -> {}
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package org.example;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.text.MessageFormat;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -25,111 +29,94 @@ class Typer {
      */
     ST parseTree;
     ArrayList<Integer> lineIndex;
-    private Integer scopeCounter = 0;
+    // Function bodies get their range of scope ids reserved when they are
+    // declared, so each checker hands out ids from its own counter and the
+    // numbering doesn't depend on which body is checked first.
+    private int scopeCounter = 0;
+    // dispatch tables, built-ins are shared, user functions are ours
+    OperatorRegistry operators;
+    // bindings visible at the current point of the walk
+    SymbolTable symbols;
+    // check function bodies on BODY_POOL
+    boolean parallel = true;
+    // keep going after semantic errors and report all of them at the end
+    boolean collectErrors = false;
+    // errors found so far, only filled when collecting
+    ArrayList<Diagnostic> diagnostics = new ArrayList<>();
+
+    // Expressions are lowered with a work stack of their own, but checking
+    // still recurses once per nested statement and scope, so workers get a
+    // stack at least as big as the main thread has. ForkJoin workers are
+    // stuck with the default one, which deeply nested blocks overflow.
+    private static final long BODY_STACK_SIZE = 16L << 20;
+    private static final ExecutorService BODY_POOL = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        (task) -> {
+            var thread = new Thread(null, task, "typer-body", BODY_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+    );
 
     /* Typer output
      */
-    public IR ir = new IR(
-        IR.defaultOperatorMap(),
-        new IR.Scope(
-            // parent scope
-            null,
-            this.nextScopeId(),
-            // global namespace
-            "",
-            // name mappings
-            new LinkedHashMap<String, IR.Var>(),
-            // for vars and scopes
-            new ArrayList<IR.Entry>()
-        )
-    );
+    public IR ir;
 
     /*
      * Logger
      */
     private static final Logger log = LogManager.getLogger("typer");
 
-    IR.Var lookupRef(
+    // null only when collecting errors, the error is already reported
+    SymbolTable.Binding lookupRef(
         String ident, Pair<Integer, Integer> span, IR.Scope scope
     ) {
-        var currentScope = scope;
-        while (true) {
-            var find = currentScope.varMapping().get(ident);
-            if (find != null) {
-                return find;
-            }
-            if (currentScope.parentScope() == null) {
-                throw fail(
-                    span,
-                    "var <" + ident + "> can't be found",
-                    "you might forgot to set it"
-                );
-            }
-            currentScope = currentScope.parentScope();
+        var find = this.symbols.lookup(ident);
+        if (find == null) {
+            this.report(
+                span,
+                "var <" + ident + "> can't be found",
+                "you might forgot to set it"
+            );
         }
-    }
-
-    IR.TY typeCheckExpression(
-        IR.Value expr, Pair<Integer, Integer> span, IR.Scope scope
-    ) {
-        return switch (expr) {
-            case IR.Atom(var type, var value) -> type;
-            case IR.Ref(var ident) -> {
-                yield this.lookupRef(ident, span, scope).type();
-            }
-            case IR.Expr e -> {
-                yield this.resolveExpr(e, span, scope);
-            }
-            case IR.Arg(var type) -> type;
-        };
+        return find;
     }
 
     IR.TY resolveExpr(
         IR.Expr expr, Pair<Integer, Integer> span, IR.Scope scope
     ) {
         log.debug(expr);
-        var types = expr
-            .vars()
-            .stream()
-            .map(p -> p.type())
-            .collect(Collectors.toCollection(ArrayList::new));
-        var operator = this.ir.opStore().get(expr.op());
-        log.debug(types);
-        log.debug(operator);
-        if (operator == null) {
-            throw fail(
+        if (!this.operators.contains(expr.op())) {
+            this.report(
                 span,
                 "undefined function: " + expr.op(),
                 "maybe you forgot to define it?"
             );
+            return IR.TY.ERROR;
         }
-
-        for (var alt : operator.alternatives()) {
-            if (alt.argTypes().equals(types)) {
-                return alt.returnType();
+        // the argument is already reported, don't pile up on it
+        for (var v : expr.vars()) {
+            if (v.type() == IR.TY.ERROR) {
+                return IR.TY.ERROR;
             }
         }
-        throw fail(
+
+        var returnType = this.operators.resolve(expr.op(), expr.vars());
+        if (returnType != null) {
+            return returnType;
+        }
+
+        var types = expr
+            .vars()
+            .stream()
+            .map(p -> p.type())
+            .collect(Collectors.toCollection(ArrayList::new));
+        this.report(
             span,
             "can't apply operator to parameters: " + expr.op(),
             "your parameters: " + types
         );
-    }
-
-    IR.TY toType(
-        ST.Expression expr, Pair<Integer, Integer> span, IR.Scope scope
-    ) {
-        var value = this.toValue(expr, span, scope);
-        return typeCheckExpression(value, span, scope);
-    }
-
-    IR.Var toVar(
-        ST.Expression expr, Pair<Integer, Integer> span, IR.Scope scope
-    ) {
-        var value = this.toValue(expr, span, scope);
-        var type = this.toType(expr, span, scope);
-
-        return new IR.Var(value, type, span, false);
+        return IR.TY.ERROR;
     }
 
     IR.Var atomVar(IR.TY type, String val, Pair<Integer, Integer> span) {
@@ -138,46 +125,85 @@ class Typer {
         return new IR.Var(atom, type, span, false);
     }
 
-    IR.Value toValue(
+    // Lowers expression into IR and typechecks it in one go.
+    //
+    // Every node is visited exactly once, children are lowered first and
+    // their types are then used to resolve the operator. Generated code can
+    // chain thousands of operators, so the walk keeps its own stacks
+    // instead of recursing: nodes waiting to be lowered or built on `work`,
+    // lowered operands on `done`.
+    IR.Var toVar(
         ST.Expression expr, Pair<Integer, Integer> span, IR.Scope scope
     ) {
-        return switch (expr) {
-            case ST.IntLiteralExpr(var intLiteral) -> {
-                yield new IR.Atom(IR.TY.INT, intLiteral.toString());
-            }
-            case ST.FloatLiteralExpr(var floatLiteral) -> {
-                yield new IR.Atom(IR.TY.FLOAT, floatLiteral.toString());
-            }
-            case ST.StrLiteralExpr(var strLiteral) -> {
-                yield new IR.Atom(IR.TY.STRING, strLiteral);
-            }
-            case ST.BoolLiteralExpr(var boolLiteral) -> {
-                yield new IR.Atom(IR.TY.BOOL, boolLiteral.toString());
-            }
-            case ST.BinOpExpr(var op, var a, var b) -> {
-                var aVar = this.toVar(a, span, scope);
-                var bVar = this.toVar(b, span, scope);
-                yield new IR.Expr(IR.binOpCode(op), new ArrayList<IR.Var>(
-                    List.of(aVar, bVar)
-                ));
-            }
-            case ST.UnaryOpExpr(var op, var a) -> {
-                var aVar = this.toVar(a, span, scope);
-                yield new IR.Expr(IR.unOpCode(op), new ArrayList<IR.Var>(
-                    List.of(aVar)
-                ));
-            }
-            case ST.IdentExpr(String identExpr) -> {
-                yield new IR.Ref(identExpr);
-            }
-            case ST.FuncCallExpr(var callIdent, var args) -> {
-                var funArgs = args
-                    .stream()
-                    .map((e) -> this.toVar(e, span, scope))
-                    .collect(Collectors.toCollection(ArrayList::new));
-                yield new IR.Expr(callIdent, funArgs);
+        var work = new ArrayDeque<Object>();
+        var done = new ArrayDeque<IR.Var>();
+        work.push(expr);
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case ST.IntLiteralExpr(var intLiteral) ->
+                    done.push(atomVar(IR.TY.INT, intLiteral.toString(), span));
+                case ST.FloatLiteralExpr(var floatLiteral) ->
+                    done.push(atomVar(IR.TY.FLOAT, floatLiteral.toString(), span));
+                case ST.StrLiteralExpr(var strLiteral) ->
+                    done.push(atomVar(IR.TY.STRING, strLiteral, span));
+                case ST.BoolLiteralExpr(var boolLiteral) ->
+                    done.push(atomVar(IR.TY.BOOL, boolLiteral.toString(), span));
+                case ST.IdentExpr(String identExpr) -> {
+                    var binding = this.lookupRef(identExpr, span, scope);
+                    if (binding == null) {
+                        done.push(new IR.Var(
+                            new IR.Ref(identExpr), IR.TY.ERROR, span, false
+                        ));
+                    } else {
+                        done.push(new IR.Var(
+                            new IR.Ref(binding.unique(), binding.slot()),
+                            binding.v().type(),
+                            span,
+                            false
+                        ));
+                    }
+                }
+                case ST.BinOpExpr(var op, var a, var b) -> {
+                    work.push(new Build(IR.binOpCode(op), 2));
+                    work.push(b);
+                    work.push(a);
+                }
+                case ST.UnaryOpExpr(var op, var a) -> {
+                    work.push(new Build(IR.unOpCode(op), 1));
+                    work.push(a);
+                }
+                case ST.FuncCallExpr(var callIdent, var args) -> {
+                    work.push(new Build(callIdent, args.size()));
+                    for (var idx = args.size() - 1; idx >= 0; idx--) {
+                        work.push(args.get(idx));
+                    }
+                }
+                case Build(var op, var arity) -> {
+                    var vars = new ArrayList<IR.Var>(Collections.nCopies(arity, null));
+                    for (var idx = arity - 1; idx >= 0; idx--) {
+                        vars.set(idx, done.pop());
+                    }
+                    var e = new IR.Expr(op, vars);
+                    done.push(new IR.Var(e, this.resolveExpr(e, span, scope), span, false));
+                }
+                default -> throw new IllegalStateException("not an expression");
             }
-        };
+        }
+        return done.pop();
+    }
+
+    // an operator to apply once its operands are lowered
+    private record Build(String op, int arity) {}
+
+    ArrayList<IR.Var> toVars(
+        List<ST.Expression> exprs,
+        Pair<Integer, Integer> span,
+        IR.Scope scope
+    ) {
+        return exprs
+            .stream()
+            .map((e) -> this.toVar(e, span, scope))
+            .collect(Collectors.toCollection(ArrayList::new));
     }
 
     void typeCheckNewVar(
@@ -188,41 +214,53 @@ class Typer {
         Pair<Integer, Integer> span,
         IR.Scope scope
     ) {
-        log.debug(
-            String.format("typecheck new var: %s %s\n%s", name, type, expr)
-        );
+        // formatted only when enabled, printing a deep expression recurses
+        log.debug("typecheck new var: {} {}\n{}", name, type, expr);
         log.debug(span);
 
-        var value = this.toValue(expr, span, scope);
-
-        var valueType = typeCheckExpression(value, span, scope);
+        var lowered = this.toVar(expr, span, scope);
+        var value = lowered.val();
+        var valueType = lowered.type();
 
         IR.TY resType;
         if (type.isPresent()) {
             var claimedType = IR.typeFromST(type.get());
-            if (claimedType == valueType) {
-                resType = valueType;
-            } else {
-                throw fail(
+            if (claimedType != valueType && valueType != IR.TY.ERROR) {
+                this.report(
                     span,
                     "wrong type",
                     "expected: " + valueType + " specified: " + claimedType
                 );
             }
+            // trust the annotation, so later uses are checked against it
+            resType = claimedType;
         } else {
             resType = valueType;
         }
 
         var variable = new IR.Var(value, resType, span, mutable);
-        var newVar = new IR.NewVar(name, variable);
-        scope.entries().add(newVar);
-        if (scope.varMapping().containsKey(name)) {
+        var unique = IR.mangle(name, scope.scopeId());
+        if (scope.varMapping().containsKey(unique)) {
+            scope.entries().add(new IR.NewVar(unique, variable));
             throw fail(span, "already declared", "not allowed");
         } else {
-            scope.varMapping().put(name, variable);
+            var binding = this.bind(name, unique, variable, scope);
+            scope.entries().add(new IR.NewVar(unique, variable, binding.slot()));
         }
     }
 
+    // Declares the binding in the symbol table and in the IR scope.
+    //
+    // The IR only ever sees the unique name, so there is nothing to rename
+    // once checking is done.
+    SymbolTable.Binding bind(
+        String name, String unique, IR.Var v, IR.Scope scope
+    ) {
+        var binding = this.symbols.declare(name, unique, v);
+        scope.varMapping().put(unique, v);
+        return binding;
+    }
+
     void typeCheckBlock(
         ST.Block block,
         IR.Scope scope
@@ -231,136 +269,152 @@ class Typer {
         for (var idx = 0; idx < stmts; idx++) {
             var stmt = block.stmts().get(idx);
             var span = block.spans().get(idx);
-            switch (stmt) {
-                case ST.LetStmt(
-                    var letName,
-                    var letType,
-                    var expr
-                ) -> typeCheckNewVar(
-                    letName, letType, expr, false, span, scope
-                );
-                case ST.VarStmt(
-                    var letName,
-                    var letType,
-                    var expr
-                ) -> typeCheckNewVar(
-                    letName, letType, expr, true, span, scope
-                );
-                case ST.ReturnStmt(var expr) -> {
-                    var value = this.toValue(expr, span, scope);
-                    var type = this.typeCheckExpression(value, span, scope);
-                    var fun = this.ir.opStore().get(scope.funcName());
-                    for (var alt : fun.alternatives()) {
+            try {
+                switch (stmt) {
+                    case ST.LetStmt(
+                        var letName,
+                        var letType,
+                        var expr
+                    ) -> typeCheckNewVar(
+                        letName, letType, expr, false, span, scope
+                    );
+                    case ST.VarStmt(
+                        var letName,
+                        var letType,
+                        var expr
+                    ) -> typeCheckNewVar(
+                        letName, letType, expr, true, span, scope
+                    );
+                    case ST.ReturnStmt(var expr) -> {
+                        var lowered = this.toVar(expr, span, scope);
+                        var type = lowered.type();
+                        var fun = this.ir.opStore().get(scope.funcName());
                         // FIXME: can't do typecasts
-                        if (alt.returnType().equals(type)) {
-                            var action = new IR.Expr("$return", new ArrayList<>(
-                                List.of(
-                                    this.toVar(expr, span, scope)
-                                )
-                            ));
-                            scope.entries().add(action);
-                            return;
+                        var matches = type == IR.TY.ERROR || fun
+                            .alternatives()
+                            .stream()
+                            .anyMatch(alt -> alt.returnType().equals(type));
+                        if (!matches) {
+                            var types = fun
+                                .alternatives()
+                                .stream()
+                                .map(p -> p.returnType())
+                                .collect(Collectors.toCollection(ArrayList::new));
+                            this.report(
+                                span,
+                                "unexpected return type",
+                                "expected: " + types + " got: " + type
+                            );
                         }
+                        var action = new IR.Expr("$return", new ArrayList<>(
+                            List.of(lowered)
+                        ));
+                        scope.entries().add(action);
+                        return;
                     }
-                    var types = fun
-                        .alternatives()
-                        .stream()
-                        .map(p -> p.returnType())
-                        .collect(Collectors.toCollection(ArrayList::new));
-                    throw fail(
-                        span,
-                        "unexpected return type",
-                        "expected: " + types + " got: " + type
-                    );
-                }
-                case ST.AssignStmt(var ident, var expr) -> {
-                    var value = this.toValue(expr, span, scope);
-                    var type = this.typeCheckExpression(value, span, scope);
-                    var tgt = this.lookupRef(ident, span, scope);
-                    if (!tgt.mutable()) {
-                        throw fail(
-                            span,
-                            "cant mutate " + ident,
-                            "variable was defined at " + formatSpan(tgt.span())
+                    case ST.AssignStmt(var ident, var expr) -> {
+                        var lowered = this.toVar(expr, span, scope);
+                        var type = lowered.type();
+                        var binding = this.lookupRef(ident, span, scope);
+                        if (binding == null) {
+                            // reported, nothing to assign to
+                            continue;
+                        }
+                        var tgt = binding.v();
+                        if (!tgt.mutable()) {
+                            this.report(
+                                span,
+                                "cant mutate " + ident,
+                                "variable was defined at " + formatSpan(tgt.span())
+                            );
+                        }
+                        if (
+                            tgt.type() != type
+                            && tgt.type() != IR.TY.ERROR
+                            && type != IR.TY.ERROR
+                        ) {
+                            this.report(
+                                span,
+                                "wrong assignment "
+                                    + ident
+                                    + " "
+                                    + typeMismatch(
+                                        tgt.type(),
+                                        type
+                                    ),
+                                "variable was defined at " + formatSpan(tgt.span())
+                            );
+                        }
+
+                        //  new IR.Var for the l-val using this reference
+                        var targetRefValue = new IR.Ref(
+                            binding.unique(), binding.slot()
                         );
-                    }
-                    if (tgt.type() != type) {
-                        throw fail(
-                            span,
-                            "wrong assignment "
-                                + ident
-                                + " "
-                                + typeMismatch(
-                                    tgt.type(),
-                                    type
-                                ),
-                            "variable was defined at " + formatSpan(tgt.span())
+                        var targetRefVar = new IR.Var(
+                                targetRefValue, // Ref(ident)
+                                tgt.type(),
+                                tgt.span(),
+                                true
                         );
-                    }
 
-                    //  new IR.Var for the l-val using this reference
-                    var targetRefValue = new IR.Ref(ident);
-                    var targetRefVar = new IR.Var(
-                            targetRefValue, // Ref(ident)
-                            tgt.type(),
-                            tgt.span(),
-                            true
+                        var action = new IR.Expr("$assign", new ArrayList<>(
+                                List.of(
+                                        targetRefVar,
+                                        lowered
+                                )
+                        ));
+                        scope.entries().add(action);
+                    }
+                    case ST.SwitchStmt s -> this.typeCheckSwitchStmt(
+                        s, span, scope
                     );
-
-                    var action = new IR.Expr("$assign", new ArrayList<>(
-                            List.of(
-                                    targetRefVar,
-                                    this.toVar(expr, span, scope)
-                            )
-                    ));
-                    scope.entries().add(action);
-                }
-                case ST.SwitchStmt s -> this.typeCheckSwitchStmt(
-                    s, span, scope
-                );
-                case ST.PrintStmt(var exprs) -> {
-                    for (var expr : exprs) {
-                        var value = this.toValue(expr, span, scope);
-                        var type = this.typeCheckExpression(value, span, scope);
+                    case ST.PrintStmt(var exprs) -> {
+                        var args = this.toVars(exprs, span, scope);
+                        var action = new IR.Expr("print", args);
+                        scope.entries().add(action);
                     }
-                    var args = exprs
-                        .stream()
-                        .map((e) -> this.toVar(e, span, scope))
-                        .collect(Collectors.toCollection(ArrayList::new));
-                    var action = new IR.Expr("print", args);
-                    scope.entries().add(action);
-                }
-                case ST.IfStmt ifStmt -> {
-                    typeCheckIfStmt(ifStmt, span, scope);
-                }
-                case ST.WhileStmt whileStmt -> {
-                    typeCheckWhileStmt(whileStmt, span, scope);
-                }
-                case ST.ForStmt forStmt -> {
-                    typeCheckForStmt(forStmt, span, scope);
-                }
-                case ST.FuncCallStmt(var callIdent, var args) -> {
-                    for (var expr : args) {
-                        var value = this.toValue(expr, span, scope);
-                        var type = this.typeCheckExpression(value, span, scope);
+                    case ST.IfStmt ifStmt -> {
+                        typeCheckIfStmt(ifStmt, span, scope);
                     }
-                    var funArgs = args
-                        .stream()
-                        .map((e) -> this.toVar(e, span, scope))
-                        .collect(Collectors.toCollection(ArrayList::new));
+                    case ST.WhileStmt whileStmt -> {
+                        typeCheckWhileStmt(whileStmt, span, scope);
+                    }
+                    case ST.ForStmt forStmt -> {
+                        typeCheckForStmt(forStmt, span, scope);
+                    }
+                    case ST.FuncCallStmt(var callIdent, var args) -> {
+                        var funArgs = this.toVars(args, span, scope);
 
-                    var action = new IR.Expr(callIdent, funArgs);
-                    this.resolveExpr(action, span, scope);
+                        var action = new IR.Expr(callIdent, funArgs);
+                        this.resolveExpr(action, span, scope);
 
-                    scope.entries().add(action);
-                }
-                case ST.FuncStmt s -> {
-                    throw fail(span, "func can't be nested", "yes");
+                        scope.entries().add(action);
+                    }
+                    case ST.FuncStmt s -> {
+                        throw fail(span, "func can't be nested", "yes");
+                    }
                 }
+            } catch (SemanticError e) {
+                this.recover(e);
             }
         }
     }
 
+    // nested block gets its own symbol scope
+    void typeCheckInnerBlock(ST.Block block, IR.Scope scope) {
+        this.symbols.enterScope();
+        try {
+            typeCheckBlock(block, scope);
+        } finally {
+            this.symbols.exitScope();
+        }
+    }
+
+    // poisoned types match anything, their error is already reported
+    static boolean mismatch(IR.TY t1, IR.TY t2) {
+        return t1 != t2 && t1 != IR.TY.ERROR && t2 != IR.TY.ERROR;
+    }
+
     String typeMismatch(IR.TY t1, IR.TY t2) {
         return String.format("%s != %s", t1, t2);
     }
@@ -370,9 +424,10 @@ class Typer {
             Pair<Integer, Integer> span,
             IR.Scope scope
     ) {
-        IR.TY condType = this.toType(stmt.ifCond(), span, scope);
-        if (condType != IR.TY.BOOL) {
-            throw fail(span, "if condition must be BOOL", "got: " + condType);
+        var cond = this.toVar(stmt.ifCond(), span, scope);
+        IR.TY condType = cond.type();
+        if (condType != IR.TY.BOOL && condType != IR.TY.ERROR) {
+            this.report(span, "if condition must be BOOL", "got: " + condType);
         }
         // if
         IR.Scope thenScope = new IR.Scope(
@@ -385,13 +440,13 @@ class Typer {
         IR.Scoped scopedThen = new IR.Scoped(
             IR.SCOPE_KIND.IF_BRANCH,
             new ArrayList<>(),
-            Optional.of(this.toValue(stmt.ifCond(), span, scope)),
+            Optional.of(cond.val()),
             thenScope
         );
         scope.entries().add(scopedThen);
 
         //else
-        typeCheckBlock(stmt.thenBlock(), thenScope);
+        typeCheckInnerBlock(stmt.thenBlock(), thenScope);
         if (stmt.elseBlock().isPresent()) {
             IR.Scope elseScope = new IR.Scope(
                 scope,
@@ -408,7 +463,7 @@ class Typer {
             );
             scope.entries().add(scopedElse);
 
-            typeCheckBlock(stmt.elseBlock().get(), elseScope);
+            typeCheckInnerBlock(stmt.elseBlock().get(), elseScope);
         }
     }
 
@@ -431,16 +486,17 @@ class Typer {
                 ));
             }
             case ST.Expression e -> {
-                var type = this.toType(e, span, scope);
-                if (type != IR.TY.STRING) {
-                    throw fail(
+                var lowered = this.toVar(e, span, scope);
+                var type = lowered.type();
+                if (type != IR.TY.STRING && type != IR.TY.ERROR) {
+                    this.report(
                         span,
                         "for iterable must be String or range()",
                         "got: " + type
                     );
                 }
                 iterType = IR.TY.STRING;
-                iterable = this.toValue(e, span, scope);
+                iterable = lowered.val();
             }
         }
 
@@ -452,59 +508,62 @@ class Typer {
             new ArrayList<>()
         );
 
-        var forName = stmt.forIdent();
-        String storeName = null;
-        IR.Var iterableArg = null;
-
-        String iterCountName = null;
-        IR.Var countArg = null;
-        var bornVars = new ArrayList<>(List.of(forName));
+        var arg = new IR.Var(
+            new IR.Arg(iterType),
+            iterType,
+            span,
+            false
+        );
+        var born = new LinkedHashMap<String, IR.Var>();
+        born.put(stmt.forIdent(), arg);
         if (iterType == IR.TY.STRING) {
 
             // to copy the iterable string
-            iterableArg = new IR.Var(
+            born.put("_store_iterable", new IR.Var(
                 new IR.Arg(iterType),
                 iterType,
                 span,
                 true
-            );
-            storeName = "_store_iterable";
-            bornVars.add(storeName);
+            ));
 
             // to init a counter
-            countArg = new IR.Var(
+            born.put("_iter_count", new IR.Var(
                 new IR.Arg(IR.TY.INT),
                 IR.TY.INT,
                 span,
                 true
-            );
-            iterCountName = "_iter_count";
-            bornVars.add(iterCountName);
+            ));
         }
 
+        // filled once the names are bound
+        var bornVars = new ArrayList<String>();
+        var bornSlots = new ArrayList<IR.Slot>();
         IR.Scoped scopedFor = new IR.Scoped(
             IR.SCOPE_KIND.FOR,
-            new ArrayList<>(bornVars),
+            bornVars,
             Optional.of(iterable),
-            forScope
-        );
-
-        var arg = new IR.Var(
-            new IR.Arg(iterType),
-            iterType,
-            span,
-            false
+            forScope,
+            bornSlots
         );
 
-        forScope.varMapping().put(forName, arg);
-        if (iterType == IR.TY.STRING) {
-            forScope.varMapping().put(storeName, iterableArg);
-            forScope.varMapping().put(iterCountName, countArg);
-        }
-
-
         scope.entries().add(scopedFor);
-        typeCheckBlock(stmt.block(), forScope);
+        this.symbols.enterScope();
+        try {
+            for (var entry : born.entrySet()) {
+                var name = entry.getKey();
+                var binding = this.bind(
+                    name,
+                    IR.mangle(name, forScope.scopeId()),
+                    entry.getValue(),
+                    forScope
+                );
+                bornVars.add(binding.unique());
+                bornSlots.add(binding.slot());
+            }
+            typeCheckBlock(stmt.block(), forScope);
+        } finally {
+            this.symbols.exitScope();
+        }
     }
 
     void typeCheckWhileStmt(
@@ -512,9 +571,10 @@ class Typer {
         Pair<Integer, Integer> span,
         IR.Scope scope
     ) {
-        IR.TY condType = this.toType(stmt.whileCond(), span, scope);
-        if (condType != IR.TY.BOOL) {
-            throw fail(span, "while condition must be BOOL", "got: " + condType);
+        var cond = this.toVar(stmt.whileCond(), span, scope);
+        IR.TY condType = cond.type();
+        if (condType != IR.TY.BOOL && condType != IR.TY.ERROR) {
+            this.report(span, "while condition must be BOOL", "got: " + condType);
         }
 
         IR.Scope whileScope = new IR.Scope(
@@ -528,12 +588,12 @@ class Typer {
         IR.Scoped scopedWhile = new IR.Scoped(
             IR.SCOPE_KIND.WHILE,
             new ArrayList<>(),
-            Optional.of(this.toValue(stmt.whileCond(), span, scope)),
+            Optional.of(cond.val()),
             whileScope
         );
 
         scope.entries().add(scopedWhile);
-        typeCheckBlock(stmt.block(), whileScope);
+        typeCheckInnerBlock(stmt.block(), whileScope);
     }
 
     void typeCheckSwitchStmt(
@@ -566,9 +626,10 @@ class Typer {
                             // should be covered by parser
                             assert literal instanceof ST.LiteralExpr;
 
-                            var type = this.toType(literal, span, scope);
-                            if (matchedType != type) {
-                                throw fail(
+                            var literalVar = this.toVar(literal, span, scope);
+                            var type = literalVar.type();
+                            if (Typer.mismatch(matchedType, type)) {
+                                this.report(
                                     span,
                                     "wrong type of "
                                         + literal
@@ -581,19 +642,21 @@ class Typer {
                                 new IR.Expr("$caseIs", new ArrayList<>(
                                     List.of(
                                         matchedVar,
-                                        this.toVar(literal, span, scope)
+                                        literalVar
                                     )
                                 ))
                             );
                         }
                         case ST.SeqComp(var literals) -> {
-                            for (var literal : literals) {
+                            var args = this.toVars(literals, span, scope);
+                            for (var idx = 0; idx < literals.size(); idx++) {
+                                var literal = literals.get(idx);
                                 // should be covered by parser
                                 assert literal instanceof ST.LiteralExpr;
 
-                                var type = this.toType(literal, span, scope);
-                                if (matchedType != type) {
-                                    throw fail(
+                                var type = args.get(idx).type();
+                                if (Typer.mismatch(matchedType, type)) {
+                                    this.report(
                                         span,
                                         "wrong type of "
                                             + literal
@@ -603,17 +666,13 @@ class Typer {
                                     );
                                 }
                             }
-                            var args = literals
-                                .stream()
-                                .map((e) -> this.toVar(e, span, scope))
-                                .collect(Collectors.toCollection(ArrayList::new));
                             args.add(0, matchedVar);
                             pattern = Optional.of(new IR.Expr("$caseOf", args));
 
                         }
                         case ST.RangeComp(Integer from, Integer to) -> {
-                            if (matchedType != IR.TY.INT) {
-                                throw fail(
+                            if (Typer.mismatch(matchedType, IR.TY.INT)) {
+                                this.report(
                                     span,
                                     "wrong case type: "
                                         + typeMismatch(matchedType, IR.TY.INT),
@@ -657,12 +716,34 @@ class Typer {
 
             scope.entries().add(scoped);
 
-            typeCheckBlock(blockToCreate, caseScope);
+            typeCheckInnerBlock(blockToCreate, caseScope);
         }
         scope.entries().add(new IR.Noop());
     }
 
-    void typeCheckFuncStmt(
+    // Function body waiting to be checked by its own checker
+    record FuncBody(
+        ST.FuncStmt stmt,
+        Pair<Integer, Integer> span,
+        IR.Scope scope,
+        ArrayList<IR.Slot> bornSlots,
+        IR.TY returnType,
+        Typer checker
+    ) {
+        // failure is returned, not thrown, so that bodies checked on
+        // the pool can still be reported in the declaration order
+        RuntimeException check() {
+            try {
+                this.checker.typeCheckFuncBody(this);
+                return null;
+            } catch (RuntimeException e) {
+                return e;
+            }
+        }
+    }
+
+    // Declares the function, its body is checked later by FuncBody.check()
+    FuncBody typeCheckFuncStmt(
         ST.FuncStmt stmt,
         Pair<Integer, Integer> span,
         IR.Scope scope
@@ -670,17 +751,19 @@ class Typer {
         log.debug("FuncStmt");
         log.debug(span);
 
+        var name = stmt.funcName();
+        var firstScopeId = this.reserveScopeIds(
+            1 + Typer.countScopes(stmt.block())
+        );
         var args = stmt
             .paramList()
             .stream()
-            .map((p) -> p.first())
+            .map((p) -> IR.mangle(p.first(), firstScopeId))
             .collect(Collectors.toCollection(ArrayList::new));
-
-        var name = stmt.funcName();
         var newScope = new IR.Scope(
             // parent scope
             scope,
-            this.nextScopeId(),
+            firstScopeId,
             // func name
             name,
             // name mappings
@@ -689,11 +772,13 @@ class Typer {
             new ArrayList<IR.Entry>()
         );
 
+        var bornSlots = new ArrayList<IR.Slot>();
         var scoped = new IR.Scoped(
             IR.SCOPE_KIND.FUN,
             args,
             Optional.empty(),
-            newScope
+            newScope,
+            bornSlots
         );
 
         scope.entries().add(scoped);
@@ -726,6 +811,7 @@ class Typer {
                 "not allowed"
             );
         }
+        this.operators.register(name, newOp);
 
         if (name.equals("main")) {
             if (this.hasMain) {
@@ -739,25 +825,84 @@ class Typer {
             this.hasMain = true;
         }
 
-        for (var p : stmt.paramList()) {
-            var arg = new IR.Var(
-                new IR.Arg(IR.typeFromST(p.second())),
-                IR.typeFromST(p.second()),
-                span,
-                false
-            );
-            newScope.varMapping().put(p.first(), arg);
+        return new FuncBody(
+            stmt,
+            span,
+            newScope,
+            bornSlots,
+            returnType,
+            new Typer(this, firstScopeId + 1)
+        );
+    }
+
+    void typeCheckFuncBody(FuncBody body) {
+        var stmt = body.stmt();
+        var span = body.span();
+        var newScope = body.scope();
+
+        this.symbols.enterFunction();
+        try {
+            for (var p : stmt.paramList()) {
+                var arg = new IR.Var(
+                    new IR.Arg(IR.typeFromST(p.second())),
+                    IR.typeFromST(p.second()),
+                    span,
+                    false
+                );
+                var binding = this.bind(
+                    p.first(),
+                    IR.mangle(p.first(), newScope.scopeId()),
+                    arg,
+                    newScope
+                );
+                body.bornSlots().add(binding.slot());
+            }
+            this.typeCheckBlock(stmt.block(), newScope);
+        } finally {
+            this.symbols.exitScope();
         }
-        this.typeCheckBlock(stmt.block(), newScope);
 
+        var returnType = body.returnType();
         if (returnType != IR.TY.VOID && !this.hasReturn(newScope)) {
-            throw fail(
+            this.report(
                     span,
                     "missing return statement",
-                    "non-void function " + name + " must return " + returnType
+                    "non-void function " + stmt.funcName() + " must return " + returnType
             );
         }
+    }
 
+    // Checks bodies on the pool and returns the failure of the first one
+    // in declaration order, if any. Bodies only write to their own scopes,
+    // so they don't need to be synchronised.
+    RuntimeException typeCheckFuncBodies(ArrayList<FuncBody> bodies) {
+        var tasks = new ArrayList<Future<RuntimeException>>();
+        for (var body : bodies) {
+            tasks.add(BODY_POOL.submit(body::check));
+        }
+
+        RuntimeException failure = null;
+        // wait for all of them, even after a failure, the IR is printed
+        for (var idx = 0; idx < tasks.size(); idx++) {
+            RuntimeException err;
+            try {
+                err = tasks.get(idx).get();
+            } catch (ExecutionException e) {
+                // check() keeps exceptions, only errors end up here
+                if (e.getCause() instanceof java.lang.Error error) {
+                    throw error;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            if (failure == null) {
+                failure = err;
+            }
+            this.diagnostics.addAll(bodies.get(idx).checker().diagnostics);
+        }
+        return failure;
     }
 
     boolean hasReturn(IR.Scope scope) {
@@ -772,37 +917,115 @@ class Typer {
     }
 
 
+    // Globals and function signatures are checked strictly in order.
+    // Function bodies only depend on what was declared before them, so in
+    // parallel mode they are queued and checked afterwards, all at once.
     void typecheck() {
+        var bodies = new ArrayList<FuncBody>();
+        RuntimeException failure = null;
+
         var stmts = parseTree.stmts().size();
-        for (var idx = 0; idx < stmts; idx++) {
-            var stmt = parseTree.stmts().get(idx);
-            var span = parseTree.spans().get(idx);
-            switch (stmt) {
-                case ST.LetStmt(
-                    var letName,
-                    var letType,
-                    var expr
-                ) -> typeCheckNewVar(
-                    letName, letType, expr, false, span, this.ir.scope()
-                );
-                case ST.FuncStmt f -> typeCheckFuncStmt(f, span, this.ir.scope());
+        try {
+            for (var idx = 0; idx < stmts; idx++) {
+                var stmt = parseTree.stmts().get(idx);
+                var span = parseTree.spans().get(idx);
+                try {
+                    switch (stmt) {
+                        case ST.LetStmt(
+                            var letName,
+                            var letType,
+                            var expr
+                        ) -> typeCheckNewVar(
+                            letName, letType, expr, false, span, this.ir.scope()
+                        );
+                        case ST.FuncStmt f -> {
+                            var body = typeCheckFuncStmt(f, span, this.ir.scope());
+                            if (this.parallel) {
+                                bodies.add(body);
+                            } else {
+                                body.checker().typeCheckFuncBody(body);
+                                this.diagnostics.addAll(body.checker().diagnostics);
+                            }
+                        }
+                    }
+                } catch (SemanticError e) {
+                    this.recover(e);
+                }
             }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // bodies come before whatever failed after them
+        var bodyFailure = this.typeCheckFuncBodies(bodies);
+        if (bodyFailure != null) {
+            throw bodyFailure;
+        }
+        if (failure != null) {
+            throw failure;
         }
+
         if (!this.hasMain) {
-            throw fail(new Pair<>(1, 1), "main wasn't defined", "must be defined");
+            this.report(new Pair<>(1, 1), "main wasn't defined", "must be defined");
+        }
+        if (!this.diagnostics.isEmpty()) {
+            // by position, not by the order bodies were checked in
+            this.diagnostics.sort(Comparator.comparing(d -> d.span().first()));
+
+            var message = new StringBuilder();
+            for (var diagnostic : this.diagnostics) {
+                message.append(this.formatDiagnostic(diagnostic));
+            }
+            message.append("\n> " + this.diagnostics.size() + " error(s) total\n");
+            throw new RuntimeException(message.toString());
+        }
+    }
+
+    /*
+     * Errors
+     */
+    record Diagnostic(Pair<Integer, Integer> span, String err, String hint) {}
+
+    // What fail() throws. When errors are collected, the statement being
+    // checked is dropped and checking goes on from the next one.
+    static final class SemanticError extends RuntimeException {
+        final Diagnostic diagnostic;
+
+        SemanticError(Diagnostic diagnostic, String message) {
+            super(message);
+            this.diagnostic = diagnostic;
         }
-        IR.discriminateScopeVars(this.ir.scope());
     }
 
     RuntimeException fail(Pair<Integer, Integer> span, String err, String hint) {
-        throw new RuntimeException(
-            MessageFormat.format("""
+        var diagnostic = new Diagnostic(span, err, hint);
+        throw new SemanticError(diagnostic, this.formatDiagnostic(diagnostic));
+    }
+
+    // For errors the checker can step over, usually by putting a poisoned
+    // type in place of the bad value. Only throws if errors aren't
+    // collected.
+    void report(Pair<Integer, Integer> span, String err, String hint) {
+        if (!this.collectErrors) {
+            throw fail(span, err, hint);
+        }
+        this.diagnostics.add(new Diagnostic(span, err, hint));
+    }
+
+    void recover(SemanticError e) {
+        if (!this.collectErrors) {
+            throw e;
+        }
+        this.diagnostics.add(e.diagnostic);
+    }
+
+    String formatDiagnostic(Diagnostic diagnostic) {
+        return MessageFormat.format("""
 
 > At {0} failure: {1}.
 > Hint: {2}
 """,
-            formatSpan(span), err, hint)
-        );
+            formatSpan(diagnostic.span()), diagnostic.err(), diagnostic.hint());
     }
 
     String formatSpan(Pair<Integer, Integer> span) {
@@ -816,8 +1039,65 @@ class Typer {
         return id;
     }
 
+    // takes `count` consecutive ids, returns the first one
+    int reserveScopeIds(int count) {
+        var first = this.scopeCounter;
+        this.scopeCounter += count;
+
+        return first;
+    }
+
+    // How many scope ids checking the block takes, must agree with the
+    // nextScopeId() calls of typeCheckBlock.
+    static int countScopes(ST.Block block) {
+        var count = 0;
+        for (var stmt : block.stmts()) {
+            count += switch (stmt) {
+                case ST.IfStmt s -> 1
+                    + Typer.countScopes(s.thenBlock())
+                    + s.elseBlock().map(b -> 1 + Typer.countScopes(b)).orElse(0);
+                case ST.WhileStmt s -> 1 + Typer.countScopes(s.block());
+                case ST.ForStmt s -> 1 + Typer.countScopes(s.block());
+                case ST.SwitchStmt s -> s.cases().stream().mapToInt(c -> 1 + switch (c) {
+                    case ST.ValueCase v -> Typer.countScopes(v.block());
+                    case ST.DefaultCase d -> Typer.countScopes(d.block());
+                }).sum();
+                default -> 0;
+            };
+        }
+        return count;
+    }
+
     public Typer(ST parseTree, ArrayList<Integer> lineIndex) {
         this.parseTree = parseTree;
         this.lineIndex = lineIndex;
+        this.operators = OperatorRegistry.overlay();
+        this.symbols = new SymbolTable();
+        this.ir = new IR(
+            IR.defaultOperatorMap(),
+            new IR.Scope(
+                // parent scope
+                null,
+                this.nextScopeId(),
+                // global namespace
+                "",
+                // name mappings
+                new LinkedHashMap<String, IR.Var>(),
+                // for vars and scopes
+                new ArrayList<IR.Entry>()
+            )
+        );
+    }
+
+    // Checker for one function body. Sees the globals and functions that
+    // `root` knows at this point and writes into the same IR.
+    private Typer(Typer root, int firstScopeId) {
+        this.parseTree = root.parseTree;
+        this.lineIndex = root.lineIndex;
+        this.operators = root.operators.view();
+        this.symbols = root.symbols.fork();
+        this.ir = root.ir;
+        this.scopeCounter = firstScopeId;
+        this.collectErrors = root.collectErrors;
     }
 }
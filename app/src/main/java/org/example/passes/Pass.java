@@ -0,0 +1,17 @@
+package org.example.passes;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+import org.example.IR;
+
+// One transformation of the IR, in place.
+//
+// `requires` names the passes that have to run before this one, what it
+// relies on them to have done. `transform` returns the number of changes
+// it made, as the passes themselves count them.
+public record Pass(
+    String name,
+    List<String> requires,
+    ToIntFunction<IR> transform
+) {}
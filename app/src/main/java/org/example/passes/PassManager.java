@@ -0,0 +1,231 @@
+package org.example.passes;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.example.*;
+
+// Runs a pipeline of passes over the IR.
+//
+// Pipelines for the optimisation levels:
+//   - -O0 leaves the IR as the typer built it
+//   - -O1 balances long chains of integer operators, folds constants,
+//     simplifies conditions, drops dead code and stores, reuses common
+//     subexpressions, propagates copies and builds strings accumulated in
+//     loops with a builder, each pass looks at one function at a time,
+//     then drops the functions and globals `main` doesn't use
+//   - -O2 adds tail call elimination, inlining, loop-invariant code
+//     motion and strength reduction
+//
+// A pass can only be added after the passes it requires. With verification
+// on, the IR is lowered to a CFG and checked (see CFGVerifier) before the
+// first pass and after every one, so a broken invariant is blamed on the
+// pass that broke it. With timing on, every pass reports its wall time,
+// the changes it made and how the size of the IR changed.
+//
+// The passes walk expressions recursively, once per level. Reassociation
+// only makes INT `+` and `*` chains shallow, any other chain is as deep as
+// it is long, so the pipeline runs on a thread of its own with a stack
+// for that, the way the typer checks function bodies.
+public final class PassManager {
+    public static final int MAX_LEVEL = 2;
+    // ten thousand levels take between 8 and 16 MB, sized for twenty thousand
+    private static final long PASS_STACK_SIZE = 32L << 20;
+
+    private final ArrayList<Pass> passes = new ArrayList<>();
+    private boolean verify = false;
+    private PrintStream timings = null;
+
+    public static PassManager forLevel(int level, boolean accumulate) {
+        var manager = new PassManager();
+        if (level >= 1) {
+            // first, the passes after it recurse as deep as the expressions
+            manager.add(new Pass("reassoc", List.of(),
+                ir -> new Reassociator(ir).reassociate()));
+        }
+        if (level >= 2) {
+            manager.add(new Pass("tail-calls", List.of(),
+                ir -> new TailCallEliminator(ir, accumulate).eliminate()));
+            // calls with literal arguments are evaluated before their
+            // bodies get copied in
+            manager.add(new Pass("fold", List.of(),
+                ir -> new ConstantFolder(ir).fold()));
+            manager.add(new Pass("inline", List.of(),
+                ir -> new Inliner(ir).inline()));
+            // the parameters of inlined calls are copies of the arguments
+            manager.add(new Pass("copies", List.of(),
+                ir -> new CopyPropagator(ir).propagate()));
+        }
+        if (level >= 1) {
+            manager.add(new Pass("fold", List.of(),
+                ir -> new ConstantFolder(ir).fold()));
+            // literal conditions it leaves are dropped by dce
+            manager.add(new Pass("bools", List.of(),
+                ir -> new BooleanSimplifier(ir).simplify()));
+            manager.add(new Pass("dce", List.of("fold"),
+                ir -> new DeadCodeEliminator(ir).eliminate()));
+        }
+        if (level >= 2) {
+            manager.add(new Pass("licm", List.of(),
+                ir -> new LoopInvariantHoister(ir).hoist()));
+            manager.add(new Pass("strength", List.of(),
+                ir -> new StrengthReducer(ir).reduce()));
+        }
+        if (level >= 1) {
+            // evaluates the squares strength reduction leaves once
+            manager.add(new Pass("cse", List.of(),
+                ir -> new CommonSubexpressionEliminator(ir).eliminate()));
+            // reads through the copies the inliner and cse leave
+            manager.add(new Pass("copies", List.of(),
+                ir -> new CopyPropagator(ir).propagate()));
+            // the passes before it don't know the builder operations
+            manager.add(new Pass("builders", List.of(),
+                ir -> new StringBuilderRewriter(ir).rewrite()));
+            // last, inlining and folding leave functions nobody calls
+            manager.add(new Pass("shake", List.of(),
+                ir -> new TreeShaker(ir).shake()));
+        }
+        return manager;
+    }
+
+    public PassManager add(Pass pass) {
+        for (var required : pass.requires()) {
+            if (this.passes.stream().noneMatch(p -> p.name().equals(required))) {
+                throw new IllegalStateException(
+                    "pass " + pass.name() + " requires " + required + " to run before it"
+                );
+            }
+        }
+        this.passes.add(pass);
+        return this;
+    }
+
+    public List<String> names() {
+        return this.passes.stream().map(Pass::name).toList();
+    }
+
+    public PassManager verifying(boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    // null for no timings
+    public PassManager timing(PrintStream timings) {
+        this.timings = timings;
+        return this;
+    }
+
+    public void run(IR ir) {
+        var failure = new AtomicReference<Throwable>();
+        var thread = new Thread(null, () -> {
+            try {
+                this.runPasses(ir);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "passes", PASS_STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        switch (failure.get()) {
+            case null -> {}
+            case RuntimeException e -> throw e;
+            case Error e -> throw e;
+            // passes throw no checked exceptions
+            case Throwable e -> throw new IllegalStateException(e);
+        }
+    }
+
+    private void runPasses(IR ir) {
+        if (this.verify) {
+            PassManager.verify(ir, "before the first pass");
+        }
+        var startSize = PassManager.size(ir);
+        var size = startSize;
+        var total = 0L;
+        if (this.timings != null) {
+            this.timings.printf("%-12s %10s %8s %18s%n", "pass", "time, ms", "changes", "IR size");
+        }
+        for (var pass : this.passes) {
+            var start = System.nanoTime();
+            var changes = pass.transform().applyAsInt(ir);
+            var elapsed = System.nanoTime() - start;
+            total += elapsed;
+            if (this.verify) {
+                PassManager.verify(ir, "after " + pass.name());
+            }
+            if (this.timings != null) {
+                var newSize = PassManager.size(ir);
+                this.timings.printf(
+                    "%-12s %10.3f %8d %18s%n",
+                    pass.name(), elapsed / 1e6, changes, PassManager.delta(size, newSize)
+                );
+                size = newSize;
+            }
+        }
+        if (this.timings != null) {
+            this.timings.printf(
+                "%-12s %10.3f %8s %18s%n",
+                "total", total / 1e6, "", PassManager.delta(startSize, size)
+            );
+        }
+    }
+
+    private static void verify(IR ir, String when) {
+        try {
+            CFGVerifier.verify(new CFGBuilder(ir).build());
+        } catch (RuntimeException e) {
+            throw new IllegalStateException(
+                "IR broken " + when + ": " + e.getMessage(), e
+            );
+        }
+    }
+
+    private static String delta(int from, int to) {
+        return String.format("%d -> %d (%+d)", from, to, to - from);
+    }
+
+    /*
+     * Size
+     */
+
+    // entries and values, nested ones included
+    public static int size(IR ir) {
+        return PassManager.size(ir.scope());
+    }
+
+    private static int size(IR.Scope scope) {
+        var size = 0;
+        for (var entry : scope.entries()) {
+            size += 1 + switch (entry) {
+                case IR.Noop _ -> 0;
+                case IR.NewVar newVar -> PassManager.size(newVar.v().val());
+                case IR.Expr expr -> PassManager.size(expr) - 1;
+                case IR.Scoped scoped -> scoped.dependencyValue().map(PassManager::size).orElse(0)
+                    + PassManager.size(scoped.scope());
+            };
+        }
+        return size;
+    }
+
+    // without recursing, generated code nests expressions thousands deep
+    private static int size(IR.Value value) {
+        var size = 0;
+        var pending = new ArrayDeque<IR.Value>();
+        pending.push(value);
+        while (!pending.isEmpty()) {
+            size++;
+            if (pending.pop() instanceof IR.Expr expr) {
+                for (var v : expr.vars()) {
+                    pending.push(v.val());
+                }
+            }
+        }
+        return size;
+    }
+}
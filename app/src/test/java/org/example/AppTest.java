@@ -11,6 +11,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -22,6 +23,10 @@ import org.example.Pair;
 import org.example.SpanUtils;
 import org.example.ST;
 import org.example.Parser;
+import org.example.passes.Pass;
+import org.example.passes.PassManager;
+
+import static org.example.Fixtures.typed;
 
 class SimpleLexTest {
     private static Pair<Integer, Integer> span(int from, int to) {
@@ -885,3 +890,2061 @@ class ExtendedParseTest {
         assertEquals(expected, actual);
     }
 }
+
+
+// what the tests past the parser start from
+final class Fixtures {
+    private Fixtures() {}
+
+    // the IR the typer lowers the program to, before any pass
+    static IR typed(String code) {
+        var lexer = new Lexer(code);
+        lexer.lex();
+        var parser = new Parser(lexer.tokenTable, lexer.lineIndex);
+        parser.parse();
+
+        var typer = new Typer(parser.parseTree, lexer.lineIndex);
+        typer.typecheck();
+        return typer.ir;
+    }
+}
+
+class TyperLoweringTest {
+    private static IR.Var firstLocal(IR ir) {
+        var main = (IR.Scoped) ir.scope().entries().getFirst();
+        var newVar = (IR.NewVar) main.scope().entries().getFirst();
+        return newVar.v();
+    }
+
+    // Regression benchmark: lowering used to revisit every subtree twice,
+    // which is exponential in expression depth.
+    @Test
+    void deepLeftChain() {
+        var terms = Collections.nCopies(400, "n");
+        var input = "func main() { let n = 1; let x = "
+            + String.join(" + ", terms)
+            + "; }";
+
+        var ir = assertTimeoutPreemptively(
+            Duration.ofSeconds(5), () -> typed(input)
+        );
+        assertEquals(IR.TY.INT, firstLocal(ir).type());
+    }
+
+    @Test
+    void deepNestedParens() {
+        var depth = 200;
+        var input = "func main() { let x = "
+            + "(1.5 * ".repeat(depth)
+            + "2"
+            + ")".repeat(depth)
+            + "; }";
+
+        var ir = assertTimeoutPreemptively(
+            Duration.ofSeconds(5), () -> typed(input)
+        );
+        assertEquals(IR.TY.FLOAT, firstLocal(ir).type());
+    }
+
+    @Test
+    void deepMixedCalls() {
+        var depth = 40;
+        var input = "func id(n: Int) -> Int { return n; }\n"
+            + "func main() { let x = "
+            + "id(-(1 + ".repeat(depth)
+            + "1"
+            + ")) ".repeat(depth)
+            + "; }";
+
+        var ir = assertTimeoutPreemptively(
+            Duration.ofSeconds(5), () -> typed(input)
+        );
+        var main = (IR.Scoped) ir.scope().entries().get(1);
+        var newVar = (IR.NewVar) main.scope().entries().getFirst();
+        assertEquals(IR.TY.INT, newVar.v().type());
+    }
+}
+
+class OperatorRegistryTest {
+    private static IR.Var typed(IR.TY type) {
+        return new IR.Var(new IR.Arg(type), type, null, false);
+    }
+
+    @Test
+    void packedKeysAreDistinct() {
+        var seen = new HashSet<Integer>();
+        for (var a : IR.TY.values()) {
+            for (var b : IR.TY.values()) {
+                assertTrue(seen.add(OperatorRegistry.signatureKey(List.of(a, b))));
+            }
+            assertTrue(seen.add(OperatorRegistry.signatureKey(List.of(a))));
+        }
+        assertTrue(seen.add(OperatorRegistry.signatureKey(List.of())));
+    }
+
+    @Test
+    void resolvesBuiltins() {
+        var ops = OperatorRegistry.overlay();
+        assertEquals(
+            IR.TY.FLOAT,
+            ops.resolve("/", List.of(typed(IR.TY.INT), typed(IR.TY.INT)))
+        );
+        assertEquals(
+            IR.TY.STRING,
+            ops.resolve("+", List.of(typed(IR.TY.STRING), typed(IR.TY.STRING)))
+        );
+        assertEquals(IR.TY.STRING, ops.resolve("input", List.of()));
+        assertNull(
+            ops.resolve("+", List.of(typed(IR.TY.STRING), typed(IR.TY.INT)))
+        );
+        assertFalse(ops.contains("nope"));
+    }
+
+    @Test
+    void overlayDoesNotLeak() {
+        var ops = OperatorRegistry.overlay();
+        var wide = new ArrayList<IR.TY>(Collections.nCopies(12, IR.TY.INT));
+        ops.register("f", new IR.Operator(new ArrayList<>(List.of(
+            new IR.OpSpec(wide, IR.TY.BOOL)
+        ))));
+
+        var args = new ArrayList<IR.Var>();
+        for (var ty : wide) {
+            args.add(typed(ty));
+        }
+        assertEquals(IR.TY.BOOL, ops.resolve("f", args));
+        assertFalse(OperatorRegistry.overlay().contains("f"));
+        assertThrows(
+            IllegalStateException.class,
+            () -> OperatorRegistry.BUILTINS.register("f", new IR.Operator(
+                new ArrayList<>()
+            ))
+        );
+    }
+}
+
+class SymbolTableTest {
+    private static IR.Var typed(IR.TY type) {
+        return new IR.Var(new IR.Arg(type), type, null, false);
+    }
+
+    @Test
+    void globalsAndFrames() {
+        var symbols = new SymbolTable();
+        var g = symbols.declare("g", "g", typed(IR.TY.INT));
+        assertEquals(new IR.Slot(0, 0), g.slot());
+        assertTrue(g.slot().isGlobal());
+
+        symbols.enterFunction();
+        var a = symbols.declare("a", "a", typed(IR.TY.INT));
+        symbols.enterScope();
+        var b = symbols.declare("b", "b", typed(IR.TY.INT));
+        assertEquals(new IR.Slot(1, 0), a.slot());
+        assertEquals(new IR.Slot(2, 1), b.slot());
+        symbols.exitScope();
+        symbols.exitScope();
+
+        // next frame starts from zero again
+        symbols.enterFunction();
+        assertEquals(0, symbols.declare("c", "c", typed(IR.TY.INT)).slot().index());
+        symbols.exitScope();
+    }
+
+    @Test
+    void shadowingIsRestored() {
+        var symbols = new SymbolTable();
+        var outer = symbols.declare("x", "x", typed(IR.TY.INT));
+
+        symbols.enterFunction();
+        var inner = symbols.declare("x", "x", typed(IR.TY.STRING));
+        assertSame(inner, symbols.lookup("x"));
+        assertSame(outer, inner.shadowed());
+        symbols.exitScope();
+
+        assertSame(outer, symbols.lookup("x"));
+        assertNull(symbols.lookup("y"));
+    }
+}
+
+class ParallelTyperTest {
+    private static Typer typer(String code, boolean parallel) {
+        var lexer = new Lexer(code);
+        lexer.lex();
+        var parser = new Parser(lexer.tokenTable, lexer.lineIndex);
+        parser.parse();
+
+        var typer = new Typer(parser.parseTree, lexer.lineIndex);
+        typer.parallel = parallel;
+        return typer;
+    }
+
+    private static String generated(int funcs) {
+        var code = new StringBuilder("let base = 2;\n");
+        for (int i = 0; i < funcs; i++) {
+            code.append("func f" + i + "(n: Int) -> Int {\n")
+                .append("    var acc = n;\n")
+                .append("    for i in range(0, 3, 1) {\n")
+                .append("        if i > 1 { acc = acc + base; } else { acc = acc - 1; }\n")
+                .append("    }\n")
+                .append(i > 0 ? "    return f" + (i - 1) + "(acc);\n" : "    return acc;\n")
+                .append("}\n")
+                .append("let g" + i + " = " + i + ";\n");
+        }
+        code.append("func main() { print(f" + (funcs - 1) + "(1)); }\n");
+        return code.toString();
+    }
+
+    @Test
+    void sameIrAsSequential() {
+        var code = generated(64);
+        var sequential = typer(code, false);
+        sequential.typecheck();
+        var parallel = typer(code, true);
+        parallel.typecheck();
+
+        var printer = new PrinterIR();
+        assertEquals(printer.print(sequential.ir), printer.print(parallel.ir));
+    }
+
+    @Test
+    void firstErrorInDeclarationOrder() {
+        // g1 is declared after f0, f1 calls f2 before it exists
+        var code = """
+            func f0() -> Int { return g1; }
+            let g1 = 1;
+            func f1() -> Int { return f2(); }
+            func f2() -> Int { return 2; }
+            func main() {}
+            """;
+        var sequential = assertThrows(
+            RuntimeException.class, () -> typer(code, false).typecheck()
+        );
+        var parallel = assertThrows(
+            RuntimeException.class, () -> typer(code, true).typecheck()
+        );
+        assertTrue(parallel.getMessage().contains("<g1>"));
+        assertEquals(sequential.getMessage(), parallel.getMessage());
+    }
+}
+
+class CollectErrorsTest {
+    private static final String CODE = """
+        let g: Int = "str";
+        func f(a: Int) -> Int {
+            let x = undefinedVar + 1;
+            let y = x * 2;
+            if y { print(y); }
+            a = 5;
+            return "nope";
+        }
+        func h() -> Double {
+            let z = 1 + true;
+            print(z + 1, nofunc(z));
+        }
+        func main() { print(g + 1); f("x"); }
+        """;
+
+    private static Typer typer(String code, boolean parallel) {
+        var lexer = new Lexer(code);
+        lexer.lex();
+        var parser = new Parser(lexer.tokenTable, lexer.lineIndex);
+        parser.parse();
+
+        var typer = new Typer(parser.parseTree, lexer.lineIndex);
+        typer.parallel = parallel;
+        typer.collectErrors = true;
+        return typer;
+    }
+
+    private static List<String> errors(Typer typer) {
+        assertThrows(RuntimeException.class, typer::typecheck);
+        return typer
+            .diagnostics
+            .stream()
+            .map(Typer.Diagnostic::err)
+            .toList();
+    }
+
+    @Test
+    void reportsEveryErrorOnce() {
+        var expected = List.of(
+            "wrong type",
+            "var <undefinedVar> can't be found",
+            "cant mutate a",
+            "unexpected return type",
+            "missing return statement",
+            "can't apply operator to parameters: +",
+            "undefined function: nofunc",
+            "can't apply operator to parameters: f"
+        );
+        assertEquals(expected, errors(typer(CODE, true)));
+        assertEquals(expected, errors(typer(CODE, false)));
+    }
+
+    @Test
+    void firstErrorWithoutCollecting() {
+        var typer = typer(CODE, true);
+        typer.collectErrors = false;
+        var err = assertThrows(RuntimeException.class, typer::typecheck);
+        assertTrue(err.getMessage().contains("wrong type"));
+        assertTrue(typer.diagnostics.isEmpty());
+    }
+
+    @Test
+    void cleanProgram() {
+        var typer = typer("func main() { print(1); }", true);
+        typer.typecheck();
+        assertTrue(typer.diagnostics.isEmpty());
+    }
+}
+
+class CFGTest {
+    private static CFG cfg(String code) {
+        return new CFGBuilder(typed(code)).build();
+    }
+
+    private static List<CFG.Phi> phis(CFG.Function function) {
+        return function
+            .blocks()
+            .stream()
+            .flatMap(b -> b.phis.stream())
+            .toList();
+    }
+
+    @Test
+    void loopCarriedVarsGetPhis() {
+        var cfg = cfg("""
+            let limit = 10;
+            func main() {
+                var counter = 0;
+                var unused = 1;
+                while counter < limit {
+                    if counter == 4 { counter = counter + 2; } else { counter = counter + 1; }
+                }
+                print(counter, unused);
+            }
+            """);
+        CFGVerifier.verify(cfg);
+
+        var main = cfg.functions().get("main");
+        // one in the loop header, one at the if join, `unused` needs none
+        var merged = phis(main).stream().map(p -> p.variable).toList();
+        assertEquals(List.of("counter_1", "counter_1"), merged);
+        assertEquals(List.of("limit_0"), List.copyOf(cfg.globals().keySet()));
+    }
+
+    @Test
+    void everyConstructVerifies() {
+        var cfg = cfg("""
+            let base = 1;
+            func digits(s: String) -> Int {
+                var n = 0;
+                for ch in s {
+                    switch (ch) {
+                        case "0", "1", "2" { n = n + 1; }
+                        default { n = n - 1; }
+                    }
+                }
+                return n;
+            }
+            func classify(n: Int) -> String {
+                switch (n) {
+                    case range(0, 10) { return "small"; }
+                    case 42 { return "answer"; }
+                    default { return "other"; }
+                }
+            }
+            func main() {
+                var total = base;
+                for i in range(0, 3, 1) { total = total + digits("120"); }
+                print(classify(total));
+            }
+            """);
+        CFGVerifier.verify(cfg);
+
+        // every path of classify returns, nothing is left after the switch
+        var classify = cfg.functions().get("classify");
+        var returns = classify
+            .blocks()
+            .stream()
+            .filter(b -> b.terminator instanceof CFG.Return)
+            .count();
+        assertEquals(3, returns);
+    }
+
+    @Test
+    void verifierCatchesBrokenPhi() {
+        var cfg = cfg("""
+            func main() {
+                var x = 0;
+                while x < 3 { x = x + 1; }
+                print(x);
+            }
+            """);
+        var phi = phis(cfg.functions().get("main")).getFirst();
+        phi.operands.removeLast();
+
+        var problems = new CFGVerifier(cfg).check();
+        assertEquals(1, problems.size());
+        assertTrue(problems.getFirst().contains("operands"));
+    }
+}
+
+class ConstantFolderTest {
+    private static IR folded(String code) {
+        var ir = typed(code);
+        new ConstantFolder(ir).fold();
+        return ir;
+    }
+
+    private static List<IR.Value> printed(IR ir) {
+        var main = (IR.Scoped) ir.scope().entries().getLast();
+        var print = (IR.Expr) main.scope().entries().getLast();
+        return print.vars().stream().map(IR.Var::val).toList();
+    }
+
+    private static IR.Atom atom(IR.TY type, String val) {
+        return new IR.Atom(type, val);
+    }
+
+    @Test
+    void foldsWithBackendSemantics() {
+        var ir = folded("""
+            func main() {
+                print(2 * 3 + 1, 7 / 2, 2 ** 3, 1 + 0.5, -(4), "a" + "b", 3 < 2.5, !true);
+            }
+            """);
+        assertEquals(List.of(
+            atom(IR.TY.INT, "7"),
+            atom(IR.TY.FLOAT, "3.5"),
+            atom(IR.TY.FLOAT, "8.0"),
+            atom(IR.TY.FLOAT, "1.5"),
+            atom(IR.TY.INT, "-4"),
+            atom(IR.TY.STRING, "ab"),
+            atom(IR.TY.BOOL, "false"),
+            atom(IR.TY.BOOL, "false")
+        ), printed(ir));
+    }
+
+    @Test
+    void foldsDoublesOfAnyMagnitude() {
+        var ir = folded("""
+            func main() {
+                print(0.002 * 0.0003, 3000000.0 * 2000000.0, 1.0 / 3.0, 10.0 ** 400.0);
+            }
+            """);
+        var values = printed(ir);
+        assertEquals(List.of(
+            atom(IR.TY.FLOAT, Double.toString(0.002 * 0.0003)),
+            atom(IR.TY.FLOAT, Double.toString(3000000.0 * 2000000.0)),
+            atom(IR.TY.FLOAT, Double.toString(1.0 / 3.0))
+        ), values.subList(0, 3));
+        // no literal for infinity
+        assertInstanceOf(IR.Expr.class, values.get(3));
+    }
+
+    @Test
+    void leavesRuntimeFailuresAlone() {
+        var ir = folded("""
+            func main() {
+                print(2147483647 + 1, 1 / 0, 1 + 2);
+            }
+            """);
+        var values = printed(ir);
+        assertInstanceOf(IR.Expr.class, values.get(0));
+        assertInstanceOf(IR.Expr.class, values.get(1));
+        assertEquals(atom(IR.TY.INT, "3"), values.get(2));
+    }
+
+    @Test
+    void propagatesOnlyImmutableBindings() {
+        var ir = folded("""
+            let maxCount: Int = 5;
+            func main() {
+                let twice = maxCount * 2;
+                var counter = 1;
+                print(twice, counter, maxCount);
+            }
+            """);
+        var values = printed(ir);
+        assertEquals(atom(IR.TY.INT, "10"), values.get(0));
+        assertInstanceOf(IR.Ref.class, values.get(1));
+        assertEquals(atom(IR.TY.INT, "5"), values.get(2));
+    }
+}
+
+class DeadCodeEliminatorTest {
+    private static IR optimised(String code) {
+        var ir = typed(code);
+        new ConstantFolder(ir).fold();
+        new DeadCodeEliminator(ir).eliminate();
+        return ir;
+    }
+
+    private static IR.Scope function(IR ir, String name) {
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.scope().funcName().equals(name)) {
+                return scoped.scope();
+            }
+        }
+        throw new AssertionError("no function " + name);
+    }
+
+    private static List<String> ops(IR.Scope scope) {
+        return scope.entries().stream()
+            .map(entry -> switch (entry) {
+                case IR.Expr expr -> expr.op();
+                case IR.NewVar newVar -> "let " + newVar.name().split("_")[0];
+                case IR.Scoped scoped -> scoped.kind().toString();
+                case IR.Noop _ -> "noop";
+            })
+            .toList();
+    }
+
+    @Test
+    void resolvesBranchesOnLiterals() {
+        var ir = optimised("""
+            let debug = false;
+            func main() {
+                if debug {
+                    print("debug");
+                } else {
+                    print("release");
+                }
+                while false {
+                    print("never");
+                }
+                switch (7) {
+                    case 1, 5 { print("odd"); }
+                    case range(0, 10) { print("digit"); }
+                    default { print("other"); }
+                }
+            }
+            """);
+        var main = function(ir, "main");
+        assertEquals(List.of("print", "print"), ops(main));
+        var printed = main.entries().stream()
+            .map(entry -> ((IR.Expr) entry).vars().getFirst().val())
+            .toList();
+        assertEquals(List.of(
+            new IR.Atom(IR.TY.STRING, "release"),
+            new IR.Atom(IR.TY.STRING, "digit")
+        ), printed);
+        // nothing reads the flag anymore
+        assertTrue(ir.scope().entries().stream().noneMatch(e -> e instanceof IR.NewVar));
+    }
+
+    @Test
+    void keepsWhatHasEffects() {
+        var ir = optimised("""
+            func square(x: Int) -> Int {
+                return x * x;
+            }
+            func shout(x: Int) -> Int {
+                print(x);
+                return x;
+            }
+            func main() {
+                let unused = square(3);
+                let logged = shout(3);
+                let ratio = 1 / 0;
+                square(4);
+                shout(4);
+            }
+            """);
+        assertEquals(List.of("let logged", "let ratio", "shout"), ops(function(ir, "main")));
+    }
+
+    @Test
+    void dropsCodeAfterReturn() {
+        var ir = optimised("""
+            func sign(x: Int) -> Int {
+                if x < 0 {
+                    return -1;
+                } else {
+                    return 1;
+                }
+                print("unreachable");
+                return 0;
+            }
+            func main() {
+                print(sign(2));
+            }
+            """);
+        assertEquals(List.of("IF_BRANCH", "ELSE_BRANCH"), ops(function(ir, "sign")));
+    }
+}
+
+class CommonSubexpressionEliminatorTest {
+    private static IR.Scope main(String code) {
+        var ir = typed(code);
+        new CommonSubexpressionEliminator(ir).eliminate();
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    private static IR.Value arg(IR.Entry entry, int idx) {
+        return ((IR.Expr) entry).vars().get(idx).val();
+    }
+
+    @Test
+    void reusesThroughTemporaries() {
+        var main = main("""
+            func wrap(s: String) -> String {
+                return "[" + s + "]";
+            }
+            func main() {
+                var x = 2;
+                let y = x * 3;
+                print(wrap("a") + wrap("a"), 3 * x, x + 1, x + 1);
+            }
+            """);
+        var entries = main.entries();
+        var temps = entries.stream().filter(e -> e instanceof IR.NewVar).count();
+        // x, y and two temporaries, `3 * x` reads y
+        assertEquals(4, temps);
+        var print = (IR.Expr) entries.getLast();
+        assertTrue(((IR.Ref) arg(print, 1)).ident().startsWith("y_"));
+        assertEquals(arg(print, 2), arg(print, 3));
+        assertInstanceOf(IR.Ref.class, arg(print, 2));
+    }
+
+    @Test
+    void assignmentKills() {
+        var main = main("""
+            func main() {
+                var x = 2;
+                print(x * 5);
+                x = x + 1;
+                print(x * 5);
+                for i in range(0, 3, 1) {
+                    print(x * 5);
+                    x = 0;
+                }
+            }
+            """);
+        for (var entry : main.entries()) {
+            assertFalse(entry instanceof IR.NewVar newVar && newVar.name().startsWith("_cse"));
+        }
+    }
+
+    @Test
+    void whileConditionIsRecomputedAtTheEnd() {
+        var main = main("""
+            func main() {
+                var n = 100;
+                var counter = 1;
+                while n / counter > 2 {
+                    print(n / counter);
+                    counter = counter + 1;
+                }
+            }
+            """);
+        var temp = (IR.NewVar) main.entries().get(2);
+        assertTrue(temp.v().mutable());
+        var loop = (IR.Scoped) main.entries().get(3);
+        var cond = (IR.Expr) loop.dependencyValue().get();
+        var ref = (IR.Ref) cond.vars().get(0).val();
+        assertEquals(temp.name(), ref.ident());
+
+        var body = loop.scope().entries();
+        assertEquals(ref, arg(body.getFirst(), 0));
+        var update = (IR.Expr) body.getLast();
+        assertEquals("$assign", update.op());
+        assertEquals(temp.v().val(), arg(update, 1));
+    }
+}
+
+class InlinerTest {
+    private static IR inlined(String code) {
+        var ir = typed(code);
+        new Inliner(ir).inline();
+        return ir;
+    }
+
+    private static IR.Scope main(IR ir) {
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    // operators applied anywhere in the scope
+    private static List<String> ops(IR.Scope scope) {
+        var ops = new ArrayList<String>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr -> collect(expr, ops);
+                case IR.NewVar newVar -> collect(newVar.v().val(), ops);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> collect(v, ops));
+                    ops.addAll(ops(scoped.scope()));
+                }
+                case IR.Noop _ -> {}
+            }
+        }
+        return ops;
+    }
+
+    private static void collect(IR.Value value, List<String> ops) {
+        if (value instanceof IR.Expr expr) {
+            ops.add(expr.op());
+            expr.vars().forEach(v -> collect(v.val(), ops));
+        }
+    }
+
+    @Test
+    void replacesCallsWithBodies() {
+        var ir = inlined("""
+            func wrap(s: String) -> String {
+                let open = "[";
+                return open + s + "]";
+            }
+            func main() {
+                print(wrap("a"), wrap("b"));
+            }
+            """);
+        var main = main(ir);
+        assertFalse(ops(main).contains("wrap"));
+        // a parameter and a local for each call, names don't clash
+        var names = main.entries().stream()
+            .filter(e -> e instanceof IR.NewVar)
+            .map(e -> ((IR.NewVar) e).name())
+            .toList();
+        assertEquals(4, names.size());
+        assertEquals(4, new HashSet<>(names).size());
+        assertTrue(main.varMapping().keySet().containsAll(names));
+    }
+
+    @Test
+    void skipsRecursionAndEffectsOutOfOrder() {
+        var ir = inlined("""
+            func fact(n: Int) -> Int {
+                if n < 2 {
+                    return 1;
+                }
+                return n * fact(n - 1);
+            }
+            func shout(s: String) -> String {
+                print(s);
+                return s;
+            }
+            func main() {
+                print(fact(5), shout("late"));
+                let x = shout("first") + shout("second");
+            }
+            """);
+        var ops = ops(main(ir));
+        assertTrue(ops.contains("fact"));
+        // printed after fact(5) in one backend
+        assertEquals(1, ops.stream().filter(op -> op.equals("shout")).count());
+    }
+
+    @Test
+    void returnsBecomeAssignments() {
+        var ir = inlined("""
+            func sign(x: Int) -> Int {
+                if x < 0 {
+                    return -1;
+                }
+                return 1;
+            }
+            func main() {
+                print(sign(-3));
+            }
+            """);
+        var entries = main(ir).entries();
+        var result = (IR.NewVar) entries.get(1);
+        assertTrue(result.v().mutable());
+        var then = (IR.Scoped) entries.get(2);
+        var otherwise = (IR.Scoped) entries.get(3);
+        assertEquals(IR.SCOPE_KIND.IF_BRANCH, then.kind());
+        assertEquals(IR.SCOPE_KIND.ELSE_BRANCH, otherwise.kind());
+        for (var branch : List.of(then, otherwise)) {
+            var assign = (IR.Expr) branch.scope().entries().getLast();
+            assertEquals("$assign", assign.op());
+            assertEquals(result.name(), ((IR.Ref) assign.vars().get(0).val()).ident());
+        }
+        var print = (IR.Expr) entries.getLast();
+        assertEquals(result.name(), ((IR.Ref) print.vars().getFirst().val()).ident());
+    }
+}
+
+class TailCallEliminatorTest {
+    private static IR eliminated(String code, boolean accumulate) {
+        var ir = typed(code);
+        new TailCallEliminator(ir, accumulate).eliminate();
+        return ir;
+    }
+
+    private static IR.Scope function(IR ir, String name) {
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && scoped.scope().funcName().equals(name)) {
+                return scoped.scope();
+            }
+        }
+        throw new AssertionError("no function " + name);
+    }
+
+    // user function calls anywhere in the scope
+    private static long calls(IR.Scope scope, String name) {
+        var count = 0L;
+        for (var entry : scope.entries()) {
+            count += switch (entry) {
+                case IR.Expr expr -> calls(expr, name);
+                case IR.NewVar newVar -> calls(newVar.v().val(), name);
+                case IR.Scoped scoped -> calls(scoped.scope(), name)
+                    + scoped.dependencyValue().map(v -> calls(v, name)).orElse(0L);
+                case IR.Noop _ -> 0L;
+            };
+        }
+        return count;
+    }
+
+    private static long calls(IR.Value value, String name) {
+        if (!(value instanceof IR.Expr expr)) {
+            return 0L;
+        }
+        var count = expr.op().equals(name) ? 1L : 0L;
+        for (var v : expr.vars()) {
+            count += calls(v.val(), name);
+        }
+        return count;
+    }
+
+    @Test
+    void tailCallsBecomeALoop() {
+        var ir = eliminated("""
+            func gcd(a: Int, b: Int) -> Int {
+                if b == 0 {
+                    return a;
+                }
+                if a >= b {
+                    return gcd(a - b, b);
+                }
+                return gcd(b, a);
+            }
+            func main() {
+                print(gcd(12, 18));
+            }
+            """, false);
+        var gcd = function(ir, "gcd");
+        assertEquals(0, calls(gcd, "gcd"));
+        var entries = gcd.entries();
+        var loop = (IR.Scoped) entries.get(entries.size() - 2);
+        assertEquals(IR.SCOPE_KIND.WHILE, loop.kind());
+        var ret = (IR.Expr) entries.getLast();
+        assertEquals("$return", ret.op());
+        // copies of both parameters, the flag and the result
+        var declared = entries.subList(0, entries.size() - 2);
+        assertEquals(4, declared.size());
+        for (var entry : declared) {
+            var newVar = (IR.NewVar) entry;
+            assertTrue(newVar.v().mutable());
+            assertTrue(gcd.varMapping().containsKey(newVar.name()));
+        }
+    }
+
+    @Test
+    void leavesOtherRecursionAlone() {
+        var code = """
+            func fact(n: Int) -> Int {
+                if n < 2 {
+                    return 1;
+                }
+                let res = n * fact(n - 1);
+                print(res);
+                return res;
+            }
+            func fib(n: Int) -> Int {
+                if n < 2 {
+                    return n;
+                }
+                return fib(n - 1) + fib(n - 2);
+            }
+            func main() {
+                print(fact(5), fib(5));
+            }
+            """;
+        var ir = eliminated(code, false);
+        assertEquals(1, calls(function(ir, "fact"), "fact"));
+        assertEquals(2, calls(function(ir, "fib"), "fib"));
+        // with accumulators only the call that isn't in tail position stays
+        ir = eliminated(code, true);
+        assertEquals(1, calls(function(ir, "fact"), "fact"));
+        assertEquals(1, calls(function(ir, "fib"), "fib"));
+    }
+
+    @Test
+    void accumulatesLinearRecursion() {
+        var ir = eliminated("""
+            func fact(n: Int) -> Int {
+                if n < 2 {
+                    return 1;
+                }
+                return n * fact(n - 1);
+            }
+            func main() {
+                print(fact(5));
+            }
+            """, true);
+        var fact = function(ir, "fact");
+        assertEquals(0, calls(fact, "fact"));
+        var acc = fact.entries().stream()
+            .filter(e -> e instanceof IR.NewVar newVar && newVar.name().startsWith("_acc"))
+            .map(e -> (IR.NewVar) e)
+            .findFirst()
+            .orElseThrow();
+        // the identity of `*`
+        assertEquals(new IR.Atom(IR.TY.INT, "1"), acc.v().val());
+    }
+}
+
+class LoopInvariantHoisterTest {
+    private static IR.Scope hoisted(String code) {
+        var ir = typed(code);
+        new LoopInvariantHoister(ir).hoist();
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    private static IR.Scoped loop(IR.Scope scope) {
+        return scope.entries().stream()
+            .filter(e -> e instanceof IR.Scoped scoped
+                && (scoped.kind() == IR.SCOPE_KIND.WHILE || scoped.kind() == IR.SCOPE_KIND.FOR))
+            .map(e -> (IR.Scoped) e)
+            .findFirst()
+            .orElseThrow();
+    }
+
+    private static List<String> declared(IR.Scope scope) {
+        return scope.entries().stream()
+            .filter(e -> e instanceof IR.NewVar)
+            .map(e -> ((IR.NewVar) e).name())
+            .toList();
+    }
+
+    @Test
+    void hoistsInvariantExpressions() {
+        var main = hoisted("""
+            func main() {
+                let n = 5;
+                var i = 0;
+                while i < n * 2 {
+                    print(i + n * 2);
+                    i = i + 1;
+                }
+            }
+            """);
+        var loop = loop(main);
+        var condition = (IR.Expr) loop.dependencyValue().get();
+        var temp = (IR.Ref) condition.vars().get(1).val();
+        assertTrue(declared(main).contains(temp.ident()));
+        // evaluated once, for both uses
+        var print = (IR.Expr) loop.scope().entries().getFirst();
+        var sum = (IR.Expr) print.vars().getFirst().val();
+        assertEquals(new IR.Ref(temp.ident(), temp.slot()), sum.vars().get(1).val());
+        // `i` changes
+        assertEquals("i_1", ((IR.Ref) condition.vars().get(0).val()).ident());
+    }
+
+    @Test
+    void movesInvariantBindingsOutOfNestedLoops() {
+        var main = hoisted("""
+            let g = input();
+            func main() {
+                for a in "ab" {
+                    for b in "cd" {
+                        let both = g + "!";
+                        print(a + b + both);
+                    }
+                }
+            }
+            """);
+        var names = declared(main);
+        assertTrue(names.stream().anyMatch(name -> name.startsWith("both_")));
+        assertTrue(main.varMapping().keySet().containsAll(names));
+        var outer = loop(main);
+        assertTrue(declared(outer.scope()).isEmpty());
+        // `a + b` changes with both loops
+        var inner = loop(outer.scope());
+        assertTrue(declared(inner.scope()).isEmpty());
+    }
+
+    @Test
+    void keepsWhatIsntPureOrInvariant() {
+        var main = hoisted("""
+            func main() {
+                let d = 4;
+                var x = 0;
+                for c in "abc" {
+                    x = x + d;
+                    print(c + "?", 1 / d);
+                    let line = input();
+                }
+            }
+            """);
+        assertEquals(List.of("d_1", "x_1"), declared(main));
+        var body = loop(main).scope().entries();
+        assertEquals("$assign", ((IR.Expr) body.get(0)).op());
+        // `/` by a variable can fail, input has effects
+        var print = (IR.Expr) body.get(1);
+        assertInstanceOf(IR.Expr.class, print.vars().get(1).val());
+        assertInstanceOf(IR.NewVar.class, body.get(2));
+    }
+}
+
+class StrengthReducerTest {
+    private static IR.Scope reduced(String code) {
+        var ir = typed(code);
+        new StrengthReducer(ir).reduce();
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    // operators applied anywhere in the scope
+    private static List<String> ops(IR.Scope scope) {
+        var ops = new ArrayList<String>();
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr -> collect(expr, ops);
+                case IR.NewVar newVar -> collect(newVar.v().val(), ops);
+                case IR.Scoped scoped -> {
+                    scoped.dependencyValue().ifPresent(v -> collect(v, ops));
+                    ops.addAll(ops(scoped.scope()));
+                }
+                case IR.Noop _ -> {}
+            }
+        }
+        return ops;
+    }
+
+    private static void collect(IR.Value value, List<String> ops) {
+        if (value instanceof IR.Expr expr) {
+            ops.add(expr.op());
+            expr.vars().forEach(v -> collect(v.val(), ops));
+        }
+    }
+
+    @Test
+    void squaresBecomeMultiplications() {
+        var main = reduced("""
+            func main() {
+                let n = 3;
+                let a = n ** 2;
+                let b = n ** 0;
+                let c = n ** 1;
+                let d = n ** 3;
+            }
+            """);
+        var entries = main.entries();
+        var square = (IR.Expr) ((IR.NewVar) entries.get(1)).v().val();
+        assertEquals("*", square.op());
+        // still FLOAT
+        assertEquals(IR.TY.FLOAT, square.vars().get(0).type());
+        assertEquals(new IR.Atom(IR.TY.FLOAT, "1.0"), ((IR.NewVar) entries.get(2)).v().val());
+        var widened = (IR.Expr) ((IR.NewVar) entries.get(3)).v().val();
+        assertEquals(new IR.Atom(IR.TY.FLOAT, "1.0"), widened.vars().get(1).val());
+        assertEquals("**", ((IR.Expr) ((IR.NewVar) entries.get(4)).v().val()).op());
+    }
+
+    @Test
+    void inductionProductsBecomeAdditions() {
+        var main = reduced("""
+            func main() {
+                var i = 0;
+                while i < 10 {
+                    print(i * 4);
+                    i = i + 2;
+                }
+                for c in range(1, 5, 1) {
+                    print(3 * c);
+                }
+            }
+            """);
+        var entries = main.entries();
+        assertFalse(ops(((IR.Scoped) entries.get(2)).scope()).contains("*"));
+        assertFalse(ops(((IR.Scoped) entries.get(4)).scope()).contains("*"));
+        // starts where `i * 4` does
+        var start = (IR.NewVar) entries.get(1);
+        assertTrue(start.v().mutable());
+        assertEquals("*", ((IR.Expr) start.v().val()).op());
+        var body = ((IR.Scoped) entries.get(2)).scope().entries();
+        var update = (IR.Expr) body.getLast();
+        assertEquals("$assign", update.op());
+        assertEquals(start.name(), ((IR.Ref) update.vars().get(0).val()).ident());
+        var sum = (IR.Expr) update.vars().get(1).val();
+        assertEquals(new IR.Atom(IR.TY.INT, "8"), sum.vars().get(1).val());
+        // one step before the first iteration
+        var forStart = (IR.NewVar) entries.get(3);
+        assertEquals(new IR.Atom(IR.TY.INT, "0"), forStart.v().val());
+    }
+
+    @Test
+    void keepsProductsOfOtherVariables() {
+        var main = reduced("""
+            func loud() -> Int {
+                print("!");
+                return 2;
+            }
+            func main() {
+                var i = 0;
+                var j = 1;
+                while i < 10 {
+                    print(i * 4, j * 4);
+                    i = i + 1;
+                    j = j * 2;
+                    print(loud() ** 2);
+                }
+            }
+            """);
+        var ops = ops(((IR.Scoped) main.entries().get(3)).scope());
+        // `j` isn't an induction variable, loud() isn't pure
+        assertEquals(2, ops.stream().filter(op -> op.equals("*")).count());
+        var print = (IR.Expr) ((IR.Scoped) main.entries().get(3)).scope().entries().getFirst();
+        assertInstanceOf(IR.Ref.class, print.vars().get(0).val());
+        assertInstanceOf(IR.Expr.class, print.vars().get(1).val());
+        assertTrue(ops.contains("**"));
+    }
+}
+
+class MemoiserTest {
+    @Test
+    void selectsEffectFreeRecursion() {
+        var ir = typed("""
+            func fib(n: Int) -> Int {
+                if n < 2 {
+                    return n;
+                }
+                return fib(n - 1) + fib(n - 2);
+            }
+            func count(s: String, x: Double, up: Bool) -> Int {
+                var n = 0;
+                while n < 3 {
+                    n = n + 1;
+                }
+                if up {
+                    return count(s + "!", x, false) + n;
+                }
+                return n;
+            }
+            func main() {
+                print(fib(10), count("", 1.5, true));
+            }
+            """);
+        assertEquals(List.of("fib", "count"), new ArrayList<>(Memoiser.select(ir)));
+    }
+
+    @Test
+    void skipsEffectsReachableThroughCalls() {
+        var ir = typed("""
+            func say(n: Int) -> Int {
+                print(n);
+                return n;
+            }
+            func loud(n: Int) -> Int {
+                if n == 0 {
+                    return say(n);
+                }
+                return loud(n - 1);
+            }
+            func check(n: Int) -> Int {
+                if n < 0 {
+                    throw("negative");
+                }
+                if n == 0 {
+                    return 0;
+                }
+                return check(n - 1);
+            }
+            func main() {
+                print(loud(3), check(3));
+            }
+            """);
+        var purity = new Purity(ir);
+        assertTrue(purity.isRecursive("loud"));
+        assertFalse(purity.isEffectFree("loud"));
+        assertFalse(purity.isEffectFree("check"));
+        assertTrue(Memoiser.select(ir).isEmpty());
+    }
+
+    @Test
+    void skipsFunctionsWithoutRecursionOrValue() {
+        var ir = typed("""
+            func double(n: Int) -> Int {
+                return n * 2;
+            }
+            func quad(n: Int) -> Int {
+                return double(double(n));
+            }
+            func nothing(n: Int) {
+                if n > 0 {
+                    return nothing(n - 1);
+                }
+            }
+            func main() {
+                nothing(quad(1));
+            }
+            """);
+        var purity = new Purity(ir);
+        assertTrue(purity.isEffectFree("quad"));
+        assertFalse(purity.isRecursive("quad"));
+        assertTrue(purity.isRecursive("nothing"));
+        assertTrue(Memoiser.select(ir).isEmpty());
+    }
+}
+
+class EvaluatorTest {
+    private static List<IR.Value> printed(String code) {
+        var ir = typed(code);
+        new ConstantFolder(ir).fold();
+        var main = (IR.Scoped) ir.scope().entries().getLast();
+        var print = (IR.Expr) main.scope().entries().getLast();
+        return print.vars().stream().map(IR.Var::val).toList();
+    }
+
+    @Test
+    void evaluatesCallsWithLiteralArguments() {
+        var printed = printed("""
+            func intPow(b: Int, e: Int) -> Int {
+                var r = 1;
+                var i = 0;
+                while i < e {
+                    r = r * b;
+                    i = i + 1;
+                }
+                for c in "ab" {
+                    r = r + 0;
+                }
+                return r;
+            }
+            func highestPower(n: Int) -> Int {
+                var p = 1;
+                while p * 10 <= n {
+                    p = p * 10;
+                }
+                return p;
+            }
+            func grade(x: Int) -> String {
+                switch (x) {
+                    case 10 { return "top"; }
+                    case range(5, 10) { return "mid"; }
+                    default { return "low"; }
+                }
+            }
+            func fib(n: Int) -> Int {
+                if n < 2 {
+                    return n;
+                }
+                return fib(n - 1) + fib(n - 2);
+            }
+            func main() {
+                let n = 12345;
+                print(intPow(10, 3), highestPower(n), grade(7), fib(10));
+            }
+            """);
+        assertEquals(List.of(
+            new IR.Atom(IR.TY.INT, "1000"),
+            new IR.Atom(IR.TY.INT, "10000"),
+            new IR.Atom(IR.TY.STRING, "mid"),
+            new IR.Atom(IR.TY.INT, "55")
+        ), printed);
+    }
+
+    @Test
+    void keepsCallsThatRunOutOfFuel() {
+        var printed = printed("""
+            func spin(n: Int) -> Int {
+                var i = n;
+                while i != 0 {
+                    i = i + 2;
+                }
+                return i;
+            }
+            func fib(n: Int) -> Int {
+                if n < 2 {
+                    return n;
+                }
+                return fib(n - 1) + fib(n - 2);
+            }
+            func main() {
+                print(spin(1), fib(40), spin(-4));
+            }
+            """);
+        assertInstanceOf(IR.Expr.class, printed.get(0));
+        assertInstanceOf(IR.Expr.class, printed.get(1));
+        assertEquals(new IR.Atom(IR.TY.INT, "0"), printed.get(2));
+    }
+
+    @Test
+    void keepsCallsThatFailOrHaveEffects() {
+        var printed = printed("""
+            func ratio(a: Int, b: Int) -> Double {
+                return a / b;
+            }
+            func square(n: Int) -> Int {
+                return n * n;
+            }
+            func loud(n: Int) -> Int {
+                print(n);
+                return n;
+            }
+            func main() {
+                print(ratio(1, 0), square(100000), loud(1), ratio(1, 4));
+            }
+            """);
+        assertInstanceOf(IR.Expr.class, printed.get(0));
+        // overflows
+        assertInstanceOf(IR.Expr.class, printed.get(1));
+        assertInstanceOf(IR.Expr.class, printed.get(2));
+        assertEquals(new IR.Atom(IR.TY.FLOAT, "0.25"), printed.get(3));
+    }
+}
+
+class PassManagerTest {
+    private static final String PROGRAM = """
+        func twice(x: Int) -> Int {
+            return x + x;
+        }
+        func main() {
+            var n = 2 + 3;
+            if 1 > 2 {
+                print("never");
+            }
+            print(twice(n));
+        }
+        """;
+
+    @Test
+    void levelsBuildLongerPipelines() {
+        assertEquals(List.of(), PassManager.forLevel(0, false).names());
+        assertEquals(List.of("reassoc", "fold", "bools", "dce", "cse", "copies", "builders", "shake"),
+            PassManager.forLevel(1, false).names());
+        assertEquals(
+            List.of(
+                "reassoc", "tail-calls", "fold", "inline", "copies", "fold", "bools", "dce",
+                "licm", "strength", "cse", "copies", "builders", "shake"
+            ),
+            PassManager.forLevel(2, false).names()
+        );
+
+        var ir = typed(PROGRAM);
+        var size = PassManager.size(ir);
+        PassManager.forLevel(0, false).verifying(true).run(ir);
+        assertEquals(size, PassManager.size(ir));
+        PassManager.forLevel(2, false).verifying(true).run(ir);
+        assertTrue(PassManager.size(ir) < size);
+    }
+
+    @Test
+    void passesTakeDeepChainsOfAnyType() {
+        // ten thousand levels deep, the default stack overflows at a few thousand
+        var chain = new StringBuilder("func f(y: Double) -> Double {\n    return y");
+        chain.append(" + 1.5 + y".repeat(5000));
+        chain.append(";\n}\nfunc main() {\n    print(f(1.0));\n}\n");
+        var ir = typed(chain.toString());
+
+        PassManager.forLevel(2, false).run(ir);
+        var printed = ((IR.Scoped) ir.scope().entries().getLast()).scope().entries().stream()
+            .filter(entry -> entry instanceof IR.Expr expr && expr.op().equals("print"))
+            .map(entry -> ((IR.Expr) entry).vars().getFirst().val())
+            .toList();
+        assertEquals(List.of(new IR.Atom(IR.TY.FLOAT, "12501.0")), printed);
+    }
+
+    @Test
+    void passesComeAfterWhatTheyRequire() {
+        var manager = new PassManager();
+        var dce = new Pass("dce", List.of("fold"), ir -> 0);
+        assertThrows(IllegalStateException.class, () -> manager.add(dce));
+        manager.add(new Pass("fold", List.of(), ir -> 0)).add(dce);
+        assertEquals(List.of("fold", "dce"), manager.names());
+    }
+
+    @Test
+    void verifierBlamesThePassThatBrokeTheIR() {
+        var broken = new Pass("break-returns", List.of(), ir -> {
+            // `twice` returns a String
+            var twice = (IR.Scoped) ir.scope().entries().getFirst();
+            var text = new IR.Var(new IR.Atom(IR.TY.STRING, "x"), IR.TY.STRING, null, false);
+            twice.scope().entries().set(0, new IR.Expr("$return", new ArrayList<>(List.of(text))));
+            return 1;
+        });
+        var out = new java.io.ByteArrayOutputStream();
+        var manager = new PassManager()
+            .add(new Pass("fold", List.of(), ir -> new ConstantFolder(ir).fold()))
+            .add(broken)
+            .verifying(true)
+            .timing(new java.io.PrintStream(out));
+        var error = assertThrows(IllegalStateException.class, () -> manager.run(typed(PROGRAM)));
+        assertTrue(error.getMessage().contains("after break-returns"), error.getMessage());
+        assertTrue(out.toString().contains("fold"));
+    }
+}
+
+class IRSerializerTest {
+    private static final String PROGRAM = """
+        let greeting = "héllo";
+        func sign(x: Double) -> Int {
+            if x < 0.0 {
+                return -1;
+            } else {
+                return 1;
+            }
+        }
+        func main() {
+            var total = 0;
+            for i in range(0, 10, 1) {
+                switch (i) {
+                    case 1, 2 { total = total + i; }
+                    case range(3, 5) { total = total - 1; }
+                    default { total = total * 2; }
+                }
+            }
+            while total > 100 {
+                total = total - 100;
+            }
+            for c in greeting {
+                print(c);
+            }
+            print(sign(1.5), total);
+        }
+        """;
+
+    private record Typed(IR ir, ArrayList<Integer> lineIndex) {}
+
+    private static Typed typed() {
+        var lexer = new Lexer(PROGRAM);
+        lexer.lex();
+        var parser = new Parser(lexer.tokenTable, lexer.lineIndex);
+        parser.parse();
+
+        var typer = new Typer(parser.parseTree, lexer.lineIndex);
+        typer.typecheck();
+        return new Typed(typer.ir, lexer.lineIndex);
+    }
+
+    private static void assertSameParents(IR.Scope scope) {
+        for (var entry : scope.entries()) {
+            if (entry instanceof IR.Scoped scoped) {
+                assertSame(scope, scoped.scope().parentScope());
+                assertSameParents(scoped.scope());
+            }
+        }
+    }
+
+    @Test
+    void readsBackWhatWasWritten() {
+        var typed = typed();
+        var key = IRSerializer.key(PROGRAM);
+        var bytes = IRSerializer.toBytes(typed.ir(), key);
+        var read = IRSerializer.read(java.nio.ByteBuffer.wrap(bytes), key);
+
+        assertNotNull(read);
+        assertEquals(
+            new PrinterIR(typed.lineIndex()).print(typed.ir()),
+            new PrinterIR(typed.lineIndex()).print(read)
+        );
+        assertNull(read.scope().parentScope());
+        assertSameParents(read.scope());
+        // the same bytes again, nothing is lost on the way
+        assertArrayEquals(bytes, IRSerializer.toBytes(read, key));
+    }
+
+    @Test
+    void otherSourcesAndBrokenFilesAreMisses() {
+        var key = IRSerializer.key(PROGRAM);
+        var bytes = IRSerializer.toBytes(typed().ir(), key);
+
+        assertNull(IRSerializer.read(java.nio.ByteBuffer.wrap(bytes), IRSerializer.key(PROGRAM + " ")));
+        var truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        assertNull(IRSerializer.read(java.nio.ByteBuffer.wrap(truncated), key));
+        var otherVersion = bytes.clone();
+        otherVersion[4] = (byte) (IRSerializer.VERSION + 1);
+        assertNull(IRSerializer.read(java.nio.ByteBuffer.wrap(otherVersion), key));
+    }
+
+    @Test
+    void optimisesTheSameFromTheMappedFile() throws java.io.IOException {
+        var typed = typed();
+        var key = IRSerializer.key(PROGRAM);
+        var path = Files.createTempFile("program", ".msir");
+        try {
+            IRSerializer.write(typed.ir(), key, path);
+            var read = IRSerializer.read(path, key);
+            assertNotNull(read);
+
+            PassManager.forLevel(PassManager.MAX_LEVEL, false).verifying(true).run(typed.ir());
+            PassManager.forLevel(PassManager.MAX_LEVEL, false).verifying(true).run(read);
+            assertEquals(
+                new PrinterIR(typed.lineIndex()).print(typed.ir()),
+                new PrinterIR(typed.lineIndex()).print(read)
+            );
+        } finally {
+            Files.delete(path);
+        }
+        assertNull(IRSerializer.read(path, key));
+    }
+}
+
+class CopyPropagatorTest {
+    private static IR.Scope propagated(String code) {
+        var ir = typed(code);
+        new CopyPropagator(ir).propagate();
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    private static List<String> declared(IR.Scope scope) {
+        return scope.entries().stream()
+            .filter(e -> e instanceof IR.NewVar)
+            .map(e -> ((IR.NewVar) e).name())
+            .toList();
+    }
+
+    private static List<IR.Value> printed(IR.Scope scope) {
+        return scope.entries().stream()
+            .filter(e -> e instanceof IR.Expr expr && expr.op().equals("print"))
+            .flatMap(e -> ((IR.Expr) e).vars().stream().map(IR.Var::val))
+            .toList();
+    }
+
+    @Test
+    void readsThroughCopies() {
+        var main = propagated("""
+            func main() {
+                let x = input();
+                let y = x;
+                var z = y;
+                print(z, y);
+            }
+            """);
+        assertEquals(List.of("x_1"), declared(main));
+        for (var value : printed(main)) {
+            assertEquals("x_1", ((IR.Ref) value).ident());
+        }
+    }
+
+    @Test
+    void keepsCopiesOfAssignedBindings() {
+        var main = propagated("""
+            func main() {
+                var a = input();
+                let b = a;
+                a = a + "!";
+                print(b);
+                var i = 0;
+                let j = i;
+                while i < 3 {
+                    print(j);
+                    i = i + 1;
+                }
+            }
+            """);
+        assertEquals(List.of("a_1", "b_1", "i_1"), declared(main));
+        assertEquals(new IR.Ref("b_1", new IR.Slot(1, 1)), printed(main).getFirst());
+        // `j` is what `i` was before the loop, not `i`
+        var loop = (IR.Scoped) main.entries().getLast();
+        assertEquals(List.of(new IR.Atom(IR.TY.INT, "0")), printed(loop.scope()));
+    }
+
+    @Test
+    void dropsStoresNobodyReads() {
+        var main = propagated("""
+            func main() {
+                var x = input();
+                x = "a";
+                x = "b";
+                print(x);
+                var unused = 1;
+                unused = unused + 1;
+            }
+            """);
+        // the input is still read
+        assertEquals(List.of("x_1"), declared(main));
+        assertEquals(2, main.entries().size());
+        assertEquals(List.of(new IR.Atom(IR.TY.STRING, "b")), printed(main));
+    }
+}
+
+class BooleanSimplifierTest {
+    private static IR.Scope simplified(String code) {
+        var ir = typed(code);
+        new BooleanSimplifier(ir).simplify();
+        return ((IR.Scoped) ir.scope().entries().getLast()).scope();
+    }
+
+    private static IR.Value condition(IR.Scope scope, int idx) {
+        return ((IR.Scoped) scope.entries().get(idx)).dependencyValue().get();
+    }
+
+    @Test
+    void invertsComparisonsInsteadOfNegating() {
+        var main = simplified("""
+            func main() {
+                let a = input() + "";
+                let n = 1 + 2;
+                if !(n < 3) { print(1); }
+                if !!(a == "x") { print(2); }
+                if !(n == 1 || a != "y") { print(3); }
+                let f = 1.5 * 2.0;
+                if !(f < 2.0) { print(4); }
+            }
+            """);
+        assertEquals(">=", ((IR.Expr) condition(main, 2)).op());
+        assertEquals("==", ((IR.Expr) condition(main, 3)).op());
+        var both = (IR.Expr) condition(main, 4);
+        assertEquals("&&", both.op());
+        assertEquals("!=", ((IR.Expr) both.vars().get(0).val()).op());
+        assertEquals("==", ((IR.Expr) both.vars().get(1).val()).op());
+        // NaN is neither smaller nor bigger
+        assertEquals("!", ((IR.Expr) condition(main, 6)).op());
+    }
+
+    @Test
+    void dropsComparisonsWithLiteralsAndConstantOperands() {
+        var main = simplified("""
+            func main() {
+                let flag = input() == "y";
+                if flag == true { print(1); }
+                if flag != true { print(2); }
+                if true && flag { print(3); }
+                if flag || true { print(4); }
+                if input() == "" || true { print(5); }
+            }
+            """);
+        var flag = new IR.Ref("flag_1", new IR.Slot(1, 0));
+        assertEquals(flag, condition(main, 1));
+        assertEquals("!", ((IR.Expr) condition(main, 2)).op());
+        assertEquals(flag, condition(main, 3));
+        assertEquals(new IR.Atom(IR.TY.BOOL, "true"), condition(main, 4));
+        // `||` evaluates both sides, the input is still read
+        assertEquals("||", ((IR.Expr) condition(main, 5)).op());
+    }
+
+    @Test
+    void swapsBranchesOfNegatedIfs() {
+        var main = simplified("""
+            func main() {
+                let flag = input() == "y";
+                if !flag {
+                    print("no");
+                } else {
+                    print("yes");
+                }
+            }
+            """);
+        var ifScoped = (IR.Scoped) main.entries().get(1);
+        var elseScoped = (IR.Scoped) main.entries().get(2);
+        assertEquals(new IR.Ref("flag_1", new IR.Slot(1, 0)), ifScoped.dependencyValue().get());
+        var yes = (IR.Expr) ifScoped.scope().entries().getFirst();
+        assertEquals(new IR.Atom(IR.TY.STRING, "yes"), yes.vars().getFirst().val());
+        var no = (IR.Expr) elseScoped.scope().entries().getFirst();
+        assertEquals(new IR.Atom(IR.TY.STRING, "no"), no.vars().getFirst().val());
+    }
+}
+
+class TreeShakerTest {
+    private static IR shaken(String code) {
+        var ir = typed(code);
+        new TreeShaker(ir).shake();
+        return ir;
+    }
+
+    private static List<String> left(IR ir) {
+        return ir.scope().entries().stream()
+            .map(e -> switch (e) {
+                case IR.Scoped scoped -> scoped.scope().funcName();
+                case IR.NewVar newVar -> newVar.name();
+                default -> "?";
+            })
+            .toList();
+    }
+
+    @Test
+    void dropsWhatMainDoesntReach() {
+        var ir = shaken("""
+            let used = 2;
+            let unused = 3;
+            func twice(x: Int) -> Int { return x * used; }
+            func helper(x: Int) -> Int { return x + unused; }
+            func library(x: Int) -> Int { return helper(x) + 1; }
+            func main() { print(twice(4)); }
+            """);
+        assertEquals(List.of("used_0", "twice", "main"), left(ir));
+        assertTrue(ir.opStore().containsKey("twice"));
+        assertFalse(ir.opStore().containsKey("library"));
+        assertFalse(ir.opStore().containsKey("helper"));
+        assertEquals(Set.of("used_0"), ir.scope().varMapping().keySet());
+    }
+
+    @Test
+    void keepsGlobalsWhoseInitialisationHasEffects() {
+        var ir = shaken("""
+            func loud(x: Int) -> Int { print(x); return x; }
+            func quiet(x: Int) -> Int { return x; }
+            let a = loud(1);
+            let b = quiet(2);
+            let name = input();
+            func main() { print("hi"); }
+            """);
+        assertEquals(List.of("loud", "a_0", "name_0", "main"), left(ir));
+    }
+
+    @Test
+    void dropsUnusedRecursionAndKeepsWhatGlobalsCall() {
+        var ir = shaken("""
+            func seven() -> Int { return 7; }
+            let week = seven();
+            func down(n: Int) -> Int {
+                if n > 0 {
+                    return down(n - 1);
+                }
+                return n;
+            }
+            func main() { print(week); }
+            """);
+        assertEquals(List.of("seven", "week_0", "main"), left(ir));
+    }
+}
+
+class StringBuilderRewriterTest {
+    private static IR rewritten(String code) {
+        var ir = typed(code);
+        new StringBuilderRewriter(ir).rewrite();
+        CFGVerifier.verify(new CFGBuilder(ir).build());
+        return ir;
+    }
+
+    // the operators and scope kinds of the function body, nested scopes
+    // in brackets
+    private static List<String> shape(IR ir, String function) {
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && function.equals(scoped.scope().funcName())) {
+                var shape = new ArrayList<String>();
+                shape(scoped.scope(), shape);
+                return shape;
+            }
+        }
+        throw new IllegalArgumentException("no function " + function);
+    }
+
+    private static void shape(IR.Scope scope, List<String> shape) {
+        for (var entry : scope.entries()) {
+            switch (entry) {
+                case IR.Expr expr -> shape.add(expr.op());
+                case IR.Scoped scoped -> {
+                    shape.add(scoped.kind() + " [");
+                    shape(scoped.scope(), shape);
+                    shape.add("]");
+                }
+                default -> {}
+            }
+        }
+    }
+
+    @Test
+    void prependsInAReverse() {
+        var ir = rewritten("""
+            func reverse(s: String) -> String {
+                var acc = "";
+                for char in s {
+                    acc = char + acc;
+                }
+                return acc;
+            }
+            func main() { print(reverse("abc")); }
+            """);
+        assertEquals(
+            List.of("$sbOpen", "FOR [", "$sbPrepend", "]", "$sbClose", "$return"),
+            shape(ir, "reverse")
+        );
+    }
+
+    @Test
+    void appendsThroughNestedScopes() {
+        var ir = rewritten("""
+            func main() {
+                var out = "";
+                var i = 0;
+                while i < 10 {
+                    if i < 5 {
+                        out = out + "low";
+                    } else {
+                        out = out + "high";
+                    }
+                    i = i + 1;
+                }
+                print(out);
+            }
+            """);
+        assertEquals(
+            List.of(
+                "$sbOpen", "WHILE [", "IF_BRANCH [", "$sbAppend", "]",
+                "ELSE_BRANCH [", "$sbAppend", "]", "$assign", "]", "$sbClose", "print"
+            ),
+            shape(ir, "main")
+        );
+    }
+
+    @Test
+    void leavesStringsTheLoopReads() {
+        var ir = rewritten("""
+            func main() {
+                var seen = "";
+                for c in "abc" {
+                    seen = seen + c;
+                    print(seen);
+                }
+                var both = "";
+                for c in "abc" {
+                    both = both + c;
+                    both = c + both;
+                }
+                var cond = "";
+                while cond != "aaa" {
+                    cond = cond + "a";
+                }
+                print(both, cond);
+            }
+            """);
+        assertFalse(shape(ir, "main").stream().anyMatch(op -> op.startsWith("$sb")));
+    }
+}
+
+class ReassociatorTest {
+    // `func f(x: <type>) { let y = <expr>; print(y); }`
+    private static IR withExpr(String expr, String type) {
+        return typed("func f(x: " + type + ") { let y = " + expr + "; print(y); }\nfunc main() {}");
+    }
+
+    // the value `y` is bound to
+    private static IR.Var bound(IR ir) {
+        for (var entry : ir.scope().entries()) {
+            if (entry instanceof IR.Scoped scoped && "f".equals(scoped.scope().funcName())) {
+                for (var inner : scoped.scope().entries()) {
+                    if (inner instanceof IR.NewVar newVar) {
+                        return newVar.v();
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("no binding in f");
+    }
+
+    private static int depth(IR.Var v) {
+        if (!(v.val() instanceof IR.Expr expr)) {
+            return 0;
+        }
+        var deepest = 0;
+        for (var arg : expr.vars()) {
+            deepest = Math.max(deepest, depth(arg));
+        }
+        return deepest + 1;
+    }
+
+    private static void atoms(IR.Var v, List<String> out) {
+        switch (v.val()) {
+            case IR.Atom atom -> out.add(atom.val());
+            case IR.Expr expr -> expr.vars().forEach(arg -> atoms(arg, out));
+            default -> {}
+        }
+    }
+
+    @Test
+    void balancesLongChainsInOrder() {
+        var terms = new ArrayList<String>();
+        var expected = new ArrayList<String>();
+        for (var i = 1; i <= 40; i++) {
+            terms.add("x * " + i);
+            expected.add(String.valueOf(i));
+        }
+        var ir = withExpr(String.join(" + ", terms), "Int");
+        assertEquals(40, depth(bound(ir)));
+
+        assertEquals(1, new Reassociator(ir).reassociate());
+        CFGVerifier.verify(new CFGBuilder(ir).build());
+        // 40 operands, each a `*`
+        assertEquals(7, depth(bound(ir)));
+        var order = new ArrayList<String>();
+        atoms(bound(ir), order);
+        assertEquals(expected, order);
+    }
+
+    @Test
+    void leavesShortChains() {
+        var ir = withExpr("x + x + x + x + x + x + x + x", "Int");
+        assertEquals(0, new Reassociator(ir).reassociate());
+        assertEquals(7, depth(bound(ir)));
+    }
+
+    @Test
+    void leavesFloatsAndOtherOperators() {
+        var floats = withExpr(String.join(" + ", Collections.nCopies(30, "x")), "Double");
+        assertEquals(0, new Reassociator(floats).reassociate());
+        assertEquals(29, depth(bound(floats)));
+
+        var minus = withExpr(String.join(" - ", Collections.nCopies(30, "x")), "Int");
+        assertEquals(0, new Reassociator(minus).reassociate());
+        assertEquals(29, depth(bound(minus)));
+    }
+}
+
+class ClassFileWriterTest {
+    private static final String PROGRAM = """
+        let greeting = "héllo";
+        func sign(x: Double) -> Int {
+            if x < 0.0 {
+                return -1;
+            } else {
+                return 1;
+            }
+        }
+        func main() {
+            var total = 0;
+            for i in range(0, 10, 1) {
+                switch (i) {
+                    case 1, 2 { total = total + i; }
+                    case range(3, 5) { total = total - 1; }
+                    default { total = total * 2; }
+                }
+            }
+            for c in greeting {
+                print(c);
+            }
+            print(sign(-1.5), total, 2 < 3, 0.000000000001);
+        }
+        """;
+
+    // loads the class, which verifies it, and returns what main prints
+    private static String run(java.nio.file.Path outDir, String className) throws Exception {
+        var stdout = System.out;
+        var printed = new java.io.ByteArrayOutputStream();
+        try (var loader = new java.net.URLClassLoader(new java.net.URL[] {outDir.toUri().toURL()})) {
+            var main = loader.loadClass(className).getMethod("main", String[].class);
+            System.setOut(new java.io.PrintStream(printed, true, StandardCharsets.UTF_8));
+            main.invoke(null, (Object) new String[0]);
+        } finally {
+            System.setOut(stdout);
+        }
+        return printed.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void writesAClassTheVerifierAccepts() throws Exception {
+        var dir = Files.createTempDirectory("jvm");
+        new TranslatorJVM(typed(PROGRAM), "_program").generate(dir.resolve("in").toString());
+
+        assertTrue(Files.exists(dir.resolve("in/_program.j")));
+        var lines = run(dir.resolve("out"), "_program").lines().toList();
+        assertEquals(List.of("h", "é", "l", "l", "o", "-1 32 true 1.0E-12"), lines);
+    }
+
+    @Test
+    void keepsEveryBitOfDoubles() throws Exception {
+        var dir = Files.createTempDirectory("jvm");
+        var program = "func main() { print(0.1 + 0.2, 0.000000000001, 123456789.123456789); }";
+        new TranslatorJVM(typed(program), "_doubles").generate(dir.resolve("in").toString());
+
+        assertEquals(
+            (0.1 + 0.2) + " " + 0.000000000001 + " " + 123456789.123456789,
+            run(dir.resolve("out"), "_doubles").strip()
+        );
+        var listing = Files.readString(dir.resolve("in/_doubles.j"));
+        assertTrue(listing.contains("ldc2_w 1.0e-12"), listing);
+    }
+
+    @Test
+    void framesBranchTargetsAndDropsDeadCode() throws Exception {
+        // x > 0 ? 1 : 0, with a goto after the return
+        var code = new Bytecode();
+        code.local("iload", 0);
+        code.jump("ifgt", "positive");
+        code.push(0);
+        code.jump("goto", "end");
+        code.label("positive");
+        code.push(1);
+        code.label("end");
+        code.op("ireturn");
+        code.jump("goto", "end");
+
+        var classFile = new ClassFileWriter("_frames", "java/lang/Object");
+        classFile.method(
+            ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "positive", "(I)I", code
+        );
+        var dir = Files.createTempDirectory("jvm");
+        Files.write(dir.resolve("_frames.class"), classFile.bytes());
+
+        try (var loader = new java.net.URLClassLoader(new java.net.URL[] {dir.toUri().toURL()})) {
+            var positive = loader.loadClass("_frames").getMethod("positive", int.class);
+            assertEquals(1, positive.invoke(null, 5));
+            assertEquals(0, positive.invoke(null, -5));
+        }
+        assertThrows(IllegalStateException.class, () -> {
+            var broken = new Bytecode();
+            broken.jump("goto", "nowhere");
+            new ClassFileWriter("_broken", "java/lang/Object").method(
+                ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "f", "()V", broken
+            );
+        });
+    }
+}
+
+class MethodLimitsTest {
+    private static final int STATIC = ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC;
+
+    @Test
+    void countsDoublesAsTwoSlots() {
+        // x + x * 2.0, three doubles on the stack at once
+        var code = new Bytecode();
+        code.local("dload", 0);
+        code.local("dload", 0);
+        code.push(2.0);
+        code.op("dmul");
+        code.op("dadd");
+        code.local("dstore", 2);
+        code.local("dload", 2);
+        code.op("dreturn");
+
+        var encoded = new ClassFileWriter("_limits", "java/lang/Object").method(STATIC, "f", "(D)D", code);
+        assertEquals(6, encoded.maxStack());
+        assertEquals(4, encoded.maxLocals());
+    }
+
+    @Test
+    void countsArgumentsAndOnlyReachableCode() {
+        // the arguments are never read, the dead code would push three
+        var code = new Bytecode();
+        code.push(1);
+        code.op("ireturn");
+        code.push(1);
+        code.push(2);
+        code.push(3);
+        code.op("ireturn");
+
+        var encoded = new ClassFileWriter("_limits", "java/lang/Object").method(STATIC, "f", "(IDLjava/lang/String;)I", code);
+        assertEquals(1, encoded.maxStack());
+        assertEquals(4, encoded.maxLocals());
+    }
+
+    @Test
+    void runsMethodsWithMoreThanAHundredLocals() throws Exception {
+        var program = new StringBuilder("func f(x: Int) -> Int {\n    let v0 = x;\n");
+        for (var i = 1; i < 150; i++) {
+            program.append("    let v").append(i).append(" = v").append(i - 1).append(" + 1;\n");
+        }
+        program.append("    return v149;\n}\nfunc main() { print(f(1)); }\n");
+
+        var ir = typed(program.toString());
+
+        var dir = Files.createTempDirectory("jvm");
+        new TranslatorJVM(ir, "_locals").generate(dir.resolve("in").toString());
+        var listing = Files.readString(dir.resolve("in/_locals.j"));
+        assertTrue(listing.contains(".code stack 1 locals 1\n"), listing);
+        assertFalse(listing.contains("stack 100"), listing);
+
+        var stdout = System.out;
+        var printed = new java.io.ByteArrayOutputStream();
+        try (var loader = new java.net.URLClassLoader(new java.net.URL[] {dir.resolve("out").toUri().toURL()})) {
+            var main = loader.loadClass("_locals").getMethod("main", String[].class);
+            System.setOut(new java.io.PrintStream(printed, true, StandardCharsets.UTF_8));
+            main.invoke(null, (Object) new String[0]);
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals("150", printed.toString(StandardCharsets.UTF_8).strip());
+    }
+}
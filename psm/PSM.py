@@ -90,6 +90,7 @@ class VirtualPostfixMachine:
             "cat_op",
             "stack_op",
             "seq_op",
+            "sb_op",
             "colon",
             "jf",
             "jump",
@@ -379,6 +380,8 @@ class VirtualPostfixMachine:
                 self._do_stack(token)
             elif tok_type == "seq_op":
                 self._do_seq(token)
+            elif tok_type == "sb_op":
+                self._do_builder(token)
             elif tok_type == "colon":
                 self._do_colon()
             elif tok_type == "jf":
@@ -396,9 +399,12 @@ class VirtualPostfixMachine:
                 break
             else:
                 self.stack.append((token, tok_type))
-            self._debug_print(f"  Стек після виконання: {self.stack}")
-            self._debug_print(f"  Змінні: {self.variable_values}")
-            self._debug_print(f"  Глобальні змінні: {self.globals}")
+            # f-рядки форматують усі змінні, а з ними і довгі рядки та
+            # будівники, тож лише коли їх справді друкуватимуть
+            if self.debug:
+                self._debug_print(f"  Стек після виконання: {self.stack}")
+                self._debug_print(f"  Змінні: {self.variable_values}")
+                self._debug_print(f"  Глобальні змінні: {self.globals}")
             self.pc += 1
 
     def _do_assign(self):
@@ -414,9 +420,10 @@ class VirtualPostfixMachine:
 
         if r_token == "r-val":
             r_lexeme, r_token = self._get_value(r_lexeme)
-            if r_token != self.variable_types[l_lexeme]:
+            l_token = self._get_var_type(l_lexeme)
+            if r_token != l_token:
                 console.print(
-                    f"\nПОМИЛКА: Невідповідність типів у присвоєнні: {l_lexeme} ({self.variable_types[l_lexeme]}) та {r_lexeme} ({r_token}); рядок {self.pc + self.code_start_num}, модуль {self.module}"
+                    f"\nПОМИЛКА: Невідповідність типів у присвоєнні: {l_lexeme} ({l_token}) та {r_lexeme} ({r_token}); рядок {self.pc + self.code_start_num}, модуль {self.module}"
                 )
                 exit(1)
             self._set_value(l_lexeme, r_lexeme)
@@ -774,6 +781,34 @@ class VirtualPostfixMachine:
             self.stack.append((lexeme1[idx], "string"))
             self._debug_print(f"  NTH: {lexeme1}{lexeme2} -> {lexeme1[idx]}")
 
+    def _do_builder(self, op: str):
+        # будівник рядка - змінна типу builder зі списком шматків, щоб
+        # накопичення в циклі не копіювало весь рядок щоразу
+        if op == "NEW" or op == "ADD":
+            lexeme, ty = self._get_1_operand(op)
+            builder, token = self.stack.pop()
+            if token != "l-val" or ty != "string":
+                console.print(
+                    f"\nПОМИЛКА: {op} очікує будівник і string, не {token}, {ty}"
+                )
+                exit(1)
+            if op == "NEW":
+                self._set_value(builder, [lexeme])
+            else:
+                self._get_value(builder)[0].append(lexeme)
+            self._debug_print(f"  {op}: {builder} <- {lexeme}")
+        elif op == "JOIN" or op == "RJOIN":
+            parts, ty = self._get_1_operand(op)
+            if ty != "builder":
+                console.print(f"\nПОМИЛКА: {op} може застосовуватись лише до builder, не до {ty}")
+                exit(1)
+            result = "".join(reversed(parts) if op == "RJOIN" else parts)
+            self.stack.append((result, "string"))
+            self._debug_print(f"  {op}: {len(parts)} шматків -> {result}")
+        else:
+            console.print(f"\nПОМИЛКА: Невідома операція будівника: {op}")
+            exit(1)
+
     def _call_func(self, func_name: str):
         if func_name not in self.functions:
             console.print(f"\nПОМИЛКА: Невідома функція: {func_name}")